@@ -0,0 +1,200 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Logger;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads back the responses kept by a ResponseArchive.
+ * Records that were aborted are skipped.
+ * A segment that ends early (eg. it was still being written, or the gatherer crashed)
+ *  is read up to the last complete record.
+ *
+ * The main method runs the gatherer's decoder over an archive directory, which is
+ *  the starting point for pulling new fields out of old responses.
+ */
+public class ArchiveReader {
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final File file;
+   private final DataInputStream in;
+
+   /**
+    * The body of the current record.
+    * This is reused from record to record.
+    */
+   private byte[] body;
+   private int bodyLength;
+
+   public ArchiveReader(File file) throws IOException {
+      this.file = file;
+
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE), BUFFER_SIZE));
+
+      body = new byte[BUFFER_SIZE];
+      bodyLength = 0;
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length != 1) {
+         System.out.println("USAGE: java edu.calpoly.twitter.ArchiveReader <archive dir>");
+         return;
+      }
+
+      Logger.init();
+
+      Map<String, QueryTargetInfo> queries = new HashMap<String, QueryTargetInfo>();
+      long start = System.currentTimeMillis();
+      long responses = 0;
+      long tweets = 0;
+      long bytes = 0;
+
+      for (File segment : listSegments(new File(args[0]))) {
+         ArchiveReader reader = new ArchiveReader(segment);
+
+         try {
+            Record record;
+            while ((record = reader.next()) != null) {
+               QueryTargetInfo info = queries.get(record.query);
+               if (info == null) {
+                  info = new QueryTargetInfo(record.query);
+                  queries.put(record.query, info);
+               }
+
+               JSONObject json = new JSONObject(new JSONTokener(record.getBody()));
+               List<TweetData> decoded = JSONTwitterGatherer.getTweets(json, info);
+
+               responses++;
+               tweets += decoded.size();
+               bytes += record.length;
+            }
+         } finally {
+            reader.close();
+         }
+      }
+
+      double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+      System.out.println(String.format(
+            "Decoded %d tweets for %d queries from %d responses (%.1f MB) in %.2f s (%.1f MB/s).",
+            tweets, queries.size(), responses, bytes / 1048576.0, seconds,
+            bytes / 1048576.0 / seconds));
+
+      Logger.tearDown();
+   }
+
+   /**
+    * Get all the segments in an archive directory, oldest first.
+    */
+   public static List<File> listSegments(File dir) {
+      File[] files = dir.listFiles(new FilenameFilter() {
+         public boolean accept(File parent, String name) {
+            return name.startsWith(ResponseArchive.PREFIX) &&
+                   name.endsWith(ResponseArchive.SUFFIX);
+         }
+      });
+
+      if (files == null) {
+         return new ArrayList<File>();
+      }
+
+      // The names start with the time they were created.
+      Arrays.sort(files);
+      return Arrays.asList(files);
+   }
+
+   /**
+    * Read the next complete record.
+    * The previous record's body is no longer valid after this.
+    *
+    * @return The record, or null if there are no more.
+    */
+   public Record next() throws IOException {
+      try {
+         while (true) {
+            String query = in.readUTF();
+            String url = in.readUTF();
+            long fetched = in.readLong();
+
+            bodyLength = 0;
+            int chunk;
+            while ((chunk = in.readInt()) > 0) {
+               if (bodyLength + chunk > body.length) {
+                  body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + chunk));
+               }
+
+               in.readFully(body, bodyLength, chunk);
+               bodyLength += chunk;
+            }
+
+            if (chunk == ResponseArchive.END) {
+               return new Record(query, url, fetched, bodyLength);
+            }
+         }
+      } catch (EOFException ex) {
+         // Either the end of the segment, or it was cut off in the middle of a record.
+         return null;
+      } catch (IOException ex) {
+         Logger.logWarn("Segment " + file + " is damaged, skipping the rest of it.");
+         return null;
+      }
+   }
+
+   public void close() throws IOException {
+      in.close();
+   }
+
+   /**
+    * A single captured response.
+    */
+   public class Record {
+      public final String query;
+      public final String url;
+
+      /**
+       * When the response was fetched (in ms since the Unix epoch).
+       */
+      public final long fetchedMillis;
+
+      /**
+       * The number of bytes in the body.
+       */
+      public final int length;
+
+      private Record(String query, String url, long fetchedMillis, int length) {
+         this.query = query;
+         this.url = url;
+         this.fetchedMillis = fetchedMillis;
+         this.length = length;
+      }
+
+      /**
+       * Get the raw response.
+       * This is only good until the next call to next().
+       */
+      public InputStream getBody() {
+         return new ByteArrayInputStream(body, 0, length);
+      }
+   }
+}
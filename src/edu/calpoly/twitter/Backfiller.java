@@ -0,0 +1,280 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.store.FakeTweetStore;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.Snowflake;
+import edu.calpoly.twitter.util.TaskExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Fills in the history of a query quickly.
+ * A normal gather can only walk backwards from the newest tweet one page at a time.
+ * Instead, the backfiller uses the time that is built into tweet ids (see Snowflake) to split
+ *  the ids between a starting time and the query's lastSeenId into disjoint windows,
+ *  and then crawls several windows at once.
+ * Every request still goes through the gatherer, so the shared rate limit is respected.
+ *
+ * Each window is crawled newest to oldest with since_id/max_id, and its progress is saved
+ *  in the gatherer's CheckpointLog (if it has one) after every page.
+ * If a backfill is interrupted, running it again for the same query picks up the same windows
+ *  where they left off (the starting time that is passed in is ignored).
+ * Once every window is done, the progress is cleared.
+ *
+ * Twitter only keeps about a week of tweets in search, so there is no point in asking for more.
+ *
+ * Configured with BACKFILL_WINDOWS (default 8) and BACKFILL_THREADS (default 4).
+ */
+public class Backfiller {
+   private static final String KEY_PREFIX = "backfill:";
+   private static final String DONE = "done";
+   private static final String OPEN = "open";
+
+   private final JSONTwitterGatherer gatherer;
+   private final CheckpointLog progress;
+   private final int numWindows;
+   private final int numThreads;
+
+   public Backfiller(JSONTwitterGatherer gatherer) {
+      this.gatherer = gatherer;
+      progress = gatherer.getCheckpointLog();
+      numWindows = Props.getInt("BACKFILL_WINDOWS", 8);
+      numThreads = Props.getInt("BACKFILL_THREADS", 4);
+   }
+
+   public static void main(String[] args) {
+      if (args.length < 2) {
+         System.out.println(
+               "USAGE: java edu.calpoly.twitter.Backfiller <days> <query> [query ...]");
+         return;
+      }
+
+      Props.readFiles("config/base.properties", "config/secrets.properties");
+
+      Logger.init();
+      Metrics.init();
+
+      long fromMillis = System.currentTimeMillis() - (Long.parseLong(args[0]) * 24 * 3600 * 1000);
+      List<String> queries = new ArrayList<String>();
+      for (int i = 1; i < args.length; i++) {
+         queries.add(args[i]);
+      }
+
+      FakeTweetStore store = new FakeTweetStore();
+      JSONTwitterGatherer gatherer = new JSONTwitterGatherer(store, queries);
+      Backfiller backfiller = new Backfiller(gatherer);
+
+      for (QueryTargetInfo info : gatherer.getQueries()) {
+         int count = backfiller.backfill(info, fromMillis);
+         System.out.println("Backfilled " + count + " tweets for \"" + info.query + "\".");
+      }
+
+      gatherer.close();
+
+      Logger.tearDown();
+   }
+
+   /**
+    * Backfill a query.
+    * This blocks until all the windows are done (or have failed).
+    *
+    * @param fromMillis How far back to go (in ms since the Unix epoch).
+    *
+    * @return The number of tweets inserted.
+    */
+   public int backfill(final QueryTargetInfo info, long fromMillis) {
+      if (info instanceof QueryPack) {
+         throw new IllegalArgumentException("QueryPacks cannot be backfilled.");
+      }
+
+      List<Window> windows = plan(info, fromMillis);
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      ExecutorService executor = TaskExecutors.newExecutor("backfill", numThreads);
+      int count = 0;
+
+      for (final Window window : windows) {
+         if (!window.done) {
+            results.add(executor.submit(new Callable<Integer>() {
+               public Integer call() {
+                  return crawl(info, window);
+               }
+            }));
+         }
+      }
+
+      for (Future<Integer> result : results) {
+         try {
+            count += result.get();
+         } catch (ExecutionException ex) {
+            Logger.logError("Error backfilling \"" + info.query + "\".", ex.getCause());
+         } catch (InterruptedException ex) {
+            Logger.logWarn("Interrupted while backfilling \"" + info.query + "\".");
+            Thread.currentThread().interrupt();
+            break;
+         }
+      }
+
+      executor.shutdownNow();
+
+      boolean allDone = true;
+      for (Window window : windows) {
+         allDone &= window.done;
+      }
+
+      if (allDone && progress != null) {
+         progress.remove(KEY_PREFIX + info.query);
+         for (Window window : windows) {
+            progress.remove(window.key);
+         }
+      }
+
+      Logger.log(String.format("Backfilled %d tweets for the query \"%s\"%s.", count, info.query,
+                               allDone ? "" : " (incomplete, run again to resume)"));
+
+      return count;
+   }
+
+   /**
+    * Split up the ids to backfill into windows.
+    * If there is saved progress for the query, then those windows are used instead.
+    */
+   private List<Window> plan(QueryTargetInfo info, long fromMillis) {
+      List<Window> windows = new ArrayList<Window>();
+      String planKey = KEY_PREFIX + info.query;
+      String[] plan = progress == null ? null : progress.get(planKey);
+
+      if (plan != null) {
+         int savedWindows = Integer.parseInt(plan[2]);
+
+         for (int i = 0; i < savedWindows; i++) {
+            String[] values = progress.get(planKey + ":" + i);
+
+            // If a window has no progress, then it never got to save any. Start it over.
+            Window window = new Window(planKey + ":" + i,
+                                       Long.parseLong(values == null ? plan[0] : values[0]),
+                                       Long.parseLong(values == null ? plan[1] : values[1]));
+            if (values != null) {
+               window.cursor = Long.parseLong(values[2]);
+               window.done = DONE.equals(values[3]);
+            }
+
+            windows.add(window);
+         }
+
+         Logger.log(String.format("Resuming a backfill of \"%s\" in %d windows.",
+                                  info.query, windows.size()));
+         return windows;
+      }
+
+      long low = Snowflake.idForTime(fromMillis);
+      long high = info.lastSeenId == null ?
+                  Snowflake.idForTime(System.currentTimeMillis()) :
+                  Long.valueOf(info.lastSeenId);
+
+      if (high <= low) {
+         return windows;
+      }
+
+      long span = (high - low) / numWindows;
+      for (int i = 0; i < numWindows; i++) {
+         long windowLow = low + (span * i);
+         long windowHigh = (i == numWindows - 1) ? high : windowLow + span;
+
+         Window window = new Window(planKey + ":" + i, windowLow, windowHigh);
+         windows.add(window);
+      }
+
+      if (progress != null) {
+         progress.put(planKey, "" + low, "" + high, "" + numWindows);
+         for (Window window : windows) {
+            save(window);
+         }
+      }
+
+      return windows;
+   }
+
+   /**
+    * Crawl a single window from newest to oldest.
+    *
+    * @return The number of tweets inserted.
+    */
+   private int crawl(QueryTargetInfo info, Window window) {
+      // The gatherer keeps track of ids on the info, so give each window its own.
+      QueryTargetInfo windowInfo = new QueryTargetInfo(info.query);
+      int count = 0;
+
+      try {
+         while (!window.done) {
+            String url = gatherer.buildUrl(info.query, "" + window.low, "" + window.cursor);
+            JSONTwitterGatherer.Page page = gatherer.fetchPage(windowInfo, url);
+
+            List<TweetData> tweets = new ArrayList<TweetData>();
+            long smallest = Long.MAX_VALUE;
+            for (TweetData tweet : page.tweets) {
+               long id = Long.valueOf(tweet.twitterId);
+
+               if (id > window.low && id <= window.high) {
+                  tweets.add(tweet);
+                  smallest = Math.min(smallest, id);
+               }
+            }
+
+            if (tweets.isEmpty()) {
+               window.done = true;
+            } else {
+               count += gatherer.insert(info, tweets);
+               window.cursor = smallest - 1;
+               window.done = window.cursor <= window.low;
+            }
+            page.recycle();
+
+            save(window);
+         }
+      } catch (Exception ex) {
+         Logger.logError("Error backfilling a window of \"" + info.query + "\".", ex);
+      }
+
+      return count;
+   }
+
+   private void save(Window window) {
+      if (progress != null) {
+         progress.put(window.key, "" + window.low, "" + window.high, "" + window.cursor,
+                      window.done ? DONE : OPEN);
+      }
+   }
+
+   /**
+    * A range of ids to crawl: (low, high].
+    */
+   private static class Window {
+      public final String key;
+      public final long low;
+      public final long high;
+
+      /**
+       * The max_id for the next request.
+       * Written by the crawling thread, read by the thread that waits for the backfill.
+       */
+      public volatile long cursor;
+
+      public volatile boolean done;
+
+      public Window(String key, long low, long high) {
+         this.key = key;
+         this.low = low;
+         this.high = high;
+         cursor = high;
+         done = false;
+      }
+   }
+}
@@ -0,0 +1,242 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.util.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small durable record of where each query is, so that a restarted gatherer can pick up
+ *  exactly where it stopped (without asking the store or refetching pages).
+ *
+ * Each entry is a key and a few values.
+ * For a query, the key is "query:" + the query and the values are its
+ *  lastSeenId, floorId, and smallestId (see QueryTargetInfo).
+ *
+ * Every change rewrites the whole file: a temp file is written and synced, and then moved
+ *  over the old file.
+ * So, the file on disk is always either the old version or the new one, never a mix.
+ * There is one line per query, so the file stays small.
+ *
+ * The entries are only locked while they are changed or copied.
+ * The file is written from a copy under a separate ReentrantLock, so no monitor is held during
+ *  the I/O (see TaskExecutors), and a caller that was waiting for a write writes everything
+ *  that changed while it waited, so callers after it can skip writing.
+ *
+ * File format: tab separated, one entry per line, "-" for null values.
+ * Lines starting with '#' are ignored.
+ */
+public class CheckpointLog {
+   private static final String QUERY_PREFIX = "query:";
+   private static final String NULL = "-";
+   private static final String HEADER = "# Bird Catcher checkpoints. key, values...";
+
+   private final File file;
+   private final File tempFile;
+   private final Map<String, String[]> entries;
+
+   /**
+    * Bumped every time the entries change (guarded by this).
+    */
+   private long version;
+
+   /**
+    * Only one write at a time.
+    */
+   private final ReentrantLock writeLock;
+
+   /**
+    * The version that is on disk (guarded by writeLock).
+    */
+   private long writtenVersion;
+
+   /**
+    * Open (or create) the checkpoint log at |path|.
+    * Any existing entries are loaded.
+    */
+   public CheckpointLog(String path) {
+      file = new File(path);
+      tempFile = new File(path + ".tmp");
+      entries = new TreeMap<String, String[]>();
+      version = 0;
+      writeLock = new ReentrantLock();
+      writtenVersion = 0;
+
+      if (file.exists()) {
+         load();
+      }
+   }
+
+   /**
+    * Get the values for a key.
+    *
+    * @return A copy of the values, or null if there is no entry.
+    */
+   public synchronized String[] get(String key) {
+      String[] values = entries.get(key);
+      return values == null ? null : Arrays.copyOf(values, values.length);
+   }
+
+   /**
+    * Set the values for a key and write the log.
+    */
+   public void put(String key, String... values) {
+      synchronized (this) {
+         entries.put(key, Arrays.copyOf(values, values.length));
+         version++;
+      }
+
+      write();
+   }
+
+   /**
+    * Remove a key and write the log.
+    */
+   public void remove(String key) {
+      synchronized (this) {
+         if (entries.remove(key) == null) {
+            return;
+         }
+         version++;
+      }
+
+      write();
+   }
+
+   /**
+    * Restore a query's position from the log.
+    *
+    * @return True if there was a checkpoint for the query.
+    */
+   public boolean restore(QueryTargetInfo info) {
+      String[] values = get(QUERY_PREFIX + info.query);
+
+      if (values == null || values.length != 3) {
+         return false;
+      }
+
+      info.lastSeenId = values[0];
+      info.floorId = values[1];
+      info.smallestId = values[2];
+
+      return true;
+   }
+
+   /**
+    * Record a query's position.
+    */
+   public void save(QueryTargetInfo info) {
+      put(QUERY_PREFIX + info.query, info.lastSeenId, info.floorId, info.smallestId);
+   }
+
+   private void load() {
+      BufferedReader reader = null;
+
+      try {
+         reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                           StandardCharsets.UTF_8));
+
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+               continue;
+            }
+
+            String[] parts = line.split("\t", -1);
+            String[] values = new String[parts.length - 1];
+            for (int i = 1; i < parts.length; i++) {
+               values[i - 1] = NULL.equals(parts[i]) ? null : parts[i];
+            }
+
+            entries.put(parts[0], values);
+         }
+      } catch (IOException ex) {
+         Logger.logError("Unable to read checkpoints from " + file + ".", ex);
+      } finally {
+         if (reader != null) {
+            try {
+               reader.close();
+            } catch (IOException ex) {
+            }
+         }
+      }
+   }
+
+   /**
+    * Write the latest entries, unless they are already on disk.
+    */
+   private void write() {
+      writeLock.lock();
+
+      try {
+         Map<String, String[]> snapshot;
+         long snapshotVersion;
+
+         synchronized (this) {
+            if (version == writtenVersion) {
+               return;
+            }
+
+            // Values are never changed once they are put, so a shallow copy will do.
+            snapshot = new TreeMap<String, String[]>(entries);
+            snapshotVersion = version;
+         }
+
+         write(snapshot);
+         writtenVersion = snapshotVersion;
+      } catch (IOException ex) {
+         Logger.logError("Unable to write checkpoints to " + file + ".", ex);
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   private void write(Map<String, String[]> snapshot) throws IOException {
+      FileOutputStream out = new FileOutputStream(tempFile);
+      Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+      try {
+         writer.write(HEADER + "\n");
+         for (Map.Entry<String, String[]> entry : snapshot.entrySet()) {
+            writer.write(clean(entry.getKey()));
+            for (String value : entry.getValue()) {
+               writer.write("\t" + (value == null ? NULL : clean(value)));
+            }
+            writer.write("\n");
+         }
+
+         writer.flush();
+         out.getFD().sync();
+      } finally {
+         writer.close();
+      }
+
+      try {
+         Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException ex) {
+         Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+
+   /**
+    * Keys and values can't break the line format.
+    */
+   private static String clean(String value) {
+      return value.replace("\t", "%09").replace("\n", "%0A").replace("\r", "%0D");
+   }
+}
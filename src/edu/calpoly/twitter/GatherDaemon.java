@@ -0,0 +1,123 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.dedup.NearDuplicateFilter;
+import edu.calpoly.twitter.dedup.NearDuplicateTweetStore;
+import edu.calpoly.twitter.enrich.EnrichingTweetStore;
+import edu.calpoly.twitter.stats.AggregatingTweetStore;
+import edu.calpoly.twitter.stats.FrameAggregator;
+import edu.calpoly.twitter.stats.TrendTracker;
+import edu.calpoly.twitter.stats.TweetListener;
+import edu.calpoly.twitter.store.FakeTweetStore;
+import edu.calpoly.twitter.store.TweetStore;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.TwitterAuth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A long-running driver that keeps the gatherer resident and polls every query
+ *  on its own adaptive schedule (see PollScheduler).
+ * The queries come from the QUERIES property.
+ * It runs until the JVM is told to shut down (eg. SIGTERM or Ctrl-C).
+ *
+ * Startup is timed (see StartupTimer), and the bearer token is fetched in the background
+ *  while the rest of the daemon starts.
+ */
+public class GatherDaemon {
+   public static void main(String[] args) {
+      StartupTimer startup = new StartupTimer();
+
+      Props.readFiles("config/base.properties", "config/secrets.properties");
+      startup.phase("props");
+
+      Logger.init();
+
+      // The gatherer picks this up when it is made, and only waits for it on the first request.
+      // It is started after the Logger, since it logs from its own thread.
+      TwitterAuth.getBearerTokenAsync(Props.getString("TWITTER_API_KEY"),
+                                      Props.getString("TWITTER_API_SECRET"));
+
+      Metrics.init();
+      startup.phase("init");
+
+      List<String> queries = Props.getList("QUERIES");
+      if (queries.isEmpty()) {
+         queries.add("calpoly");
+      }
+
+      final FakeTweetStore store = new FakeTweetStore();
+      final EnrichingTweetStore enricher =
+            Props.getBoolean("ENRICH_PLACES", false) ? new EnrichingTweetStore(store) : null;
+      TweetStore target = (enricher == null) ? store : enricher;
+
+      // Near duplicates are thrown out before anything is spent on enriching them.
+      if (Props.getBoolean("DEDUP_NEAR", false)) {
+         target = new NearDuplicateTweetStore(target, new NearDuplicateFilter());
+      }
+
+      final TrendTracker trends =
+            Props.getBoolean("TRACK_TRENDS", false) ? new TrendTracker() : null;
+      List<TweetListener> listeners = new ArrayList<TweetListener>();
+      listeners.add(startup);
+
+      if (Props.getBoolean("AGGREGATE_TWEETS", false)) {
+         listeners.add(new FrameAggregator());
+      }
+      if (trends != null) {
+         listeners.add(trends);
+      }
+      target = new AggregatingTweetStore(target, listeners);
+      startup.phase("stores");
+
+      final JSONTwitterGatherer gatherer = new JSONTwitterGatherer(target, queries);
+      final PollScheduler scheduler = new PollScheduler(gatherer);
+
+      // Share the queries with other daemons using the same directory.
+      final LeaseCoordinator leases =
+            Props.has("LEASE_DIR") ? new LeaseCoordinator(gatherer.getQueries()) : null;
+      if (leases != null) {
+         scheduler.setCoordinator(leases);
+      }
+      final CountDownLatch done = new CountDownLatch(1);
+
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            scheduler.stop();
+            if (leases != null) {
+               leases.stop();
+            }
+            gatherer.close();
+            if (enricher != null) {
+               enricher.close();
+            }
+            if (trends != null) {
+               for (QueryTargetInfo info : gatherer.getQueries()) {
+                  Logger.log("Trending for \"" + info.query + "\": " +
+                             trends.getTop(info.query, 10));
+               }
+            }
+            Logger.log("Daemon stopping with " + store.size() + " tweets collected.");
+            Logger.tearDown();
+            done.countDown();
+         }
+      });
+
+      Logger.log("Daemon starting with " + queries.size() + " queries.");
+      if (leases != null) {
+         leases.start();
+      }
+      scheduler.start();
+      startup.phase("start");
+      startup.report();
+
+      try {
+         done.await();
+      } catch (InterruptedException ex) {
+         // Just exit.
+      }
+   }
+}
@@ -1,26 +1,53 @@
 package edu.calpoly.twitter;
 
+import edu.calpoly.twitter.enrich.EnrichingTweetStore;
+import edu.calpoly.twitter.stats.AggregatingTweetStore;
 import edu.calpoly.twitter.store.FakeTweetStore;
 import edu.calpoly.twitter.store.TweetData;
 import edu.calpoly.twitter.store.TweetStore;
 import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
 import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.TwitterAuth;
 
 /**
  * A simple sample driver to get some tweets.
  */
 public class GatherTweets {
    public static void main(String[] args) {
-      Props.readFile("config/base.properties");
-      Props.readFile("config/secrets.properties");
+      StartupTimer startup = new StartupTimer();
+
+      Props.readFiles("config/base.properties", "config/secrets.properties");
+      startup.phase("props");
 
       Logger.init();
 
+      TwitterAuth.getBearerTokenAsync(Props.getString("TWITTER_API_KEY"),
+                                      Props.getString("TWITTER_API_SECRET"));
+
+      Metrics.init();
+      startup.phase("init");
+
       FakeTweetStore store = new FakeTweetStore();
+      EnrichingTweetStore enricher = null;
+      TweetStore target = store;
 
-      JSONTwitterGatherer gatherer = new JSONTwitterGatherer(store, "calpoly");
+      if (Props.getBoolean("ENRICH_PLACES", false)) {
+         enricher = new EnrichingTweetStore(store);
+         target = enricher;
+      }
+
+      JSONTwitterGatherer gatherer =
+            new JSONTwitterGatherer(new AggregatingTweetStore(target, startup), "calpoly");
+      startup.phase("gatherer");
+      startup.report();
 
       gatherer.update();
+      gatherer.close();
+
+      if (enricher != null) {
+         enricher.close();
+      }
 
       System.out.println("Collected " + store.size() + " tweets:");
       for (TweetData tweet : store.getTweets()) {
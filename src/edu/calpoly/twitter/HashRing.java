@@ -0,0 +1,80 @@
+package edu.calpoly.twitter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring that maps keys (queries) to members (workers).
+ *
+ * Each member is put on the ring at |virtualNodes| points, and a key belongs to the first
+ *  member point at or after the key's own point (wrapping around).
+ * So, when a member joins or leaves, only the keys next to its points move.
+ *
+ * The hash is MD5, so every JVM (on any host) builds the same ring from the same members.
+ * Immutable, so it is safe to share between threads.
+ */
+public class HashRing {
+   private final TreeMap<Long, String> ring;
+   private final List<String> members;
+
+   public HashRing(Collection<String> members, int virtualNodes) {
+      ring = new TreeMap<Long, String>();
+      this.members = new ArrayList<String>(members);
+      Collections.sort(this.members);
+
+      for (String member : this.members) {
+         for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(member + "#" + i), member);
+         }
+      }
+   }
+
+   /**
+    * Get the member that owns |key|.
+    *
+    * @return The member, or null if there are no members.
+    */
+   public String get(String key) {
+      if (ring.isEmpty()) {
+         return null;
+      }
+
+      Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+      return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+   }
+
+   /**
+    * Get the members, sorted.
+    */
+   public List<String> getMembers() {
+      return Collections.unmodifiableList(members);
+   }
+
+   /**
+    * The first 8 bytes of the MD5 of |value|.
+    */
+   static long hash(String value) {
+      byte[] digest;
+
+      try {
+         digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+      } catch (NoSuchAlgorithmException ex) {
+         // Every JVM has to have MD5.
+         throw new IllegalStateException(ex);
+      }
+
+      long rtn = 0;
+      for (int i = 0; i < 8; i++) {
+         rtn = (rtn << 8) | (digest[i] & 0xFF);
+      }
+
+      return rtn;
+   }
+}
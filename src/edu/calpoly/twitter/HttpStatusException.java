@@ -0,0 +1,44 @@
+package edu.calpoly.twitter;
+
+import java.io.IOException;
+
+/**
+ * Twitter answered a request, but not with a 200.
+ */
+public class HttpStatusException extends IOException {
+   private static final long serialVersionUID = 1L;
+
+   private final int status;
+   private final long retryAfterMillis;
+
+   /**
+    * @param retryAfterMillis How long Twitter asked us to wait before trying again,
+    *  or -1 if it did not say.
+    */
+   public HttpStatusException(String url, int status, long retryAfterMillis) {
+      super("HTTP " + status + " for " + url);
+
+      this.status = status;
+      this.retryAfterMillis = retryAfterMillis;
+   }
+
+   public int getStatus() {
+      return status;
+   }
+
+   public long getRetryAfterMillis() {
+      return retryAfterMillis;
+   }
+
+   /**
+    * Too many requests.
+    * Twitter used to use 420 for this, so that counts too.
+    */
+   public boolean isRateLimited() {
+      return status == 429 || status == 420;
+   }
+
+   public boolean isServerError() {
+      return status >= 500 && status < 600;
+   }
+}
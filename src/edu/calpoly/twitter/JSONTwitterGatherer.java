@@ -1,9 +1,15 @@
 package edu.calpoly.twitter;
 
+import edu.calpoly.twitter.store.PageBuffer;
+import edu.calpoly.twitter.store.QueryTagStore;
 import edu.calpoly.twitter.store.TweetData;
 import edu.calpoly.twitter.store.TweetStore;
+import edu.calpoly.twitter.util.Backoff;
+import edu.calpoly.twitter.util.CountingInputStream;
 import edu.calpoly.twitter.util.Logger;
 import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.RateLimiter;
+import edu.calpoly.twitter.util.TaskExecutors;
 import edu.calpoly.twitter.util.TwitterAuth;
 
 import org.json.JSONArray;
@@ -11,7 +17,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.sql.Connection;
@@ -22,7 +32,12 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Get tweets from Twitter.
@@ -31,31 +46,33 @@ import javax.net.ssl.HttpsURLConnection;
  */
 public class JSONTwitterGatherer {
    /**
-    * The base URL to use for the query to Twitter.
+    * The default base URL to use for the query to Twitter.
     * The only thing left is to add the actual query ('q') parameter.
+    * This can be overridden with the TWITTER_SEARCH_URL property.
     */
    private static final String URL_BASE = "https://api.twitter.com/1.1/search/tweets.json";
 
    /**
     * The number of allowed results per page that Twitter allows.
     */
-   private static final int RPP = 100;
+   public static final int RPP = 100;
 
    /**
     * The maximum number of pages that Twitter will give.
     */
-   private static final int MAX_PAGES = 15;
+   public static final int MAX_PAGES = 15;
 
    /**
     * The number of seconds that are in an atomic frame.
+    * This is the finest resolution of live counts (see FrameAggregator).
     */
-   private static final int SEC_PER_FRAME = 60;
+   public static final int SEC_PER_FRAME = 60;
 
    /**
     * The format that the date is given from Twitter.
     * Ex: Wed Apr 09 05:49:59 +0000 2014
     */
-   private static final String TIME_FORMAT = "EEE MMM dd HH:mm:ss Z yyyy";
+   static final String TIME_FORMAT = "EEE MMM dd HH:mm:ss Z yyyy";
 
    /**
     * The info for each target of this Gatherer.
@@ -67,132 +84,798 @@ public class JSONTwitterGatherer {
     */
    private TweetStore store;
 
-   private final String kBearerToken;
+   /**
+    * Every request to Twitter needs a permit from here first.
+    */
+   private RateLimiter rateLimiter;
+
+   /**
+    * The base URL to use for the query to Twitter (see URL_BASE).
+    */
+   private final String searchUrl;
+
+   /**
+    * How long to wait between pages in a chain (in ms).
+    */
+   private final long pageDelayMs;
+
+   /**
+    * Timeouts for each request (in ms).
+    */
+   private final int connectTimeoutMs;
+   private final int readTimeoutMs;
+
+   /**
+    * How to wait between attempts at a page that failed.
+    */
+   private final Backoff backoff;
+
+   /**
+    * Decode pages into LazyTweetData instead of with org.json (see LazyTweetDecoder).
+    */
+   private final boolean lazyDecode;
+
+   /**
+    * Packs low-volume queries together (see QueryPlanner).
+    * Null if COALESCE_QUERIES is off.
+    */
+   private final QueryPlanner planner;
+
+   /**
+    * Where query positions are saved (see CheckpointLog).
+    * Null if CHECKPOINT_FILE is not set.
+    */
+   private CheckpointLog checkpoints;
+
+   /**
+    * Where raw responses are kept (see ResponseArchive).
+    * Null if RESPONSE_ARCHIVE_DIR is not set.
+    */
+   private final ResponseArchive archive;
+
+   /**
+    * Lets overlapping queries share decoded tweets (see SharedTweetCache).
+    * Null if SHARE_TWEETS is off.
+    */
+   private final SharedTweetCache sharedTweets;
+
+   /**
+    * Only waited on when the first request is made, so construction never blocks on it.
+    * Replaced with a new request if it fails (see getBearerToken()).
+    */
+   private volatile Future<String> bearerToken;
+
+   /**
+    * How many pages of a chain can be asked for ahead of the one being decoded
+    *  (see PagePrefetcher), 0 to fetch them one at a time.
+    */
+   private final int prefetchDepth;
+
+   /**
+    * Runs the PagePrefetchers, null if prefetching is off.
+    */
+   private final ExecutorService prefetchExecutor;
 
    public JSONTwitterGatherer(TweetStore store, String queryString) {
       this(store, new ArrayList<String>(Arrays.asList(queryString)));
    }
 
+   /**
+    * Get the bearer token in the background (see TwitterAuth.getBearerTokenAsync()).
+    */
    public JSONTwitterGatherer(TweetStore store, List<String> queryStrings) {
-      kBearerToken = TwitterAuth.getBearerToken(Props.getString("TWITTER_API_KEY"),
-                                                Props.getString("TWITTER_API_SECRET"));
+      this(store, queryStrings,
+           TwitterAuth.getBearerTokenAsync(Props.getString("TWITTER_API_KEY"),
+                                           Props.getString("TWITTER_API_SECRET")));
+   }
+
+   /**
+    * Use a bearer token that was already acquired.
+    */
+   public JSONTwitterGatherer(TweetStore store, List<String> queryStrings, String bearerToken) {
+      this(store, queryStrings, done(bearerToken));
+   }
+
+   /**
+    * Use a bearer token that may still be on its way.
+    */
+   public JSONTwitterGatherer(TweetStore store, List<String> queryStrings,
+                              Future<String> bearerToken) {
+      this.bearerToken = bearerToken;
+      searchUrl = Props.getString("TWITTER_SEARCH_URL", URL_BASE);
+      pageDelayMs = Props.getInt("PAGE_DELAY_MS", 1000);
+      lazyDecode = Props.getBoolean("LAZY_DECODE", false);
+      connectTimeoutMs = Props.getInt("HTTP_CONNECT_TIMEOUT_MS", 10000);
+      readTimeoutMs = Props.getInt("HTTP_READ_TIMEOUT_MS", 30000);
+      backoff = new Backoff(Props.getInt("RETRY_BASE_MS", 1000),
+                            Props.getInt("RETRY_MAX_MS", 60000),
+                            Props.getInt("RETRY_MAX_ATTEMPTS", 5));
+
+      if (Props.has("CHECKPOINT_FILE")) {
+         checkpoints = new CheckpointLog(Props.getString("CHECKPOINT_FILE"));
+      } else {
+         checkpoints = null;
+      }
+
+      if (Props.has("RESPONSE_ARCHIVE_DIR")) {
+         archive = new ResponseArchive(Props.getString("RESPONSE_ARCHIVE_DIR"),
+                                       Props.getInt("RESPONSE_ARCHIVE_SEGMENT_MB", 64) * 1048576L);
+      } else {
+         archive = null;
+      }
+
+      if (Props.getBoolean("COALESCE_QUERIES", false)) {
+         planner = new QueryPlanner(Props.getInt("COALESCE_MAX_QUERY_LENGTH", 500),
+                                    Props.getInt("COALESCE_MAX_TWEETS", RPP));
+      } else {
+         planner = null;
+      }
 
       this.store = store;
+      rateLimiter = RateLimiter.getShared();
       queries = new ArrayList<QueryTargetInfo>();
 
       for (String queryString : queryStrings) {
          queries.add(new QueryTargetInfo(queryString));
       }
+
+      sharedTweets = Props.getBoolean("SHARE_TWEETS", false) ? new SharedTweetCache(queries) : null;
+
+      prefetchDepth = Props.getInt("PREFETCH_DEPTH", 0);
+      prefetchExecutor = prefetchDepth > 0 ? TaskExecutors.newExecutor("prefetch", 0) : null;
+   }
+
+   private static Future<String> done(String value) {
+      FutureTask<String> rtn = new FutureTask<String>(new Runnable() {
+         public void run() {
+         }
+      }, value);
+
+      rtn.run();
+      return rtn;
    }
 
    /**
-    * @inheritDoc
+    * Use a different rate limiter than the shared one.
     */
-   public void update() {
+   public void setRateLimiter(RateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+   }
+
+   /**
+    * Use a different checkpoint log than the one from CHECKPOINT_FILE.
+    * Null turns checkpointing off.
+    */
+   public void setCheckpointLog(CheckpointLog checkpoints) {
+      this.checkpoints = checkpoints;
+   }
+
+   /**
+    * Get the checkpoint log, so other things that crawl for this gatherer can share it.
+    *
+    * @return The log, or null if checkpointing is off.
+    */
+   public CheckpointLog getCheckpointLog() {
+      return checkpoints;
+   }
+
+   /**
+    * Release anything that needs to be closed (like the response archive).
+    * The gatherer should not be used after this.
+    */
+   public void close() {
+      if (prefetchExecutor != null) {
+         prefetchExecutor.shutdownNow();
+      }
+
+      if (archive != null) {
+         archive.close();
+      }
+   }
+
+   /**
+    * Get the cache that queries share tweets through.
+    *
+    * @return The cache, or null if SHARE_TWEETS is off.
+    */
+   public SharedTweetCache getSharedTweetCache() {
+      return sharedTweets;
+   }
+
+   /**
+    * Get the info for every query this gatherer is responsible for.
+    */
+   public List<QueryTargetInfo> getQueries() {
+      return queries;
+   }
+
+   /**
+    * Get what should actually be gathered for all the queries.
+    * If queries are being coalesced, some of them will be replaced by QueryPacks.
+    */
+   public List<QueryTargetInfo> getPlan() {
+      return getPlan(queries);
+   }
+
+   /**
+    * Get what should actually be gathered for some of the queries (see getPlan()).
+    */
+   public List<QueryTargetInfo> getPlan(List<QueryTargetInfo> queries) {
+      if (planner == null) {
+         return queries;
+      }
+
+      return planner.plan(queries);
+   }
+
+   /**
+    * @return True if queries are being coalesced (see COALESCE_QUERIES).
+    */
+   public boolean isCoalescing() {
+      return planner != null;
+   }
+
+   /**
+    * Get the tweets for a query one at a time, instead of having them put in the store.
+    * Nothing is fetched until it is asked for (see QueryStream).
+    * The stream must not be used at the same time as anything else that gathers |info|.
+    */
+   public QueryStream stream(QueryTargetInfo info) {
+      if (info instanceof QueryPack) {
+         throw new IllegalArgumentException("QueryPacks can not be streamed.");
+      }
+
+      return new QueryStream(this, info);
+   }
+
+   /**
+    * Stream a query by its text.
+    * The info for one of this gatherer's queries is used if it has one, so where it is
+    *  gets shared with update().
+    */
+   public QueryStream stream(String query) {
       for (QueryTargetInfo info : queries) {
-         if (info.lastSeenId == null) {
-            info.lastSeenId = store.getLastTweetId(info);
+         if (info.query.equals(query)) {
+            return stream(info);
+         }
+      }
+
+      return stream(new QueryTargetInfo(query));
+   }
+
+   /**
+    * Get how long to wait between pages in a chain (in ms).
+    */
+   long getPageDelayMs() {
+      return pageDelayMs;
+   }
+
+   /**
+    * Fetch new tweets for all the queries.
+    */
+   public void update() {
+      if (sharedTweets != null) {
+         sharedTweets.newCycle();
+      }
+
+      for (QueryTargetInfo info : getPlan()) {
+         update(info);
+      }
+   }
+
+   /**
+    * Fetch new tweets for all the queries, running each query's update as a task
+    *  on the given executor (see TaskExecutors).
+    * This blocks until all the queries are done.
+    *
+    * @return The total number of tweets inserted into the store.
+    */
+   public int update(ExecutorService executor) {
+      List<QueryTargetInfo> plan = getPlan();
+      if (sharedTweets != null) {
+         sharedTweets.newCycle();
+      }
+
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      int count = 0;
+
+      for (final QueryTargetInfo info : plan) {
+         results.add(executor.submit(new Callable<Integer>() {
+            public Integer call() {
+               return update(info);
+            }
+         }));
+      }
+
+      for (int i = 0; i < results.size(); i++) {
+         try {
+            count += results.get(i).get();
+         } catch (ExecutionException ex) {
+            Logger.logError("Error updating the query \"" + plan.get(i).query + "\".",
+                            ex.getCause());
+         } catch (InterruptedException ex) {
+            Logger.logWarn("Interrupted while waiting for queries to update.");
+            Thread.currentThread().interrupt();
+            break;
          }
+      }
+
+      return count;
+   }
+
+   /**
+    * Fetch new tweets for a single query (or QueryPack).
+    * Different queries may be updated concurrently as long as the store can handle it,
+    *  but a single query must not be updated by more than one thread at a time.
+    *
+    * @return The number of tweets inserted into the store.
+    */
+   public int update(QueryTargetInfo info) {
+      if (info instanceof QueryPack) {
+         return update((QueryPack)info);
+      }
 
-         int count = gather(info);
-         Logger.log(String.format("Gathered %d tweets for the query\"%s\".", count, info.query));
+      initPosition(info);
+
+      int count = gather(info).inserted;
+      info.lastCount = count;
+      Logger.log(String.format("Gathered %d tweets for the query\"%s\".", count, info.query));
+
+      return count;
+   }
+
+   private int update(QueryPack pack) {
+      for (QueryTargetInfo member : pack.getMembers()) {
+         initPosition(member);
+         member.lastCount = 0;
       }
+
+      pack.prepare();
+      ChainResult result = gather(pack);
+      int count = result.inserted;
+
+      if (result.failed) {
+         pack.leaveOpen();
+      } else {
+         pack.finish();
+      }
+
+      for (QueryTargetInfo member : pack.getMembers()) {
+         checkpoint(member);
+      }
+
+      Logger.log(String.format("Gathered %d tweets for %d coalesced queries \"%s\".",
+                               count, pack.getMembers().size(), pack.query));
+
+      return count;
+   }
+
+   /**
+    * Figure out where a query is if we don't know yet.
+    * A checkpoint is used if there is one, otherwise ask the store.
+    */
+   void initPosition(QueryTargetInfo info) {
+      if (info.lastSeenId != null) {
+         return;
+      }
+
+      if (checkpoints != null && checkpoints.restore(info) && info.lastSeenId != null) {
+         return;
+      }
+
+      info.lastSeenId = store.getLastTweetId(info);
    }
 
    /**
    * Get tweets from Twitter and insert them into the databse.
+   * If the last chain for this query never finished (see QueryTargetInfo.smallestId),
+   *  it is picked up where it left off.
+   * Otherwise a new chain is started from the newest tweet that has been seen.
+   * If a page fails even after retrying, the chain is left open so that the next gather
+   *  picks it up from that page instead of skipping the rest of it.
    *
    * @param info The query to ask Twitter for.
    *
-   * @return The number of tweets actually inserted
+   * @return The number of tweets actually inserted (for every chain),
+   *  and if the last chain failed.
    */
-   private int gather(QueryTargetInfo info) {
-      ArrayList<TweetData> res;
-      int count = 0;
-      int tempCount;
-      int ndx;
+   private ChainResult gather(QueryTargetInfo info) {
+      ChainResult res;
+      ChainResult total = new ChainResult();
       boolean flag = true;
 
-      info.smallestId = null;
+      if (info.smallestId == null) {
+         info.floorId = info.lastSeenId;
+      }
 
       do {
          flag = true;
          res = query(info);
+         total.fetched += res.fetched;
+         total.inserted += res.inserted;
 
          //If there was an error getting the tweets, then don't continue.
-         if (res == null) {
+         if (res.failed) {
             flag = false;
-         } else {
-            //If we did not get the maximum tweets, then don't continue
-            if (res.size() < (MAX_PAGES * RPP)) {
-               flag = false;
-            }
-
-            //Save the results in the db.
-            tempCount = store.insertTweets(info, res);
+         }
 
-            count += tempCount;
+         //If we did not get the maximum tweets, then don't continue
+         if (res.fetched < (MAX_PAGES * RPP)) {
+            flag = false;
          }
       } while (flag);
 
+      if (!res.failed) {
+         // The chain is done.
+         info.smallestId = null;
+         info.floorId = info.lastSeenId;
+      }
+      total.failed = res.failed;
+      checkpoint(info);
+
+      return total;
+   }
+
+   /**
+    * Put tweets in the store.
+    * The results for a QueryPack are routed to its members and inserted for each of them.
+    *
+    * @return The number of tweets actually inserted.
+    */
+   int insert(QueryTargetInfo info, List<TweetData> tweets) {
+      if (!(info instanceof QueryPack)) {
+         return insertInto(info, tweets);
+      }
+
+      int count = 0;
+      for (Map.Entry<QueryTargetInfo, List<TweetData>> entry :
+           ((QueryPack)info).route(tweets).entrySet()) {
+         int memberCount = insertInto(entry.getKey(), entry.getValue());
+         entry.getKey().lastCount += memberCount;
+         count += memberCount;
+      }
+
       return count;
    }
 
+   /**
+    * When tweets are shared, only the tweets that no other query has stored are inserted,
+    *  but the ones that are new to |info| are still counted for it
+    *  (and tagged with it in the store, if it is a QueryTagStore).
+    */
+   private int insertInto(QueryTargetInfo info, List<TweetData> tweets) {
+      int offered = tweets.size();
+      int shared = 0;
+      List<String> tagged = null;
+
+      if (sharedTweets != null) {
+         List<TweetData> toStore = new ArrayList<TweetData>(tweets.size());
+         if (store instanceof QueryTagStore) {
+            tagged = new ArrayList<String>();
+         }
+
+         shared = sharedTweets.claim(info, tweets, toStore, tagged);
+         tweets = toStore;
+      }
+
+      long insertStart = System.nanoTime();
+      if (tagged != null && !tagged.isEmpty()) {
+         ((QueryTagStore)store).addQueryTag(info, sharedTweets.getIndex(info), tagged);
+      }
+      int count = store.insertTweets(info, tweets) + shared;
+      info.metrics.storeInsert(insertStart, offered, count);
+
+      return count;
+   }
+
+   /**
+    * Record where a query is, if checkpointing is on.
+    * QueryPacks are not checkpointed themselves (the plan may be different after a restart),
+    *  their members are once the pack is done.
+    */
+   void checkpoint(QueryTargetInfo info) {
+      if (checkpoints == null || info instanceof QueryPack) {
+         return;
+      }
+
+      checkpoints.save(info);
+   }
 
    /**
    * Perform a query to Twitter.
+   * This follows the chain of pages that Twitter gives and stores each page as it comes in.
    *
    * @param info The query to pass onto Twitter.
    *
-   * @.pre sinceId should not be negative
+   * @.pre floorId should not be negative
    *
-   * @return The data for each Tweet that was returned.
+   * @return How many tweets were fetched and inserted.
    */
-   private ArrayList<TweetData> query(QueryTargetInfo info) {
-      String url;
-      ArrayList<TweetData> tweets = new ArrayList<TweetData>();
-      InputStream is = null;
+   private ChainResult query(QueryTargetInfo info) {
+      if (prefetchExecutor != null) {
+         return prefetchQuery(info);
+      }
+
+      ChainResult result = new ChainResult();
+      String url = getChainUrl(info);
+
+      try {
+         do {
+            Page page = fetchPage(info, url);
+            url = page.nextUrl;
+
+            //Save the page in the db, and then remember that we did.
+            result.fetched += page.tweets.size();
+            result.inserted += insert(info, page.tweets);
+            checkpoint(info);
+            page.recycle();
+
+            Thread.sleep(pageDelayMs);
+         } while (url != null);
+      } catch (Exception e) {
+         Logger.logError("Error performing query, the chain will be resumed next time.", e);
+
+         result.failed = true;
+         return result;
+      }
+
+      return result;
+   }
+
+   /**
+    * Perform a query to Twitter, with the next pages of the chain being fetched (by
+    *  a PagePrefetcher) while this thread decodes and stores the ones that already came in.
+    * Pages are still decoded and stored in order, so the query's position moves
+    *  just like it does in query().
+    */
+   private ChainResult prefetchQuery(QueryTargetInfo info) {
+      ChainResult result = new ChainResult();
+      PagePrefetcher prefetcher = new PagePrefetcher(this, info, getChainUrl(info), prefetchDepth);
+      prefetcher.start(prefetchExecutor);
+
+      try {
+         RawPage raw;
+         while ((raw = prefetcher.take()) != null) {
+            Page page = decodePage(info, raw);
 
-      // lastSeenId should have been set earlier.
+            result.fetched += page.tweets.size();
+            result.inserted += insert(info, page.tweets);
+            checkpoint(info);
+            page.recycle();
+         }
+      } catch (Exception e) {
+         Logger.logError("Error performing query, the chain will be resumed next time.", e);
+
+         result.failed = true;
+      } finally {
+         prefetcher.stop();
+      }
+
+      return result;
+   }
+
+   /**
+    * Get the URL for the first page of the chain that |info| is on.
+    * An open chain (smallestId is set) is picked up below the oldest tweet it got to.
+    */
+   String getChainUrl(QueryTargetInfo info) {
+      // floorId should have been set earlier.
       // However, if it is still null, just use "0".
-      if (info.lastSeenId == null) {
-         url = String.format("%s?q=%s&count=%d&result_type=recent&since_id=0",
-          URL_BASE, info.query, RPP);
-      } else if (info.smallestId == null) {
-         url = String.format("%s?q=%s&count=%d&result_type=recent&since_id=%s",
-          URL_BASE, info.query, RPP, info.lastSeenId);
-      } else {
-         url = String.format("%s?q=%s&count=%d&result_type=recent&since_id=%s&max_id=%s",
-          URL_BASE, info.query, RPP, info.lastSeenId, info.smallestId);
+      if (info.smallestId == null) {
+         return buildUrl(info.query, info.floorId == null ? "0" : info.floorId, null);
+      }
+
+      return buildUrl(info.query, info.floorId == null ? "0" : info.floorId,
+                      "" + (Long.valueOf(info.smallestId) - 1));
+   }
+
+   /**
+    * Build the URL for the first page of a search.
+    *
+    * @param sinceId Only get tweets newer than this.
+    * @param maxId Only get tweets at least this old, null for no limit.
+    */
+   String buildUrl(String query, String sinceId, String maxId) {
+      String url = String.format("%s?q=%s&count=%d&result_type=recent&since_id=%s",
+                                 searchUrl, query, RPP, sinceId);
+
+      if (maxId != null) {
+         url += "&max_id=" + maxId;
+      }
+
+      return url;
+   }
+
+   /**
+    * Fetch and decode a single page of search results.
+    * Failures that are likely to go away (rate limiting, server errors, timeouts, and other
+    *  network problems) are retried with backoff (see getRetryReason()).
+    * When Twitter says how long to wait, it is waited at least that long.
+    * The smallestId and lastSeenId of |info| are only updated by the attempt that succeeds.
+    *
+    * @throws Exception If the page could not be fetched, or it is out of attempts.
+    */
+   Page fetchPage(final QueryTargetInfo info, final String url) throws Exception {
+      return withRetries(info, new Callable<Page>() {
+         public Page call() throws Exception {
+            return requestPage(info, url);
+         }
+      });
+   }
+
+   /**
+    * Fetch (but don't decode) a single page of search results, retrying like fetchPage().
+    * Nothing about |info| but its metrics is touched, so this can run on another thread
+    *  (see PagePrefetcher).
+    *
+    * @throws Exception If the page could not be fetched, or it is out of attempts.
+    */
+   RawPage fetchRawPage(final QueryTargetInfo info, final String url) throws Exception {
+      return withRetries(info, new Callable<RawPage>() {
+         public RawPage call() throws Exception {
+            return readPage(info, url);
+         }
+      });
+   }
+
+   /**
+    * Make attempts until one works, it fails for a reason that won't go away,
+    *  or it is out of attempts.
+    */
+   private <T> T withRetries(QueryTargetInfo info, Callable<T> request) throws Exception {
+      int attempt = 0;
+
+      while (true) {
+         attempt++;
+
+         try {
+            return request.call();
+         } catch (Exception ex) {
+            String reason = getRetryReason(ex);
+            if (reason == null || !backoff.canRetry(attempt)) {
+               throw ex;
+            }
+
+            long delay = backoff.getDelay(attempt);
+            if (ex instanceof HttpStatusException) {
+               delay = Math.max(delay, ((HttpStatusException)ex).getRetryAfterMillis());
+            }
+
+            info.metrics.retry(reason);
+            Logger.logWarn(String.format(
+                  "Attempt %d of %d for \"%s\" failed (%s: %s), retrying in %d ms.",
+                  attempt, backoff.getMaxAttempts(), info.query, reason, ex.getMessage(), delay));
+
+            Thread.sleep(delay);
+         }
+      }
+   }
+
+   /**
+    * Decide if a failed request should be tried again.
+    *
+    * @return Why the request failed, or null if it should not be retried.
+    */
+   private static String getRetryReason(Exception ex) {
+      if (ex instanceof HttpStatusException) {
+         HttpStatusException statusEx = (HttpStatusException)ex;
+
+         if (statusEx.isRateLimited()) {
+            return "rateLimited";
+         } else if (statusEx.isServerError()) {
+            return "serverError";
+         }
+
+         // Anything else (bad auth, bad query) will just happen again.
+         return null;
+      } else if (ex instanceof SocketTimeoutException) {
+         return "timeout";
+      } else if (ex instanceof IOException) {
+         return "network";
+      } else if (ex instanceof JSONException) {
+         // Most likely the connection dropped in the middle of the body.
+         return "badResponse";
       }
 
+      return null;
+   }
+
+   /**
+    * Wait for the bearer token if it is still on its way.
+    *
+    * If it could not be gotten, it is asked for again for the next request,
+    *  so that one failed token request does not fail every request after it.
+    *
+    * @return The token, or null if it could not be gotten (the request will just fail).
+    */
+   private String getBearerToken() throws InterruptedException {
+      String rtn;
+
       try {
-         do {
-            URL searchURL = new URL(url);
-            HttpsURLConnection searchConnection = (HttpsURLConnection)searchURL.openConnection();
+         rtn = bearerToken.get();
+      } catch (ExecutionException ex) {
+         Logger.logError("Unable to get the bearer token.", ex.getCause());
+         rtn = null;
+      }
+
+      if (rtn == null) {
+         bearerToken = TwitterAuth.getBearerTokenAsync(Props.getString("TWITTER_API_KEY"),
+                                                       Props.getString("TWITTER_API_SECRET"));
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Make a single attempt at a page.
+    * This waits for a permit from the rate limiter first.
+    *
+    * @throws HttpStatusException If Twitter answered with anything other than a 200.
+    * @throws Exception If anything else goes wrong.
+    *  If there was a response, it is logged to the debug log first.
+    */
+   private Page requestPage(QueryTargetInfo info, String url) throws Exception {
+      return decodePage(info, readPage(info, url));
+   }
 
-            searchConnection.setRequestProperty("Host", "api.twitter.com");
-            searchConnection.setRequestProperty("User-Agent", "BirdCatcher");
-            searchConnection.setRequestProperty("Authorization", "Bearer " + kBearerToken);
+   /**
+    * Make a single attempt at reading a page into a buffer (without decoding it).
+    * This waits for a permit from the rate limiter first.
+    *
+    * @throws HttpStatusException If Twitter answered with anything other than a 200.
+    * @throws Exception If anything else goes wrong.
+    *  If there was a response, it is logged to the debug log first.
+    */
+   private RawPage readPage(QueryTargetInfo info, String url) throws Exception {
+      InputStream is = null;
+      ResponseArchive.Capture capture = null;
+      PageBuffer buffer = null;
 
-            is = searchConnection.getInputStream();
+      try {
+         rateLimiter.acquire();
+
+         long requestStart = System.nanoTime();
+
+         URL searchURL = new URL(url);
+         HttpURLConnection searchConnection = (HttpURLConnection)searchURL.openConnection();
 
-            JSONTokener jsonTokener = new JSONTokener(is);
+         searchConnection.setConnectTimeout(connectTimeoutMs);
+         searchConnection.setReadTimeout(readTimeoutMs);
+         searchConnection.setRequestProperty("Host", "api.twitter.com");
+         searchConnection.setRequestProperty("User-Agent", "BirdCatcher");
+         searchConnection.setRequestProperty("Authorization", "Bearer " + getBearerToken());
 
-            JSONObject json = new JSONObject(jsonTokener);
+         int status = searchConnection.getResponseCode();
+         if (status != HttpURLConnection.HTTP_OK) {
+            is = searchConnection.getErrorStream();
+            throw new HttpStatusException(url, status, getRetryAfter(searchConnection));
+         }
 
-            is.close();
+         is = searchConnection.getInputStream();
+         info.metrics.httpLatency(requestStart);
 
-            url = getNextLink(json, url, info);
+         if (archive != null) {
+            capture = archive.capture(info, url, is);
+         }
+         CountingInputStream countingStream =
+               new CountingInputStream(capture == null ? is : capture);
 
-            tweets.addAll(getTweets(json, info));
+         buffer = PageBuffer.acquire();
+         buffer.readFrom(countingStream);
+         is.close();
 
-            Thread.sleep(1000);
+         info.metrics.pageFetched(countingStream.getCount());
 
-            is = null;
-         } while (url != null);
+         // The capture is committed once the page decodes (see decodePage()).
+         return new RawPage(url, buffer, capture);
       } catch (Exception e) {
-         Logger.logError("Error performing query", e);
+         if (buffer != null) {
+            buffer.recycle();
+         }
+
+         if (capture != null) {
+            capture.abort();
+         }
 
          if (is != null) {
             try {
@@ -214,10 +897,81 @@ public class JSONTwitterGatherer {
             }
          }
 
-         return tweets;
+         throw e;
       }
+   }
 
-      return tweets;
+   /**
+    * Turn a page that was read into TweetData.
+    * The smallestId and lastSeenId of |info| are updated with the tweets on the page.
+    * The raw page must not be used after this (its buffer belongs to the Page now).
+    * If the response is being archived, it is committed here, or aborted if it does not decode.
+    *
+    * A JSONException is thrown if the response is not valid JSON (eg. it was cut off).
+    */
+   Page decodePage(QueryTargetInfo info, RawPage raw) {
+      PageBuffer buffer = raw.buffer;
+      long decodeStart = System.nanoTime();
+      Page page;
+
+      try {
+         if (lazyDecode) {
+            LazyTweetDecoder decoder = new LazyTweetDecoder(buffer, sharedTweets);
+            ArrayList<TweetData> tweets = decoder.decode(info);
+            page = new Page(tweets, decoder.getNextResults() == null ? null :
+                                    searchUrl + decoder.getNextResults(), buffer);
+         } else {
+            JSONObject json = new JSONObject(new JSONTokener(
+                  new ByteArrayInputStream(buffer.getBytes(), 0, buffer.getLength())));
+
+            page = new Page(getTweets(json, info, sharedTweets), getNextLink(json, raw.url, info),
+                            null);
+            buffer.recycle();
+         }
+      } catch (RuntimeException ex) {
+         raw.recycle();
+         throw ex;
+      }
+
+      raw.commit();
+      info.metrics.decodeTime(decodeStart);
+
+      return page;
+   }
+
+   /**
+    * Find the URL of the page after |raw| without decoding it.
+    *
+    * @return The URL, or null if this is the last page.
+    */
+   String findNextUrl(RawPage raw) {
+      String nextResults = LazyTweetDecoder.findNextResults(raw.buffer);
+      return nextResults == null ? null : searchUrl + nextResults;
+   }
+
+   /**
+    * Figure out how long Twitter wants us to wait.
+    * Retry-After is in seconds, x-rate-limit-reset is when the rate limit window resets
+    *  (in seconds since the epoch).
+    *
+    * @return The wait in ms, or -1 if Twitter did not say.
+    */
+   private static long getRetryAfter(HttpURLConnection connection) {
+      try {
+         String retryAfter = connection.getHeaderField("Retry-After");
+         if (retryAfter != null) {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+         }
+
+         String reset = connection.getHeaderField("x-rate-limit-reset");
+         if (reset != null) {
+            return Math.max(0, (Long.parseLong(reset.trim()) * 1000) - System.currentTimeMillis());
+         }
+      } catch (NumberFormatException ex) {
+         // Retry-After can also be an HTTP date. Just use the normal backoff.
+      }
+
+      return -1;
    }
 
    /**
@@ -233,7 +987,7 @@ public class JSONTwitterGatherer {
 
       try {
          JSONObject searchMeta = json.getJSONObject("search_metadata");
-         rtn = URL_BASE + searchMeta.getString("next_results");
+         rtn = searchUrl + searchMeta.getString("next_results");
       } catch (JSONException jsonEx) {
          return null;
       }
@@ -248,7 +1002,17 @@ public class JSONTwitterGatherer {
     *
     * @return The tweets encapsulated in a TweetData.
     */
-   private ArrayList<TweetData> getTweets(JSONObject json, QueryTargetInfo info) {
+   static ArrayList<TweetData> getTweets(JSONObject json, QueryTargetInfo info) {
+      return getTweets(json, info, null);
+   }
+
+   /**
+    * Extract TweetData from a JSONObject, reusing tweets that were already decoded.
+    *
+    * @param cache Where to look for tweets that were already decoded, may be null.
+    */
+   static ArrayList<TweetData> getTweets(JSONObject json, QueryTargetInfo info,
+                                         SharedTweetCache cache) {
       ArrayList<TweetData> tweets = new ArrayList<TweetData>();
 
       JSONArray jsonArray = json.optJSONArray("statuses");
@@ -260,12 +1024,20 @@ public class JSONTwitterGatherer {
 
       for (int i = 0; i < jsonArray.length(); i++) {
          try {
-            TweetData tweet = new TweetData();
             JSONObject tweetJson = jsonArray.getJSONObject(i);
+            String twitterId = tweetJson.getString("id_str");
+
+            TweetData seen = (cache == null) ? null : cache.get(twitterId);
+            if (seen != null) {
+               trackId(info, twitterId);
+               tweets.add(seen);
+               continue;
+            }
 
+            TweetData tweet = new TweetData();
             SimpleDateFormat df = new SimpleDateFormat(TIME_FORMAT);
 
-            tweet.twitterId = tweetJson.getString("id_str");
+            tweet.twitterId = twitterId;
             tweet.published = (int)(df.parse(tweetJson.getString("created_at")).getTime() / 1000);
             tweet.content = tweetJson.getString("text");
             tweet.source = tweetJson.optString("source", "<No Source>");
@@ -280,24 +1052,129 @@ public class JSONTwitterGatherer {
             tweet.place = tweetJson.optString("place", "");
             tweet.geo = tweetJson.optString("geo", "");
 
-            // Keep track of the smallest id.
-            if (info.smallestId == null ||
-                Long.valueOf(tweet.twitterId) < Long.valueOf(info.smallestId)) {
-               info.smallestId = tweet.twitterId;
-            }
-
-            // Keep track of the last seen (max) id.
-            if (info.lastSeenId == null ||
-                Long.valueOf(tweet.twitterId) > Long.valueOf(info.lastSeenId)) {
-               info.lastSeenId = tweet.twitterId;
-            }
-
+            trackId(info, tweet.twitterId);
             tweets.add(tweet);
          } catch (Exception ex) {
+            info.metrics.parseFailure();
             Logger.logError("Unable to parse tweet.", ex);
          }
       }
 
       return tweets;
    }
+
+   /**
+    * Keep track of the smallest and last seen (max) ids of a query.
+    */
+   static void trackId(QueryTargetInfo info, String twitterId) {
+      long id = Long.valueOf(twitterId);
+
+      if (info.smallestId == null || id < Long.valueOf(info.smallestId)) {
+         info.smallestId = twitterId;
+      }
+
+      if (info.lastSeenId == null || id > Long.valueOf(info.lastSeenId)) {
+         info.lastSeenId = twitterId;
+      }
+   }
+
+   /**
+    * What happened while following a chain of pages.
+    */
+   private static class ChainResult {
+      /**
+       * The number of tweets that Twitter gave back.
+       */
+      public int fetched;
+
+      /**
+       * The number of tweets that were actually inserted into the store.
+       */
+      public int inserted;
+
+      /**
+       * True if the chain was cut short by an error (that retrying did not fix).
+       * The rest of the chain has not been seen, it is not just short.
+       */
+      public boolean failed;
+
+      public ChainResult() {
+         fetched = 0;
+         inserted = 0;
+         failed = false;
+      }
+   }
+
+   /**
+    * A single page of search results that has been read but not decoded.
+    */
+   static class RawPage {
+      public final String url;
+      private final PageBuffer buffer;
+
+      /**
+       * The archive record of the response, null if it is not being archived.
+       */
+      private final ResponseArchive.Capture capture;
+
+      public RawPage(String url, PageBuffer buffer, ResponseArchive.Capture capture) {
+         this.url = url;
+         this.buffer = buffer;
+         this.capture = capture;
+      }
+
+      /**
+       * The page was decoded, so its archive record is complete.
+       */
+      private void commit() {
+         if (capture != null) {
+            capture.commit();
+         }
+      }
+
+      /**
+       * Throw the page away (without decoding it, or because it did not decode).
+       * Its archive record is aborted.
+       */
+      public void recycle() {
+         buffer.recycle();
+
+         if (capture != null) {
+            capture.abort();
+         }
+      }
+   }
+
+   /**
+    * A single page of search results.
+    */
+   static class Page {
+      public final ArrayList<TweetData> tweets;
+
+      /**
+       * The URL for the next page, or null if this is the last one.
+       */
+      public final String nextUrl;
+
+      /**
+       * The buffer that the tweets point into, null if they don't.
+       */
+      private final PageBuffer buffer;
+
+      public Page(ArrayList<TweetData> tweets, String nextUrl, PageBuffer buffer) {
+         this.tweets = tweets;
+         this.nextUrl = nextUrl;
+         this.buffer = buffer;
+      }
+
+      /**
+       * Done with the page, so its buffer can be reused.
+       * The tweets are still safe to use.
+       */
+      public void recycle() {
+         if (buffer != null) {
+            buffer.recycle();
+         }
+      }
+   }
 }
@@ -0,0 +1,564 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.store.LazyTweetData;
+import edu.calpoly.twitter.store.PageBuffer;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Logger;
+
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+
+/**
+ * Turns a raw search response into LazyTweetData without building a JSON tree.
+ * The response is scanned once: the id and creation time of each tweet are decoded,
+ *  and for the other fields only where they are in the buffer is recorded.
+ * Everything that the gatherer does not use (including nested tweets like retweeted_status)
+ *  is skipped over without being decoded.
+ *
+ * This gives the same tweets as JSONTwitterGatherer.getTweets(), except that
+ *  place and geo are the JSON text that was in the response
+ *  (instead of being re-serialized by org.json).
+ *
+ * With a SharedTweetCache, a tweet that has already been decoded (for another query)
+ *  is skipped as soon as its id is read, and the decoded one is given back instead.
+ */
+public class LazyTweetDecoder {
+   private static final byte[] STATUSES = ascii("statuses");
+   private static final byte[] SEARCH_METADATA = ascii("search_metadata");
+   private static final byte[] NEXT_RESULTS = ascii("next_results");
+   private static final byte[] ID_STR = ascii("id_str");
+   private static final byte[] CREATED_AT = ascii("created_at");
+   private static final byte[] TEXT = ascii("text");
+   private static final byte[] SOURCE = ascii("source");
+   private static final byte[] LANG = ascii("lang");
+   private static final byte[] USER = ascii("user");
+   private static final byte[] SCREEN_NAME = ascii("screen_name");
+   private static final byte[] PLACE = ascii("place");
+   private static final byte[] GEO = ascii("geo");
+
+   private final PageBuffer buffer;
+   private final byte[] bytes;
+   private final int length;
+   private final SimpleDateFormat dateFormat;
+
+   /**
+    * Null if tweets are not shared.
+    */
+   private final SharedTweetCache cache;
+
+   /**
+    * The already decoded tweet that decodeStatus() found, or null.
+    */
+   private TweetData shared;
+
+   private int pos;
+
+   /**
+    * The bounds of the last string that was read (without the quotes).
+    */
+   private int stringStart;
+   private int stringEnd;
+
+   private String nextResults;
+
+   /**
+    * Tweets on the same page are usually made in the same second,
+    *  so the last created_at is kept to skip parsing it again.
+    */
+   private int lastCreatedAtStart;
+   private int lastCreatedAtEnd;
+   private int lastPublished;
+
+   public LazyTweetDecoder(PageBuffer buffer) {
+      this(buffer, null);
+   }
+
+   /**
+    * @param cache Where to look for tweets that were already decoded, may be null.
+    */
+   public LazyTweetDecoder(PageBuffer buffer, SharedTweetCache cache) {
+      this.buffer = buffer;
+      this.cache = cache;
+      shared = null;
+      bytes = buffer.getBytes();
+      length = buffer.getLength();
+      dateFormat = new SimpleDateFormat(JSONTwitterGatherer.TIME_FORMAT);
+
+      pos = 0;
+      nextResults = null;
+      lastCreatedAtStart = -1;
+      lastCreatedAtEnd = -1;
+      lastPublished = 0;
+   }
+
+   /**
+    * Decode the response.
+    * Just like JSONTwitterGatherer.getTweets(), the smallestId and lastSeenId of |info|
+    *  are updated and tweets that are missing required fields are skipped.
+    *
+    * A JSONException is thrown if the response is not valid JSON (eg. it was cut off).
+    */
+   public ArrayList<TweetData> decode(QueryTargetInfo info) {
+      ArrayList<TweetData> tweets = new ArrayList<TweetData>();
+
+      expect('{');
+      if (peek() == '}') {
+         return tweets;
+      }
+
+      do {
+         readString();
+         expect(':');
+
+         if (keyIs(STATUSES)) {
+            decodeStatuses(info, tweets);
+         } else if (keyIs(SEARCH_METADATA)) {
+            decodeMetadata();
+         } else {
+            skipValue();
+         }
+      } while (nextMember('}'));
+
+      return tweets;
+   }
+
+   /**
+    * Get the raw next_results from the response.
+    * Only valid after decode().
+    *
+    * @return The query string for the next page, or null if there is no next page.
+    */
+   public String getNextResults() {
+      return nextResults;
+   }
+
+   /**
+    * Find next_results in a response without decoding it (eg. so the next page can be asked
+    *  for while this one is decoded).
+    * search_metadata comes after the statuses, so the response is searched from the end.
+    * A quoted "next_results" followed by a ':' can only be a key: inside a string its
+    *  quotes would have to be escaped.
+    *
+    * @return The query string for the next page, or null if there is no next page.
+    */
+   public static String findNextResults(PageBuffer buffer) {
+      byte[] bytes = buffer.getBytes();
+
+      for (int start = buffer.getLength() - NEXT_RESULTS.length - 2; start >= 0; start--) {
+         if (bytes[start] != '"' || bytes[start + NEXT_RESULTS.length + 1] != '"' ||
+             !regionMatches(bytes, start + 1, NEXT_RESULTS)) {
+            continue;
+         }
+
+         int pos = skipWhitespace(bytes, start + NEXT_RESULTS.length + 2, buffer.getLength());
+         if (pos >= buffer.getLength() || bytes[pos] != ':') {
+            continue;
+         }
+
+         pos = skipWhitespace(bytes, pos + 1, buffer.getLength());
+         if (pos >= buffer.getLength() || bytes[pos] != '"') {
+            // It is null.
+            return null;
+         }
+
+         int valueStart = pos + 1;
+         for (pos = valueStart; pos < buffer.getLength(); pos++) {
+            if (bytes[pos] == '\\') {
+               pos++;
+            } else if (bytes[pos] == '"') {
+               return LazyTweetData.decodeString(bytes, valueStart, pos);
+            }
+         }
+
+         return null;
+      }
+
+      return null;
+   }
+
+   private static boolean regionMatches(byte[] bytes, int start, byte[] target) {
+      for (int i = 0; i < target.length; i++) {
+         if (bytes[start + i] != target[i]) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   private static int skipWhitespace(byte[] bytes, int pos, int end) {
+      while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\t' ||
+                           bytes[pos] == '\n' || bytes[pos] == '\r')) {
+         pos++;
+      }
+
+      return pos;
+   }
+
+   private void decodeStatuses(QueryTargetInfo info, ArrayList<TweetData> tweets) {
+      if (peek() != '[') {
+         skipValue();
+         return;
+      }
+
+      expect('[');
+      if (peek() == ']') {
+         pos++;
+         return;
+      }
+
+      do {
+         if (peek() != '{') {
+            skipValue();
+            continue;
+         }
+
+         LazyTweetData tweet = decodeStatus();
+         if (shared != null) {
+            JSONTwitterGatherer.trackId(info, shared.twitterId);
+            tweets.add(shared);
+            shared = null;
+            continue;
+         }
+
+         if (tweet.twitterId == null || tweet.published == 0 ||
+             !tweet.hasField(LazyTweetData.CONTENT)) {
+            info.metrics.parseFailure();
+            Logger.logError("Unable to parse tweet, it is missing required fields.");
+            continue;
+         }
+
+         JSONTwitterGatherer.trackId(info, tweet.twitterId);
+         tweets.add(tweet);
+      } while (nextMember(']'));
+   }
+
+   private LazyTweetData decodeStatus() {
+      LazyTweetData tweet = buffer.newTweet();
+
+      expect('{');
+      if (peek() == '}') {
+         pos++;
+         return tweet;
+      }
+
+      do {
+         readString();
+         expect(':');
+
+         if (keyIs(ID_STR)) {
+            if (readStringOrNull()) {
+               tweet.twitterId = LazyTweetData.decodeString(bytes, stringStart, stringEnd);
+
+               shared = (cache == null) ? null : cache.get(tweet.twitterId);
+               if (shared != null) {
+                  skipMembers();
+                  return tweet;
+               }
+            }
+         } else if (keyIs(CREATED_AT)) {
+            if (readStringOrNull()) {
+               tweet.published = parseCreatedAt();
+            }
+         } else if (keyIs(TEXT)) {
+            spanString(tweet, LazyTweetData.CONTENT);
+         } else if (keyIs(SOURCE)) {
+            spanString(tweet, LazyTweetData.SOURCE);
+         } else if (keyIs(LANG)) {
+            spanString(tweet, LazyTweetData.LANG);
+         } else if (keyIs(USER)) {
+            decodeUser(tweet);
+         } else if (keyIs(PLACE)) {
+            spanValue(tweet, LazyTweetData.PLACE);
+         } else if (keyIs(GEO)) {
+            spanValue(tweet, LazyTweetData.GEO);
+         } else {
+            skipValue();
+         }
+      } while (nextMember('}'));
+
+      return tweet;
+   }
+
+   /**
+    * Skip the rest of the object that is being read (including the closing brace).
+    */
+   private void skipMembers() {
+      while (nextMember('}')) {
+         readString();
+         expect(':');
+         skipValue();
+      }
+   }
+
+   private void decodeUser(LazyTweetData tweet) {
+      if (peek() != '{') {
+         skipValue();
+         return;
+      }
+
+      expect('{');
+      if (peek() == '}') {
+         pos++;
+         return;
+      }
+
+      do {
+         readString();
+         expect(':');
+
+         if (keyIs(SCREEN_NAME)) {
+            spanString(tweet, LazyTweetData.AUTHOR);
+         } else {
+            skipValue();
+         }
+      } while (nextMember('}'));
+   }
+
+   private void decodeMetadata() {
+      if (peek() != '{') {
+         skipValue();
+         return;
+      }
+
+      expect('{');
+      if (peek() == '}') {
+         pos++;
+         return;
+      }
+
+      do {
+         readString();
+         expect(':');
+
+         if (keyIs(NEXT_RESULTS)) {
+            if (readStringOrNull()) {
+               nextResults = LazyTweetData.decodeString(bytes, stringStart, stringEnd);
+            }
+         } else {
+            skipValue();
+         }
+      } while (nextMember('}'));
+   }
+
+   /**
+    * Parse the created_at that was just read.
+    *
+    * @return The time in seconds, or 0 if it could not be parsed.
+    */
+   private int parseCreatedAt() {
+      if (lastCreatedAtStart != -1 && sameBytes(lastCreatedAtStart, lastCreatedAtEnd)) {
+         return lastPublished;
+      }
+
+      try {
+         String createdAt = LazyTweetData.decodeString(bytes, stringStart, stringEnd);
+         lastPublished = (int)(dateFormat.parse(createdAt).getTime() / 1000);
+         lastCreatedAtStart = stringStart;
+         lastCreatedAtEnd = stringEnd;
+
+         return lastPublished;
+      } catch (ParseException ex) {
+         Logger.logError("Unable to parse the time of a tweet.", ex);
+         return 0;
+      }
+   }
+
+   /**
+    * Check if the last string that was read has the same bytes as [start, end).
+    */
+   private boolean sameBytes(int start, int end) {
+      if (end - start != stringEnd - stringStart) {
+         return false;
+      }
+
+      for (int i = 0; i < end - start; i++) {
+         if (bytes[start + i] != bytes[stringStart + i]) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Record where a string field is.
+    * Nulls and anything that is not a string are left to the default, like optString().
+    */
+   private void spanString(LazyTweetData tweet, int field) {
+      if (peek() == '"') {
+         readString();
+         tweet.setSpan(field, stringStart, stringEnd, false);
+      } else {
+         skipValue();
+      }
+   }
+
+   /**
+    * Record where a field is that may be a string or some other JSON value.
+    */
+   private void spanValue(LazyTweetData tweet, int field) {
+      byte next = peek();
+
+      if (next == '"') {
+         spanString(tweet, field);
+      } else if (next == 'n') {
+         // null, leave the default.
+         skipValue();
+      } else {
+         int start = pos;
+         skipValue();
+         tweet.setSpan(field, start, pos, true);
+      }
+   }
+
+   /**
+    * @return True if a string was read, false if it was null (or something else).
+    */
+   private boolean readStringOrNull() {
+      if (peek() == '"') {
+         readString();
+         return true;
+      }
+
+      skipValue();
+      return false;
+   }
+
+   /**
+    * Read a string and leave its bounds in stringStart and stringEnd.
+    */
+   private void readString() {
+      expect('"');
+      stringStart = pos;
+
+      while (true) {
+         if (pos >= length) {
+            throw new JSONException("Unterminated string in response.");
+         }
+
+         byte next = bytes[pos];
+         if (next == '"') {
+            break;
+         } else if (next == '\\') {
+            pos++;
+         }
+         pos++;
+      }
+
+      stringEnd = pos;
+      pos++;
+   }
+
+   private void skipValue() {
+      byte next = peek();
+
+      if (next == '"') {
+         readString();
+      } else if (next == '{' || next == '[') {
+         byte close = (next == '{') ? (byte)'}' : (byte)']';
+
+         pos++;
+         if (peek() == close) {
+            pos++;
+            return;
+         }
+
+         do {
+            if (close == '}') {
+               readString();
+               expect(':');
+            }
+            skipValue();
+         } while (nextMember(close));
+      } else {
+         // A number, true, false, or null.
+         int start = pos;
+         while (pos < length && !isDelimiter(bytes[pos])) {
+            pos++;
+         }
+
+         if (pos == start) {
+            throw new JSONException("Unexpected '" + (char)next + "' in response at " + pos + ".");
+         }
+      }
+   }
+
+   /**
+    * After a member of an object or an array, move past the ',' or |close|.
+    *
+    * @return True if there is another member.
+    */
+   private boolean nextMember(byte close) {
+      byte next = peek();
+      pos++;
+
+      if (next == ',') {
+         return true;
+      } else if (next == close) {
+         return false;
+      }
+
+      throw new JSONException("Expected ',' or '" + (char)close + "' in response at " + pos + ".");
+   }
+
+   private boolean nextMember(char close) {
+      return nextMember((byte)close);
+   }
+
+   private void expect(char expected) {
+      if (peek() != expected) {
+         throw new JSONException("Expected '" + expected + "' in response at " + pos + ".");
+      }
+      pos++;
+   }
+
+   /**
+    * Skip whitespace and look at the next byte.
+    */
+   private byte peek() {
+      while (pos < length && isWhitespace(bytes[pos])) {
+         pos++;
+      }
+
+      if (pos >= length) {
+         throw new JSONException("Unexpected end of response.");
+      }
+
+      return bytes[pos];
+   }
+
+   /**
+    * Check if the last string that was read is |key|.
+    * Keys are compared as bytes, so no String is made.
+    */
+   private boolean keyIs(byte[] key) {
+      if (stringEnd - stringStart != key.length) {
+         return false;
+      }
+
+      for (int i = 0; i < key.length; i++) {
+         if (bytes[stringStart + i] != key[i]) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   private static boolean isWhitespace(byte value) {
+      return value == ' ' || value == '\n' || value == '\r' || value == '\t';
+   }
+
+   private static boolean isDelimiter(byte value) {
+      return value == ',' || value == '}' || value == ']' || isWhitespace(value);
+   }
+
+   private static byte[] ascii(String value) {
+      return value.getBytes(StandardCharsets.US_ASCII);
+   }
+}
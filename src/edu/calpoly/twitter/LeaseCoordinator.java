@@ -0,0 +1,643 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits queries between several gatherer processes (on one host or many) that share
+ *  a directory, so that every query is polled by exactly one of them.
+ * There is no coordination service, just files.
+ *
+ * Every worker writes a member file (members/<worker id>) on each heartbeat that says
+ *  when it expires.
+ * The live members are put on a consistent hash ring (see HashRing), and that is who
+ *  should own each query.
+ * Actually owning a query takes a lease: leases/<query hash>.<generation>.
+ * The newest generation is the current lease, and it holds the owner, when the lease expires,
+ *  and the query's position: the newest id that everything up to has been fetched
+ *  (lastSeenId, or floorId while a chain is open, see QueryTargetInfo).
+ *
+ * On each heartbeat a worker:
+ *  - renews the leases it holds for queries the ring still gives it,
+ *  - releases (expires right away) the leases for queries the ring gives to someone else,
+ *  - takes over expired (or missing) leases for queries the ring gives it.
+ * Taking over generation g means making generation g + 1 with a hard link, which is atomic
+ *  and fails if the file exists, so exactly one worker wins.
+ * When a worker dies its member file and leases expire, and when a worker joins the others
+ *  release what moved to it, so the work rebalances within a couple of heartbeats.
+ * The new owner starts from the position in the lease, so a handoff may refetch a few tweets
+ *  but does not skip any.
+ *
+ * Queries are only handed off between polls: the poller brackets each poll with beginPoll()
+ *  and endPoll(), and a lease that has to be released while a poll is running is released
+ *  by endPoll() instead of the heartbeat.
+ * The heartbeat never reads a QueryTargetInfo that is being polled, positions are handed to it
+ *  by endPoll().
+ *
+ * A worker only trusts a lease until a heartbeat before it expires, so there is slack for
+ *  a slow heartbeat.
+ * Hosts sharing a directory need reasonably synced clocks (well under LEASE_HEARTBEAT_MS).
+ *
+ * To try it with a few local JVMs:
+ *  java edu.calpoly.twitter.LeaseCoordinator <dir> <worker id> <query> [query ...]
+ */
+public class LeaseCoordinator {
+   private static final String MEMBERS_DIR = "members";
+   private static final String LEASES_DIR = "leases";
+   private static final String NULL = "-";
+
+   private final File membersDir;
+   private final File leasesDir;
+   private final String workerId;
+   private final List<QueryTargetInfo> queries;
+
+   private final long ttlMs;
+   private final long heartbeatMs;
+   private final int virtualNodes;
+
+   /**
+    * The leases this worker holds, by query.
+    */
+   private final Map<String, Lease> held;
+
+   /**
+    * The queries that are being polled right now.
+    */
+   private final Set<String> polling;
+
+   /**
+    * The position of each query (see getPosition()) as of the last time it was not being polled.
+    */
+   private final Map<String, String> positions;
+
+   private volatile HashRing ring;
+   private ScheduledExecutorService timer;
+
+   /**
+    * Use the shared directory LEASE_DIR (default coordination), LEASE_WORKER_ID
+    *  (default pid@host), LEASE_TTL_MS (default 15000), LEASE_HEARTBEAT_MS (default 5000),
+    *  and LEASE_VIRTUAL_NODES (default 64).
+    */
+   public LeaseCoordinator(List<QueryTargetInfo> queries) {
+      this(new File(Props.getString("LEASE_DIR", "coordination")),
+           Props.getString("LEASE_WORKER_ID", getDefaultWorkerId()),
+           queries,
+           Props.getInt("LEASE_TTL_MS", 15000),
+           Props.getInt("LEASE_HEARTBEAT_MS", 5000),
+           Props.getInt("LEASE_VIRTUAL_NODES", 64));
+   }
+
+   /**
+    * @param dir The shared directory.
+    * @param workerId A name for this worker that no other worker uses.
+    * @param ttlMs How long members and leases last without a heartbeat.
+    * @param heartbeatMs How often to heartbeat. Should be well under |ttlMs|.
+    * @param virtualNodes Points per member on the hash ring.
+    */
+   public LeaseCoordinator(File dir, String workerId, List<QueryTargetInfo> queries,
+                           long ttlMs, long heartbeatMs, int virtualNodes) {
+      membersDir = new File(dir, MEMBERS_DIR);
+      leasesDir = new File(dir, LEASES_DIR);
+      this.workerId = workerId.replaceAll("[^A-Za-z0-9._@-]", "_");
+      this.queries = queries;
+
+      this.ttlMs = ttlMs;
+      this.heartbeatMs = heartbeatMs;
+      this.virtualNodes = virtualNodes;
+
+      held = new ConcurrentHashMap<String, Lease>();
+      polling = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      positions = new ConcurrentHashMap<String, String>();
+      ring = new HashRing(Collections.singletonList(this.workerId), virtualNodes);
+      timer = null;
+
+      Metrics.gauge("lease.owned", new Metrics.Gauge() {
+         public long get() {
+            return held.size();
+         }
+      });
+      Metrics.gauge("lease.members", new Metrics.Gauge() {
+         public long get() {
+            return ring.getMembers().size();
+         }
+      });
+   }
+
+   /**
+    * The pid and host from the JVM (eg. 1234@collector-2).
+    */
+   public static String getDefaultWorkerId() {
+      return ManagementFactory.getRuntimeMXBean().getName();
+   }
+
+   public String getWorkerId() {
+      return workerId;
+   }
+
+   /**
+    * Join and start heartbeating.
+    * The first heartbeat is done before this returns, but leases that other workers
+    *  still hold are only picked up on later heartbeats.
+    */
+   public synchronized void start() {
+      if (timer != null) {
+         return;
+      }
+
+      if (!membersDir.isDirectory() && !membersDir.mkdirs()) {
+         Logger.logError("Unable to make the lease directory " + membersDir + ".");
+      }
+      if (!leasesDir.isDirectory() && !leasesDir.mkdirs()) {
+         Logger.logError("Unable to make the lease directory " + leasesDir + ".");
+      }
+
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      timer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               heartbeat();
+            } catch (Exception ex) {
+               Logger.logError("Lease heartbeat failed.", ex);
+            }
+         }
+      }, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+
+      heartbeat();
+   }
+
+   /**
+    * Stop heartbeating, release every lease, and leave.
+    * Call this after polling has stopped so the positions that are handed off are current.
+    */
+   public synchronized void stop() {
+      if (timer == null) {
+         return;
+      }
+
+      // A heartbeat that is waiting on the lock will see this and do nothing.
+      timer.shutdownNow();
+      timer = null;
+
+      for (QueryTargetInfo info : queries) {
+         Lease lease = held.get(info.query);
+         if (lease != null) {
+            release(info.query, lease);
+         }
+      }
+
+      if (!new File(membersDir, workerId).delete()) {
+         Logger.logWarn("Unable to remove the member file for " + workerId + ".");
+      }
+   }
+
+   /**
+    * Check if this worker should poll |info| right now.
+    */
+   public boolean owns(QueryTargetInfo info) {
+      Lease lease = held.get(info.query);
+      return lease != null && !lease.releasing && System.currentTimeMillis() < lease.validUntil;
+   }
+
+   /**
+    * Call before polling |info|.
+    * Until endPoll() is called, the lease for it will not be handed off.
+    *
+    * @return True if this worker owns |info| and should poll it.
+    *  If it is false, the poll should be skipped (and endPoll() not called).
+    */
+   public boolean beginPoll(QueryTargetInfo info) {
+      // Marked first, so the heartbeat either sees the poll or this sees the release.
+      polling.add(info.query);
+
+      if (owns(info)) {
+         return true;
+      }
+
+      polling.remove(info.query);
+
+      Lease lease = held.get(info.query);
+      if (lease != null && lease.releasing) {
+         release(info.query, lease);
+      }
+
+      return false;
+   }
+
+   /**
+    * Call after a poll that beginPoll() allowed is done (even if it failed).
+    * The query's position is saved for the lease, and if the lease was given up
+    *  during the poll, it is released now.
+    */
+   public void endPoll(QueryTargetInfo info) {
+      positions.put(info.query, getPosition(info));
+      polling.remove(info.query);
+
+      Lease lease = held.get(info.query);
+      if (lease != null && lease.releasing) {
+         release(info.query, lease);
+      }
+   }
+
+   /**
+    * Everything up to the returned id has been fetched for |info|.
+    * While a chain is open, that is the floor of the chain, not the newest id seen.
+    *
+    * @return The id, or null if it is not known yet.
+    */
+   static String getPosition(QueryTargetInfo info) {
+      if (info.smallestId == null) {
+         return info.lastSeenId;
+      }
+
+      return info.floorId == null ? "0" : info.floorId;
+   }
+
+   /**
+    * Get the queries this worker holds leases for.
+    */
+   public List<String> getOwned() {
+      List<String> rtn = new ArrayList<String>(held.keySet());
+      Collections.sort(rtn);
+      return rtn;
+   }
+
+   /**
+    * Get the live members as of the last heartbeat (including this worker).
+    */
+   public List<String> getMembers() {
+      return ring.getMembers();
+   }
+
+   /**
+    * Announce this worker, then renew, release, and take leases.
+    */
+   synchronized void heartbeat() {
+      if (timer == null) {
+         return;
+      }
+
+      long now = System.currentTimeMillis();
+
+      try {
+         writeFile(new File(membersDir, workerId), workerId + "\t" + (now + ttlMs));
+      } catch (IOException ex) {
+         Logger.logError("Unable to write the member file for " + workerId + ".", ex);
+      }
+
+      List<String> members = readMembers(now);
+      if (!members.equals(ring.getMembers())) {
+         ring = new HashRing(members, virtualNodes);
+         Logger.log("Lease members are now: " + members + ".");
+      }
+
+      Map<String, List<LeaseFile>> leases = readLeases();
+
+      for (QueryTargetInfo info : queries) {
+         List<LeaseFile> files = leases.get(getKey(info.query));
+         LeaseFile current = (files == null) ? null : files.get(files.size() - 1);
+         Lease lease = held.get(info.query);
+         boolean assigned = workerId.equals(ring.get(info.query));
+
+         if (lease != null && (current == null || current.generation != lease.generation ||
+                               !workerId.equals(current.owner))) {
+            held.remove(info.query);
+            lease = null;
+            Metrics.counter("lease.lost").inc();
+            Logger.logWarn("Lost the lease for \"" + info.query + "\".");
+         }
+
+         if (lease != null) {
+            if (!assigned) {
+               lease.releasing = true;
+            }
+
+            // A poll that is running keeps the lease until it is done, and then releases it.
+            if (lease.releasing && !polling.contains(info.query)) {
+               release(info.query, lease);
+            } else {
+               renew(info.query, lease, now);
+            }
+         } else if (assigned && (current == null || current.expiresMs < now) &&
+                    !polling.contains(info.query)) {
+            acquire(info, current, now);
+         }
+
+         // Old generations are only cleaned up by whoever holds the newest one.
+         if (files != null && held.containsKey(info.query)) {
+            for (LeaseFile file : files) {
+               if (file.generation < held.get(info.query).generation && !file.file.delete()) {
+                  Logger.logDebug("Unable to delete the old lease " + file.file + ".");
+               }
+            }
+         }
+      }
+   }
+
+   private void acquire(QueryTargetInfo info, LeaseFile current, long now) {
+      int generation = (current == null) ? 0 : current.generation + 1;
+      File target = new File(leasesDir, getKey(info.query) + "." + generation);
+      File temp = new File(leasesDir, target.getName() + "." + workerId + ".tmp");
+
+      // Nothing is polling |info| (it was not owned), so it is safe to change here.
+      String position = (current == null) ? null : current.position;
+      if (position != null && (info.lastSeenId == null ||
+                               Long.parseLong(position) > Long.parseLong(info.lastSeenId))) {
+         info.lastSeenId = position;
+         info.smallestId = null;
+         info.floorId = null;
+      }
+
+      String ownPosition = getPosition(info);
+      if (ownPosition == null) {
+         positions.remove(info.query);
+      } else {
+         positions.put(info.query, ownPosition);
+      }
+
+      try {
+         Files.write(temp.toPath(),
+                     format(info.query, now + ttlMs).getBytes(StandardCharsets.UTF_8));
+         Files.createLink(target.toPath(), temp.toPath());
+      } catch (FileAlreadyExistsException ex) {
+         // Someone else got it first.
+         return;
+      } catch (IOException ex) {
+         Logger.logError("Unable to take the lease for \"" + info.query + "\".", ex);
+         return;
+      } finally {
+         if (!temp.delete()) {
+            Logger.logDebug("Unable to delete the temp lease " + temp + ".");
+         }
+      }
+
+      held.put(info.query, new Lease(generation, now + ttlMs - heartbeatMs));
+      Metrics.counter("lease.acquired").inc();
+      Logger.log(String.format("Took the lease for \"%s\" (generation %d, from %s).",
+                               info.query, generation,
+                               current == null ? "nobody" : current.owner));
+   }
+
+   private void renew(String query, Lease lease, long now) {
+      try {
+         writeFile(new File(leasesDir, getKey(query) + "." + lease.generation),
+                   format(query, now + ttlMs));
+         lease.validUntil = now + ttlMs - heartbeatMs;
+      } catch (IOException ex) {
+         // The lease just runs out if this keeps up.
+         Logger.logError("Unable to renew the lease for \"" + query + "\".", ex);
+      }
+   }
+
+   /**
+    * Expire a lease right away so the next owner does not have to wait for it.
+    * The heartbeat, endPoll(), and stop() may all try, only the first one does it.
+    */
+   private void release(String query, Lease lease) {
+      if (!held.remove(query, lease)) {
+         return;
+      }
+
+      try {
+         writeFile(new File(leasesDir, getKey(query) + "." + lease.generation), format(query, 0));
+         Metrics.counter("lease.released").inc();
+         Logger.log("Released the lease for \"" + query + "\".");
+      } catch (IOException ex) {
+         Logger.logError("Unable to release the lease for \"" + query + "\".", ex);
+      }
+   }
+
+   /**
+    * Get the live members, this worker is always one of them.
+    * Members that have been expired for a while are cleaned up.
+    */
+   private List<String> readMembers(long now) {
+      List<String> rtn = new ArrayList<String>();
+      rtn.add(workerId);
+
+      File[] files = membersDir.listFiles();
+      if (files == null) {
+         return rtn;
+      }
+
+      for (File file : files) {
+         if (file.getName().equals(workerId) || file.getName().endsWith(".tmp")) {
+            continue;
+         }
+
+         String[] parts = readFile(file);
+         if (parts == null || parts.length < 2) {
+            continue;
+         }
+
+         long expiresMs = Long.parseLong(parts[1]);
+         if (expiresMs >= now) {
+            rtn.add(parts[0]);
+         } else if (expiresMs < now - ttlMs && !file.delete()) {
+            Logger.logDebug("Unable to delete the dead member " + file + ".");
+         }
+      }
+
+      Collections.sort(rtn);
+      return rtn;
+   }
+
+   /**
+    * Get the lease files by key, oldest generation first.
+    */
+   private Map<String, List<LeaseFile>> readLeases() {
+      Map<String, List<LeaseFile>> rtn = new HashMap<String, List<LeaseFile>>();
+
+      File[] files = leasesDir.listFiles();
+      if (files == null) {
+         return rtn;
+      }
+
+      for (File file : files) {
+         String[] name = file.getName().split("\\.");
+         if (name.length != 2) {
+            continue;
+         }
+
+         String[] parts = readFile(file);
+         if (parts == null || parts.length < 3) {
+            continue;
+         }
+
+         List<LeaseFile> leases = rtn.get(name[0]);
+         if (leases == null) {
+            leases = new ArrayList<LeaseFile>();
+            rtn.put(name[0], leases);
+         }
+
+         leases.add(new LeaseFile(file, Integer.parseInt(name[1]), parts[0],
+                                  Long.parseLong(parts[1]),
+                                  NULL.equals(parts[2]) ? null : parts[2]));
+      }
+
+      for (List<LeaseFile> leases : rtn.values()) {
+         Collections.sort(leases);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Lease files are: owner, expires (ms), position, query (just for people to read).
+    */
+   private String format(String query, long expiresMs) {
+      String position = positions.get(query);
+
+      return workerId + "\t" + expiresMs + "\t" +
+             (position == null ? NULL : position) + "\t" +
+             query.replace("\t", " ").replace("\n", " ");
+   }
+
+   /**
+    * Queries can have anything in them, so files are named by a hash.
+    */
+   private static String getKey(String query) {
+      return String.format("%016x", HashRing.hash(query));
+   }
+
+   /**
+    * Write a temp file and move it into place, so readers never see half a file.
+    */
+   private void writeFile(File file, String contents) throws IOException {
+      File temp = new File(file.getPath() + "." + workerId + ".tmp");
+      Files.write(temp.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+
+      try {
+         Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException ex) {
+         Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+
+   /**
+    * @return The tab separated fields, or null if the file is gone (or broken).
+    */
+   private static String[] readFile(File file) {
+      try {
+         String contents = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+         return contents.isEmpty() ? null : contents.split("\t");
+      } catch (IOException ex) {
+         // It was probably deleted since it was listed.
+         return null;
+      }
+   }
+
+   /**
+    * A lease this worker holds.
+    */
+   private static class Lease {
+      public final int generation;
+
+      /**
+       * Stop trusting the lease at this time (ms).
+       */
+      public volatile long validUntil;
+
+      /**
+       * The ring gave the query to someone else, it is released once it is not being polled.
+       */
+      public volatile boolean releasing;
+
+      public Lease(int generation, long validUntil) {
+         this.generation = generation;
+         this.validUntil = validUntil;
+         releasing = false;
+      }
+   }
+
+   /**
+    * A lease as it is on disk.
+    */
+   private static class LeaseFile implements Comparable<LeaseFile> {
+      public final File file;
+      public final int generation;
+      public final String owner;
+      public final long expiresMs;
+      public final String position;
+
+      public LeaseFile(File file, int generation, String owner, long expiresMs,
+                       String position) {
+         this.file = file;
+         this.generation = generation;
+         this.owner = owner;
+         this.expiresMs = expiresMs;
+         this.position = position;
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public int compareTo(LeaseFile other) {
+         return Integer.compare(generation, other.generation);
+      }
+   }
+
+   /**
+    * Run a coordinator without gathering and print what it owns on every heartbeat.
+    * Start a few of these on the same directory, and kill some, to watch the queries move.
+    */
+   public static void main(String[] args) throws InterruptedException {
+      if (args.length < 3) {
+         System.out.println("USAGE: java edu.calpoly.twitter.LeaseCoordinator" +
+                            " <dir> <worker id> <query> [query ...]");
+         return;
+      }
+
+      List<QueryTargetInfo> queries = new ArrayList<QueryTargetInfo>();
+      for (int i = 2; i < args.length; i++) {
+         queries.add(new QueryTargetInfo(args[i]));
+      }
+
+      long heartbeatMs = Props.getInt("LEASE_HEARTBEAT_MS", 5000);
+      final LeaseCoordinator coordinator =
+            new LeaseCoordinator(new File(args[0]), args[1], queries,
+                                 Props.getInt("LEASE_TTL_MS", 15000), heartbeatMs,
+                                 Props.getInt("LEASE_VIRTUAL_NODES", 64));
+
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            coordinator.stop();
+            Logger.tearDown();
+         }
+      });
+
+      coordinator.start();
+      while (true) {
+         System.out.println(coordinator.getWorkerId() + " of " + coordinator.getMembers() +
+                            " owns " + coordinator.getOwned());
+         Thread.sleep(heartbeatMs);
+      }
+   }
+}
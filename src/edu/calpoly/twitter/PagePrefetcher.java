@@ -0,0 +1,165 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.util.Metrics;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Walks a chain of pages ahead of the thread that is decoding and storing them
+ *  (see JSONTwitterGatherer.prefetchQuery()).
+ *
+ * As soon as a page has been read, next_results is picked out of its raw bytes
+ *  (see LazyTweetDecoder.findNextResults()) and the next page is asked for,
+ *  so the network time for page k+1 overlaps with decoding and storing page k.
+ * At most |depth| pages are asked for ahead of the ones that have been taken, and every
+ *  request still goes through the gatherer's rate limiter and retries, so prefetches come out
+ *  of the same budget as everything else.
+ * Requests on the chain are still at least PAGE_DELAY_MS apart (from start to start).
+ *
+ * Pages that were prefetched but never taken (because the chain was stopped) are counted in
+ *  gather.prefetchesWasted.
+ */
+class PagePrefetcher implements Runnable {
+   private final JSONTwitterGatherer gatherer;
+   private final QueryTargetInfo info;
+   private final String firstUrl;
+
+   /**
+    * One for each page that may be asked for before it is taken.
+    */
+   private final Semaphore permits;
+
+   private final LinkedBlockingQueue<Result> pages;
+
+   private volatile boolean stopped;
+   private Future<?> task;
+
+   private final Metrics.Counter prefetched;
+   private final Metrics.Counter wasted;
+
+   /**
+    * @param firstUrl The first page of the chain.
+    * @param depth How many pages can be asked for before they are taken.
+    */
+   public PagePrefetcher(JSONTwitterGatherer gatherer, QueryTargetInfo info, String firstUrl,
+                         int depth) {
+      this.gatherer = gatherer;
+      this.info = info;
+      this.firstUrl = firstUrl;
+
+      permits = new Semaphore(depth);
+      pages = new LinkedBlockingQueue<Result>();
+      stopped = false;
+      task = null;
+
+      prefetched = Metrics.counter("gather.prefetchedPages");
+      wasted = Metrics.counter("gather.prefetchesWasted");
+   }
+
+   /**
+    * Start walking the chain on |executor|.
+    */
+   public void start(ExecutorService executor) {
+      task = executor.submit(this);
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void run() {
+      String url = firstUrl;
+      long lastRequestNanos = 0;
+
+      try {
+         while (url != null && !stopped) {
+            permits.acquire();
+
+            long waitMs = gatherer.getPageDelayMs() -
+                          (System.nanoTime() - lastRequestNanos) / 1000000;
+            if (lastRequestNanos != 0 && waitMs > 0) {
+               Thread.sleep(waitMs);
+            }
+
+            if (lastRequestNanos != 0) {
+               prefetched.inc();
+            }
+            lastRequestNanos = System.nanoTime();
+
+            JSONTwitterGatherer.RawPage page = gatherer.fetchRawPage(info, url);
+            url = gatherer.findNextUrl(page);
+            pages.add(new Result(page, null));
+         }
+
+         pages.add(new Result(null, null));
+      } catch (InterruptedException ex) {
+         // Stopped.
+      } catch (Exception ex) {
+         pages.add(new Result(null, ex));
+      }
+
+      if (stopped) {
+         drain();
+      }
+   }
+
+   /**
+    * Get the next page of the chain, waiting for it if it has not come in yet.
+    *
+    * @return The page, or null if the chain is over.
+    *
+    * @throws Exception Whatever stopped the chain from being fetched
+    *  (after the pages before it have been taken).
+    */
+   public JSONTwitterGatherer.RawPage take() throws Exception {
+      Result result = pages.take();
+
+      if (result.error != null) {
+         throw result.error;
+      } else if (result.page == null) {
+         return null;
+      }
+
+      permits.release();
+      return result.page;
+   }
+
+   /**
+    * Stop fetching, and throw away any pages that have not been taken.
+    */
+   public void stop() {
+      stopped = true;
+
+      if (task != null) {
+         task.cancel(true);
+      }
+
+      drain();
+   }
+
+   private void drain() {
+      Result result;
+
+      while ((result = pages.poll()) != null) {
+         if (result.page != null) {
+            result.page.recycle();
+            wasted.inc();
+         }
+      }
+   }
+
+   /**
+    * A page, the end of the chain (no page or error), or what stopped it.
+    */
+   private static class Result {
+      public final JSONTwitterGatherer.RawPage page;
+      public final Exception error;
+
+      public Result(JSONTwitterGatherer.RawPage page, Exception error) {
+         this.page = page;
+         this.error = error;
+      }
+   }
+}
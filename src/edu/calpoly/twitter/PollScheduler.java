@@ -0,0 +1,466 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.RateLimiter;
+import edu.calpoly.twitter.util.TaskExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps calling update() on each of a gatherer's queries, each on its own schedule.
+ *
+ * The interval for each query adapts to how fast tweets show up for that query.
+ * After every poll, the observed velocity (tweets per second) is folded into a moving average
+ *  and the next interval is picked so that a poll should bring back about POLL_TARGET_TWEETS.
+ * A query that comes back empty has its interval doubled instead, so quiet queries back off
+ *  exponentially.
+ * A query that fills up every page Twitter will give has its interval halved, since
+ *  it is probably missing tweets.
+ * All intervals are kept in [POLL_MIN_SEC, POLL_MAX_SEC].
+ *
+ * Every poll costs at least one request, so the scheduler also makes sure that the
+ *  expected request rate of all the queries together fits inside the rate limiter's budget.
+ * If it does not, every interval is stretched by the same factor.
+ * The rate limiter itself is still the hard guarantee.
+ *
+ * A single timer thread keeps the schedule, but the polls themselves run on a worker executor
+ *  from TaskExecutors.
+ * In the default mode that is DAEMON_THREADS platform threads, in virtual mode every poll
+ *  gets its own virtual thread.
+ *
+ * When several processes share the queries (see LeaseCoordinator), a query is only polled
+ *  while this process holds its lease, and only those queries count against the budget.
+ *
+ * When queries are coalesced (see COALESCE_QUERIES), a poll also takes along the other queries
+ *  that have waited at least COALESCE_EARLY_FRACTION of their interval, and the gatherer's
+ *  plan for them decides which ones share a request (see QueryPlanner).
+ * Every query still keeps its own interval.
+ * The budget counts each query's requests as if it were polled alone, so it is on the safe side
+ *  when queries are packed.
+ */
+public class PollScheduler {
+   /**
+    * How much weight the newest observation gets in the velocity average.
+    */
+   private static final double VELOCITY_ALPHA = 0.5;
+
+   /**
+    * Only plan to use this much of the rate budget.
+    * The rest is slack for page chains that run longer than expected.
+    */
+   private static final double BUDGET_FRACTION = 0.9;
+
+   /**
+    * When queries are coalesced, a query can be polled early with another one once
+    *  this much of its interval has gone by.
+    */
+   private static final double COALESCE_EARLY_FRACTION = 0.5;
+
+   private final JSONTwitterGatherer gatherer;
+   private final RateLimiter rateLimiter;
+   private final List<PollState> states;
+
+   private final long minIntervalMs;
+   private final long maxIntervalMs;
+   private final int targetTweets;
+   private final int numThreads;
+
+   /**
+    * Only keeps time, the polls are handed off to |workers|.
+    */
+   private ScheduledExecutorService executor;
+
+   private ExecutorService workers;
+
+   /**
+    * Null if this process polls every query.
+    */
+   private volatile LeaseCoordinator coordinator;
+
+   public PollScheduler(JSONTwitterGatherer gatherer) {
+      this(gatherer, RateLimiter.getShared());
+   }
+
+   public PollScheduler(JSONTwitterGatherer gatherer, RateLimiter rateLimiter) {
+      this.gatherer = gatherer;
+      this.rateLimiter = rateLimiter;
+
+      minIntervalMs = Props.getInt("POLL_MIN_SEC", JSONTwitterGatherer.SEC_PER_FRAME) * 1000L;
+      maxIntervalMs = Props.getInt("POLL_MAX_SEC", 3600) * 1000L;
+      targetTweets = Props.getInt("POLL_TARGET_TWEETS", JSONTwitterGatherer.RPP * 5);
+      numThreads = Props.getInt("DAEMON_THREADS", 1);
+
+      states = new ArrayList<PollState>();
+      for (QueryTargetInfo info : gatherer.getQueries()) {
+         states.add(new PollState(info, minIntervalMs));
+      }
+   }
+
+   /**
+    * Only poll the queries that |coordinator| says this process owns.
+    */
+   public void setCoordinator(LeaseCoordinator coordinator) {
+      this.coordinator = coordinator;
+   }
+
+   /**
+    * Start polling.
+    * The first poll of each query is staggered across the minimum interval so that
+    *  they don't all hit Twitter at once.
+    */
+   public synchronized void start() {
+      if (executor != null) {
+         return;
+      }
+
+      executor = Executors.newSingleThreadScheduledExecutor();
+      workers = TaskExecutors.newExecutor("poller", numThreads);
+
+      for (int i = 0; i < states.size(); i++) {
+         final PollState state = states.get(i);
+
+         Metrics.gauge("query." + state.info.query + ".pollIntervalSec", new Metrics.Gauge() {
+            public long get() {
+               return state.intervalMs / 1000;
+            }
+         });
+
+         schedule(state, (minIntervalMs * i) / states.size());
+      }
+   }
+
+   /**
+    * Stop polling.
+    * Any poll that is in progress is allowed to finish.
+    */
+   public void stop() {
+      ScheduledExecutorService stoppingTimer;
+      ExecutorService stoppingWorkers;
+
+      // Don't hold the lock while waiting, the pollers need it to finish up.
+      synchronized (this) {
+         if (executor == null) {
+            return;
+         }
+
+         stoppingTimer = executor;
+         stoppingWorkers = workers;
+         executor = null;
+         workers = null;
+      }
+
+      stoppingTimer.shutdownNow();
+      stoppingWorkers.shutdown();
+
+      try {
+         stoppingWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+         Logger.logWarn("Interrupted while waiting for the pollers to finish.");
+      }
+   }
+
+   /**
+    * Poll |state| after |delayMs|.
+    * Any poll that was already scheduled for it is dropped.
+    */
+   private synchronized void schedule(PollState state, long delayMs) {
+      state.polling = false;
+      state.token++;
+      state.scheduledMs = System.currentTimeMillis();
+      state.dueMs = state.scheduledMs + delayMs;
+
+      schedule(new PollTask(state, state.token), delayMs);
+   }
+
+   /**
+    * Mark |state| (and, when queries are coalesced, the other queries that should be polled
+    *  along with it) as being polled.
+    *
+    * @param token The token of the task that is polling |state|.
+    *
+    * @return The queries to poll, or null if the task is stale (the query was already polled
+    *  with another one, or is being polled now).
+    */
+   private synchronized List<PollState> claim(PollState state, int token) {
+      if (state.polling || state.token != token) {
+         return null;
+      }
+
+      List<PollState> rtn = new ArrayList<PollState>();
+      state.polling = true;
+      rtn.add(state);
+
+      if (!gatherer.isCoalescing() || !isOwned(state)) {
+         return rtn;
+      }
+
+      long now = System.currentTimeMillis();
+      List<QueryTargetInfo> candidates = new ArrayList<QueryTargetInfo>();
+      Map<QueryTargetInfo, PollState> byInfo = new HashMap<QueryTargetInfo, PollState>();
+
+      // This query goes first, so the planner packs it if it can be packed at all.
+      candidates.add(state.info);
+      for (PollState other : states) {
+         if (other != state && !other.polling && isOwned(other) &&
+             now - other.scheduledMs >=
+             (other.dueMs - other.scheduledMs) * COALESCE_EARLY_FRACTION) {
+            candidates.add(other.info);
+            byInfo.put(other.info, other);
+         }
+      }
+
+      if (candidates.size() == 1) {
+         return rtn;
+      }
+
+      for (QueryTargetInfo unit : gatherer.getPlan(candidates)) {
+         if (unit instanceof QueryPack && ((QueryPack)unit).getMembers().contains(state.info)) {
+            for (QueryTargetInfo member : ((QueryPack)unit).getMembers()) {
+               PollState other = byInfo.get(member);
+
+               if (other != null) {
+                  other.polling = true;
+                  rtn.add(other);
+               }
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Hand |task| to the workers after |delayMs|.
+    * Does nothing if the scheduler has been stopped.
+    */
+   private synchronized void schedule(final Runnable task, long delayMs) {
+      if (executor == null) {
+         return;
+      }
+
+      executor.schedule(new Runnable() {
+         public void run() {
+            synchronized (PollScheduler.this) {
+               if (workers != null) {
+                  workers.execute(task);
+               }
+            }
+         }
+      }, delayMs, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Get the current polling interval for a query.
+    *
+    * @return The interval in ms, or -1 if the query is not scheduled here.
+    */
+   public long getInterval(QueryTargetInfo info) {
+      for (PollState state : states) {
+         if (state.info == info) {
+            return state.intervalMs;
+         }
+      }
+
+      return -1;
+   }
+
+   /**
+    * Pick the next interval for a query that just finished a poll.
+    */
+   private void adjust(PollState state, int count, long now) {
+      long elapsedMs = Math.max(1, now - state.lastPollMs);
+      double velocity = count / (elapsedMs / 1000.0);
+
+      // The first poll picks up whatever backlog there is, so it says nothing about velocity.
+      if (state.lastPollMs != 0) {
+         state.velocity = (VELOCITY_ALPHA * velocity) + ((1 - VELOCITY_ALPHA) * state.velocity);
+      }
+      state.lastPollMs = now;
+
+      long interval;
+      if (count == 0) {
+         interval = state.intervalMs * 2;
+      } else if (count >= JSONTwitterGatherer.MAX_PAGES * JSONTwitterGatherer.RPP) {
+         interval = state.intervalMs / 2;
+      } else if (state.velocity > 0) {
+         interval = (long)((targetTweets / state.velocity) * 1000);
+      } else {
+         interval = state.intervalMs;
+      }
+
+      state.intervalMs = Math.max(minIntervalMs, Math.min(maxIntervalMs, interval));
+   }
+
+   /**
+    * Get how much the intervals need to be stretched to fit in the rate budget.
+    *
+    * @return A factor >= 1.
+    */
+   private synchronized double getBudgetStretch() {
+      double budget = rateLimiter.getRate() * BUDGET_FRACTION;
+      double demand = 0;
+
+      for (PollState state : states) {
+         if (!isOwned(state)) {
+            continue;
+         }
+
+         double intervalSec = state.intervalMs / 1000.0;
+         double pages = Math.max(1, Math.ceil(state.velocity * intervalSec /
+                                              JSONTwitterGatherer.RPP));
+         demand += pages / intervalSec;
+      }
+
+      return Math.max(1.0, demand / budget);
+   }
+
+   private boolean isOwned(PollState state) {
+      LeaseCoordinator leases = coordinator;
+      return leases == null || leases.owns(state.info);
+   }
+
+   /**
+    * The scheduling state for a single query.
+    */
+   private static class PollState {
+      public final QueryTargetInfo info;
+
+      /**
+       * The current interval between polls (in ms).
+       * Written by the polling thread, read by anyone.
+       */
+      public volatile long intervalMs;
+
+      /**
+       * The moving average of tweets per second.
+       */
+      public volatile double velocity;
+
+      /**
+       * When the last poll finished (in ms), or 0 if it never has.
+       */
+      public long lastPollMs;
+
+      /**
+       * When the next poll was scheduled, and when it is due (in ms).
+       * Guarded by the scheduler, like the rest of the fields below.
+       */
+      public long scheduledMs;
+      public long dueMs;
+
+      /**
+       * Which scheduled task gets to poll (any other task for this query is stale).
+       */
+      public int token;
+
+      /**
+       * True while the query is being polled (alone, or along with another query).
+       */
+      public boolean polling;
+
+      public PollState(QueryTargetInfo info, long intervalMs) {
+         this.info = info;
+         this.intervalMs = intervalMs;
+         velocity = 0;
+         lastPollMs = 0;
+         scheduledMs = 0;
+         dueMs = 0;
+         token = 0;
+         polling = false;
+      }
+   }
+
+   /**
+    * Poll a query (and any queries that are coalesced with it),
+    *  and then schedule the next poll for each of them.
+    */
+   private class PollTask implements Runnable {
+      private final PollState state;
+      private final int token;
+
+      public PollTask(PollState state, int token) {
+         this.state = state;
+         this.token = token;
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public void run() {
+         List<PollState> claimed = claim(state, token);
+         if (claimed == null) {
+            return;
+         }
+
+         LeaseCoordinator leases = coordinator;
+         List<PollState> polled = new ArrayList<PollState>();
+         List<QueryTargetInfo> infos = new ArrayList<QueryTargetInfo>();
+
+         for (PollState claimedState : claimed) {
+            if (leases != null && !leases.beginPoll(claimedState.info)) {
+               // Check back often, so a lease that moves here gets polled soon.
+               schedule(claimedState, minIntervalMs);
+            } else {
+               polled.add(claimedState);
+               infos.add(claimedState.info);
+            }
+         }
+
+         Map<QueryTargetInfo, Integer> counts = new HashMap<QueryTargetInfo, Integer>();
+
+         try {
+            List<QueryTargetInfo> plan = infos.size() > 1 ? gatherer.getPlan(infos) : infos;
+
+            for (QueryTargetInfo unit : plan) {
+               poll(unit, counts);
+            }
+         } finally {
+            // Leases are only handed off between polls.
+            if (leases != null) {
+               for (PollState polledState : polled) {
+                  leases.endPoll(polledState.info);
+               }
+            }
+         }
+
+         long now = System.currentTimeMillis();
+         for (PollState polledState : polled) {
+            Integer count = counts.get(polledState.info);
+            adjust(polledState, count == null ? 0 : count, now);
+         }
+
+         double stretch = getBudgetStretch();
+         for (PollState polledState : polled) {
+            schedule(polledState, (long)(polledState.intervalMs * stretch));
+         }
+      }
+
+      /**
+       * Update a single query or QueryPack, and note how many tweets each query got.
+       */
+      private void poll(QueryTargetInfo unit, Map<QueryTargetInfo, Integer> counts) {
+         try {
+            int count = gatherer.update(unit);
+
+            if (unit instanceof QueryPack) {
+               for (QueryTargetInfo member : ((QueryPack)unit).getMembers()) {
+                  counts.put(member, Math.max(0, member.lastCount));
+               }
+            } else {
+               counts.put(unit, count);
+            }
+         } catch (Exception ex) {
+            Logger.logError("Error polling the query \"" + unit.query + "\".", ex);
+         }
+      }
+   }
+}
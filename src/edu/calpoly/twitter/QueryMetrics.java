@@ -0,0 +1,119 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.util.Metrics;
+
+/**
+ * The hot-path metrics for a single query.
+ * Everything recorded here is also rolled up into a gatherer-wide total so that
+ *  it is easy to see which stage is the bottleneck across all queries.
+ *
+ * Metric names look like "query.QUERY.NAME" for a single query and "gather.NAME" for the total.
+ * All times are in microseconds.
+ */
+public class QueryMetrics {
+   private static final String TOTAL_PREFIX = "gather.";
+
+   private final Metrics.Counter pagesFetched;
+   private final Metrics.Counter bytesRead;
+   private final Metrics.Counter parseFailures;
+   private final Metrics.Counter duplicatesDropped;
+   private final Metrics.Counter retries;
+   private final Metrics.Histogram httpLatency;
+   private final Metrics.Histogram decodeTime;
+   private final Metrics.Histogram storeInsertLatency;
+
+   private final Metrics.Counter totalPagesFetched;
+   private final Metrics.Counter totalBytesRead;
+   private final Metrics.Counter totalParseFailures;
+   private final Metrics.Counter totalDuplicatesDropped;
+   private final Metrics.Counter totalRetries;
+   private final Metrics.Histogram totalHttpLatency;
+   private final Metrics.Histogram totalDecodeTime;
+   private final Metrics.Histogram totalStoreInsertLatency;
+
+   public QueryMetrics(String query) {
+      String prefix = "query." + query + ".";
+
+      pagesFetched = Metrics.counter(prefix + "pagesFetched");
+      bytesRead = Metrics.counter(prefix + "bytesRead");
+      parseFailures = Metrics.counter(prefix + "parseFailures");
+      duplicatesDropped = Metrics.counter(prefix + "duplicatesDropped");
+      retries = Metrics.counter(prefix + "retries");
+      httpLatency = Metrics.histogram(prefix + "httpLatencyMicros");
+      decodeTime = Metrics.histogram(prefix + "decodeMicros");
+      storeInsertLatency = Metrics.histogram(prefix + "storeInsertMicros");
+
+      totalPagesFetched = Metrics.counter(TOTAL_PREFIX + "pagesFetched");
+      totalBytesRead = Metrics.counter(TOTAL_PREFIX + "bytesRead");
+      totalParseFailures = Metrics.counter(TOTAL_PREFIX + "parseFailures");
+      totalDuplicatesDropped = Metrics.counter(TOTAL_PREFIX + "duplicatesDropped");
+      totalRetries = Metrics.counter(TOTAL_PREFIX + "retries");
+      totalHttpLatency = Metrics.histogram(TOTAL_PREFIX + "httpLatencyMicros");
+      totalDecodeTime = Metrics.histogram(TOTAL_PREFIX + "decodeMicros");
+      totalStoreInsertLatency = Metrics.histogram(TOTAL_PREFIX + "storeInsertMicros");
+   }
+
+   /**
+    * A page was completely read.
+    *
+    * @param bytes The number of bytes in the body of the response.
+    */
+   public void pageFetched(long bytes) {
+      pagesFetched.inc();
+      totalPagesFetched.inc();
+      bytesRead.add(bytes);
+      totalBytesRead.add(bytes);
+   }
+
+   /**
+    * Record the time it took to get the response headers back.
+    */
+   public void httpLatency(long startNanos) {
+      long micros = (System.nanoTime() - startNanos) / 1000;
+      httpLatency.record(micros);
+      totalHttpLatency.record(micros);
+   }
+
+   /**
+    * Record the time it took to turn the body into TweetData.
+    * The body is read into a buffer first, so this does not include reading it.
+    */
+   public void decodeTime(long startNanos) {
+      long micros = (System.nanoTime() - startNanos) / 1000;
+      decodeTime.record(micros);
+      totalDecodeTime.record(micros);
+   }
+
+   /**
+    * A single tweet in a response could not be parsed.
+    */
+   public void parseFailure() {
+      parseFailures.inc();
+      totalParseFailures.inc();
+   }
+
+   /**
+    * A request failed and is going to be tried again.
+    * The total is also broken down by |reason| ("gather.retries.REASON").
+    */
+   public void retry(String reason) {
+      retries.inc();
+      totalRetries.inc();
+      Metrics.counter(TOTAL_PREFIX + "retries." + reason).inc();
+   }
+
+   /**
+    * Record a call to TweetStore.insertTweets().
+    *
+    * @param offered The number of tweets handed to the store.
+    * @param inserted The number of tweets the store says it actually inserted.
+    */
+   public void storeInsert(long startNanos, int offered, int inserted) {
+      long micros = (System.nanoTime() - startNanos) / 1000;
+      storeInsertLatency.record(micros);
+      totalStoreInsertLatency.record(micros);
+
+      duplicatesDropped.add(offered - inserted);
+      totalDuplicatesDropped.add(offered - inserted);
+   }
+}
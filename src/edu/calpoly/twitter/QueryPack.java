@@ -0,0 +1,184 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.MultiPatternMatcher;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several simple keyword queries that are sent to Twitter as a single OR query.
+ * The results are routed back to the queries they came from with a MultiPatternMatcher.
+ *
+ * The pack's own lastSeenId and smallestId drive the paging just like for any other query.
+ * The pack starts from the smallest lastSeenId of its members so no member misses anything,
+ *  and each member only gets the tweets that are newer than its own lastSeenId.
+ *
+ * Packs only last for a single gather (the plan is made again every time).
+ * So, if the pack's chain is cut short, every member is left with an open chain of its own
+ *  (see leaveOpen()) and picks up the rest alone (QueryPlanner does not pack open chains).
+ */
+public class QueryPack extends QueryTargetInfo {
+   /**
+    * The separator between members in the query sent to Twitter (" OR ", URL encoded).
+    */
+   public static final String OR = "%20OR%20";
+
+   private final List<QueryTargetInfo> members;
+   private final MultiPatternMatcher matcher;
+   private final Metrics.Counter unrouted;
+
+   /**
+    * @.pre Every member has a keyword (see getKeyword()).
+    */
+   public QueryPack(List<QueryTargetInfo> members) {
+      super(join(members));
+
+      this.members = new ArrayList<QueryTargetInfo>(members);
+
+      List<String> patterns = new ArrayList<String>();
+      for (QueryTargetInfo member : members) {
+         patterns.add(getKeyword(member));
+      }
+      matcher = new MultiPatternMatcher(patterns);
+
+      unrouted = Metrics.counter("gather.unroutedTweets");
+   }
+
+   /**
+    * Get the keyword that a query's results can be routed back to it with.
+    * Queries are kept URL encoded, but the matcher needs to see what Twitter will see.
+    *
+    * @return The keyword, or null if the query is not a single matchable keyword.
+    */
+   public static String getKeyword(QueryTargetInfo info) {
+      try {
+         String keyword = URLDecoder.decode(info.query, "UTF-8");
+         return MultiPatternMatcher.isMatchable(keyword) ? keyword : null;
+      } catch (UnsupportedEncodingException ex) {
+         return null;
+      } catch (IllegalArgumentException ex) {
+         // Bad encoding.
+         return null;
+      }
+   }
+
+   public List<QueryTargetInfo> getMembers() {
+      return members;
+   }
+
+   /**
+    * Get ready for a gather.
+    * The pack needs to start from the oldest position of any of its members.
+    *
+    * @.pre Every member has a lastSeenId.
+    */
+   public void prepare() {
+      lastSeenId = null;
+      smallestId = null;
+      floorId = null;
+
+      for (QueryTargetInfo member : members) {
+         if (lastSeenId == null || Long.valueOf(member.lastSeenId) < Long.valueOf(lastSeenId)) {
+            lastSeenId = member.lastSeenId;
+         }
+      }
+   }
+
+   /**
+    * Split up the results for the pack by the member that they belong to.
+    * A tweet that matches more than one member is given to each of them.
+    * Tweets that a member has already seen are not given to it.
+    *
+    * @return The tweets for each member that got at least one tweet.
+    */
+   public Map<QueryTargetInfo, List<TweetData>> route(List<TweetData> tweets) {
+      Map<QueryTargetInfo, List<TweetData>> rtn =
+            new LinkedHashMap<QueryTargetInfo, List<TweetData>>();
+
+      for (TweetData tweet : tweets) {
+         BitSet matches = matcher.match(tweet.getContent());
+
+         if (matches.isEmpty()) {
+            // Twitter matched it on something that isn't in the text (like an expanded url).
+            unrouted.inc();
+            continue;
+         }
+
+         long id = Long.valueOf(tweet.twitterId);
+         for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            QueryTargetInfo member = members.get(i);
+
+            if (member.lastSeenId != null && id <= Long.valueOf(member.lastSeenId)) {
+               continue;
+            }
+
+            List<TweetData> memberTweets = rtn.get(member);
+            if (memberTweets == null) {
+               memberTweets = new ArrayList<TweetData>();
+               rtn.put(member, memberTweets);
+            }
+            memberTweets.add(tweet);
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The pack has finished a gather.
+    * Everything up to the pack's lastSeenId has been covered for all the members.
+    */
+   public void finish() {
+      for (QueryTargetInfo member : members) {
+         if (lastSeenId != null && (member.lastSeenId == null ||
+             Long.valueOf(lastSeenId) > Long.valueOf(member.lastSeenId))) {
+            member.lastSeenId = lastSeenId;
+         }
+      }
+
+      smallestId = null;
+      floorId = null;
+   }
+
+   /**
+    * The pack's chain was cut short.
+    * Everything newer than the pack's smallestId has been covered for all the members,
+    *  so each member is left with an open chain from its own lastSeenId up to there.
+    * If nothing came back at all, the members are left alone.
+    */
+   public void leaveOpen() {
+      if (smallestId == null) {
+         return;
+      }
+
+      for (QueryTargetInfo member : members) {
+         member.floorId = member.lastSeenId;
+         member.smallestId = smallestId;
+
+         if (lastSeenId != null && (member.lastSeenId == null ||
+             Long.valueOf(lastSeenId) > Long.valueOf(member.lastSeenId))) {
+            member.lastSeenId = lastSeenId;
+         }
+      }
+   }
+
+   private static String join(List<QueryTargetInfo> members) {
+      StringBuilder rtn = new StringBuilder();
+
+      for (QueryTargetInfo member : members) {
+         if (rtn.length() > 0) {
+            rtn.append(OR);
+         }
+         rtn.append(member.query);
+      }
+
+      return rtn.toString();
+   }
+}
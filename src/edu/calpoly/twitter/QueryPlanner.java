@@ -0,0 +1,87 @@
+package edu.calpoly.twitter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which queries can share a request to Twitter.
+ *
+ * A query can be packed with others (see QueryPack) if it is a single plain keyword that
+ *  results can be routed back to (see QueryPack.getKeyword()), and it is low-volume.
+ * A query is low-volume if it has not been gathered yet, or it brought back fewer than
+ *  |maxTweets| tweets the last time it was.
+ * Busy queries, anything with operators or quotes, and queries with an open chain
+ *  (see QueryTargetInfo.smallestId) are gathered alone.
+ *
+ * Packs are filled greedily in the order the queries are given, so that the plan is stable
+ *  from cycle to cycle.
+ * Twitter limits the length of a search query, so packs are cut off at |maxQueryLength|.
+ */
+public class QueryPlanner {
+   private final int maxQueryLength;
+   private final int maxTweets;
+
+   /**
+    * @param maxQueryLength The longest (encoded) query that Twitter will take.
+    * @param maxTweets Queries that brought back this many tweets last time are not packed.
+    */
+   public QueryPlanner(int maxQueryLength, int maxTweets) {
+      this.maxQueryLength = maxQueryLength;
+      this.maxTweets = maxTweets;
+   }
+
+   /**
+    * Make the plan.
+    *
+    * @return The things to actually gather.
+    *  Every query is either returned as is or is a member of exactly one returned QueryPack.
+    */
+   public List<QueryTargetInfo> plan(List<QueryTargetInfo> queries) {
+      List<QueryTargetInfo> rtn = new ArrayList<QueryTargetInfo>();
+      List<QueryTargetInfo> pack = new ArrayList<QueryTargetInfo>();
+      int packLength = 0;
+
+      for (QueryTargetInfo info : queries) {
+         if (!canPack(info)) {
+            rtn.add(info);
+            continue;
+         }
+
+         int length = info.query.length() + (pack.isEmpty() ? 0 : QueryPack.OR.length());
+         if (!pack.isEmpty() && packLength + length > maxQueryLength) {
+            rtn.add(close(pack));
+            pack = new ArrayList<QueryTargetInfo>();
+            packLength = 0;
+            length = info.query.length();
+         }
+
+         pack.add(info);
+         packLength += length;
+      }
+
+      if (!pack.isEmpty()) {
+         rtn.add(close(pack));
+      }
+
+      return rtn;
+   }
+
+   private boolean canPack(QueryTargetInfo info) {
+      return !(info instanceof QueryPack) &&
+             info.smallestId == null &&
+             info.query.length() <= maxQueryLength &&
+             QueryPack.getKeyword(info) != null &&
+             info.lastCount < maxTweets;
+   }
+
+   /**
+    * A pack of one is just the query.
+    */
+   private static QueryTargetInfo close(List<QueryTargetInfo> pack) {
+      if (pack.size() == 1) {
+         return pack.get(0);
+      }
+
+      return new QueryPack(pack);
+   }
+}
@@ -0,0 +1,199 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Logger;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The tweets for a single query, pulled one at a time (see JSONTwitterGatherer.stream()).
+ *
+ * Pages are only fetched when the tweets on the page before have all been taken, so
+ *  a consumer that stops early (eg. after the first 200 tweets) never pays for the rest
+ *  of the chain.
+ * Every request still goes through the gatherer's rate limiter and retries, and the page
+ *  delay is only waited out if the consumer took less time than that with the last page.
+ *
+ * The query's position (see QueryTargetInfo) only moves past tweets that were actually taken.
+ * So, if the stream is closed part way through, the chain is left open just below the last
+ *  tweet that was taken and the next gather (or stream) picks up from there.
+ * Twitter gives pages newest first, so this does not skip anything.
+ * The position is checkpointed after each page and on close().
+ *
+ * A failed page (after retrying) ends the stream early (see isFailed()), leaving the chain
+ *  open the same way.
+ * Not safe for use from multiple threads.
+ */
+public class QueryStream implements Iterator<TweetData>, Closeable {
+   private final JSONTwitterGatherer gatherer;
+   private final QueryTargetInfo info;
+
+   /**
+    * Pages are decoded against this so that |info| is only changed as tweets are taken.
+    */
+   private final QueryTargetInfo decodeInfo;
+
+   private JSONTwitterGatherer.Page page;
+   private int position;
+
+   /**
+    * The next page of the current chain, or null if the chain is out of pages.
+    */
+   private String nextUrl;
+
+   /**
+    * The number of tweets fetched on the current chain.
+    */
+   private int chainFetched;
+
+   private long lastFetchNanos;
+   private boolean done;
+   private boolean failed;
+
+   QueryStream(JSONTwitterGatherer gatherer, QueryTargetInfo info) {
+      this.gatherer = gatherer;
+      this.info = info;
+
+      gatherer.initPosition(info);
+      if (info.smallestId == null) {
+         info.floorId = info.lastSeenId;
+      }
+
+      decodeInfo = new QueryTargetInfo(info.query);
+      decodeInfo.metrics = info.metrics;
+
+      page = null;
+      position = 0;
+      nextUrl = gatherer.getChainUrl(info);
+      chainFetched = 0;
+      lastFetchNanos = 0;
+      done = false;
+      failed = false;
+   }
+
+   public QueryTargetInfo getInfo() {
+      return info;
+   }
+
+   /**
+    * Check if the stream ended because a page could not be fetched.
+    */
+   public boolean isFailed() {
+      return failed;
+   }
+
+   /**
+    * This may block while the next page is fetched.
+    *
+    * @inheritDoc
+    */
+   public boolean hasNext() {
+      if (done) {
+         return false;
+      }
+
+      while (page == null || position >= page.tweets.size()) {
+         finishPage();
+
+         if (nextUrl == null) {
+            // Twitter stops after MAX_PAGES, so a full chain may have more below it.
+            if (chainFetched < JSONTwitterGatherer.MAX_PAGES * JSONTwitterGatherer.RPP) {
+               finishChain();
+               return false;
+            }
+
+            chainFetched = 0;
+            nextUrl = gatherer.getChainUrl(info);
+         }
+
+         if (!fetchPage()) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public TweetData next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+
+      TweetData tweet = page.tweets.get(position++);
+      JSONTwitterGatherer.trackId(info, tweet.twitterId);
+
+      return tweet;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Stop the stream where it is.
+    * Nothing else is fetched, and the query's position is saved.
+    */
+   public void close() {
+      if (done) {
+         return;
+      }
+
+      finishPage();
+      gatherer.checkpoint(info);
+      done = true;
+   }
+
+   /**
+    * @return False if the stream is over.
+    */
+   private boolean fetchPage() {
+      try {
+         long waitMs = gatherer.getPageDelayMs() - (System.nanoTime() - lastFetchNanos) / 1000000;
+         if (lastFetchNanos != 0 && waitMs > 0) {
+            Thread.sleep(waitMs);
+         }
+
+         page = gatherer.fetchPage(decodeInfo, nextUrl);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         close();
+         return false;
+      } catch (Exception ex) {
+         Logger.logError("Error streaming the query \"" + info.query +
+                         "\", the chain will be resumed next time.", ex);
+         failed = true;
+         close();
+         return false;
+      }
+
+      lastFetchNanos = System.nanoTime();
+      nextUrl = page.nextUrl;
+      position = 0;
+      chainFetched += page.tweets.size();
+
+      return true;
+   }
+
+   private void finishPage() {
+      if (page != null) {
+         page.recycle();
+         page = null;
+         gatherer.checkpoint(info);
+      }
+   }
+
+   private void finishChain() {
+      info.smallestId = null;
+      info.floorId = info.lastSeenId;
+      gatherer.checkpoint(info);
+      done = true;
+   }
+}
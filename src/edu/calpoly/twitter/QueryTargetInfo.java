@@ -15,12 +15,33 @@ public class QueryTargetInfo {
    /**
      * The smallest id seen by a chain of queries to Twitter.
      * Note: Twitter give results from most recent to least recent.
+     * This is only set while a chain is in progress (or was cut short).
      */
    public String smallestId;
 
+   /**
+     * The lastSeenId from before the current chain started.
+     * Everything newer than this and older than smallestId still needs to be fetched.
+     */
+   public String floorId;
+
+   /**
+     * The number of tweets inserted the last time this query was gathered,
+     *  or -1 if it never has been.
+     */
+   public int lastCount;
+
+   /**
+     * The hot-path metrics for this query.
+     */
+   public QueryMetrics metrics;
+
    public QueryTargetInfo(String query) {
       this.query = query;
       this.lastSeenId = null;
       this.smallestId = null;
+      this.floorId = null;
+      this.lastCount = -1;
+      this.metrics = new QueryMetrics(query);
    }
 }
@@ -0,0 +1,282 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.util.Logger;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the raw bytes of every search response, so that fields that the gatherer does not
+ *  decode (entities, user metadata, retweets, ...) can be pulled out later (see ArchiveReader).
+ *
+ * A response is captured as it is read (see capture()): whatever the decoder reads is handed
+ *  straight to the compressor, so there is no second pass over the response and no extra copy.
+ * The record is only committed once the response has been decoded, so a page that is still
+ *  waiting to be decoded holds on to its segment.
+ * Archives are gzipped segment files that are written through a FileChannel.
+ * Each segment is only written by one thread at a time, so concurrent gathers each get their
+ *  own segment instead of waiting on each other.
+ * A segment is closed once it has |maxSegmentBytes| (compressed) bytes, and a new one
+ *  is started when it is needed.
+ *
+ * Segment format (inside the gzip):
+ *  A sequence of records, each of which is:
+ *   query (writeUTF), url (writeUTF), time fetched in ms (long),
+ *   then the body in chunks: chunk length (int) and the bytes,
+ *   then END for a complete response or ABORTED if the response was not completely read
+ *   or did not decode.
+ * Every record is flushed when it finishes, so a crash only loses the record in progress.
+ *
+ * Problems with the archive are logged, but never get in the way of gathering.
+ */
+public class ResponseArchive {
+   public static final String PREFIX = "responses-";
+   public static final String SUFFIX = ".bca.gz";
+
+   /**
+    * The record markers that follow the last chunk.
+    */
+   public static final int END = 0;
+   public static final int ABORTED = -1;
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final File dir;
+   private final long maxSegmentBytes;
+
+   /**
+    * Segments that are open, but not being written right now.
+    */
+   private final ConcurrentLinkedQueue<Segment> idle;
+
+   private final AtomicInteger nextSegment;
+   private volatile boolean closed;
+
+   /**
+    * @param dir Where to put the segments. It is created if it does not exist.
+    * @param maxSegmentBytes How big (compressed) a segment can get before a new one is started.
+    */
+   public ResponseArchive(String dir, long maxSegmentBytes) {
+      this.dir = new File(dir);
+      this.maxSegmentBytes = maxSegmentBytes;
+
+      idle = new ConcurrentLinkedQueue<Segment>();
+      nextSegment = new AtomicInteger(0);
+      closed = false;
+
+      if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+         Logger.logError("Unable to create the response archive directory: " + dir);
+      }
+   }
+
+   /**
+    * Start capturing a response.
+    * Everything that is read from the returned stream is also written to the archive.
+    * When done, call exactly one of Capture.commit() or Capture.abort().
+    *
+    * @return A stream that reads from |in|.
+    *  If the archive can't be written, the stream still works but nothing is captured.
+    */
+   public Capture capture(QueryTargetInfo info, String url, InputStream in) {
+      Segment segment = null;
+
+      if (!closed) {
+         try {
+            segment = idle.poll();
+            if (segment == null) {
+               segment = new Segment(new File(dir, String.format("%s%d-%04d%s",
+                     PREFIX, System.currentTimeMillis(), nextSegment.getAndIncrement(), SUFFIX)));
+            }
+
+            segment.out.writeUTF(info.query);
+            segment.out.writeUTF(url);
+            segment.out.writeLong(System.currentTimeMillis());
+         } catch (IOException ex) {
+            Logger.logError("Unable to start capturing a response.", ex);
+
+            if (segment != null) {
+               segment.close();
+            }
+            segment = null;
+         }
+      }
+
+      return new Capture(in, segment);
+   }
+
+   /**
+    * Close all the segments.
+    * Captures that are in progress close their segments when they finish.
+    */
+   public void close() {
+      closed = true;
+
+      Segment segment;
+      while ((segment = idle.poll()) != null) {
+         segment.close();
+      }
+   }
+
+   /**
+    * A capture is done with a segment.
+    */
+   private void release(Segment segment) {
+      if (segment.isFull()) {
+         segment.close();
+         return;
+      }
+
+      idle.add(segment);
+
+      // close() may have already gone through the idle segments.
+      if (closed && idle.remove(segment)) {
+         segment.close();
+      }
+   }
+
+   /**
+    * An open archive file.
+    */
+   private class Segment {
+      public final File file;
+      public final FileChannel channel;
+      public final DataOutputStream out;
+
+      public Segment(File file) throws IOException {
+         this.file = file;
+
+         channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                                    StandardOpenOption.WRITE);
+         // Sync flush, so that every record can be read back as soon as it is flushed.
+         out = new DataOutputStream(new GZIPOutputStream(Channels.newOutputStream(channel),
+                                                         BUFFER_SIZE, true));
+      }
+
+      public boolean isFull() {
+         try {
+            return channel.size() >= maxSegmentBytes;
+         } catch (IOException ex) {
+            return true;
+         }
+      }
+
+      public void close() {
+         try {
+            out.close();
+         } catch (IOException ex) {
+            Logger.logError("Unable to close response archive " + file + ".", ex);
+         }
+      }
+   }
+
+   /**
+    * A response that is being captured.
+    */
+   public class Capture extends FilterInputStream {
+      /**
+       * Null if nothing is (or is no longer being) captured.
+       */
+      private Segment segment;
+
+      private Capture(InputStream in, Segment segment) {
+         super(in);
+         this.segment = segment;
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public int read() throws IOException {
+         int rtn = super.read();
+
+         if (rtn != -1 && segment != null) {
+            try {
+               segment.out.writeInt(1);
+               segment.out.write(rtn);
+            } catch (IOException ex) {
+               fail(ex);
+            }
+         }
+
+         return rtn;
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+         int rtn = super.read(buffer, offset, length);
+
+         if (rtn > 0 && segment != null) {
+            try {
+               segment.out.writeInt(rtn);
+               segment.out.write(buffer, offset, rtn);
+            } catch (IOException ex) {
+               fail(ex);
+            }
+         }
+
+         return rtn;
+      }
+
+      /**
+       * Skipped bytes would not be captured.
+       */
+      public long skip(long length) throws IOException {
+         throw new IOException("Captured streams can not skip.");
+      }
+
+      public boolean markSupported() {
+         return false;
+      }
+
+      /**
+       * The whole response was read and decoded.
+       */
+      public void commit() {
+         finish(END);
+      }
+
+      /**
+       * The response was not used (it may not have been completely read).
+       */
+      public void abort() {
+         finish(ABORTED);
+      }
+
+      private void finish(int marker) {
+         if (segment == null) {
+            return;
+         }
+
+         try {
+            segment.out.writeInt(marker);
+            segment.out.flush();
+            release(segment);
+         } catch (IOException ex) {
+            fail(ex);
+         }
+
+         segment = null;
+      }
+
+      /**
+       * Writing failed, the segment is probably broken so stop using it.
+       */
+      private void fail(IOException ex) {
+         Logger.logError("Unable to write to response archive " + segment.file + ".", ex);
+
+         segment.close();
+         segment = null;
+      }
+   }
+}
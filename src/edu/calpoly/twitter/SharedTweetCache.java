@@ -0,0 +1,199 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tweets that a gatherer has seen recently, shared between all of its queries.
+ *
+ * When queries overlap, the same tweet comes back for each of them.
+ * With this cache, only the first query to see a tweet decodes it and stores it,
+ *  every other query that sees it just reuses the same TweetData and tags it.
+ * Tags are a BitSet on the tweet (TweetData.queries) of the queries it matched,
+ *  by index (see getIndex() and getQueries()).
+ *
+ * Tweets are kept in two generations: a new cycle (see newCycle()) makes the current
+ *  generation the previous one and drops the one before that.
+ * A cycle also ends on its own once it has |maxTweets| tweets or is |maxAgeMs| old,
+ *  so the cache stays bounded when queries are polled on their own schedules.
+ *
+ * Tags are added to tweets that may already be in the store, so TweetData.addQueries()
+ *  replaces the tweet's BitSet instead of changing one that a store may be reading.
+ * Stores that keep the TweetData itself (like FakeTweetStore) see the new tags that way,
+ *  stores that copy tweets out are told with QueryTagStore (see claim()'s |tagged|).
+ * It is safe to use from multiple threads.
+ */
+public class SharedTweetCache {
+   private final int maxTweets;
+   private final long maxAgeMs;
+
+   private Map<String, TweetData> current;
+   private Map<String, TweetData> previous;
+   private long cycleStartMs;
+
+   private final Map<QueryTargetInfo, Integer> indexes;
+   private final List<QueryTargetInfo> queries;
+
+   private final Metrics.Counter sharedDecodes;
+   private final Metrics.Counter sharedTweets;
+
+   /**
+    * Use SHARED_TWEET_CACHE_SIZE (default 100000) and SHARED_TWEET_CACHE_SEC (default 900).
+    */
+   public SharedTweetCache(List<QueryTargetInfo> queries) {
+      this(queries, Props.getInt("SHARED_TWEET_CACHE_SIZE", 100000),
+           Props.getInt("SHARED_TWEET_CACHE_SEC", 900) * 1000L);
+   }
+
+   /**
+    * @param queries The queries to give the first indexes to.
+    *  Other queries get indexes the first time they are seen.
+    * @param maxTweets The most tweets in a single generation.
+    * @param maxAgeMs The longest a single generation lasts.
+    */
+   public SharedTweetCache(List<QueryTargetInfo> queries, int maxTweets, long maxAgeMs) {
+      this.maxTweets = maxTweets;
+      this.maxAgeMs = maxAgeMs;
+
+      current = new HashMap<String, TweetData>();
+      previous = new HashMap<String, TweetData>();
+      cycleStartMs = System.currentTimeMillis();
+
+      indexes = new IdentityHashMap<QueryTargetInfo, Integer>();
+      this.queries = new ArrayList<QueryTargetInfo>();
+      for (QueryTargetInfo info : queries) {
+         getIndex(info);
+      }
+
+      sharedDecodes = Metrics.counter("gather.sharedDecodes");
+      sharedTweets = Metrics.counter("gather.sharedTweets");
+   }
+
+   /**
+    * Start a new cycle.
+    * Tweets from the last cycle are still found, ones from before that are not.
+    */
+   public synchronized void newCycle() {
+      previous = current;
+      current = new HashMap<String, TweetData>();
+      cycleStartMs = System.currentTimeMillis();
+   }
+
+   /**
+    * Look for a tweet that has already been decoded.
+    * Decoders call this as soon as they have an id, so they can skip the rest of the tweet.
+    *
+    * @return The tweet, or null if it has not been seen recently.
+    */
+   public synchronized TweetData get(String twitterId) {
+      TweetData tweet = current.get(twitterId);
+      if (tweet == null) {
+         tweet = previous.get(twitterId);
+      }
+
+      if (tweet != null) {
+         sharedDecodes.inc();
+      }
+
+      return tweet;
+   }
+
+   /**
+    * Tag tweets that were gathered for |info|, and pick out the ones that need to be stored.
+    * A tweet that has not been seen before is added to the cache (and needs to be stored),
+    *  a tweet that has been is only tagged.
+    *
+    * @param toStore Where to put the tweets that need to be stored.
+    * @param tagged Where to put the ids of the tweets that were already stored
+    *  but are new to |info| (for QueryTagStore), or null.
+    *
+    * @return The number of tweets that were already stored but are new to |info|.
+    */
+   public synchronized int claim(QueryTargetInfo info, List<TweetData> tweets,
+                                 List<TweetData> toStore, List<String> tagged) {
+      int index = getIndex(info);
+      int shared = 0;
+
+      if (current.size() >= maxTweets || System.currentTimeMillis() - cycleStartMs > maxAgeMs) {
+         newCycle();
+      }
+
+      for (TweetData tweet : tweets) {
+         TweetData seen = current.get(tweet.twitterId);
+         if (seen == null) {
+            seen = previous.get(tweet.twitterId);
+            if (seen != null) {
+               // Keep it around for this cycle too.
+               current.put(seen.twitterId, seen);
+            }
+         }
+
+         if (seen == null) {
+            current.put(tweet.twitterId, tweet);
+            tag(tweet, index);
+            toStore.add(tweet);
+         } else if (tag(seen, index)) {
+            shared++;
+            if (tagged != null) {
+               tagged.add(seen.twitterId);
+            }
+         }
+      }
+
+      sharedTweets.add(shared);
+      return shared;
+   }
+
+   /**
+    * Get the index that |info| is tagged with.
+    */
+   public synchronized int getIndex(QueryTargetInfo info) {
+      Integer index = indexes.get(info);
+
+      if (index == null) {
+         index = queries.size();
+         indexes.put(info, index);
+         queries.add(info);
+      }
+
+      return index;
+   }
+
+   /**
+    * Get the queries that a tweet has been tagged with.
+    */
+   public synchronized List<QueryTargetInfo> getQueries(TweetData tweet) {
+      List<QueryTargetInfo> rtn = new ArrayList<QueryTargetInfo>();
+
+      BitSet tags = tweet.queries;
+      if (tags != null) {
+         for (int i = tags.nextSetBit(0); i >= 0; i = tags.nextSetBit(i + 1)) {
+            rtn.add(queries.get(i));
+         }
+      }
+
+      return rtn;
+   }
+
+   public synchronized int size() {
+      return current.size() + previous.size();
+   }
+
+   /**
+    * @return True if the tweet did not already have the tag.
+    */
+   private static boolean tag(TweetData tweet, int index) {
+      BitSet tags = new BitSet();
+      tags.set(index);
+
+      return tweet.addQueries(tags);
+   }
+}
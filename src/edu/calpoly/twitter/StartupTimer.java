@@ -0,0 +1,144 @@
+package edu.calpoly.twitter;
+
+import edu.calpoly.twitter.stats.TweetListener;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Times how long a driver takes to start up, phase by phase, and how long it takes until
+ *  the first tweet reaches the store.
+ *
+ * Phases are marked in order with phase(), each one is the time since the last mark
+ *  (or since the timer was made).
+ * Work that happens in the background (like getting the bearer token) is not a phase,
+ *  it is timed on its own (eg. auth.tokenMs).
+ *
+ * As a TweetListener (see AggregatingTweetStore), the timer notices the first tweet by itself.
+ * Time to first tweet is counted from when the JVM started, so it includes everything:
+ *  JVM startup, class loading, and the first request.
+ *
+ * Every phase is a startup.<phase>Ms gauge, and the first tweet is startup.firstTweetMs.
+ */
+public class StartupTimer implements TweetListener {
+   private final long startNanos;
+   private long lastNanos;
+
+   /**
+    * Phase durations in ms, in the order they happened.
+    */
+   private final Map<String, Long> phases;
+
+   private final AtomicBoolean sawTweet;
+
+   /**
+    * Ms from JVM start to the first tweet, or -1 before then.
+    */
+   private volatile long firstTweetMs;
+
+   public StartupTimer() {
+      startNanos = System.nanoTime();
+      lastNanos = startNanos;
+      phases = new LinkedHashMap<String, Long>();
+      sawTweet = new AtomicBoolean(false);
+      firstTweetMs = -1;
+   }
+
+   /**
+    * Mark the end of a phase.
+    */
+   public synchronized void phase(String name) {
+      long now = System.nanoTime();
+      final long ms = (now - lastNanos) / 1000000;
+
+      phases.put(name, ms);
+      lastNanos = now;
+
+      Metrics.gauge("startup." + name + "Ms", new Metrics.Gauge() {
+         public long get() {
+            return ms;
+         }
+      });
+   }
+
+   /**
+    * Get the phases (in ms) in order.
+    */
+   public synchronized Map<String, Long> getPhases() {
+      return new LinkedHashMap<String, Long>(phases);
+   }
+
+   /**
+    * Get how long it has been since the timer was made (in ms).
+    */
+   public long getElapsedMs() {
+      return (System.nanoTime() - startNanos) / 1000000;
+   }
+
+   /**
+    * Get how long after the JVM started the first tweet reached the store (in ms).
+    *
+    * @return The time, or -1 if there has not been a tweet yet.
+    */
+   public long getFirstTweetMs() {
+      return firstTweetMs;
+   }
+
+   /**
+    * Get how long ago the JVM started (in ms).
+    */
+   public static long getSinceJvmStartMs() {
+      return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+   }
+
+   /**
+    * Log the phases so far.
+    */
+   public void report() {
+      Logger.log("Startup: " + this + ".");
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void record(QueryTargetInfo info, List<TweetData> tweets) {
+      if (tweets.isEmpty() || !sawTweet.compareAndSet(false, true)) {
+         return;
+      }
+
+      final long ms = getSinceJvmStartMs();
+      firstTweetMs = ms;
+
+      Metrics.gauge("startup.firstTweetMs", new Metrics.Gauge() {
+         public long get() {
+            return ms;
+         }
+      });
+      Logger.log(String.format("First tweet reached the store %d ms after the JVM started" +
+                               " (%d ms after startup began).", ms, getElapsedMs()));
+   }
+
+   /**
+    * Eg. "props 40 ms, init 12 ms (52 ms, 310 ms since the JVM started)"
+    */
+   public synchronized String toString() {
+      StringBuilder rtn = new StringBuilder();
+
+      for (Map.Entry<String, Long> phase : phases.entrySet()) {
+         if (rtn.length() > 0) {
+            rtn.append(", ");
+         }
+         rtn.append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms");
+      }
+
+      rtn.append(String.format(" (%d ms, %d ms since the JVM started)",
+                               (lastNanos - startNanos) / 1000000, getSinceJvmStartMs()));
+      return rtn.toString();
+   }
+}
@@ -0,0 +1,461 @@
+package edu.calpoly.twitter.bench;
+
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.Snowflake;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Makes a stream of realistic looking tweets for load testing stores and indexes.
+ * The same seed always gives the same tweets, so runs can be compared.
+ *
+ * Tweets arrive at about |tweetsPerSec| (exponential gaps) starting at a fixed time.
+ * Ids are snowflakes for when the tweet was made (see Snowflake), and tweets show up a little
+ *  out of order (up to JITTER_MS), so ids are increasing but not strictly.
+ * Authors, sources, languages, words, and hashtags are all Zipf distributed, and content
+ *  lengths are log-normal (capped at 140 chars).
+ *
+ * |duplicateRatio| of tweets are retweets of a recent tweet (a new id, but nearly the same text).
+ * Every tweet matches one query (mostly the popular ones), and |overlapRatio| of them match
+ *  another one too.
+ * The queries each tweet matched are in TweetData.queries, and the text has the query's keyword
+ *  in it (so QueryPack routing works on it).
+ *
+ * Tweets can also be written out as raw search API pages (see toPage() and writePages()).
+ *
+ * USAGE: java edu.calpoly.twitter.bench.CorpusGenerator <seed> <tweets> <dir> [page size]
+ *  writes the pages for every query into |dir|.
+ */
+public class CorpusGenerator implements Iterator<TweetData> {
+   /**
+    * 2014-04-09T05:49:59Z, about when the gatherer was written.
+    */
+   private static final long DEFAULT_START_MS = 1397022599000L;
+
+   private static final int JITTER_MS = 50;
+   private static final int MAX_LENGTH = 140;
+
+   /**
+    * Retweets are picked from this many of the latest tweets.
+    */
+   private static final int RECENT = 4096;
+
+   private static final int NUM_AUTHORS = 1000000;
+   private static final int NUM_WORDS = 50000;
+   private static final int NUM_HASHTAGS = 5000;
+   private static final int NUM_SOURCES = 200;
+
+   private static final double HASHTAG_RATE = 0.15;
+   private static final double MENTION_RATE = 0.3;
+   private static final double LINK_RATE = 0.2;
+   private static final double GEO_RATE = 0.02;
+
+   /**
+    * The most common languages, most common first.
+    */
+   private static final String[] LANGS = {
+      "en", "ja", "es", "pt", "ar", "und", "in", "ko", "tr", "fr", "th", "ru", "tl", "it",
+      "de", "pl", "nl", "fa", "sv", "zh", "hi", "ur", "el", "uk", "fi", "da", "no", "cs"};
+
+   /**
+    * The most common sources, the rest are made up.
+    */
+   private static final String[][] SOURCES = {
+      {"http://twitter.com/download/iphone", "Twitter for iPhone"},
+      {"http://twitter.com/download/android", "Twitter for Android"},
+      {"http://twitter.com", "Twitter Web Client"},
+      {"https://about.twitter.com/products/tweetdeck", "TweetDeck"},
+      {"http://instagram.com", "Instagram"},
+      {"http://www.facebook.com/twitter", "Facebook"},
+      {"https://ifttt.com", "IFTTT"},
+      {"http://www.hootsuite.com", "Hootsuite"},
+      {"http://twitter.com/#!/download/ipad", "Twitter for iPad"},
+      {"http://blackberry.com/twitter", "Twitter for BlackBerry"}};
+
+   private static final String[] SYLLABLES = {
+      "ka", "lo", "mi", "ne", "ru", "sa", "ti", "po", "be", "da", "fu", "gi", "ha", "jo",
+      "ke", "li", "mo", "nu", "pa", "re", "si", "to", "va", "we", "yo", "za", "ch", "st"};
+
+   private final Random random;
+   private final long count;
+   private final int numQueries;
+   private final double duplicateRatio;
+   private final double overlapRatio;
+   private final double meanGapMs;
+
+   private final Zipf authors;
+   private final Zipf words;
+   private final Zipf hashtags;
+   private final Zipf sources;
+   private final Zipf langs;
+   private final Zipf queries;
+
+   private final TweetData[] recent;
+   private final StringBuilder text;
+
+   private long generated;
+   private double nowMs;
+   private long sequence;
+
+   /**
+    * Use CORPUS_QUERIES (default 10), CORPUS_DUPLICATE_RATIO (default 0.1),
+    *  CORPUS_OVERLAP_RATIO (default 0.2), and CORPUS_TWEETS_PER_SEC (default 6000).
+    */
+   public CorpusGenerator(long seed, long count) {
+      this(seed, count, Props.getInt("CORPUS_QUERIES", 10),
+           Props.getDouble("CORPUS_DUPLICATE_RATIO", 0.1),
+           Props.getDouble("CORPUS_OVERLAP_RATIO", 0.2),
+           Props.getDouble("CORPUS_TWEETS_PER_SEC", 6000));
+   }
+
+   /**
+    * @param count How many tweets to make.
+    * @param numQueries How many queries the tweets are spread over.
+    * @param duplicateRatio The fraction of tweets that are retweets.
+    * @param overlapRatio The fraction of tweets that match a second query.
+    * @param tweetsPerSec How fast tweets are made (in tweet time, not real time).
+    */
+   public CorpusGenerator(long seed, long count, int numQueries, double duplicateRatio,
+                          double overlapRatio, double tweetsPerSec) {
+      random = new Random(seed);
+      this.count = count;
+      this.numQueries = numQueries;
+      this.duplicateRatio = duplicateRatio;
+      this.overlapRatio = overlapRatio;
+      meanGapMs = 1000.0 / tweetsPerSec;
+
+      authors = new Zipf(NUM_AUTHORS, 1.0);
+      words = new Zipf(NUM_WORDS, 1.0);
+      hashtags = new Zipf(NUM_HASHTAGS, 1.1);
+      sources = new Zipf(NUM_SOURCES, 1.4);
+      langs = new Zipf(LANGS.length, 1.2);
+      queries = new Zipf(numQueries, 0.8);
+
+      recent = new TweetData[RECENT];
+      text = new StringBuilder(MAX_LENGTH * 2);
+
+      generated = 0;
+      nowMs = DEFAULT_START_MS;
+      sequence = 0;
+   }
+
+   /**
+    * Get the keyword for a query (by index).
+    */
+   public static String getQuery(int index) {
+      return "query" + index;
+   }
+
+   public List<String> getQueries() {
+      List<String> rtn = new ArrayList<String>();
+      for (int i = 0; i < numQueries; i++) {
+         rtn.add(getQuery(i));
+      }
+
+      return rtn;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public boolean hasNext() {
+      return generated < count;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public TweetData next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+
+      // Exponential gaps make a Poisson stream.
+      nowMs += -Math.log(1.0 - random.nextDouble()) * meanGapMs;
+      long madeMs = (long)nowMs - random.nextInt(JITTER_MS);
+
+      TweetData tweet = new TweetData();
+      tweet.twitterId = "" + (Snowflake.idForTime(madeMs) | (sequence++ & 0x3FFFFF));
+      tweet.published = (int)(madeMs / 1000);
+      tweet.author = getAuthor(authors.next(random));
+      tweet.lang = LANGS[langs.next(random)];
+      tweet.source = getSource(sources.next(random));
+      tweet.place = "";
+      tweet.geo = "";
+
+      if (random.nextDouble() < GEO_RATE) {
+         tweet.geo = String.format(Locale.US, "{\"type\":\"Point\",\"coordinates\":[%.6f,%.6f]}",
+                                   random.nextDouble() * 140 - 60,
+                                   random.nextDouble() * 360 - 180);
+      }
+
+      tweet.queries = new BitSet();
+      tweet.queries.set(queries.next(random));
+      if (numQueries > 1 && random.nextDouble() < overlapRatio) {
+         int other = random.nextInt(numQueries - 1);
+         tweet.queries.set(other >= tweet.queries.nextSetBit(0) ? other + 1 : other);
+      }
+
+      TweetData original = recent[random.nextInt(RECENT)];
+      if (original != null && random.nextDouble() < duplicateRatio) {
+         text.setLength(0);
+         text.append("RT @").append(original.author).append(": ").append(original.content);
+         tweet.queries.or(original.queries);
+      } else {
+         makeText(tweet.queries);
+      }
+      text.setLength(Math.min(text.length(), MAX_LENGTH));
+      tweet.content = text.toString();
+
+      recent[(int)(generated % RECENT)] = tweet;
+      generated++;
+
+      return tweet;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Build the text of an original tweet in |text|.
+    */
+   private void makeText(BitSet matched) {
+      int length = (int)Math.round(Math.exp(4.2 + random.nextGaussian() * 0.6));
+      length = Math.max(5, Math.min(MAX_LENGTH, length));
+
+      text.setLength(0);
+      if (random.nextDouble() < MENTION_RATE) {
+         text.append('@').append(getAuthor(authors.next(random))).append(' ');
+      }
+
+      int keywords = matched.cardinality();
+      int keywordAt = random.nextInt(Math.max(1, length / 8));
+      int word = 0;
+
+      while (text.length() < length || keywords > 0) {
+         if (word >= keywordAt && keywords > 0) {
+            int query = matched.nextSetBit(0);
+            for (int i = 1; i < keywords; i++) {
+               query = matched.nextSetBit(query + 1);
+            }
+            text.append(getQuery(query)).append(' ');
+            keywords--;
+         } else {
+            appendWord(words.next(random));
+            text.append(' ');
+         }
+
+         word++;
+      }
+
+      if (random.nextDouble() < HASHTAG_RATE) {
+         text.append('#');
+         appendWord(hashtags.next(random));
+         text.append(' ');
+      }
+      if (random.nextDouble() < LINK_RATE) {
+         text.append("http://t.co/").append(Long.toString(random.nextLong() & 0xFFFFFFFFFFL, 36));
+      }
+
+      while (text.length() > 0 && text.charAt(text.length() - 1) == ' ') {
+         text.setLength(text.length() - 1);
+      }
+   }
+
+   /**
+    * Words are made of syllables from their rank, so common words are short.
+    */
+   private void appendWord(int rank) {
+      int value = rank;
+
+      do {
+         text.append(SYLLABLES[value % SYLLABLES.length]);
+         value /= SYLLABLES.length;
+      } while (value > 0);
+   }
+
+   private static String getAuthor(int rank) {
+      return "user_" + Integer.toString(rank, 36);
+   }
+
+   private static String getSource(int rank) {
+      if (rank < SOURCES.length) {
+         return "<a href=\"" + SOURCES[rank][0] + "\" rel=\"nofollow\">" +
+                SOURCES[rank][1] + "</a>";
+      }
+
+      return "<a href=\"http://app" + rank + ".example.com\" rel=\"nofollow\">App " + rank + "</a>";
+   }
+
+   /**
+    * Build a search API response for |tweets| (which are put newest first, like Twitter).
+    *
+    * @param nextResults The query string for the next page, or null if this is the last one.
+    */
+   public static String toPage(List<TweetData> tweets, String nextResults) {
+      SimpleDateFormat df = new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy", Locale.US);
+      df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+      StringBuilder json = new StringBuilder(tweets.size() * 400);
+      json.append("{\"statuses\":[");
+
+      for (int i = tweets.size() - 1; i >= 0; i--) {
+         TweetData tweet = tweets.get(i);
+
+         json.append("{\"created_at\":\"").append(df.format(new Date(tweet.published * 1000L)));
+         json.append("\",\"id\":").append(tweet.twitterId);
+         json.append(",\"id_str\":\"").append(tweet.twitterId);
+         json.append("\",\"text\":").append(JSONObject.quote(tweet.content));
+         json.append(",\"source\":").append(JSONObject.quote(tweet.source));
+         json.append(",\"lang\":\"").append(tweet.lang);
+         json.append("\",\"user\":{\"screen_name\":\"").append(tweet.author).append("\"}");
+         json.append(",\"geo\":").append(tweet.geo.isEmpty() ? "null" : tweet.geo);
+         json.append(",\"place\":null}");
+
+         if (i != 0) {
+            json.append(',');
+         }
+      }
+
+      json.append("],\"search_metadata\":{\"count\":").append(tweets.size());
+      if (nextResults != null) {
+         json.append(",\"next_results\":").append(JSONObject.quote(nextResults));
+      }
+      json.append("}}");
+
+      return json.toString();
+   }
+
+   /**
+    * Write the rest of the tweets out as pages, |pageSize| tweets each.
+    * Each query gets its own chain: <query>-<n>.json, linked by next_results.
+    *
+    * @return The number of pages written.
+    */
+   public int writePages(File dir, int pageSize) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Unable to make " + dir + ".");
+      }
+
+      List<List<TweetData>> pending = new ArrayList<List<TweetData>>();
+      int[] pageCounts = new int[numQueries];
+      for (int i = 0; i < numQueries; i++) {
+         pending.add(new ArrayList<TweetData>());
+      }
+
+      int pages = 0;
+      while (hasNext()) {
+         TweetData tweet = next();
+
+         for (int i = tweet.queries.nextSetBit(0); i >= 0; i = tweet.queries.nextSetBit(i + 1)) {
+            List<TweetData> page = pending.get(i);
+            page.add(tweet);
+
+            if (page.size() == pageSize) {
+               writePage(dir, i, pageCounts[i]++, page, true);
+               page.clear();
+               pages++;
+            }
+         }
+      }
+
+      for (int i = 0; i < numQueries; i++) {
+         if (!pending.get(i).isEmpty()) {
+            writePage(dir, i, pageCounts[i]++, pending.get(i), false);
+            pages++;
+         }
+      }
+
+      return pages;
+   }
+
+   private static void writePage(File dir, int query, int number, List<TweetData> tweets,
+                                 boolean hasNext) throws IOException {
+      String nextResults = null;
+      if (hasNext) {
+         long minId = Long.MAX_VALUE;
+         for (TweetData tweet : tweets) {
+            minId = Math.min(minId, Long.parseLong(tweet.twitterId));
+         }
+
+         nextResults = "?max_id=" + (minId - 1) +
+                       "&q=" + getQuery(query) + "&count=" + tweets.size();
+      }
+
+      Files.write(new File(dir, getQuery(query) + "-" + number + ".json").toPath(),
+                  toPage(tweets, nextResults).getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * Picks ranks (starting at 0) from a Zipf distribution.
+    */
+   private static class Zipf {
+      private final double[] cdf;
+
+      public Zipf(int size, double exponent) {
+         cdf = new double[size];
+
+         double total = 0;
+         for (int i = 0; i < size; i++) {
+            total += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = total;
+         }
+
+         for (int i = 0; i < size; i++) {
+            cdf[i] /= total;
+         }
+      }
+
+      public int next(Random random) {
+         double target = random.nextDouble();
+         int low = 0;
+         int high = cdf.length - 1;
+
+         while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cdf[mid] < target) {
+               low = mid + 1;
+            } else {
+               high = mid;
+            }
+         }
+
+         return low;
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 3) {
+         System.out.println("USAGE: java edu.calpoly.twitter.bench.CorpusGenerator" +
+                            " <seed> <tweets> <dir> [page size]");
+         return;
+      }
+
+      CorpusGenerator generator =
+            new CorpusGenerator(Long.parseLong(args[0]), Long.parseLong(args[1]));
+      int pages = generator.writePages(new File(args[2]),
+                                       args.length > 3 ? Integer.parseInt(args[3]) : 100);
+
+      System.out.println("Wrote " + pages + " pages to " + args[2] + ".");
+   }
+}
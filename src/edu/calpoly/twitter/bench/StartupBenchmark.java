@@ -0,0 +1,186 @@
+package edu.calpoly.twitter.bench;
+
+import edu.calpoly.twitter.JSONTwitterGatherer;
+import edu.calpoly.twitter.StartupTimer;
+import edu.calpoly.twitter.stats.AggregatingTweetStore;
+import edu.calpoly.twitter.store.FakeTweetStore;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.TwitterAuth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measure time to first tweet for a fresh JVM, with the old serial startup and with
+ *  the asynchronous one.
+ * The gatherer talks to a local StubSearchServer for both the token and the search,
+ *  and every response is held for |latency ms|.
+ *
+ * Serial reads the properties files one after the other, looks up the hostname,
+ *  and gets the bearer token, all before making the gatherer.
+ * Async reads the files in parallel, leaves the hostname to the background, and starts
+ *  the token request before anything else so it overlaps the rest of startup.
+ *
+ * USAGE: java edu.calpoly.twitter.bench.StartupBenchmark [serial|async|both] [runs] [latency ms]
+ * Defaults: both 5 200
+ *
+ * Every run is its own JVM (with the same java and classpath), since startup only happens once.
+ * Times are from JVM start, and the median of the runs is reported.
+ */
+public class StartupBenchmark {
+   private static final String RESULT = "RESULT";
+
+   public static void main(String[] args) throws Exception {
+      String mode = args.length > 0 ? args[0] : "both";
+      int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      long latencyMs = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+      // Called by the parent, once per run.
+      if (mode.equals("run")) {
+         run(args[3], args[4], args[5]);
+         return;
+      }
+
+      StubSearchServer server = new StubSearchServer(20, 1, latencyMs);
+      server.start();
+
+      try {
+         for (String runMode : mode.equals("both") ? Arrays.asList("serial", "async") :
+                                                     Arrays.asList(mode)) {
+            List<Long> firstTweet = new ArrayList<Long>();
+            List<Long> main = new ArrayList<Long>();
+
+            for (int i = 0; i < runs; i++) {
+               long[] result = fork(runMode, server);
+               firstTweet.add(result[0]);
+               main.add(result[1]);
+            }
+
+            System.out.println(String.format(
+                  "%s: time to first tweet %d ms (median of %d, %d ms of it after main())",
+                  runMode, median(firstTweet), runs, median(main)));
+         }
+      } finally {
+         server.stop();
+      }
+
+      System.out.println(String.format("   Latency: %d ms per request (java %s)",
+                                       latencyMs, System.getProperty("java.version")));
+   }
+
+   /**
+    * Start up one way, gather one page, and print the times.
+    */
+   private static void run(String mode, String tokenUrl, String searchUrl) throws Exception {
+      StartupTimer startup = new StartupTimer();
+      boolean async = mode.equals("async");
+
+      if (async) {
+         Props.readFiles("config/base.properties", "config/secrets.properties");
+      } else {
+         Props.readFile("config/base.properties");
+         Props.readFile("config/secrets.properties");
+      }
+      configure(tokenUrl, searchUrl);
+      startup.phase("props");
+
+      if (async) {
+         TwitterAuth.getBearerTokenAsync("key", "secret");
+      }
+
+      if (!async) {
+         // What Logger.init() used to do.
+         InetAddress.getLocalHost().getHostName();
+      }
+      Logger.init();
+      startup.phase("init");
+
+      FakeTweetStore store = new FakeTweetStore();
+      AggregatingTweetStore target = new AggregatingTweetStore(store, startup);
+      List<String> queries = Collections.singletonList("startup");
+      JSONTwitterGatherer gatherer;
+
+      if (async) {
+         gatherer = new JSONTwitterGatherer(target, new ArrayList<String>(queries),
+                                            TwitterAuth.getBearerTokenAsync("key", "secret"));
+      } else {
+         gatherer = new JSONTwitterGatherer(target, new ArrayList<String>(queries),
+                                            TwitterAuth.getBearerToken("key", "secret"));
+      }
+      startup.phase("gatherer");
+
+      gatherer.update();
+      gatherer.close();
+
+      System.out.println(RESULT + " " + startup.getFirstTweetMs() + " " +
+                         startup.getElapsedMs() + " " + startup);
+      Logger.tearDown();
+   }
+
+   /**
+    * Point everything at the stub, and keep the logs out of the way.
+    */
+   private static void configure(String tokenUrl, String searchUrl) throws Exception {
+      File log = File.createTempFile("bird-catcher-bench", ".log");
+      log.deleteOnExit();
+      for (String key : new String[]{"INFO_LOG", "WARN_LOG", "DEBUG_LOG", "ERROR_LOG"}) {
+         Props.setString(key, log.getPath());
+      }
+
+      Props.setString("TWITTER_TOKEN_URL", tokenUrl);
+      Props.setString("TWITTER_SEARCH_URL", searchUrl);
+      Props.setString("PAGE_DELAY_MS", "0");
+   }
+
+   /**
+    * Run a single startup in a new JVM.
+    *
+    * @return The time to first tweet (from JVM start) and the time after main() started.
+    */
+   private static long[] fork(String mode, StubSearchServer server) throws Exception {
+      String java = System.getProperty("java.home") + File.separator + "bin" +
+                    File.separator + "java";
+
+      ProcessBuilder builder = new ProcessBuilder(
+            java, "-cp", System.getProperty("java.class.path"),
+            StartupBenchmark.class.getName(), "run", "0", "0",
+            mode, server.getTokenUrl(), server.getSearchUrl());
+      builder.redirectErrorStream(true);
+
+      Process process = builder.start();
+      BufferedReader reader =
+            new BufferedReader(new InputStreamReader(process.getInputStream()));
+      long[] rtn = null;
+
+      String line;
+      while ((line = reader.readLine()) != null) {
+         if (line.startsWith(RESULT)) {
+            String[] parts = line.split(" ", 4);
+            rtn = new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+            System.out.println("   " + mode + ": " + parts[3]);
+         } else {
+            System.out.println(line);
+         }
+      }
+
+      process.waitFor();
+      if (rtn == null) {
+         throw new IllegalStateException("A " + mode + " run did not finish.");
+      }
+
+      return rtn;
+   }
+
+   private static long median(List<Long> values) {
+      List<Long> sorted = new ArrayList<Long>(values);
+      Collections.sort(sorted);
+      return sorted.get(sorted.size() / 2);
+   }
+}
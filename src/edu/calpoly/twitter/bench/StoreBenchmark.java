@@ -0,0 +1,181 @@
+package edu.calpoly.twitter.bench;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.store.FakeTweetStore;
+import edu.calpoly.twitter.store.OffHeapTweetStore;
+import edu.calpoly.twitter.store.PartitionedTweetStore;
+import edu.calpoly.twitter.store.SpillingTweetStore;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.store.TweetStore;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Props;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load a store with a synthetic corpus (see CorpusGenerator) and see how fast it goes
+ *  and how much memory it takes.
+ *
+ * Tweets are batched up by query (like the gatherer does for each page) and a tweet that
+ *  matches more than one query is inserted once for each, so stores see duplicates.
+ * Progress is printed every REPORT_EVERY tweets, and there is a summary at the end.
+ *
+ * USAGE: java edu.calpoly.twitter.bench.StoreBenchmark
+ *          <fake|offheap|spilling|partitioned|none|store class> [tweets] [batch size] [seed]
+ * Defaults: offheap 10000000 100 1
+ *
+ * "none" just generates the corpus, so its time can be taken out of the others.
+ * Any other store needs a no-argument constructor.
+ * Give the JVM enough heap for the store (fake keeps everything on the heap);
+ *  the generator itself only needs a few MB.
+ */
+public class StoreBenchmark {
+   private static final long REPORT_EVERY = 1000000;
+
+   public static void main(String[] args) throws Exception {
+      String storeName = args.length > 0 ? args[0] : "offheap";
+      long numTweets = args.length > 1 ? Long.parseLong(args[1]) : 10000000;
+      int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+      long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+      File log = File.createTempFile("bird-catcher-bench", ".log");
+      log.deleteOnExit();
+      for (String key : new String[]{"INFO_LOG", "WARN_LOG", "DEBUG_LOG", "ERROR_LOG"}) {
+         Props.setString(key, log.getPath());
+      }
+      Logger.init();
+
+      try {
+         run(storeName, numTweets, batchSize, seed);
+      } finally {
+         Logger.tearDown();
+      }
+   }
+
+   private static void run(String storeName, long numTweets, int batchSize, long seed)
+         throws Exception {
+      TweetStore store = makeStore(storeName);
+      CorpusGenerator corpus = new CorpusGenerator(seed, numTweets);
+
+      List<QueryTargetInfo> queries = new ArrayList<QueryTargetInfo>();
+      List<List<TweetData>> batches = new ArrayList<List<TweetData>>();
+      for (String query : corpus.getQueries()) {
+         queries.add(new QueryTargetInfo(query));
+         batches.add(new ArrayList<TweetData>(batchSize));
+      }
+
+      System.gc();
+      long baseRss = VirtualThreadBenchmark.getRss();
+      long baseHeap = getHeapUsed();
+
+      long generated = 0;
+      long offered = 0;
+      long inserted = 0;
+      long start = System.nanoTime();
+      long lastReport = start;
+
+      while (corpus.hasNext()) {
+         TweetData tweet = corpus.next();
+         generated++;
+
+         for (int i = tweet.queries.nextSetBit(0); i >= 0; i = tweet.queries.nextSetBit(i + 1)) {
+            List<TweetData> batch = batches.get(i);
+            batch.add(tweet);
+
+            if (batch.size() == batchSize) {
+               offered += batch.size();
+               inserted += insert(store, queries.get(i), batch);
+               batches.set(i, new ArrayList<TweetData>(batchSize));
+            }
+         }
+
+         if (generated % REPORT_EVERY == 0) {
+            long now = System.nanoTime();
+            System.out.println(String.format("   %,d tweets: %.0f / s, heap %.1f MB",
+                                             generated, REPORT_EVERY / ((now - lastReport) / 1e9),
+                                             getHeapUsed() / 1048576.0));
+            lastReport = now;
+         }
+      }
+
+      for (int i = 0; i < batches.size(); i++) {
+         if (!batches.get(i).isEmpty()) {
+            offered += batches.get(i).size();
+            inserted += insert(store, queries.get(i), batches.get(i));
+         }
+      }
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      System.gc();
+      long heap = getHeapUsed();
+      long rss = VirtualThreadBenchmark.getRss();
+
+      System.out.println(String.format("Store: %s (java %s)", storeName,
+                                       System.getProperty("java.version")));
+      System.out.println(String.format("   Tweets: %,d, Queries: %d, Batch size: %d, Seed: %d",
+                                       generated, queries.size(), batchSize, seed));
+      System.out.println(String.format("   Elapsed: %.2f s (%.0f tweets / s)",
+                                       seconds, generated / seconds));
+      System.out.println(String.format("   Offered: %,d, Inserted: %,d", offered, inserted));
+      System.out.println(String.format("   Heap after GC: %.1f MB (+%.1f MB, %.1f bytes / tweet)",
+                                       heap / 1048576.0, (heap - baseHeap) / 1048576.0,
+                                       (heap - baseHeap) / (double)Math.max(1, inserted)));
+      if (rss > 0) {
+         System.out.println(String.format("   RSS: %.1f MB (+%.1f MB over baseline)",
+                                          rss / 1048576.0, (rss - baseRss) / 1048576.0));
+      }
+      if (store instanceof OffHeapTweetStore) {
+         System.out.println(String.format("   Off-heap: %.1f MB",
+               ((OffHeapTweetStore)store).getOffHeapBytes() / 1048576.0));
+      } else if (store instanceof SpillingTweetStore) {
+         SpillingTweetStore spilling = (SpillingTweetStore)store;
+         System.out.println(String.format("   Memory: %,d tweets, Disk: %,d tweets (%.1f MB)",
+                                          spilling.getMemoryTweets(), spilling.getDiskTweets(),
+                                          spilling.getDiskBytes() / 1048576.0));
+      } else if (store instanceof PartitionedTweetStore) {
+         System.out.println(String.format("   Partitions: %d",
+               ((PartitionedTweetStore)store).getPartitions().size()));
+      }
+
+      if (store instanceof SpillingTweetStore) {
+         ((SpillingTweetStore)store).close();
+      } else if (store instanceof Closeable) {
+         ((Closeable)store).close();
+      }
+   }
+
+   /**
+    * @return The number of tweets the store inserted, or all of them if there is no store.
+    */
+   private static int insert(TweetStore store, QueryTargetInfo info, List<TweetData> batch) {
+      return store == null ? batch.size() : store.insertTweets(info, batch);
+   }
+
+   /**
+    * @return The store to load, or null for "none".
+    */
+   private static TweetStore makeStore(String name) throws Exception {
+      if (name.equals("none")) {
+         return null;
+      } else if (name.equals("fake")) {
+         return new FakeTweetStore();
+      } else if (name.equals("offheap")) {
+         return new OffHeapTweetStore();
+      } else if (name.equals("spilling")) {
+         return new SpillingTweetStore();
+      } else if (name.equals("partitioned")) {
+         return new PartitionedTweetStore();
+      }
+
+      return (TweetStore)Class.forName(name).getConstructor().newInstance();
+   }
+
+   private static long getHeapUsed() {
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
@@ -0,0 +1,273 @@
+package edu.calpoly.twitter.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for Twitter's search endpoint.
+ * Point a gatherer at it with the TWITTER_SEARCH_URL property (see getSearchUrl()).
+ *
+ * Every response has |tweetsPerPage| brand new tweets.
+ * Each page chain is |pagesPerChain| pages long (linked with next_results).
+ * Network latency is simulated by holding each response for |latencyMs|.
+ * The held responses don't tie up server threads, so the server itself stays small
+ *  no matter how many requests are in flight.
+ *
+ * It also hands out bearer tokens (with the same latency) for TWITTER_TOKEN_URL
+ *  (see getTokenUrl()).
+ *
+ * To simulate an API brownout, a fraction of requests can be answered with errors instead
+ *  (see setFaultRate()).
+ */
+public class StubSearchServer {
+   public static final String SEARCH_PATH = "/1.1/search/tweets.json";
+   public static final String TOKEN_PATH = "/oauth2/token";
+
+   private static final String TIME_FORMAT = "EEE MMM dd HH:mm:ss Z yyyy";
+
+   /**
+    * The first id handed out.
+    * About where real tweet ids were in 2014.
+    */
+   private static final long FIRST_ID = 450000000000000000L;
+
+   private final int tweetsPerPage;
+   private final int pagesPerChain;
+   private final long latencyMs;
+
+   private final AtomicLong nextId;
+   private final AtomicLong requests;
+   private final AtomicLong faults;
+   private final Random random;
+
+   private volatile double faultRate;
+
+   private HttpServer server;
+   private ExecutorService dispatcher;
+   private ScheduledExecutorService responder;
+
+   public StubSearchServer(int tweetsPerPage, int pagesPerChain, long latencyMs) {
+      this.tweetsPerPage = tweetsPerPage;
+      this.pagesPerChain = pagesPerChain;
+      this.latencyMs = latencyMs;
+
+      nextId = new AtomicLong(FIRST_ID);
+      requests = new AtomicLong(0);
+      faults = new AtomicLong(0);
+      random = new Random();
+      faultRate = 0;
+   }
+
+   /**
+    * Answer |rate| (0 to 1) of requests with an error instead of a page.
+    * Faults alternate between a 503 and a 429 (with a one second Retry-After).
+    */
+   public void setFaultRate(double rate) {
+      faultRate = rate;
+   }
+
+   /**
+    * Get the number of requests that were answered with an error.
+    */
+   public long getFaultCount() {
+      return faults.get();
+   }
+
+   /**
+    * Start listening on an ephemeral port on the loopback interface.
+    */
+   public void start() throws IOException {
+      dispatcher = Executors.newFixedThreadPool(4);
+      responder = Executors.newScheduledThreadPool(4);
+
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+      server.createContext(SEARCH_PATH, new SearchHandler());
+      server.createContext(TOKEN_PATH, new TokenHandler());
+      server.setExecutor(dispatcher);
+      server.start();
+   }
+
+   public void stop() {
+      server.stop(0);
+      responder.shutdownNow();
+      dispatcher.shutdownNow();
+   }
+
+   /**
+    * Get the URL to use for TWITTER_SEARCH_URL.
+    */
+   public String getSearchUrl() {
+      return "http://127.0.0.1:" + server.getAddress().getPort() + SEARCH_PATH;
+   }
+
+   /**
+    * Get the URL to use for TWITTER_TOKEN_URL.
+    */
+   public String getTokenUrl() {
+      return "http://127.0.0.1:" + server.getAddress().getPort() + TOKEN_PATH;
+   }
+
+   /**
+    * Get the number of requests that have been answered.
+    */
+   public long getRequestCount() {
+      return requests.get();
+   }
+
+   /**
+    * Build a full search response.
+    *
+    * @param query The raw (still encoded) query.
+    * @param page The page in the chain that is being asked for (starting at 0).
+    */
+   private byte[] buildPage(String query, int page) {
+      SimpleDateFormat df = new SimpleDateFormat(TIME_FORMAT, Locale.US);
+      String createdAt = df.format(new Date());
+      long firstId = nextId.getAndAdd(tweetsPerPage);
+
+      StringBuilder json = new StringBuilder(tweetsPerPage * 200);
+      String text;
+      try {
+         text = URLDecoder.decode(query, "UTF-8").replace("\\", "").replace("\"", "");
+      } catch (Exception ex) {
+         text = "";
+      }
+
+      json.append("{\"statuses\":[");
+
+      // Newest first, like Twitter.
+      for (int i = tweetsPerPage - 1; i >= 0; i--) {
+         long id = firstId + i;
+
+         json.append("{\"id_str\":\"").append(id).append('"');
+         json.append(",\"created_at\":\"").append(createdAt).append('"');
+         json.append(",\"text\":\"Stub tweet ").append(id).append(" about ")
+             .append(text).append('"');
+         json.append(",\"source\":\"stub\",\"lang\":\"en\"");
+         json.append(",\"user\":{\"screen_name\":\"stub").append(id % 1000).append("\"}");
+         json.append(",\"place\":null,\"geo\":null}");
+
+         if (i != 0) {
+            json.append(',');
+         }
+      }
+
+      json.append("],\"search_metadata\":{\"count\":").append(tweetsPerPage);
+      if (page + 1 < pagesPerChain) {
+         json.append(",\"next_results\":\"?max_id=").append(firstId - 1)
+             .append("&q=").append(query).append("&count=").append(tweetsPerPage)
+             .append("&stub_page=").append(page + 1).append('"');
+      }
+      json.append("}}");
+
+      return json.toString().getBytes(StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Pull a single parameter out of a raw query string.
+    *
+    * @return The raw value, or |defaultValue| if it is not there.
+    */
+   private static String getParam(String rawQuery, String name, String defaultValue) {
+      if (rawQuery == null) {
+         return defaultValue;
+      }
+
+      for (String param : rawQuery.split("&")) {
+         int split = param.indexOf('=');
+         if (split != -1 && param.substring(0, split).equals(name)) {
+            return param.substring(split + 1);
+         }
+      }
+
+      return defaultValue;
+   }
+
+   private class SearchHandler implements HttpHandler {
+      /**
+       * @inheritDoc
+       */
+      public void handle(final HttpExchange exchange) {
+         String rawQuery = exchange.getRequestURI().getRawQuery();
+         final int status;
+         final byte[] body;
+
+         boolean fault;
+         synchronized (random) {
+            fault = random.nextDouble() < faultRate;
+         }
+
+         if (fault) {
+            status = (faults.incrementAndGet() % 2 == 0) ? 429 : 503;
+            body = "{\"errors\":[{\"message\":\"Stub fault\"}]}".getBytes(StandardCharsets.UTF_8);
+            if (status == 429) {
+               exchange.getResponseHeaders().set("Retry-After", "1");
+            }
+         } else {
+            status = 200;
+            body = buildPage(getParam(rawQuery, "q", ""),
+                             Integer.parseInt(getParam(rawQuery, "stub_page", "0")));
+         }
+
+         respond(exchange, status, body);
+      }
+   }
+
+   /**
+    * Every token request gets the same token.
+    */
+   private class TokenHandler implements HttpHandler {
+      /**
+       * @inheritDoc
+       */
+      public void handle(HttpExchange exchange) {
+         respond(exchange, 200, "{\"token_type\":\"bearer\",\"access_token\":\"stub-token\"}"
+               .getBytes(StandardCharsets.UTF_8));
+      }
+   }
+
+   /**
+    * Send a JSON response after the simulated latency.
+    */
+   private void respond(final HttpExchange exchange, final int status, final byte[] body) {
+      Runnable respond = new Runnable() {
+         public void run() {
+            try {
+               exchange.getResponseHeaders().set("Content-Type", "application/json");
+               exchange.sendResponseHeaders(status, body.length);
+
+               OutputStream out = exchange.getResponseBody();
+               out.write(body);
+               out.close();
+            } catch (IOException ex) {
+               // The client went away, nothing to do.
+            } finally {
+               requests.incrementAndGet();
+               exchange.close();
+            }
+         }
+      };
+
+      if (latencyMs > 0) {
+         responder.schedule(respond, latencyMs, TimeUnit.MILLISECONDS);
+      } else {
+         respond.run();
+      }
+   }
+}
@@ -0,0 +1,232 @@
+package edu.calpoly.twitter.bench;
+
+import edu.calpoly.twitter.JSONTwitterGatherer;
+import edu.calpoly.twitter.store.FakeTweetStore;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.RateLimiter;
+import edu.calpoly.twitter.util.TaskExecutors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the platform thread and virtual thread execution modes (see TaskExecutors).
+ * Every query is updated as its own task against a local StubSearchServer, so all the
+ *  queries are blocked on I/O (or the pacing sleep) at the same time.
+ *
+ * USAGE: java edu.calpoly.twitter.bench.VirtualThreadBenchmark
+ *          [threads|virtual|both] [queries] [latency ms] [pages per chain]
+ * Defaults: both 1000 100 3
+ *
+ * "both" runs each mode in its own JVM (with the same java and classpath) so that
+ *  the memory numbers don't bleed into each other.
+ * Virtual mode needs to be run on a JDK with virtual threads (21+).
+ *
+ * Reported memory is the resident set size (from /proc, so Linux only) since thread stacks
+ *  are not part of the heap.
+ */
+public class VirtualThreadBenchmark {
+   private static final int TWEETS_PER_PAGE = 20;
+   private static final long SAMPLE_MS = 10;
+
+   public static void main(String[] args) throws Exception {
+      String mode = args.length > 0 ? args[0] : "both";
+      int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+      long latencyMs = args.length > 2 ? Long.parseLong(args[2]) : 100;
+      int pages = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+      if (mode.equals("both")) {
+         fork("threads", numQueries, latencyMs, pages);
+         fork("virtual", numQueries, latencyMs, pages);
+         return;
+      }
+
+      run(mode, numQueries, latencyMs, pages);
+   }
+
+   private static void run(String mode, int numQueries, long latencyMs, int pages)
+         throws Exception {
+      File log = File.createTempFile("bird-catcher-bench", ".log");
+      log.deleteOnExit();
+      for (String key : new String[]{"INFO_LOG", "WARN_LOG", "DEBUG_LOG", "ERROR_LOG"}) {
+         Props.setString(key, log.getPath());
+      }
+      Logger.init();
+
+      ExecutorService executor;
+      if (mode.equals("virtual")) {
+         executor = TaskExecutors.newVirtualExecutor("bench");
+         if (executor == null) {
+            System.out.println("Virtual threads are not available in this JVM (" +
+                               System.getProperty("java.version") + ").");
+            Logger.tearDown();
+            return;
+         }
+      } else {
+         executor = TaskExecutors.newPlatformExecutor("bench", 0);
+      }
+
+      StubSearchServer server = new StubSearchServer(TWEETS_PER_PAGE, pages, latencyMs);
+      server.start();
+
+      Props.setString("TWITTER_SEARCH_URL", server.getSearchUrl());
+      Props.setString("PAGE_DELAY_MS", "" + latencyMs);
+
+      List<String> queries = new ArrayList<String>();
+      for (int i = 0; i < numQueries; i++) {
+         queries.add("query" + i);
+      }
+
+      FakeTweetStore store = new FakeTweetStore();
+      JSONTwitterGatherer gatherer = new JSONTwitterGatherer(store, queries, "stub-token");
+      gatherer.setRateLimiter(new RateLimiter(numQueries * pages * 2, 1000));
+
+      System.gc();
+      long baseRss = getRss();
+
+      Sampler sampler = new Sampler();
+      sampler.start();
+
+      long start = System.nanoTime();
+      gatherer.update(executor);
+      long elapsedNanos = System.nanoTime() - start;
+
+      sampler.finish();
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      server.stop();
+
+      double seconds = elapsedNanos / 1e9;
+      Runtime runtime = Runtime.getRuntime();
+
+      System.out.println(String.format("Mode: %s (java %s)", mode,
+                                       System.getProperty("java.version")));
+      System.out.println(String.format("   Queries: %d, Pages per chain: %d, Latency: %d ms",
+                                       numQueries, pages, latencyMs));
+      System.out.println(String.format("   Elapsed: %.2f s", seconds));
+      System.out.println(String.format("   Requests: %d (%.1f / s)",
+                                       server.getRequestCount(),
+                                       server.getRequestCount() / seconds));
+      System.out.println(String.format("   Tweets stored: %d (%.1f / s)",
+                                       store.size(), store.size() / seconds));
+      System.out.println(String.format("   Peak platform threads: %d", sampler.peakThreads));
+      if (baseRss > 0) {
+         System.out.println(String.format("   Peak RSS: %.1f MB (+%.1f MB over baseline)",
+                                          sampler.peakRss / 1048576.0,
+                                          (sampler.peakRss - baseRss) / 1048576.0));
+      }
+      System.out.println(String.format("   Heap used at end: %.1f MB",
+                                       (runtime.totalMemory() - runtime.freeMemory()) /
+                                       1048576.0));
+
+      Logger.tearDown();
+   }
+
+   /**
+    * Run a single mode in a new JVM and echo its output.
+    */
+   private static void fork(String mode, int numQueries, long latencyMs, int pages)
+         throws Exception {
+      String java = System.getProperty("java.home") + File.separator + "bin" +
+                    File.separator + "java";
+
+      ProcessBuilder builder = new ProcessBuilder(
+            java, "-cp", System.getProperty("java.class.path"),
+            VirtualThreadBenchmark.class.getName(),
+            mode, "" + numQueries, "" + latencyMs, "" + pages);
+      builder.redirectErrorStream(true);
+
+      Process process = builder.start();
+      BufferedReader reader =
+            new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+      String line;
+      while ((line = reader.readLine()) != null) {
+         System.out.println(line);
+      }
+
+      process.waitFor();
+   }
+
+   /**
+    * Get the resident set size of this process.
+    *
+    * @return The RSS in bytes, or -1 if it is not available.
+    */
+   static long getRss() {
+      BufferedReader reader = null;
+
+      try {
+         reader = new BufferedReader(new FileReader("/proc/self/status"));
+
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.startsWith("VmRSS:")) {
+               String[] parts = line.trim().split("\\s+");
+               return Long.parseLong(parts[1]) * 1024;
+            }
+         }
+      } catch (Exception ex) {
+         // Not on Linux.
+      } finally {
+         if (reader != null) {
+            try {
+               reader.close();
+            } catch (Exception ex) {
+            }
+         }
+      }
+
+      return -1;
+   }
+
+   /**
+    * Keeps track of the peak thread count and RSS while the benchmark runs.
+    */
+   private static class Sampler extends Thread {
+      public volatile int peakThreads;
+      public volatile long peakRss;
+
+      private volatile boolean done;
+
+      public Sampler() {
+         super("bench-sampler");
+         setDaemon(true);
+         peakThreads = 0;
+         peakRss = 0;
+         done = false;
+      }
+
+      public void finish() throws InterruptedException {
+         done = true;
+         join();
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public void run() {
+         ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+         while (!done) {
+            peakThreads = Math.max(peakThreads, threads.getThreadCount());
+            peakRss = Math.max(peakRss, getRss());
+
+            try {
+               sleep(SAMPLE_MS);
+            } catch (InterruptedException ex) {
+               return;
+            }
+         }
+      }
+   }
+}
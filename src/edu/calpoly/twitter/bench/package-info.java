@@ -0,0 +1,5 @@
+/**
+ * Benchmarks, load generators, and stubs.
+ * None of this is needed to gather tweets.
+ */
+package edu.calpoly.twitter.bench;
@@ -0,0 +1,155 @@
+package edu.calpoly.twitter.dedup;
+
+import edu.calpoly.twitter.stats.Tokenizer;
+
+/**
+ * Makes MinHash signatures of tweet text.
+ * The chance that two signatures agree at any position is the Jaccard similarity of
+ *  the two texts' shingles, so the fraction of positions that agree estimates it.
+ *
+ * The text is normalized by the shared Tokenizer (case, links, and stop words do not matter),
+ *  and a leading "RT @name:" is skipped.
+ * Shingles are pairs of neighboring terms (or the single term for one word texts).
+ *
+ * Not safe for use from multiple threads (the shingle buffer is reused).
+ */
+public class MinHasher implements Tokenizer.TokenSink {
+   private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+
+   private final Tokenizer tokenizer;
+   private final int size;
+
+   /**
+    * A different seed for each position in the signature.
+    */
+   private final long[] seeds;
+
+   private long[] shingles;
+   private int numShingles;
+   private long lastTerm;
+   private int numTerms;
+
+   /**
+    * @param size The number of hashes in each signature.
+    */
+   public MinHasher(Tokenizer tokenizer, int size) {
+      this.tokenizer = tokenizer;
+      this.size = size;
+
+      seeds = new long[size];
+      for (int i = 0; i < size; i++) {
+         seeds[i] = mix((i + 1) * GOLDEN);
+      }
+
+      shingles = new long[64];
+   }
+
+   public int getSize() {
+      return size;
+   }
+
+   /**
+    * Get the number of shingles that were in the last text that was signed.
+    */
+   public int getNumShingles() {
+      return numShingles;
+   }
+
+   /**
+    * Sign |text| into |signature| (which must be getSize() long).
+    *
+    * @return The number of shingles in the text.
+    *  If it is zero, there were no terms and the signature is meaningless.
+    */
+   public int sign(String text, int[] signature) {
+      numShingles = 0;
+      numTerms = 0;
+      lastTerm = 0;
+
+      tokenizer.tokenize(skipRetweetPrefix(text), this);
+      if (numTerms == 1) {
+         addShingle(lastTerm);
+      }
+
+      for (int i = 0; i < size; i++) {
+         int min = Integer.MAX_VALUE;
+
+         for (int j = 0; j < numShingles; j++) {
+            int value = (int)mix(shingles[j] ^ seeds[i]);
+            if (value < min) {
+               min = value;
+            }
+         }
+
+         signature[i] = min;
+      }
+
+      return numShingles;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void token(CharSequence text, int start, int end, long hash) {
+      if (numTerms > 0) {
+         addShingle(lastTerm * 31 + hash);
+      }
+
+      lastTerm = hash;
+      numTerms++;
+   }
+
+   /**
+    * Get the fraction of positions where two signatures agree.
+    */
+   public static double similarity(int[] a, int[] b) {
+      int same = 0;
+
+      for (int i = 0; i < a.length; i++) {
+         if (a[i] == b[i]) {
+            same++;
+         }
+      }
+
+      return (double)same / a.length;
+   }
+
+   private void addShingle(long shingle) {
+      if (numShingles == shingles.length) {
+         long[] bigger = new long[shingles.length * 2];
+         System.arraycopy(shingles, 0, bigger, 0, numShingles);
+         shingles = bigger;
+      }
+
+      shingles[numShingles++] = shingle;
+   }
+
+   /**
+    * Old style retweets are "RT @name: " and then the original text.
+    */
+   private static CharSequence skipRetweetPrefix(String text) {
+      if (!text.startsWith("RT @")) {
+         return text;
+      }
+
+      int colon = text.indexOf(": ");
+      if (colon == -1) {
+         return text;
+      }
+
+      return text.substring(colon + 2);
+   }
+
+   /**
+    * The 64 bit finalizer from MurmurHash3.
+    */
+   static long mix(long key) {
+      key ^= key >>> 33;
+      key *= 0xff51afd7ed558ccdL;
+      key ^= key >>> 33;
+      key *= 0xc4ceb9fe1a85ec53L;
+      key ^= key >>> 33;
+
+      return key;
+   }
+}
@@ -0,0 +1,150 @@
+package edu.calpoly.twitter.dedup;
+
+import edu.calpoly.twitter.store.TweetData;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how well a NearDuplicateFilter does on a labeled sample.
+ *
+ * The sample is a UTF-8 file with a tweet on each line: a group, a tab, and then the text.
+ * Tweets in the same group are near copies of each other.
+ * Tweets that are not a copy of anything have a group of "-".
+ *
+ * The tweets are checked in order, so the first tweet of each group is the original and
+ *  every later tweet of the group should be found.
+ * A tweet that is found to copy a tweet from another group (or that has no group)
+ *  is a false positive.
+ *
+ * Usage: NearDuplicateEvaluator <sample file> [threshold] [bands] [rows]
+ */
+public class NearDuplicateEvaluator {
+   private static final String NO_GROUP = "-";
+
+   private int truePositives;
+   private int falsePositives;
+   private int falseNegatives;
+   private int trueNegatives;
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println(
+               "USAGE: java NearDuplicateEvaluator <sample file> [threshold] [bands] [rows]");
+         System.exit(1);
+      }
+
+      double threshold = args.length > 1 ? Double.parseDouble(args[1]) : 0.6;
+      int bands = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+      int rows = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+      List<String[]> sample = readSample(args[0]);
+      NearDuplicateFilter filter = new NearDuplicateFilter(NearDuplicateFilter.Action.TAG,
+                                                           bands, rows, threshold,
+                                                           Integer.MAX_VALUE, 3);
+
+      NearDuplicateEvaluator evaluator = new NearDuplicateEvaluator();
+      long start = System.nanoTime();
+      evaluator.evaluate(filter, sample);
+      long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+      System.out.println(evaluator.report());
+      System.out.println(String.format("Checked %d tweets in %d ms.", sample.size(), elapsedMs));
+   }
+
+   /**
+    * Run every tweet in |sample| (group, text) through |filter|.
+    */
+   public void evaluate(NearDuplicateFilter filter, List<String[]> sample) {
+      Map<String, String> groups = new HashMap<String, String>();
+      Map<String, Boolean> seenGroups = new HashMap<String, Boolean>();
+
+      for (int i = 0; i < sample.size(); i++) {
+         String group = sample.get(i)[0];
+         TweetData tweet = new TweetData();
+
+         tweet.twitterId = "" + (i + 1);
+         tweet.content = sample.get(i)[1];
+         groups.put(tweet.twitterId, group);
+
+         String original = filter.check(tweet);
+         boolean expected = !NO_GROUP.equals(group) && seenGroups.containsKey(group);
+
+         if (original == null) {
+            if (expected) {
+               falseNegatives++;
+            } else {
+               trueNegatives++;
+            }
+         } else if (expected && group.equals(groups.get(original))) {
+            truePositives++;
+         } else {
+            falsePositives++;
+         }
+
+         if (!NO_GROUP.equals(group)) {
+            seenGroups.put(group, true);
+         }
+      }
+   }
+
+   public double getPrecision() {
+      return ratio(truePositives, truePositives + falsePositives);
+   }
+
+   public double getRecall() {
+      return ratio(truePositives, truePositives + falseNegatives);
+   }
+
+   /**
+    * The fraction of tweets that are not copies (of anything) that were called copies.
+    */
+   public double getFalsePositiveRate() {
+      return ratio(falsePositives, falsePositives + trueNegatives);
+   }
+
+   public String report() {
+      int total = truePositives + falsePositives + falseNegatives + trueNegatives;
+
+      return String.format(
+            "TP: %d, FP: %d, FN: %d, TN: %d%n" +
+            "Precision: %.4f, Recall: %.4f, False Positive Rate: %.4f%n" +
+            "Flagged as duplicates: %.2f%% of tweets",
+            truePositives, falsePositives, falseNegatives, trueNegatives,
+            getPrecision(), getRecall(), getFalsePositiveRate(),
+            100.0 * ratio(truePositives + falsePositives, total));
+   }
+
+   private static double ratio(int numerator, int denominator) {
+      return denominator == 0 ? 0 : (double)numerator / denominator;
+   }
+
+   private static List<String[]> readSample(String path) throws IOException {
+      List<String[]> sample = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int tab = line.indexOf('\t');
+            if (tab == -1) {
+               continue;
+            }
+
+            sample.add(new String[]{line.substring(0, tab).trim(), line.substring(tab + 1)});
+         }
+      } finally {
+         reader.close();
+      }
+
+      return sample;
+   }
+}
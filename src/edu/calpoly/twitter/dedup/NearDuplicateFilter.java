@@ -0,0 +1,312 @@
+package edu.calpoly.twitter.dedup;
+
+import edu.calpoly.twitter.stats.Tokenizer;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds tweets that are near copies of a tweet seen recently (copy-paste spam, retweets, ...).
+ *
+ * Each tweet gets a MinHash signature, which is cut into |bands| bands of |rows| hashes.
+ * Tweets that have the same band are candidates (locality-sensitive hashing),
+ *  and a candidate is a duplicate if the signatures agree on at least |threshold| of
+ *  their hashes (about the Jaccard similarity of the texts).
+ *
+ * Only tweets published in the last |windowSec| seconds are remembered.
+ * The index is cut into a few time buckets, and whole buckets are thrown out as they age,
+ *  so memory is bounded by how many tweets show up in a window.
+ * Texts with fewer than |minShingles| shingles are too short to compare reliably and are
+ *  always let through.
+ *
+ * The original is always the tweet with the smallest id, which is the one that was tweeted
+ *  first.
+ * Twitter gives pages newest first, so each batch is checked oldest first (see filter()),
+ *  and a tweet that turns up after a newer copy of it (eg. from a later page of the same chain)
+ *  takes the copy's place as the original for copies still to come.
+ * A copy that was already let through as an original is not changed.
+ *
+ * What happens to a duplicate depends on the Action.
+ * It is safe to use from multiple threads.
+ */
+public class NearDuplicateFilter {
+   private static final int NUM_BUCKETS = 4;
+
+   /**
+    * Smallest id first.
+    */
+   private static final Comparator<TweetData> OLDEST_FIRST = new Comparator<TweetData>() {
+      public int compare(TweetData a, TweetData b) {
+         return Long.compare(Long.parseLong(a.twitterId), Long.parseLong(b.twitterId));
+      }
+   };
+
+   /**
+    * What to do with near duplicates.
+    */
+   public enum Action {
+      /**
+       * Don't store them.
+       */
+      DROP,
+      /**
+       * Store them with duplicateOf set to the id of the tweet they copy.
+       */
+      TAG,
+      /**
+       * Don't store them, but add one to the duplicates of the tweet they copy.
+       * Stores that copy tweets when they are inserted only see the duplicates
+       *  that were found before the original was inserted (ie. in the same batch).
+       */
+      COLLAPSE
+   }
+
+   private final Action action;
+   private final int bands;
+   private final int rows;
+   private final double threshold;
+   private final int minShingles;
+
+   private final MinHasher hasher;
+   private final int[] signature;
+   private final long[] keys;
+
+   private final int bucketSec;
+
+   /**
+    * Band key to the first tweet seen with it, for each time bucket.
+    */
+   private final List<Map<Long, Entry>> buckets;
+
+   /**
+    * The newest bucket, -1 if nothing has been seen.
+    */
+   private long head;
+
+   private final Metrics.Counter checked;
+   private final Metrics.Counter duplicates;
+
+   /**
+    * Configure from DEDUP_ACTION (default tag), DEDUP_BANDS (default 16), DEDUP_ROWS (default 4),
+    *  DEDUP_THRESHOLD (default 0.6), DEDUP_WINDOW_SEC (default 3600),
+    *  and DEDUP_MIN_SHINGLES (default 3).
+    */
+   public NearDuplicateFilter() {
+      this(Action.valueOf(Props.getString("DEDUP_ACTION", "tag").toUpperCase()),
+           Props.getInt("DEDUP_BANDS", 16), Props.getInt("DEDUP_ROWS", 4),
+           Props.getDouble("DEDUP_THRESHOLD", 0.6), Props.getInt("DEDUP_WINDOW_SEC", 3600),
+           Props.getInt("DEDUP_MIN_SHINGLES", 3));
+   }
+
+   public NearDuplicateFilter(Action action, int bands, int rows, double threshold,
+                              int windowSec, int minShingles) {
+      this.action = action;
+      this.bands = bands;
+      this.rows = rows;
+      this.threshold = threshold;
+      this.minShingles = minShingles;
+
+      hasher = new MinHasher(new Tokenizer(), bands * rows);
+      signature = new int[bands * rows];
+      keys = new long[bands];
+
+      bucketSec = Math.max(1, windowSec / NUM_BUCKETS);
+      buckets = new ArrayList<Map<Long, Entry>>();
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         buckets.add(new HashMap<Long, Entry>());
+      }
+      head = -1;
+
+      checked = Metrics.counter("dedup.checked");
+      duplicates = Metrics.counter("dedup.nearDuplicates");
+   }
+
+   public Action getAction() {
+      return action;
+   }
+
+   /**
+    * Check every tweet and apply the action to the near duplicates.
+    * Tweets are checked oldest (smallest id) first, so the first of a set of copies is the one
+    *  that is kept.
+    *
+    * @return The tweets that should be stored (in the order they were given).
+    */
+   public synchronized List<TweetData> filter(List<TweetData> tweets) {
+      List<TweetData> ordered = new ArrayList<TweetData>(tweets);
+      Collections.sort(ordered, OLDEST_FIRST);
+
+      Set<TweetData> dropped =
+            Collections.newSetFromMap(new IdentityHashMap<TweetData, Boolean>());
+
+      for (TweetData tweet : ordered) {
+         Entry original = find(tweet);
+
+         if (original == null) {
+            continue;
+         } else if (action == Action.TAG) {
+            tweet.duplicateOf = original.id;
+         } else {
+            dropped.add(tweet);
+
+            if (action == Action.COLLAPSE && original.tweet != null) {
+               original.tweet.duplicates++;
+            }
+         }
+      }
+
+      if (dropped.isEmpty()) {
+         return new ArrayList<TweetData>(tweets);
+      }
+
+      List<TweetData> rtn = new ArrayList<TweetData>(tweets.size() - dropped.size());
+      for (TweetData tweet : tweets) {
+         if (!dropped.contains(tweet)) {
+            rtn.add(tweet);
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Check if |tweet| is a near duplicate of a recent tweet.
+    * If it is not, it is remembered so that later copies of it can be found.
+    *
+    * @return The id of the tweet that |tweet| copies, or null.
+    */
+   public synchronized String check(TweetData tweet) {
+      Entry original = find(tweet);
+      return original == null ? null : original.id;
+   }
+
+   /**
+    * Get the number of tweets being remembered (in any band).
+    */
+   public synchronized int getIndexSize() {
+      int size = 0;
+
+      for (Map<Long, Entry> bucket : buckets) {
+         size += bucket.size();
+      }
+
+      return size;
+   }
+
+   private Entry find(TweetData tweet) {
+      checked.inc();
+
+      long bucket = tweet.published / bucketSec;
+      if (head == -1 || bucket > head) {
+         slide(bucket);
+      } else if (bucket <= head - NUM_BUCKETS) {
+         // Too old to compare against.
+         return null;
+      }
+
+      String content = tweet.getContent();
+      if (content == null || hasher.sign(content, signature) < minShingles) {
+         return null;
+      }
+
+      Entry best = null;
+      double bestSimilarity = threshold;
+
+      for (int band = 0; band < bands; band++) {
+         keys[band] = bandKey(band);
+
+         for (Map<Long, Entry> entries : buckets) {
+            Entry candidate = entries.get(keys[band]);
+            if (candidate == null || candidate == best) {
+               continue;
+            }
+
+            double similarity = MinHasher.similarity(signature, candidate.signature);
+            if (similarity >= bestSimilarity) {
+               best = candidate;
+               bestSimilarity = similarity;
+            }
+         }
+      }
+
+      if (best != null && Long.parseLong(best.id) <= Long.parseLong(tweet.twitterId)) {
+         duplicates.inc();
+         return best;
+      } else if (best != null) {
+         // |tweet| is older than the copy that was seen first, so it is the original.
+         best.id = tweet.twitterId;
+         best.signature = signature.clone();
+         best.tweet = (action == Action.COLLAPSE) ? tweet : null;
+         return null;
+      }
+
+      Entry entry = new Entry(tweet.twitterId, signature.clone(),
+                              action == Action.COLLAPSE ? tweet : null);
+      Map<Long, Entry> newest = buckets.get(slot(bucket));
+      for (long key : keys) {
+         if (!newest.containsKey(key)) {
+            newest.put(key, entry);
+         }
+      }
+
+      return null;
+   }
+
+   private long bandKey(int band) {
+      long key = band;
+
+      for (int row = 0; row < rows; row++) {
+         key = MinHasher.mix(key * 31 + signature[band * rows + row]);
+      }
+
+      return key;
+   }
+
+   /**
+    * Move forward so that |bucket| is the newest, forgetting what is too old.
+    */
+   private void slide(long bucket) {
+      long steps = (head == -1) ? NUM_BUCKETS : Math.min(bucket - head, NUM_BUCKETS);
+
+      for (long i = 0; i < steps; i++) {
+         buckets.get(slot(bucket - i)).clear();
+      }
+
+      head = bucket;
+   }
+
+   private int slot(long bucket) {
+      int slot = (int)(bucket % NUM_BUCKETS);
+      return slot < 0 ? slot + NUM_BUCKETS : slot;
+   }
+
+   /**
+    * A tweet that copies may be compared against.
+    * Every band key of the tweet maps to the same Entry, so replacing the tweet in it
+    *  (when an older copy turns up) replaces it everywhere.
+    */
+   private static class Entry {
+      public String id;
+      public int[] signature;
+
+      /**
+       * Only kept for COLLAPSE.
+       */
+      public TweetData tweet;
+
+      public Entry(String id, int[] signature, TweetData tweet) {
+         this.id = id;
+         this.signature = signature;
+         this.tweet = tweet;
+      }
+   }
+}
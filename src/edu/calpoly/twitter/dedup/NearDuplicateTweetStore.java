@@ -0,0 +1,82 @@
+package edu.calpoly.twitter.dedup;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.store.QueryTagStore;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.store.TweetStore;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs tweets through a NearDuplicateFilter before they get to another store.
+ *
+ * Since dropped tweets never make it to the store, the largest id offered for each query is
+ *  kept so that getLastTweetId() does not go back to them.
+ */
+public class NearDuplicateTweetStore implements QueryTagStore {
+   private final TweetStore store;
+   private final NearDuplicateFilter filter;
+
+   /**
+    * The largest id offered for each query.
+    */
+   private final Map<String, Long> offeredIds;
+
+   public NearDuplicateTweetStore(TweetStore store, NearDuplicateFilter filter) {
+      this.store = store;
+      this.filter = filter;
+
+      offeredIds = new HashMap<String, Long>();
+   }
+
+   public NearDuplicateFilter getFilter() {
+      return filter;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public String getLastTweetId(QueryTargetInfo info) {
+      long last = Long.parseLong(store.getLastTweetId(info));
+
+      synchronized (this) {
+         Long offered = offeredIds.get(info.query);
+         if (offered != null && offered > last) {
+            last = offered;
+         }
+      }
+
+      return "" + last;
+   }
+
+   /**
+    * @inheritDoc
+    * Near duplicates that are dropped (or collapsed) are not counted.
+    */
+   public int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+      synchronized (this) {
+         for (TweetData tweet : data) {
+            long id = Long.parseLong(tweet.twitterId);
+            Long offered = offeredIds.get(info.query);
+
+            if (offered == null || id > offered) {
+               offeredIds.put(info.query, id);
+            }
+         }
+      }
+
+      List<TweetData> kept = filter.filter(data);
+      return kept.isEmpty() ? 0 : store.insertTweets(info, kept);
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void addQueryTag(QueryTargetInfo info, int index, List<String> twitterIds) {
+      if (store instanceof QueryTagStore) {
+         ((QueryTagStore)store).addQueryTag(info, index, twitterIds);
+      }
+   }
+}
@@ -0,0 +1,4 @@
+/**
+ * Finding tweets that are (nearly) copies of other tweets.
+ */
+package edu.calpoly.twitter.dedup;
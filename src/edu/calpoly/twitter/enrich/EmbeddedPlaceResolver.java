@@ -0,0 +1,21 @@
+package edu.calpoly.twitter.enrich;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Resolves places from the place object that came with the tweet,
+ *  without asking anyone else.
+ */
+public class EmbeddedPlaceResolver implements PlaceResolver {
+   /**
+    * @inheritDoc
+    */
+   public Place resolve(String placeId, String placeJson) {
+      try {
+         return Place.fromJSON(new JSONObject(placeJson));
+      } catch (JSONException ex) {
+         return null;
+      }
+   }
+}
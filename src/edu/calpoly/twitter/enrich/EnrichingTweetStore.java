@@ -0,0 +1,226 @@
+package edu.calpoly.twitter.enrich;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.store.QueryTagStore;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.store.TweetStore;
+import edu.calpoly.twitter.util.Backoff;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.TaskExecutors;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stage between parsing and storing that enriches tweets (see GeoEnricher)
+ *  before handing them to another store.
+ *
+ * Enriching is done by a pool of workers, so the gatherer goes right back to fetching.
+ * If the workers fall too far behind (the queue is full),
+ *  the gatherer enriches the batch itself, which slows fetching down to what can be kept up with.
+ *
+ * Since the tweets have not been stored yet when insertTweets() returns,
+ *  it gives back the number of tweets that were accepted (not the number that were new).
+ * getLastTweetId() does count accepted tweets, so queries never go back over them.
+ * A tweet that can not be enriched is stored as it is, and a batch that the store fails on is
+ *  retried (with RETRY_* backoff, like WriteBehindTweetStore).
+ * If the store still fails, the batch is lost for good (and logged as an error),
+ *  since its query has already moved past it.
+ * Call flush() to wait for everything accepted to be stored, and close() when done.
+ * Tweets inserted after close() are enriched and stored by the inserting thread.
+ */
+public class EnrichingTweetStore implements QueryTagStore {
+   private final TweetStore store;
+   private final GeoEnricher enricher;
+   private final ExecutorService workers;
+
+   /**
+    * The largest id accepted for each query.
+    */
+   private final Map<String, Long> acceptedIds;
+
+   /**
+    * The number of batches that have been accepted but not stored.
+    */
+   private int pending;
+
+   /**
+    * Set by close(), after which there are no workers to hand batches to.
+    */
+   private boolean closed;
+
+   private final Backoff backoff;
+
+   /**
+    * Use ENRICH_THREADS (default 2) workers with ENRICH_QUEUE (default 64) batches of room.
+    */
+   public EnrichingTweetStore(TweetStore store) {
+      this(store, new GeoEnricher(), Props.getInt("ENRICH_THREADS", 2),
+           Props.getInt("ENRICH_QUEUE", 64));
+   }
+
+   public EnrichingTweetStore(TweetStore store, GeoEnricher enricher, int threads, int queueSize) {
+      this.store = store;
+      this.enricher = enricher;
+
+      workers = TaskExecutors.newBoundedExecutor("enrich", threads, queueSize);
+      acceptedIds = new HashMap<String, Long>();
+      pending = 0;
+      closed = false;
+      backoff = new Backoff(Props.getInt("RETRY_BASE_MS", 1000),
+                            Props.getInt("RETRY_MAX_MS", 60000),
+                            Props.getInt("RETRY_MAX_ATTEMPTS", 5));
+   }
+
+   public GeoEnricher getEnricher() {
+      return enricher;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public String getLastTweetId(QueryTargetInfo info) {
+      long last = Long.parseLong(store.getLastTweetId(info));
+
+      synchronized (this) {
+         Long accepted = acceptedIds.get(info.query);
+         if (accepted != null && accepted > last) {
+            last = accepted;
+         }
+      }
+
+      return "" + last;
+   }
+
+   /**
+    * @inheritDoc
+    * The tweets are enriched and stored later, so this is the number of tweets accepted.
+    */
+   public int insertTweets(final QueryTargetInfo info, final List<TweetData> data) {
+      if (data.isEmpty()) {
+         return 0;
+      }
+
+      boolean inline;
+
+      synchronized (this) {
+         long maxId = 0;
+         for (TweetData tweet : data) {
+            maxId = Math.max(maxId, Long.parseLong(tweet.twitterId));
+         }
+
+         Long accepted = acceptedIds.get(info.query);
+         if (accepted == null || maxId > accepted) {
+            acceptedIds.put(info.query, maxId);
+         }
+
+         inline = closed;
+         if (!inline) {
+            pending++;
+         }
+      }
+
+      if (inline) {
+         store(info, data);
+         return data.size();
+      }
+
+      workers.execute(new Runnable() {
+         public void run() {
+            try {
+               store(info, data);
+            } finally {
+               synchronized (EnrichingTweetStore.this) {
+                  pending--;
+                  EnrichingTweetStore.this.notifyAll();
+               }
+            }
+         }
+      });
+
+      return data.size();
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void addQueryTag(QueryTargetInfo info, int index, List<String> twitterIds) {
+      if (store instanceof QueryTagStore) {
+         ((QueryTagStore)store).addQueryTag(info, index, twitterIds);
+      }
+   }
+
+   /**
+    * Enrich a batch and store it.
+    */
+   private void store(QueryTargetInfo info, List<TweetData> data) {
+      try {
+         enricher.enrichAll(data);
+      } catch (Exception ex) {
+         Logger.logWarn("Unable to enrich tweets for \"" + info.query +
+                        "\", storing them as they are.");
+      }
+
+      int attempt = 0;
+      while (true) {
+         attempt++;
+
+         try {
+            store.insertTweets(info, data);
+            return;
+         } catch (Exception ex) {
+            if (!backoff.canRetry(attempt)) {
+               Logger.logError(String.format("Unable to store %d enriched tweets for \"%s\", " +
+                                             "they are lost.", data.size(), info.query), ex);
+               return;
+            }
+
+            try {
+               Thread.sleep(backoff.getDelay(attempt));
+            } catch (InterruptedException interrupt) {
+               Thread.currentThread().interrupt();
+               Logger.logError(String.format("Interrupted while storing %d enriched tweets " +
+                                             "for \"%s\", they are lost.",
+                                             data.size(), info.query));
+               return;
+            }
+         }
+      }
+   }
+
+   /**
+    * Wait for every accepted tweet to be stored.
+    */
+   public synchronized void flush() throws InterruptedException {
+      while (pending > 0) {
+         wait();
+      }
+   }
+
+   /**
+    * Store everything that was accepted and stop the workers.
+    */
+   public void close() {
+      synchronized (this) {
+         closed = true;
+      }
+
+      try {
+         flush();
+      } catch (InterruptedException ex) {
+         Logger.logWarn("Interrupted while waiting for tweets to be enriched.");
+         Thread.currentThread().interrupt();
+      }
+
+      workers.shutdown();
+      try {
+         workers.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
@@ -0,0 +1,222 @@
+package edu.calpoly.twitter.enrich;
+
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.LruCache;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Fills in fullPlace and fullGeo of tweets from their place and geo.
+ *
+ * The same few thousand places show up over and over again, so places are kept in
+ *  an LRU cache by place id.
+ * Only the id is pulled out of the place on a hit (without parsing it),
+ *  and every tweet made at a place shares the same fullPlace String.
+ * On a miss, the PlaceResolver is asked (without holding the cache's lock).
+ *
+ * Tweets without a place (or geo) are left with a null fullPlace (or fullGeo).
+ * It is safe to use from multiple threads.
+ */
+public class GeoEnricher {
+   private final PlaceResolver resolver;
+   private final LruCache<String, Place> places;
+
+   private final Metrics.Counter enriched;
+   private final Metrics.Counter failures;
+
+   /**
+    * Resolve places from the tweets themselves and cache PLACE_CACHE_SIZE (default 10000) of them.
+    */
+   public GeoEnricher() {
+      this(new EmbeddedPlaceResolver(), Props.getInt("PLACE_CACHE_SIZE", 10000));
+   }
+
+   public GeoEnricher(PlaceResolver resolver, int cacheSize) {
+      this.resolver = resolver;
+      places = new LruCache<String, Place>(cacheSize);
+
+      enriched = Metrics.counter("enrich.tweets");
+      failures = Metrics.counter("enrich.failures");
+
+      Metrics.gauge("enrich.placeCache.size", new Metrics.Gauge() {
+         public long get() {
+            return places.size();
+         }
+      });
+      Metrics.gauge("enrich.placeCache.hits", new Metrics.Gauge() {
+         public long get() {
+            return places.getHits();
+         }
+      });
+      Metrics.gauge("enrich.placeCache.misses", new Metrics.Gauge() {
+         public long get() {
+            return places.getMisses();
+         }
+      });
+   }
+
+   public void enrichAll(List<TweetData> tweets) {
+      for (TweetData tweet : tweets) {
+         enrich(tweet);
+      }
+   }
+
+   public void enrich(TweetData tweet) {
+      Place place = getPlace(tweet.getPlace());
+      if (place != null) {
+         tweet.fullPlace = place.toJSON();
+      }
+
+      GeoPoint point = getPoint(tweet.getGeo());
+      if (point != null) {
+         tweet.fullGeo = point.toJSON();
+      }
+
+      enriched.inc();
+   }
+
+   /**
+    * Get the place for a place object (as JSON text).
+    *
+    * @return The place, or null if there is no place (or it could not be resolved).
+    */
+   public Place getPlace(String placeJson) {
+      if (isEmpty(placeJson)) {
+         return null;
+      }
+
+      String id = findId(placeJson);
+      if (id == null) {
+         failures.inc();
+         return null;
+      }
+
+      Place place = places.get(id);
+      if (place != null) {
+         return place;
+      }
+
+      // Two threads may resolve the same place at once, which is harmless.
+      place = resolver.resolve(id, placeJson);
+      if (place == null) {
+         failures.inc();
+         return null;
+      }
+
+      places.put(id, place);
+      return place;
+   }
+
+   public int getCacheSize() {
+      return places.size();
+   }
+
+   private GeoPoint getPoint(String geoJson) {
+      if (isEmpty(geoJson)) {
+         return null;
+      }
+
+      try {
+         GeoPoint point = GeoPoint.fromJSON(new JSONObject(geoJson));
+         if (point == null) {
+            failures.inc();
+         }
+
+         return point;
+      } catch (JSONException ex) {
+         failures.inc();
+         return null;
+      }
+   }
+
+   private static boolean isEmpty(String json) {
+      return json == null || json.isEmpty() || "null".equals(json);
+   }
+
+   /**
+    * Get the top-level "id" of a JSON object without parsing the whole thing.
+    *
+    * @return The id, or null if there is no (string) id.
+    */
+   static String findId(String json) {
+      int depth = 0;
+
+      // The last character outside of a string that was not whitespace.
+      char last = 0;
+
+      for (int i = 0; i < json.length(); i++) {
+         char next = json.charAt(i);
+
+         if (next == '"') {
+            int end = endOfString(json, i);
+            if (end == -1) {
+               return null;
+            }
+
+            // A key that is "id".
+            if (depth == 1 && (last == '{' || last == ',') && end == i + 3 &&
+                json.startsWith("id", i + 1)) {
+               int value = skipWhitespace(json, end + 1);
+               if (value >= json.length() || json.charAt(value) != ':') {
+                  return null;
+               }
+
+               value = skipWhitespace(json, value + 1);
+               if (value >= json.length() || json.charAt(value) != '"') {
+                  return null;
+               }
+
+               int valueEnd = endOfString(json, value);
+               return valueEnd == -1 ? null : json.substring(value + 1, valueEnd);
+            }
+
+            i = end;
+            last = '"';
+            continue;
+         }
+
+         if (next == '{' || next == '[') {
+            depth++;
+         } else if (next == '}' || next == ']') {
+            depth--;
+         }
+
+         if (!Character.isWhitespace(next)) {
+            last = next;
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * @return The index of the quote that closes the string starting at |start|,
+    *  or -1 if it does not end.
+    */
+   private static int endOfString(String json, int start) {
+      for (int i = start + 1; i < json.length(); i++) {
+         char next = json.charAt(i);
+
+         if (next == '\\') {
+            i++;
+         } else if (next == '"') {
+            return i;
+         }
+      }
+
+      return -1;
+   }
+
+   private static int skipWhitespace(String json, int start) {
+      while (start < json.length() && Character.isWhitespace(json.charAt(start))) {
+         start++;
+      }
+
+      return start;
+   }
+}
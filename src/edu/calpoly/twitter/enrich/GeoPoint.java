@@ -0,0 +1,58 @@
+package edu.calpoly.twitter.enrich;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The exact location that a tweet was made at.
+ * What ends up in TweetData.fullGeo is toJSON(): {"lat", "lon"}.
+ */
+public class GeoPoint {
+   private final double lat;
+   private final double lon;
+
+   public GeoPoint(double lat, double lon) {
+      this.lat = lat;
+      this.lon = lon;
+   }
+
+   /**
+    * Pull a point out of a geo object from Twitter.
+    * Note that geo coordinates are [lat, lon] (unlike everything else Twitter gives,
+    *  which is GeoJSON order: [lon, lat]).
+    *
+    * @return The point, or null if |geo| is not a point.
+    */
+   public static GeoPoint fromJSON(JSONObject geo) {
+      JSONArray coordinates = geo.optJSONArray("coordinates");
+
+      if (coordinates == null || coordinates.length() < 2) {
+         return null;
+      }
+
+      double lat = coordinates.optDouble(0);
+      double lon = coordinates.optDouble(1);
+
+      if (Double.isNaN(lat) || Double.isNaN(lon)) {
+         return null;
+      }
+
+      return new GeoPoint(lat, lon);
+   }
+
+   public double getLat() {
+      return lat;
+   }
+
+   public double getLon() {
+      return lon;
+   }
+
+   public String toJSON() {
+      return "{\"lat\":" + lat + ",\"lon\":" + lon + "}";
+   }
+
+   public String toString() {
+      return toJSON();
+   }
+}
@@ -0,0 +1,162 @@
+package edu.calpoly.twitter.enrich;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A Twitter place, pulled out of the place object of a tweet.
+ * Places are shared between every tweet made there, so they are immutable.
+ *
+ * What ends up in TweetData.fullPlace is toJSON():
+ *  {"id", "name", "full_name", "place_type", "country", "country_code", "bounding_box"}
+ *  where bounding_box is [min lon, min lat, max lon, max lat] (or null).
+ */
+public class Place {
+   private final String id;
+   private final String name;
+   private final String fullName;
+   private final String placeType;
+   private final String country;
+   private final String countryCode;
+
+   /**
+    * [min lon, min lat, max lon, max lat], or null if the place did not have one.
+    */
+   private final double[] boundingBox;
+
+   private final String json;
+
+   public Place(String id, String name, String fullName, String placeType,
+                String country, String countryCode, double[] boundingBox) {
+      this.id = id;
+      this.name = name;
+      this.fullName = fullName;
+      this.placeType = placeType;
+      this.country = country;
+      this.countryCode = countryCode;
+      this.boundingBox = boundingBox;
+
+      json = buildJSON();
+   }
+
+   /**
+    * Pull a place out of a place object from Twitter.
+    * Twitter gives the bounding box as a polygon, which is flattened to its extent.
+    */
+   public static Place fromJSON(JSONObject place) {
+      double[] box = null;
+
+      JSONObject boundingBox = place.optJSONObject("bounding_box");
+      JSONArray rings = (boundingBox == null) ? null : boundingBox.optJSONArray("coordinates");
+
+      if (rings != null) {
+         for (int i = 0; i < rings.length(); i++) {
+            JSONArray ring = rings.optJSONArray(i);
+
+            for (int j = 0; ring != null && j < ring.length(); j++) {
+               JSONArray point = ring.optJSONArray(j);
+               if (point == null || point.length() < 2) {
+                  continue;
+               }
+
+               double lon = point.optDouble(0);
+               double lat = point.optDouble(1);
+
+               if (box == null) {
+                  box = new double[]{lon, lat, lon, lat};
+               } else {
+                  box[0] = Math.min(box[0], lon);
+                  box[1] = Math.min(box[1], lat);
+                  box[2] = Math.max(box[2], lon);
+                  box[3] = Math.max(box[3], lat);
+               }
+            }
+         }
+      }
+
+      return new Place(place.optString("id", null), place.optString("name", null),
+                       place.optString("full_name", null), place.optString("place_type", null),
+                       place.optString("country", null), place.optString("country_code", null),
+                       box);
+   }
+
+   public String getId() {
+      return id;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public String getFullName() {
+      return fullName;
+   }
+
+   public String getPlaceType() {
+      return placeType;
+   }
+
+   public String getCountry() {
+      return country;
+   }
+
+   public String getCountryCode() {
+      return countryCode;
+   }
+
+   /**
+    * @return [min lon, min lat, max lon, max lat], or null if there is no bounding box.
+    */
+   public double[] getBoundingBox() {
+      return boundingBox == null ? null : boundingBox.clone();
+   }
+
+   /**
+    * Check if a point is inside the bounding box.
+    */
+   public boolean contains(GeoPoint point) {
+      return boundingBox != null &&
+             point.getLon() >= boundingBox[0] && point.getLat() >= boundingBox[1] &&
+             point.getLon() <= boundingBox[2] && point.getLat() <= boundingBox[3];
+   }
+
+   /**
+    * Get the place as compact JSON (see the class comment).
+    * This is built once, so it is cheap to hand to every tweet made at this place.
+    */
+   public String toJSON() {
+      return json;
+   }
+
+   /**
+    * Built by hand (with the keys in a fixed order) since JSONObject does not keep the order.
+    */
+   private String buildJSON() {
+      StringBuilder rtn = new StringBuilder(256);
+
+      rtn.append("{\"id\":").append(quote(id));
+      rtn.append(",\"name\":").append(quote(name));
+      rtn.append(",\"full_name\":").append(quote(fullName));
+      rtn.append(",\"place_type\":").append(quote(placeType));
+      rtn.append(",\"country\":").append(quote(country));
+      rtn.append(",\"country_code\":").append(quote(countryCode));
+      rtn.append(",\"bounding_box\":");
+
+      if (boundingBox == null) {
+         rtn.append("null");
+      } else {
+         rtn.append('[').append(boundingBox[0]).append(',').append(boundingBox[1]).append(',')
+            .append(boundingBox[2]).append(',').append(boundingBox[3]).append(']');
+      }
+
+      return rtn.append('}').toString();
+   }
+
+   private static String quote(String value) {
+      return value == null ? "null" : JSONObject.quote(value);
+   }
+
+   public String toString() {
+      return json;
+   }
+}
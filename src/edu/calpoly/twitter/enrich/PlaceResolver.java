@@ -0,0 +1,17 @@
+package edu.calpoly.twitter.enrich;
+
+/**
+ * Turns a place id into a Place.
+ * GeoEnricher only asks when the place is not already in its cache,
+ *  so a resolver may be slow (eg. ask Twitter's geo/id endpoint).
+ * Resolvers are called from multiple threads at once.
+ */
+public interface PlaceResolver {
+   /**
+    * @param placeId The id of the place.
+    * @param placeJson The place object that came with the tweet.
+    *
+    * @return The place, or null if it could not be resolved.
+    */
+   public Place resolve(String placeId, String placeJson);
+}
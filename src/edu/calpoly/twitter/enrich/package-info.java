@@ -0,0 +1,4 @@
+/**
+ * Turning the raw place and geo of tweets into structured values.
+ */
+package edu.calpoly.twitter.enrich;
@@ -0,0 +1,74 @@
+package edu.calpoly.twitter.export;
+
+import edu.calpoly.twitter.store.TweetData;
+
+/**
+ * RFC 4180 CSV with a header line.
+ * A field is quoted if it has a comma, quote, or line break in it, and quotes are doubled.
+ * Nulls are written as empty fields.
+ */
+public class CsvFormatter extends TweetFormatter {
+   /**
+    * @inheritDoc
+    */
+   public void start(StringBuilder out, boolean first) {
+      if (!first) {
+         return;
+      }
+
+      for (int i = 0; i < COLUMNS.length; i++) {
+         if (i != 0) {
+            out.append(',');
+         }
+         out.append(COLUMNS[i]);
+      }
+      out.append("\r\n");
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void tweet(StringBuilder out, TweetData tweet) {
+      appendField(out, tweet.twitterId);
+      out.append(',').append(tweet.published);
+
+      for (int i = 0; i < NUM_TEXT_FIELDS; i++) {
+         out.append(',');
+         appendField(out, getField(tweet, i));
+      }
+      out.append("\r\n");
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void finish(StringBuilder out) {
+   }
+
+   public static void appendField(StringBuilder out, String value) {
+      if (value == null) {
+         return;
+      }
+
+      boolean needsQuotes = false;
+      for (int i = 0; i < value.length() && !needsQuotes; i++) {
+         char next = value.charAt(i);
+         needsQuotes = next == ',' || next == '"' || next == '\n' || next == '\r';
+      }
+
+      if (!needsQuotes) {
+         out.append(value);
+         return;
+      }
+
+      out.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char next = value.charAt(i);
+         if (next == '"') {
+            out.append('"');
+         }
+         out.append(next);
+      }
+      out.append('"');
+   }
+}
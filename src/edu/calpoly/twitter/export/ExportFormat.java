@@ -0,0 +1,43 @@
+package edu.calpoly.twitter.export;
+
+import edu.calpoly.twitter.util.Props;
+
+/**
+ * The kinds of exports.
+ */
+public enum ExportFormat {
+   CSV(".csv"),
+   JSONL(".jsonl"),
+
+   /**
+    * Configured with EXPORT_SQL_TABLE (default tweets), EXPORT_SQL_BATCH (default 1000),
+    *  and EXPORT_SQL_ESCAPE_BACKSLASHES (default false, see SqlFormatter).
+    */
+   SQL(".sql");
+
+   private final String extension;
+
+   private ExportFormat(String extension) {
+      this.extension = extension;
+   }
+
+   public String getExtension() {
+      return extension;
+   }
+
+   /**
+    * Get a fresh formatter for a stream of tweets.
+    */
+   public TweetFormatter newFormatter() {
+      switch (this) {
+         case CSV:
+            return new CsvFormatter();
+         case JSONL:
+            return new JsonLinesFormatter();
+         default:
+            return new SqlFormatter(Props.getString("EXPORT_SQL_TABLE", "tweets"),
+                                    Props.getInt("EXPORT_SQL_BATCH", 1000),
+                                    Props.getBoolean("EXPORT_SQL_ESCAPE_BACKSLASHES", false));
+      }
+   }
+}
@@ -0,0 +1,85 @@
+package edu.calpoly.twitter.export;
+
+import edu.calpoly.twitter.store.TweetData;
+
+/**
+ * One JSON object per line.
+ * Nulls are written as JSON nulls.
+ */
+public class JsonLinesFormatter extends TweetFormatter {
+   private static final char[] HEX = "0123456789abcdef".toCharArray();
+   private static final char LINE_SEPARATOR = (char)0x2028;
+   private static final char PARAGRAPH_SEPARATOR = (char)0x2029;
+
+   /**
+    * @inheritDoc
+    */
+   public void start(StringBuilder out, boolean first) {
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void tweet(StringBuilder out, TweetData tweet) {
+      out.append("{\"").append(COLUMNS[0]).append("\":");
+      appendString(out, tweet.twitterId);
+      out.append(",\"").append(COLUMNS[1]).append("\":").append(tweet.published);
+
+      for (int i = 0; i < NUM_TEXT_FIELDS; i++) {
+         out.append(",\"").append(COLUMNS[i + 2]).append("\":");
+         appendString(out, getField(tweet, i));
+      }
+      out.append("}\n");
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void finish(StringBuilder out) {
+   }
+
+   /**
+    * Append a quoted and escaped JSON string.
+    * Control characters and the JavaScript line separators are escaped,
+    *  so a record never spans more than one line.
+    */
+   public static void appendString(StringBuilder out, String value) {
+      if (value == null) {
+         out.append("null");
+         return;
+      }
+
+      out.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char next = value.charAt(i);
+
+         switch (next) {
+            case '"':
+               out.append("\\\"");
+               break;
+            case '\\':
+               out.append("\\\\");
+               break;
+            case '\n':
+               out.append("\\n");
+               break;
+            case '\r':
+               out.append("\\r");
+               break;
+            case '\t':
+               out.append("\\t");
+               break;
+            default:
+               if (next < 0x20 || next == LINE_SEPARATOR || next == PARAGRAPH_SEPARATOR) {
+                  out.append("\\u")
+                     .append(HEX[(next >> 12) & 0xF]).append(HEX[(next >> 8) & 0xF])
+                     .append(HEX[(next >> 4) & 0xF]).append(HEX[next & 0xF]);
+               } else {
+                  out.append(next);
+               }
+               break;
+         }
+      }
+      out.append('"');
+   }
+}
@@ -0,0 +1,104 @@
+package edu.calpoly.twitter.export;
+
+import edu.calpoly.twitter.store.TweetData;
+
+/**
+ * Multi-row INSERT statements, |batchSize| tweets per statement.
+ * The columns are TweetData.attributes, and the id is left NULL just like TweetData.toString().
+ *
+ * Strings are quoted the standard SQL way (quotes are doubled).
+ * MySQL (unless NO_BACKSLASH_ESCAPES is on) also treats backslashes as escapes,
+ *  so those need to be doubled too (see |escapeBackslashes|).
+ */
+public class SqlFormatter extends TweetFormatter {
+   private final String table;
+   private final int batchSize;
+   private final boolean escapeBackslashes;
+
+   /**
+    * The number of rows in the current statement.
+    */
+   private int batchCount;
+
+   public SqlFormatter(String table, int batchSize, boolean escapeBackslashes) {
+      this.table = table;
+      this.batchSize = Math.max(1, batchSize);
+      this.escapeBackslashes = escapeBackslashes;
+
+      batchCount = 0;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void start(StringBuilder out, boolean first) {
+      batchCount = 0;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void tweet(StringBuilder out, TweetData tweet) {
+      if (batchCount == batchSize) {
+         out.append(";\n");
+         batchCount = 0;
+      }
+
+      if (batchCount == 0) {
+         out.append("INSERT INTO ").append(table).append(' ').append(TweetData.attributes)
+            .append(" VALUES\n");
+      } else {
+         out.append(",\n");
+      }
+
+      out.append("(NULL, ");
+      appendString(out, tweet.twitterId, escapeBackslashes);
+      out.append(", ").append(tweet.published);
+
+      for (int i = 0; i < NUM_TEXT_FIELDS; i++) {
+         out.append(", ");
+         appendString(out, getField(tweet, i), escapeBackslashes);
+      }
+      out.append(')');
+
+      batchCount++;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void finish(StringBuilder out) {
+      if (batchCount > 0) {
+         out.append(";\n");
+      }
+      batchCount = 0;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public int getGroupSize() {
+      return batchSize;
+   }
+
+   /**
+    * Append a quoted SQL string, or NULL.
+    */
+   public static void appendString(StringBuilder out, String value, boolean escapeBackslashes) {
+      if (value == null) {
+         out.append("NULL");
+         return;
+      }
+
+      out.append('\'');
+      for (int i = 0; i < value.length(); i++) {
+         char next = value.charAt(i);
+
+         if (next == '\'' || (escapeBackslashes && next == '\\')) {
+            out.append(next);
+         }
+         out.append(next);
+      }
+      out.append('\'');
+   }
+}
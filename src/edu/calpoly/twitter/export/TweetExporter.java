@@ -0,0 +1,287 @@
+package edu.calpoly.twitter.export;
+
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.TaskExecutors;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes tweets out to a file as CSV, JSON Lines, or SQL (see ExportFormat).
+ *
+ * Tweets are streamed: each one is formatted into a reused StringBuilder, which is encoded
+ *  in large blocks into a reused byte buffer, which is written to a FileChannel
+ *  (through gzip if asked).
+ * So, the only per-tweet garbage is whatever the tweet's getters make.
+ *
+ * A list of tweets can also be exported in parallel (see exportParallel()).
+ * The list is cut into chunks that are each written to their own part file by a worker,
+ *  and then the parts are joined in order with FileChannel.transferTo().
+ * Gzipped parts are each a complete gzip member, and a series of gzip members is
+ *  itself a valid gzip file, so parts can be joined without recompressing.
+ */
+public class TweetExporter {
+   /**
+    * How many chars to format before encoding them.
+    */
+   private static final int CHAR_BLOCK = 64 * 1024;
+
+   private static final int BYTE_BUFFER_SIZE = 256 * 1024;
+
+   /**
+    * Chunks per thread for parallel exports, so one slow chunk does not hold up everything.
+    */
+   private static final int CHUNKS_PER_THREAD = 4;
+
+   private final ExportFormat format;
+   private final boolean gzip;
+
+   public TweetExporter(ExportFormat format, boolean gzip) {
+      this.format = format;
+      this.gzip = gzip;
+   }
+
+   /**
+    * Export everything from |tweets| to |file| (which is replaced if it exists).
+    * The exporter does not hold on to any tweet, so iterators that reuse
+    *  a single TweetData are fine.
+    *
+    * @return The number of tweets written.
+    */
+   public long export(Iterator<? extends TweetData> tweets, File file) throws IOException {
+      ChunkWriter writer = new ChunkWriter(file);
+
+      try {
+         return writer.write(tweets, true);
+      } finally {
+         writer.close();
+      }
+   }
+
+   /**
+    * Export |tweets| to |file| using |threads| threads.
+    * The output is exactly the same as export() would write.
+    *
+    * @return The number of tweets written.
+    */
+   public long exportParallel(final List<? extends TweetData> tweets, File file, int threads)
+         throws IOException {
+      if (threads <= 1 || tweets.size() < threads * CHUNKS_PER_THREAD) {
+         return export(tweets.iterator(), file);
+      }
+
+      int numChunks = threads * CHUNKS_PER_THREAD;
+      int groupSize = format.newFormatter().getGroupSize();
+      int chunkSize = (tweets.size() + numChunks - 1) / numChunks;
+      chunkSize = (chunkSize + groupSize - 1) / groupSize * groupSize;
+
+      List<File> parts = new ArrayList<File>();
+      List<Future<Long>> results = new ArrayList<Future<Long>>();
+      ExecutorService executor = TaskExecutors.newPlatformExecutor("export", threads);
+      long count = 0;
+
+      try {
+         for (int i = 0; i * chunkSize < tweets.size(); i++) {
+            final File part = new File(file.getPath() + ".part" + i);
+            final List<? extends TweetData> chunk =
+                  tweets.subList(i * chunkSize, Math.min(tweets.size(), (i + 1) * chunkSize));
+            final boolean first = (i == 0);
+
+            parts.add(part);
+            results.add(executor.submit(new Callable<Long>() {
+               public Long call() throws IOException {
+                  ChunkWriter writer = new ChunkWriter(part);
+                  try {
+                     return writer.write(chunk.iterator(), first);
+                  } finally {
+                     writer.close();
+                  }
+               }
+            }));
+         }
+
+         for (Future<Long> result : results) {
+            count += result.get();
+         }
+
+         join(parts, file);
+      } catch (ExecutionException ex) {
+         throw new IOException("Unable to export a chunk.", ex.getCause());
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while exporting.", ex);
+      } finally {
+         executor.shutdownNow();
+
+         for (File part : parts) {
+            if (part.exists() && !part.delete()) {
+               Logger.logWarn("Unable to delete export part " + part + ".");
+            }
+         }
+      }
+
+      return count;
+   }
+
+   /**
+    * Put the parts together (in order) into |file|.
+    */
+   private static void join(List<File> parts, File file) throws IOException {
+      FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                         StandardOpenOption.WRITE,
+                                         StandardOpenOption.TRUNCATE_EXISTING);
+
+      try {
+         for (File part : parts) {
+            FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ);
+
+            try {
+               long position = 0;
+               long size = in.size();
+
+               while (position < size) {
+                  position += in.transferTo(position, size - position, out);
+               }
+            } finally {
+               in.close();
+            }
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Writes a single stream of tweets to a single file.
+    */
+   private class ChunkWriter implements Closeable {
+      private final FileChannel channel;
+
+      /**
+       * Null if not gzipping.
+       */
+      private final GZIPOutputStream gzipStream;
+
+      private final TweetFormatter formatter;
+      private final CharsetEncoder encoder;
+
+      private final StringBuilder chars;
+      private char[] charArray;
+      private final ByteBuffer bytes;
+
+      public ChunkWriter(File file) throws IOException {
+         channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+         gzipStream = gzip ?
+               new GZIPOutputStream(Channels.newOutputStream(channel), BYTE_BUFFER_SIZE) : null;
+
+         formatter = format.newFormatter();
+         encoder = StandardCharsets.UTF_8.newEncoder()
+               .onMalformedInput(CodingErrorAction.REPLACE)
+               .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+         chars = new StringBuilder(CHAR_BLOCK + 4096);
+         charArray = new char[CHAR_BLOCK + 4096];
+         bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+      }
+
+      /**
+       * @param first True if this is the start of the whole export.
+       *
+       * @return The number of tweets written.
+       */
+      public long write(Iterator<? extends TweetData> tweets, boolean first) throws IOException {
+         long count = 0;
+
+         formatter.start(chars, first);
+         while (tweets.hasNext()) {
+            formatter.tweet(chars, tweets.next());
+            count++;
+
+            if (chars.length() >= CHAR_BLOCK) {
+               encode(false);
+            }
+         }
+         formatter.finish(chars);
+         encode(true);
+
+         return count;
+      }
+
+      /**
+       * Encode everything that has been formatted so far.
+       *
+       * @param endOfInput True if nothing else will be written.
+       */
+      private void encode(boolean endOfInput) throws IOException {
+         int length = chars.length();
+         if (charArray.length < length) {
+            charArray = new char[length];
+         }
+         chars.getChars(0, length, charArray, 0);
+
+         CharBuffer in = CharBuffer.wrap(charArray, 0, length);
+         while (encoder.encode(in, bytes, endOfInput).isOverflow()) {
+            drain();
+         }
+
+         if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+               drain();
+            }
+            drain();
+         }
+
+         // Half of a surrogate pair may be left for next time.
+         chars.delete(0, in.position());
+      }
+
+      /**
+       * Write out the encoded bytes.
+       */
+      private void drain() throws IOException {
+         bytes.flip();
+
+         if (gzipStream != null) {
+            gzipStream.write(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                             bytes.remaining());
+         } else {
+            while (bytes.hasRemaining()) {
+               channel.write(bytes);
+            }
+         }
+
+         bytes.clear();
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public void close() throws IOException {
+         if (gzipStream != null) {
+            gzipStream.close();
+         } else {
+            channel.close();
+         }
+      }
+   }
+}
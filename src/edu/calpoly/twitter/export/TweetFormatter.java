@@ -0,0 +1,64 @@
+package edu.calpoly.twitter.export;
+
+import edu.calpoly.twitter.store.TweetData;
+
+/**
+ * Turns tweets into text for an export.
+ * Everything is appended to a StringBuilder that the caller reuses,
+ *  so formatting a tweet does not make any Strings of its own.
+ *
+ * A formatter may keep state from tweet to tweet (eg. SQL batches),
+ *  so each stream of tweets needs its own formatter.
+ */
+public abstract class TweetFormatter {
+   /**
+    * The columns, in the order that every format writes them.
+    */
+   public static final String[] COLUMNS =
+         {"twitter_id", "published", "content", "source", "lang", "author", "place", "geo"};
+
+   protected static final int NUM_TEXT_FIELDS = COLUMNS.length - 2;
+
+   /**
+    * Write anything that goes before the first tweet.
+    *
+    * @param first True if this is the start of the whole export (not just a chunk of it).
+    */
+   public abstract void start(StringBuilder out, boolean first);
+
+   public abstract void tweet(StringBuilder out, TweetData tweet);
+
+   /**
+    * Write anything that goes after the last tweet.
+    */
+   public abstract void finish(StringBuilder out);
+
+   /**
+    * Get how many tweets go together (eg. in one statement).
+    * Parallel exports only cut chunks on a multiple of this,
+    *  so they come out the same as serial ones.
+    */
+   public int getGroupSize() {
+      return 1;
+   }
+
+   /**
+    * Get the text fields of a tweet, in column order (after twitter_id and published).
+    */
+   protected static String getField(TweetData tweet, int field) {
+      switch (field) {
+         case 0:
+            return tweet.getContent();
+         case 1:
+            return tweet.getSource();
+         case 2:
+            return tweet.getLang();
+         case 3:
+            return tweet.getAuthor();
+         case 4:
+            return tweet.getPlace();
+         default:
+            return tweet.getGeo();
+      }
+   }
+}
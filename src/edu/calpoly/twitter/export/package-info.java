@@ -0,0 +1,4 @@
+/**
+ * Writing tweets out in bulk (CSV, JSON Lines, and SQL).
+ */
+package edu.calpoly.twitter.export;
@@ -0,0 +1,57 @@
+package edu.calpoly.twitter.stats;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.store.QueryTagStore;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.store.TweetStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows every tweet that goes through to another store to some TweetListeners
+ *  (eg. FrameAggregator and TrendTracker).
+ * Tweets are recorded as they are given to the store, so a tweet that the store
+ *  throws out as a duplicate is still counted.
+ */
+public class AggregatingTweetStore implements QueryTagStore {
+   private final TweetStore store;
+   private final List<TweetListener> listeners;
+
+   public AggregatingTweetStore(TweetStore store, List<TweetListener> listeners) {
+      this.store = store;
+      this.listeners = new ArrayList<TweetListener>(listeners);
+   }
+
+   public AggregatingTweetStore(TweetStore store, TweetListener listener) {
+      this(store, Collections.singletonList(listener));
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public String getLastTweetId(QueryTargetInfo info) {
+      return store.getLastTweetId(info);
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+      // Once the store has them, they are not ours to look at.
+      for (TweetListener listener : listeners) {
+         listener.record(info, data);
+      }
+      return store.insertTweets(info, data);
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void addQueryTag(QueryTargetInfo info, int index, List<String> twitterIds) {
+      if (store instanceof QueryTagStore) {
+         ((QueryTagStore)store).addQueryTag(info, index, twitterIds);
+      }
+   }
+}
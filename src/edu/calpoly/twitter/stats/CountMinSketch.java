@@ -0,0 +1,75 @@
+package edu.calpoly.twitter.stats;
+
+/**
+ * Approximate counts for any number of distinct keys in a fixed amount of memory.
+ * Each key is counted in one cell of each of |depth| rows, and its estimate is the smallest
+ *  of those cells.
+ * Estimates are never low, and are high by at most about (total / width) with
+ *  a probability that shrinks exponentially with depth.
+ *
+ * Keys are 64 bit hashes (see Tokenizer).
+ * Not safe for use from multiple threads.
+ */
+public class CountMinSketch {
+   private final int width;
+   private final int depth;
+
+   /**
+    * Row after row.
+    */
+   private final int[] cells;
+
+   /**
+    * @param width The number of cells in each row (rounded up to a power of two).
+    * @param depth The number of rows.
+    */
+   public CountMinSketch(int width, int depth) {
+      this.width = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+      this.depth = depth;
+
+      cells = new int[this.width * depth];
+   }
+
+   public void add(long key, int count) {
+      for (int row = 0; row < depth; row++) {
+         cells[cell(key, row)] += count;
+      }
+   }
+
+   public int estimate(long key) {
+      int rtn = Integer.MAX_VALUE;
+
+      for (int row = 0; row < depth; row++) {
+         rtn = Math.min(rtn, cells[cell(key, row)]);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Add every count in |other| (which must be the same size) to this one.
+    *
+    * @param sign 1 to add, -1 to subtract.
+    */
+   public void merge(CountMinSketch other, int sign) {
+      for (int i = 0; i < cells.length; i++) {
+         cells[i] += sign * other.cells[i];
+      }
+   }
+
+   public void clear() {
+      for (int i = 0; i < cells.length; i++) {
+         cells[i] = 0;
+      }
+   }
+
+   /**
+    * Each row uses a different mix of two halves of the key (double hashing).
+    */
+   private int cell(long key, int row) {
+      int low = (int)key;
+      int high = (int)(key >>> 32) | 1;
+
+      return row * width + ((low + row * high) & (width - 1));
+   }
+}
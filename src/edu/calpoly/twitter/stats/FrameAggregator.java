@@ -0,0 +1,153 @@
+package edu.calpoly.twitter.stats;
+
+import edu.calpoly.twitter.JSONTwitterGatherer;
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps live tweet counts by query, language, and source (see FrameSeries),
+ *  bucketed by when the tweets were published.
+ * This replaces rescanning every tweet to get counts over time:
+ *  any range can be counted in constant time without touching the tweets.
+ *
+ * Each query also gets a query.NAME.tweetsLastHour gauge.
+ *
+ * There is a limit to how many series are kept (AGG_MAX_SERIES),
+ *  anything past that is counted under OTHER (for each kind).
+ * It is safe to use from multiple threads.
+ */
+public class FrameAggregator implements TweetListener {
+   public static final String QUERY = "query";
+   public static final String LANG = "lang";
+   public static final String SOURCE = "source";
+
+   /**
+    * The name that series past the limit are counted under.
+    */
+   public static final String OTHER = "<other>";
+
+   private final int frames;
+   private final int hours;
+   private final int days;
+   private final int maxSeries;
+
+   private final ConcurrentMap<String, FrameSeries> series;
+
+   /**
+    * Hold AGG_FRAMES (default 1440) frames of SEC_PER_FRAME, AGG_HOURS (default 336) hours,
+    *  and AGG_DAYS (default 366) days for up to AGG_MAX_SERIES (default 1000) series.
+    */
+   public FrameAggregator() {
+      this(Props.getInt("AGG_FRAMES", 1440), Props.getInt("AGG_HOURS", 336),
+           Props.getInt("AGG_DAYS", 366), Props.getInt("AGG_MAX_SERIES", 1000));
+   }
+
+   public FrameAggregator(int frames, int hours, int days, int maxSeries) {
+      this.frames = frames;
+      this.hours = hours;
+      this.days = days;
+      this.maxSeries = maxSeries;
+
+      series = new ConcurrentHashMap<String, FrameSeries>();
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void record(QueryTargetInfo info, List<TweetData> tweets) {
+      FrameSeries querySeries = getOrCreate(QUERY, info.query);
+
+      for (TweetData tweet : tweets) {
+         querySeries.add(tweet.published, 1);
+         getOrCreate(LANG, tweet.getLang()).add(tweet.published, 1);
+         getOrCreate(SOURCE, tweet.getSource()).add(tweet.published, 1);
+      }
+   }
+
+   /**
+    * Get the number of tweets published in [fromSec, toSec] (inclusive).
+    * See FrameSeries.count() for how old ranges are rounded.
+    *
+    * @param kind QUERY, LANG, or SOURCE.
+    */
+   public long count(String kind, String name, long fromSec, long toSec) {
+      FrameSeries counts = series.get(key(kind, name));
+      return counts == null ? 0 : counts.count(fromSec, toSec);
+   }
+
+   /**
+    * Get the number of tweets published in the last |windowSec| seconds.
+    */
+   public long countRecent(String kind, String name, long windowSec) {
+      long now = System.currentTimeMillis() / 1000;
+      return count(kind, name, now - windowSec + 1, now);
+   }
+
+   /**
+    * Get the series for a name, or null if nothing has been counted for it.
+    */
+   public FrameSeries getSeries(String kind, String name) {
+      return series.get(key(kind, name));
+   }
+
+   /**
+    * Get all the names of a kind that have been counted.
+    */
+   public List<String> getNames(String kind) {
+      List<String> names = new ArrayList<String>();
+      String prefix = kind + ":";
+
+      for (String seriesKey : series.keySet()) {
+         if (seriesKey.startsWith(prefix)) {
+            names.add(seriesKey.substring(prefix.length()));
+         }
+      }
+
+      return names;
+   }
+
+   private FrameSeries getOrCreate(String kind, String name) {
+      String seriesKey = key(kind, name);
+      FrameSeries counts = series.get(seriesKey);
+
+      if (counts != null) {
+         return counts;
+      }
+
+      if (series.size() >= maxSeries) {
+         seriesKey = key(kind, OTHER);
+         counts = series.get(seriesKey);
+         if (counts != null) {
+            return counts;
+         }
+      }
+
+      counts = new FrameSeries(JSONTwitterGatherer.SEC_PER_FRAME, frames, hours, days);
+      FrameSeries existing = series.putIfAbsent(seriesKey, counts);
+      if (existing != null) {
+         return existing;
+      }
+
+      if (QUERY.equals(kind) && !OTHER.equals(name)) {
+         final String query = name;
+         Metrics.gauge("query." + query + ".tweetsLastHour", new Metrics.Gauge() {
+            public long get() {
+               return countRecent(QUERY, query, FrameSeries.HOUR_SEC);
+            }
+         });
+      }
+
+      return counts;
+   }
+
+   private static String key(String kind, String name) {
+      return kind + ":" + name;
+   }
+}
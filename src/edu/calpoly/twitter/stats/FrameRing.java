@@ -0,0 +1,153 @@
+package edu.calpoly.twitter.stats;
+
+/**
+ * Tweet counts for the last |capacity| frames of a fixed width, in a ring of longs.
+ *
+ * Instead of the count for each frame, the ring holds the running total up to and including
+ *  each frame, so the count over any range of frames is a single subtraction.
+ * Adding to a frame bumps the totals from that frame up to the newest one,
+ *  which is only a few slots since almost every tweet lands in the newest frame.
+ *
+ * Frames are numbered by time: frame = seconds / frameSec.
+ * Counts for frames that have rolled out of the ring are dropped.
+ * Not safe for use from multiple threads.
+ */
+public class FrameRing {
+   private final int frameSec;
+   private final int capacity;
+
+   /**
+    * The running total at each frame (frame % capacity).
+    */
+   private final long[] totals;
+
+   /**
+    * The running total just before the oldest frame in the ring.
+    */
+   private long floor;
+
+   /**
+    * The newest frame, -1 if nothing has been added.
+    */
+   private long head;
+
+   public FrameRing(int frameSec, int capacity) {
+      this.frameSec = frameSec;
+      this.capacity = capacity;
+
+      totals = new long[capacity];
+      floor = 0;
+      head = -1;
+   }
+
+   public int getFrameSec() {
+      return frameSec;
+   }
+
+   public long getFrame(long seconds) {
+      return seconds / frameSec;
+   }
+
+   /**
+    * Get the oldest frame that is still held.
+    */
+   public long getOldestFrame() {
+      return head - capacity + 1;
+   }
+
+   /**
+    * Add |count| to the frame that |seconds| falls in.
+    *
+    * @return False if the frame is too old to be held.
+    */
+   public boolean add(long seconds, long count) {
+      long frame = getFrame(seconds);
+
+      if (head == -1) {
+         head = frame;
+      } else if (frame > head) {
+         advance(frame);
+      } else if (frame < getOldestFrame()) {
+         return false;
+      }
+
+      for (long i = frame; i <= head; i++) {
+         totals[slot(i)] += count;
+      }
+
+      return true;
+   }
+
+   /**
+    * Get the count over the frames that [fromSec, toSec] fall in (inclusive).
+    * Only the frames that are still held are counted.
+    */
+   public long count(long fromSec, long toSec) {
+      if (head == -1) {
+         return 0;
+      }
+
+      long from = Math.max(getFrame(fromSec), getOldestFrame());
+      long to = Math.min(getFrame(toSec), head);
+
+      if (to < from) {
+         return 0;
+      }
+
+      long before = (from == getOldestFrame()) ? floor : totals[slot(from - 1)];
+      return totals[slot(to)] - before;
+   }
+
+   /**
+    * Get the count for each frame that [fromSec, toSec] fall in (inclusive).
+    * Frames that are not held are zero.
+    */
+   public long[] counts(long fromSec, long toSec) {
+      long from = getFrame(fromSec);
+      long to = getFrame(toSec);
+      long[] rtn = new long[(int)Math.max(0, to - from + 1)];
+
+      for (int i = 0; i < rtn.length; i++) {
+         long frameStart = (from + i) * frameSec;
+         rtn[i] = count(frameStart, frameStart);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Check if the frame that |seconds| falls in is still held
+    *  (or is newer than anything added so far).
+    */
+   public boolean covers(long seconds) {
+      return head == -1 || getFrame(seconds) >= getOldestFrame();
+   }
+
+   /**
+    * Move the head forward to |frame|.
+    * Every new frame starts out with the total of the old head (nothing added yet).
+    */
+   private void advance(long frame) {
+      long last = totals[slot(head)];
+
+      if (frame - head >= capacity) {
+         for (int i = 0; i < capacity; i++) {
+            totals[i] = last;
+         }
+         floor = last;
+      } else {
+         for (long i = head + 1; i <= frame; i++) {
+            // The slot is giving up frame (i - capacity), which is now just before the oldest.
+            floor = totals[slot(i)];
+            totals[slot(i)] = last;
+         }
+      }
+
+      head = frame;
+   }
+
+   private int slot(long frame) {
+      int slot = (int)(frame % capacity);
+      return slot < 0 ? slot + capacity : slot;
+   }
+}
@@ -0,0 +1,71 @@
+package edu.calpoly.twitter.stats;
+
+/**
+ * The tweet counts for a single thing (eg. a query or a language) over time.
+ * Counts are kept at three resolutions (tiers):
+ *  frames of SEC_PER_FRAME seconds, hours, and days.
+ * Every tweet is added to all three, so the coarse tiers are always rolled up
+ *  and hold counts for much longer than the fine one.
+ *
+ * It is safe to use from multiple threads.
+ */
+public class FrameSeries {
+   public static final int HOUR_SEC = 3600;
+   public static final int DAY_SEC = 86400;
+
+   /**
+    * Finest first.
+    */
+   private final FrameRing[] tiers;
+
+   /**
+    * @param frameSec The width of the finest frames.
+    * @param frames The number of fine frames to hold.
+    * @param hours The number of hours to hold.
+    * @param days The number of days to hold.
+    */
+   public FrameSeries(int frameSec, int frames, int hours, int days) {
+      tiers = new FrameRing[]{new FrameRing(frameSec, frames),
+                              new FrameRing(HOUR_SEC, hours),
+                              new FrameRing(DAY_SEC, days)};
+   }
+
+   public synchronized void add(long seconds, long count) {
+      for (FrameRing tier : tiers) {
+         tier.add(seconds, count);
+      }
+   }
+
+   /**
+    * Get the number of tweets in [fromSec, toSec] (inclusive).
+    * The finest tier that still holds |fromSec| is used, so ranges that go further back than
+    *  the fine frames are rounded out to whole hours (or days).
+    */
+   public synchronized long count(long fromSec, long toSec) {
+      return getTier(fromSec).count(fromSec, toSec);
+   }
+
+   /**
+    * Get the count for each frame of |frameSec| (SEC_PER_FRAME, HOUR_SEC, or DAY_SEC)
+    *  in [fromSec, toSec].
+    */
+   public synchronized long[] counts(int frameSec, long fromSec, long toSec) {
+      for (FrameRing tier : tiers) {
+         if (tier.getFrameSec() == frameSec) {
+            return tier.counts(fromSec, toSec);
+         }
+      }
+
+      throw new IllegalArgumentException("There are no frames of " + frameSec + " seconds.");
+   }
+
+   private FrameRing getTier(long seconds) {
+      for (FrameRing tier : tiers) {
+         if (tier.covers(seconds)) {
+            return tier;
+         }
+      }
+
+      return tiers[tiers.length - 1];
+   }
+}
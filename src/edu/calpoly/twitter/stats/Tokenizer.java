@@ -0,0 +1,139 @@
+package edu.calpoly.twitter.stats;
+
+/**
+ * Splits tweet text into terms without making any objects.
+ * Each term is given to a TokenSink as its bounds in the text and a 64 bit hash of its
+ *  lower case form, so callers only need to make a String for the few terms they keep.
+ *
+ * A term is a run of letters, digits, and underscores (like MultiPatternMatcher's words).
+ * A leading '#' or '@' is part of the term, so "#calpoly" and "calpoly" are different terms.
+ * Links, single letters, and common stop words (see STOP_WORDS) are skipped.
+ *
+ * Tokenizers have no state, so a single one can be shared by any number of threads.
+ */
+public class Tokenizer {
+   /**
+    * Words that are too common to ever be interesting.
+    */
+   private static final String[] STOP_WORDS = {
+      "a", "about", "after", "all", "am", "an", "and", "are", "as", "at", "be", "been", "but",
+      "by", "can", "do", "for", "from", "get", "got", "has", "have", "he", "her", "his", "how",
+      "i", "if", "im", "in", "is", "it", "its", "just", "like", "me", "my", "no", "not", "now",
+      "of", "on", "one", "or", "our", "out", "rt", "she", "so", "that", "the", "their", "them",
+      "there", "they", "this", "to", "up", "via", "was", "we", "what", "when", "who", "will",
+      "with", "you", "your"
+   };
+
+   private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+   private static final long FNV_PRIME = 0x100000001b3L;
+
+   /**
+    * The hashes of STOP_WORDS, in an open addressing table (0 is empty).
+    */
+   private static final long[] STOP_HASHES = new long[256];
+
+   static {
+      for (String word : STOP_WORDS) {
+         long hash = hash(word, 0, word.length());
+         int slot = (int)hash & (STOP_HASHES.length - 1);
+
+         while (STOP_HASHES[slot] != 0) {
+            slot = (slot + 1) & (STOP_HASHES.length - 1);
+         }
+         STOP_HASHES[slot] = hash;
+      }
+   }
+
+   /**
+    * Gets the terms from a Tokenizer.
+    */
+   public interface TokenSink {
+      /**
+       * @param text The text being tokenized.
+       * @param start The first char of the term (including any '#' or '@').
+       * @param end Just after the last char of the term.
+       * @param hash The hash of the term (the same as Tokenizer.hash()).
+       */
+      public void token(CharSequence text, int start, int end, long hash);
+   }
+
+   public void tokenize(CharSequence text, TokenSink sink) {
+      int length = text.length();
+      int i = 0;
+
+      while (i < length) {
+         char next = text.charAt(i);
+
+         if (!isWordChar(next) &&
+             !((next == '#' || next == '@') && i + 1 < length && isWordChar(text.charAt(i + 1)))) {
+            i++;
+            continue;
+         }
+
+         int start = i;
+         long hash = FNV_OFFSET;
+
+         if (!isWordChar(next)) {
+            hash = (hash ^ next) * FNV_PRIME;
+            i++;
+         }
+
+         while (i < length && isWordChar(text.charAt(i))) {
+            hash = (hash ^ Character.toLowerCase(text.charAt(i))) * FNV_PRIME;
+            i++;
+         }
+
+         // Links are not words, skip everything up to the next space.
+         if (i < length && text.charAt(i) == ':' && isLinkScheme(text, start, i)) {
+            while (i < length && !Character.isWhitespace(text.charAt(i))) {
+               i++;
+            }
+            continue;
+         }
+
+         if (i - start > 1 && !isStopWord(hash)) {
+            sink.token(text, start, i, hash);
+         }
+      }
+   }
+
+   /**
+    * Get the hash of a term (as the tokenizer would give it).
+    */
+   public static long hash(CharSequence text, int start, int end) {
+      long hash = FNV_OFFSET;
+
+      for (int i = start; i < end; i++) {
+         hash = (hash ^ Character.toLowerCase(text.charAt(i))) * FNV_PRIME;
+      }
+
+      return hash;
+   }
+
+   private static boolean isWordChar(char value) {
+      return Character.isLetterOrDigit(value) || value == '_';
+   }
+
+   private static boolean isLinkScheme(CharSequence text, int start, int end) {
+      int length = end - start;
+      return (length == 4 || length == 5) &&
+             Character.toLowerCase(text.charAt(start)) == 'h' &&
+             Character.toLowerCase(text.charAt(start + 1)) == 't' &&
+             Character.toLowerCase(text.charAt(start + 2)) == 't' &&
+             Character.toLowerCase(text.charAt(start + 3)) == 'p' &&
+             (length == 4 || Character.toLowerCase(text.charAt(start + 4)) == 's');
+   }
+
+   private static boolean isStopWord(long hash) {
+      int slot = (int)hash & (STOP_HASHES.length - 1);
+
+      while (STOP_HASHES[slot] != 0) {
+         if (STOP_HASHES[slot] == hash) {
+            return true;
+         }
+         slot = (slot + 1) & (STOP_HASHES.length - 1);
+      }
+
+      return false;
+   }
+}
@@ -0,0 +1,107 @@
+package edu.calpoly.twitter.stats;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.store.TweetData;
+import edu.calpoly.twitter.util.Props;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the trending terms and hashtags of each query's stream (see TrendingWindow).
+ * All the queries share one Tokenizer.
+ * It is safe to use from multiple threads (each query's window has its own lock).
+ */
+public class TrendTracker implements TweetListener {
+   private final Tokenizer tokenizer;
+
+   private final int windowSec;
+   private final int numBuckets;
+   private final int sketchWidth;
+   private final int sketchDepth;
+   private final int k;
+
+   private final ConcurrentMap<String, TrendingWindow> windows;
+
+   /**
+    * Use a window of TREND_WINDOW_SEC (default 3600) seconds that slides in TREND_BUCKETS
+    *  (default 6) steps, sketches of TREND_SKETCH_WIDTH (default 2048) by TREND_SKETCH_DEPTH
+    *  (default 4), and keep the top TREND_TOP_K (default 100) terms.
+    */
+   public TrendTracker() {
+      this(Props.getInt("TREND_WINDOW_SEC", 3600), Props.getInt("TREND_BUCKETS", 6),
+           Props.getInt("TREND_SKETCH_WIDTH", 2048), Props.getInt("TREND_SKETCH_DEPTH", 4),
+           Props.getInt("TREND_TOP_K", 100));
+   }
+
+   public TrendTracker(int windowSec, int numBuckets, int sketchWidth, int sketchDepth, int k) {
+      this.windowSec = windowSec;
+      this.numBuckets = numBuckets;
+      this.sketchWidth = sketchWidth;
+      this.sketchDepth = sketchDepth;
+      this.k = k;
+
+      tokenizer = new Tokenizer();
+      windows = new ConcurrentHashMap<String, TrendingWindow>();
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void record(QueryTargetInfo info, List<TweetData> tweets) {
+      TrendingWindow window = getOrCreate(info.query);
+
+      synchronized (window) {
+         for (TweetData tweet : tweets) {
+            window.add(tokenizer, tweet.getContent(), tweet.published);
+         }
+      }
+   }
+
+   /**
+    * Get the top |n| terms for a query right now, most common first.
+    * Only the top TREND_TOP_K are tracked, so asking for more than that gives back fewer.
+    */
+   public List<TrendingWindow.Trend> getTop(String query, int n) {
+      TrendingWindow window = windows.get(query);
+
+      if (window == null) {
+         return new ArrayList<TrendingWindow.Trend>();
+      }
+
+      synchronized (window) {
+         return window.getTop(n);
+      }
+   }
+
+   /**
+    * Get the estimated count of a term in a query's window (even if it is not in the top).
+    */
+   public int estimate(String query, String term) {
+      TrendingWindow window = windows.get(query);
+
+      if (window == null) {
+         return 0;
+      }
+
+      synchronized (window) {
+         return window.estimate(term);
+      }
+   }
+
+   private TrendingWindow getOrCreate(String query) {
+      TrendingWindow window = windows.get(query);
+
+      if (window == null) {
+         window = new TrendingWindow(windowSec, numBuckets, sketchWidth, sketchDepth, k);
+         TrendingWindow existing = windows.putIfAbsent(query, window);
+         if (existing != null) {
+            window = existing;
+         }
+      }
+
+      return window;
+   }
+}
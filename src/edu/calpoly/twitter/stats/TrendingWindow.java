@@ -0,0 +1,274 @@
+package edu.calpoly.twitter.stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The trending terms of a single stream over a sliding window of time.
+ *
+ * The window is cut into buckets, each with its own CountMinSketch, and a running total
+ *  sketch holds the sum of all of them.
+ * When the window slides, the oldest bucket is subtracted from the total and reused.
+ * So, memory is fixed no matter how many distinct terms show up.
+ *
+ * The top |k| terms (heavy hitters) are kept as candidates by their estimated count.
+ * A term only becomes a String when it makes it into the candidates.
+ *
+ * Buckets are picked by when the tweet was published.
+ * Tweets that are older than the window are not counted.
+ * Not safe for use from multiple threads.
+ */
+public class TrendingWindow implements Tokenizer.TokenSink {
+   private final int bucketSec;
+   private final CountMinSketch[] buckets;
+   private final CountMinSketch total;
+
+   /**
+    * The newest bucket, -1 if nothing has been added.
+    */
+   private long head;
+
+   /**
+    * The candidates for the top k.
+    */
+   private final int k;
+   private int numCandidates;
+   private final long[] hashes;
+   private final String[] terms;
+   private final int[] counts;
+
+   /**
+    * Finds a candidate by its hash: candidate index + 1, 0 is empty.
+    */
+   private final int[] index;
+
+   /**
+    * No candidate has a count below this (it may be lower than the actual smallest count).
+    */
+   private int minCount;
+
+   /**
+    * When the tweet being tokenized was published.
+    */
+   private long currentSec;
+
+   /**
+    * @param windowSec How long the window is.
+    * @param numBuckets How many pieces the window slides by.
+    * @param k The number of top terms to keep.
+    */
+   public TrendingWindow(int windowSec, int numBuckets, int sketchWidth, int sketchDepth, int k) {
+      bucketSec = Math.max(1, windowSec / numBuckets);
+
+      buckets = new CountMinSketch[numBuckets];
+      for (int i = 0; i < numBuckets; i++) {
+         buckets[i] = new CountMinSketch(sketchWidth, sketchDepth);
+      }
+      total = new CountMinSketch(sketchWidth, sketchDepth);
+      head = -1;
+
+      this.k = k;
+      numCandidates = 0;
+      hashes = new long[k];
+      terms = new String[k];
+      counts = new int[k];
+      index = new int[Integer.highestOneBit(Math.max(1, k * 4 - 1)) << 1];
+      minCount = 0;
+   }
+
+   /**
+    * Count the terms in |text|.
+    *
+    * @param seconds When the text was published.
+    */
+   public void add(Tokenizer tokenizer, CharSequence text, long seconds) {
+      long bucket = seconds / bucketSec;
+
+      if (head == -1) {
+         head = bucket;
+      } else if (bucket > head) {
+         slide(bucket);
+      } else if (bucket <= head - buckets.length) {
+         return;
+      }
+
+      currentSec = seconds;
+      tokenizer.tokenize(text, this);
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void token(CharSequence text, int start, int end, long hash) {
+      buckets[slot(currentSec / bucketSec)].add(hash, 1);
+      total.add(hash, 1);
+
+      int count = total.estimate(hash);
+      int candidate = find(hash);
+
+      if (candidate != -1) {
+         counts[candidate] = count;
+         return;
+      }
+
+      if (numCandidates < k) {
+         candidate = numCandidates++;
+      } else {
+         if (count <= minCount) {
+            return;
+         }
+
+         candidate = smallest();
+         minCount = counts[candidate];
+         if (count <= minCount) {
+            return;
+         }
+      }
+
+      hashes[candidate] = hash;
+      terms[candidate] = text.subSequence(start, end).toString().toLowerCase();
+      counts[candidate] = count;
+      rebuildIndex();
+
+      if (numCandidates == k) {
+         minCount = counts[smallest()];
+      }
+   }
+
+   /**
+    * Get the top |n| terms in the window, most common first.
+    */
+   public List<Trend> getTop(int n) {
+      List<Trend> rtn = new ArrayList<Trend>();
+
+      for (int i = 0; i < numCandidates; i++) {
+         int count = total.estimate(hashes[i]);
+         if (count > 0) {
+            rtn.add(new Trend(terms[i], count));
+         }
+      }
+
+      Collections.sort(rtn, new Comparator<Trend>() {
+         public int compare(Trend a, Trend b) {
+            return Integer.compare(b.getCount(), a.getCount());
+         }
+      });
+
+      return rtn.subList(0, Math.min(n, rtn.size()));
+   }
+
+   /**
+    * Get the estimated count of a term in the window.
+    */
+   public int estimate(String term) {
+      return total.estimate(Tokenizer.hash(term, 0, term.length()));
+   }
+
+   /**
+    * Move the window forward so that |bucket| is the newest.
+    * The counts of the candidates can only go down, so they are all estimated again
+    *  and the ones that are gone are dropped.
+    */
+   private void slide(long bucket) {
+      long steps = Math.min(bucket - head, buckets.length);
+
+      for (long i = 0; i < steps; i++) {
+         CountMinSketch expired = buckets[slot(bucket - i)];
+         total.merge(expired, -1);
+         expired.clear();
+      }
+      head = bucket;
+
+      int kept = 0;
+      for (int i = 0; i < numCandidates; i++) {
+         int count = total.estimate(hashes[i]);
+
+         if (count > 0) {
+            hashes[kept] = hashes[i];
+            terms[kept] = terms[i];
+            counts[kept] = count;
+            kept++;
+         }
+      }
+      Arrays.fill(terms, kept, numCandidates, null);
+      numCandidates = kept;
+
+      rebuildIndex();
+      minCount = (numCandidates == k) ? counts[smallest()] : 0;
+   }
+
+   private int find(long hash) {
+      int mask = index.length - 1;
+      int slot = (int)(hash >>> 32) & mask;
+
+      while (index[slot] != 0) {
+         if (hashes[index[slot] - 1] == hash) {
+            return index[slot] - 1;
+         }
+         slot = (slot + 1) & mask;
+      }
+
+      return -1;
+   }
+
+   /**
+    * The candidates only change when a term is swapped in (or the window slides),
+    *  so the index is just built again.
+    */
+   private void rebuildIndex() {
+      int mask = index.length - 1;
+      Arrays.fill(index, 0);
+
+      for (int i = 0; i < numCandidates; i++) {
+         int slot = (int)(hashes[i] >>> 32) & mask;
+         while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+         }
+         index[slot] = i + 1;
+      }
+   }
+
+   private int smallest() {
+      int rtn = 0;
+
+      for (int i = 1; i < numCandidates; i++) {
+         if (counts[i] < counts[rtn]) {
+            rtn = i;
+         }
+      }
+
+      return rtn;
+   }
+
+   private int slot(long bucket) {
+      return (int)(bucket % buckets.length);
+   }
+
+   /**
+    * A term and about how many times it was seen in the window.
+    */
+   public static class Trend {
+      private final String term;
+      private final int count;
+
+      public Trend(String term, int count) {
+         this.term = term;
+         this.count = count;
+      }
+
+      public String getTerm() {
+         return term;
+      }
+
+      public int getCount() {
+         return count;
+      }
+
+      public String toString() {
+         return term + " (" + count + ")";
+      }
+   }
+}
@@ -0,0 +1,18 @@
+package edu.calpoly.twitter.stats;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.store.TweetData;
+
+import java.util.List;
+
+/**
+ * Something that watches the tweets going into a store (see AggregatingTweetStore).
+ * Listeners are called from whatever thread is inserting, so they must be thread safe.
+ */
+public interface TweetListener {
+   /**
+    * Look at tweets that were gathered for |info|.
+    * The tweets must not be changed or held on to.
+    */
+   public void record(QueryTargetInfo info, List<TweetData> tweets);
+}
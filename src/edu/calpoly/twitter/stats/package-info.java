@@ -0,0 +1,4 @@
+/**
+ * Live statistics over the tweets that are being stored.
+ */
+package edu.calpoly.twitter.stats;
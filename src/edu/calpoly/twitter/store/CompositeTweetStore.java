@@ -0,0 +1,487 @@
+package edu.calpoly.twitter.store;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Backoff;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends every batch of tweets to several stores at once
+ *  (eg. a database, an in-memory index, and an archive).
+ *
+ * One store is authoritative: it is written to by the inserting thread,
+ *  and it alone decides the inserted count and getLastTweetId().
+ * Every other store is a sink with its own bounded queue and worker thread,
+ *  so a batch only costs the inserter the authoritative store's time plus a few enqueues,
+ *  instead of the sum of every store's time.
+ *
+ * Each sink has a Policy for when its queue is full or a batch fails.
+ * Spilled batches are written to a file in the spill directory (see TweetCodec),
+ *  and are given to the sink again once its queue is empty.
+ *
+ * Call flush() to wait for every sink to catch up, and close() when done.
+ * Sink workers are daemon threads, so batches still queued when the JVM exits without
+ *  a close() are lost.
+ */
+public class CompositeTweetStore implements QueryTagStore {
+   /**
+    * How long a sink waits on an empty queue before checking for spilled batches.
+    */
+   private static final long POLL_MS = 100;
+
+   /**
+    * What a sink does when its queue is full or it fails to insert a batch.
+    */
+   public enum Policy {
+      /**
+       * Wait for room in the queue, and retry failed batches until they go through.
+       * Nothing is lost, but a slow sink slows down the inserter.
+       */
+      BLOCK,
+      /**
+       * Throw the batch away (and count it).
+       */
+      DROP,
+      /**
+       * Write the batch to disk and try it again later.
+       */
+      SPILL
+   }
+
+   private final TweetStore authoritative;
+   private final List<Sink> sinks;
+
+   /**
+    * Every query that has been seen, so spilled batches can be given back their info.
+    */
+   private final ConcurrentMap<String, QueryTargetInfo> infos;
+
+   private final File spillDir;
+   private final Backoff backoff;
+
+   /**
+    * Spill into STORE_SPILL_DIR (default spill).
+    */
+   public CompositeTweetStore(TweetStore authoritative) {
+      this(authoritative, new File(Props.getString("STORE_SPILL_DIR", "spill")));
+   }
+
+   public CompositeTweetStore(TweetStore authoritative, File spillDir) {
+      this.authoritative = authoritative;
+      this.spillDir = spillDir;
+
+      sinks = new ArrayList<Sink>();
+      infos = new ConcurrentHashMap<String, QueryTargetInfo>();
+      backoff = new Backoff(Props.getInt("RETRY_BASE_MS", 1000),
+                            Props.getInt("RETRY_MAX_MS", 60000), Integer.MAX_VALUE);
+   }
+
+   /**
+    * Add a store that gets a copy of every batch.
+    * Sinks should all be added before any tweets are inserted.
+    *
+    * @param name A name for the sink (used for its thread, metrics, and spill file).
+    * @param queueSize The number of batches that can wait for the sink.
+    */
+   public synchronized void addSink(String name, TweetStore store, Policy policy, int queueSize) {
+      Sink sink = new Sink(name, store, policy, queueSize);
+      sinks.add(sink);
+      sink.start();
+   }
+
+   /**
+    * @inheritDoc
+    * Only the authoritative store is asked.
+    */
+   public String getLastTweetId(QueryTargetInfo info) {
+      return authoritative.getLastTweetId(info);
+   }
+
+   /**
+    * @inheritDoc
+    * The count is from the authoritative store.
+    */
+   public int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+      infos.putIfAbsent(info.query, info);
+
+      // Each store gets its own list, since a store owns what it is given.
+      for (Sink sink : sinks) {
+         sink.offer(new Batch(info, new ArrayList<TweetData>(data)));
+      }
+
+      return authoritative.insertTweets(info, data);
+   }
+
+   /**
+    * @inheritDoc
+    * Sinks are tagged right away, not through their queues.
+    * Tweets in a sink's spilled batches do not get tags that are added while they are on disk.
+    */
+   public void addQueryTag(QueryTargetInfo info, int index, List<String> twitterIds) {
+      if (authoritative instanceof QueryTagStore) {
+         ((QueryTagStore)authoritative).addQueryTag(info, index, twitterIds);
+      }
+
+      for (Sink sink : sinks) {
+         if (sink.store instanceof QueryTagStore) {
+            ((QueryTagStore)sink.store).addQueryTag(info, index, twitterIds);
+         }
+      }
+   }
+
+   /**
+    * Wait for every sink to store everything it has been given (including spilled batches).
+    */
+   public void flush() throws InterruptedException {
+      for (Sink sink : sinks) {
+         sink.flush();
+      }
+   }
+
+   /**
+    * Flush, then stop the sinks.
+    * Anything that is still spilled (eg. for a sink that keeps failing) stays on disk
+    *  and will be picked up by a sink of the same name next time.
+    */
+   public void close() {
+      try {
+         flush();
+      } catch (InterruptedException ex) {
+         Logger.logWarn("Interrupted while flushing the sinks.");
+         Thread.currentThread().interrupt();
+      }
+
+      for (Sink sink : sinks) {
+         sink.stop();
+      }
+   }
+
+   /**
+    * A batch for a sink.
+    */
+   private static class Batch {
+      public final QueryTargetInfo info;
+      public final List<TweetData> tweets;
+
+      public Batch(QueryTargetInfo info, List<TweetData> tweets) {
+         this.info = info;
+         this.tweets = tweets;
+      }
+   }
+
+   /**
+    * A store with its own queue and worker.
+    */
+   private class Sink implements Runnable {
+      private final String name;
+      private final TweetStore store;
+      private final Policy policy;
+      private final BlockingQueue<Batch> queue;
+      private final Thread worker;
+      private final File spillFile;
+      private final File replayFile;
+
+      /**
+       * Guards the spill and replay files (a lock rather than a monitor, since it is held
+       *  while the spill file is written).
+       */
+      private final ReentrantLock spillLock;
+
+      private volatile boolean running;
+
+      /**
+       * Batches that are in the queue or being delivered (not ones that are spilled).
+       */
+      private int pending;
+
+      /**
+       * The number of times the spill file has been replayed,
+       *  and how many replays in a row had batches fail.
+       */
+      private int replays;
+      private int failedReplays;
+      private long nextReplayMillis;
+
+      private final Metrics.Counter dropped;
+      private final Metrics.Counter spilled;
+      private final Metrics.Counter failures;
+
+      public Sink(String name, TweetStore store, Policy policy, int queueSize) {
+         this.name = name;
+         this.store = store;
+         this.policy = policy;
+
+         queue = new ArrayBlockingQueue<Batch>(queueSize);
+         worker = new Thread(this, "sink-" + name);
+         worker.setDaemon(true);
+         spillFile = new File(spillDir, name + ".spill");
+         replayFile = new File(spillDir, name + ".replay");
+         spillLock = new ReentrantLock();
+         running = true;
+
+         pending = 0;
+         replays = 0;
+         failedReplays = 0;
+         nextReplayMillis = 0;
+
+         dropped = Metrics.counter("store.sink." + name + ".dropped");
+         spilled = Metrics.counter("store.sink." + name + ".spilled");
+         failures = Metrics.counter("store.sink." + name + ".failures");
+         Metrics.gauge("store.sink." + name + ".queueDepth", new Metrics.Gauge() {
+            public long get() {
+               return queue.size();
+            }
+         });
+      }
+
+      public void start() {
+         worker.start();
+      }
+
+      public void offer(Batch batch) {
+         addPending(1);
+
+         switch (policy) {
+            case BLOCK:
+               try {
+                  queue.put(batch);
+               } catch (InterruptedException ex) {
+                  Thread.currentThread().interrupt();
+                  Logger.logWarn("Interrupted while waiting on the sink " + name +
+                                 ", a batch was dropped.");
+                  dropped.add(batch.tweets.size());
+                  addPending(-1);
+               }
+               break;
+            case DROP:
+               if (!queue.offer(batch)) {
+                  dropped.add(batch.tweets.size());
+                  addPending(-1);
+               }
+               break;
+            default:
+               if (!queue.offer(batch)) {
+                  spill(batch);
+                  addPending(-1);
+               }
+               break;
+         }
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public void run() {
+         while (running || !queue.isEmpty()) {
+            try {
+               Batch batch = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+
+               if (batch != null) {
+                  deliver(batch);
+                  addPending(-1);
+               } else if (hasSpill() && System.currentTimeMillis() >= nextReplayMillis) {
+                  replay();
+               }
+            } catch (InterruptedException ex) {
+               break;
+            }
+         }
+      }
+
+      /**
+       * Wait for the queue to empty, and then for one pass over anything that was spilled.
+       */
+      public synchronized void flush() throws InterruptedException {
+         while (pending > 0) {
+            wait();
+         }
+
+         int target = replays + 1;
+         while (running && hasSpill() && replays < target) {
+            wait();
+         }
+      }
+
+      public void stop() {
+         running = false;
+
+         try {
+            worker.join();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      /**
+       * Give a batch to the store, using the policy if it fails.
+       *
+       * @return True if the store took the batch.
+       */
+      private boolean deliver(Batch batch) throws InterruptedException {
+         int attempt = 0;
+
+         while (true) {
+            attempt++;
+
+            try {
+               store.insertTweets(batch.info, batch.tweets);
+               return true;
+            } catch (Exception ex) {
+               failures.inc();
+
+               if (policy == Policy.SPILL) {
+                  Logger.logError("The sink " + name + " failed, spilling a batch.", ex);
+                  spill(batch);
+                  return false;
+               } else if (policy == Policy.DROP || !running) {
+                  Logger.logError("The sink " + name + " failed, dropping a batch.", ex);
+                  dropped.add(batch.tweets.size());
+                  return false;
+               }
+
+               long delay = backoff.getDelay(attempt);
+               Logger.logWarn(String.format("The sink %s failed (attempt %d), retrying in %d ms.",
+                                            name, attempt, delay));
+               Thread.sleep(delay);
+            }
+         }
+      }
+
+      /**
+       * Put a batch on disk to try later.
+       */
+      private void spill(Batch batch) {
+         spillLock.lock();
+         try {
+            try {
+               spillDir.mkdirs();
+               DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(spillFile, true)));
+
+               try {
+                  out.writeUTF(batch.info.query);
+                  out.writeInt(batch.tweets.size());
+                  for (TweetData tweet : batch.tweets) {
+                     TweetCodec.write(out, tweet);
+                  }
+               } finally {
+                  out.close();
+               }
+
+               spilled.add(batch.tweets.size());
+            } catch (IOException ex) {
+               Logger.logError("Unable to spill a batch for the sink " + name + ", dropping it.",
+                               ex);
+               dropped.add(batch.tweets.size());
+            }
+         } finally {
+            spillLock.unlock();
+         }
+      }
+
+      private boolean hasSpill() {
+         spillLock.lock();
+         try {
+            return spillFile.exists() || replayFile.exists();
+         } finally {
+            spillLock.unlock();
+         }
+      }
+
+      /**
+       * Give every spilled batch to the store again.
+       * The spill file is moved aside first, so batches that fail (or that overflow
+       *  while this is going on) can be spilled again.
+       * If any batch fails, the next replay waits (see Backoff).
+       */
+      private void replay() throws InterruptedException {
+         boolean failed = false;
+
+         spillLock.lock();
+         try {
+            if (!replayFile.exists() && !spillFile.renameTo(replayFile)) {
+               Logger.logError("Unable to replay the spill file " + spillFile + ".");
+               return;
+            }
+         } finally {
+            spillLock.unlock();
+         }
+
+         try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                  new FileInputStream(replayFile)));
+
+            try {
+               while (true) {
+                  String query;
+                  try {
+                     query = in.readUTF();
+                  } catch (EOFException ex) {
+                     break;
+                  }
+
+                  int count = in.readInt();
+                  List<TweetData> tweets = new ArrayList<TweetData>(count);
+                  for (int i = 0; i < count; i++) {
+                     tweets.add(TweetCodec.read(in));
+                  }
+
+                  QueryTargetInfo info = infos.get(query);
+                  if (info == null) {
+                     info = new QueryTargetInfo(query);
+                  }
+
+                  if (!deliver(new Batch(info, tweets))) {
+                     failed = true;
+                  }
+               }
+            } finally {
+               in.close();
+            }
+         } catch (IOException ex) {
+            Logger.logError("The spill file " + replayFile + " is damaged, the rest is lost.", ex);
+         }
+
+         spillLock.lock();
+         try {
+            if (!replayFile.delete()) {
+               Logger.logWarn("Unable to delete " + replayFile + ".");
+            }
+         } finally {
+            spillLock.unlock();
+         }
+
+         synchronized (this) {
+            replays++;
+            failedReplays = failed ? failedReplays + 1 : 0;
+            nextReplayMillis = failed ?
+                  System.currentTimeMillis() + backoff.getDelay(failedReplays) : 0;
+            notifyAll();
+         }
+      }
+
+      private synchronized void addPending(int delta) {
+         pending += delta;
+         notifyAll();
+      }
+   }
+}
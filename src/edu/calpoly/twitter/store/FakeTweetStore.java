@@ -10,6 +10,7 @@ import java.util.Set;
 /**
  * This store doesn't actually persist any data.
  * It just holds it all in a list.
+ * It is safe to use from multiple threads.
  */
 public class FakeTweetStore implements TweetStore {
    /**
@@ -33,14 +34,14 @@ public class FakeTweetStore implements TweetStore {
    /**
     * @inheritDoc
     */
-   public String getLastTweetId(QueryTargetInfo info) {
+   public synchronized String getLastTweetId(QueryTargetInfo info) {
       return "" + maxId;
    }
 
    /**
     * @inheritDoc
     */
-   public int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+   public synchronized int insertTweets(QueryTargetInfo info, List<TweetData> data) {
       int count = 0;
 
       for (TweetData tweet : data) {
@@ -63,7 +64,7 @@ public class FakeTweetStore implements TweetStore {
       return tweets;
    }
 
-   public int size() {
+   public synchronized int size() {
       return tweets.size();
    }
 }
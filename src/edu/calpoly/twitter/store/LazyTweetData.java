@@ -0,0 +1,259 @@
+package edu.calpoly.twitter.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A TweetData that only decodes its text fields when they are asked for.
+ * The id and published time are always filled in, everything else starts out as just
+ *  the location of the field in the raw response (see PageBuffer).
+ * So, consumers that only count or dedup tweets never pay for Strings they don't use.
+ *
+ * The text fields must be read through the getters: the public fields stay null until
+ *  the getter for them is called.
+ * Objects (place and geo) are given back as the JSON text that was in the response.
+ *
+ * Once the page buffer is recycled, the tweet keeps a copy of just the bytes that it still
+ *  needs (see detach()), so it is always safe to use.
+ */
+public class LazyTweetData extends TweetData {
+   public static final int CONTENT = 0;
+   public static final int SOURCE = 1;
+   public static final int LANG = 2;
+   public static final int AUTHOR = 3;
+   public static final int PLACE = 4;
+   public static final int GEO = 5;
+
+   private static final int NUM_FIELDS = 6;
+
+   /**
+    * Used for fields that were not in the response (the same defaults as the eager decoder).
+    */
+   private static final String[] DEFAULTS = {"", "<No Source>", "en", "Jon Doe", "", ""};
+
+   private byte[] bytes;
+
+   /**
+    * The start (inclusive) and end (exclusive) of each field in |bytes|.
+    * A start of -1 means the field is not there.
+    */
+   private final int[] spans;
+
+   /**
+    * Bit masks (by field) of what is raw JSON (not a string) and what has been decoded.
+    */
+   private int raw;
+   private int decoded;
+
+   LazyTweetData(byte[] bytes) {
+      this.bytes = bytes;
+
+      spans = new int[NUM_FIELDS * 2];
+      Arrays.fill(spans, -1);
+      raw = 0;
+      decoded = 0;
+   }
+
+   /**
+    * Set where a field is in the buffer.
+    *
+    * @param start The first byte of the value.
+    *  For strings this is just after the opening quote.
+    * @param end Just after the last byte of the value.
+    *  For strings this is the closing quote.
+    * @param isRaw True if the value is not a string and should be kept as JSON.
+    */
+   public synchronized void setSpan(int field, int start, int end, boolean isRaw) {
+      spans[field * 2] = start;
+      spans[field * 2 + 1] = end;
+
+      if (isRaw) {
+         raw |= (1 << field);
+      } else {
+         raw &= ~(1 << field);
+      }
+   }
+
+   /**
+    * Check if a field was in the response.
+    */
+   public synchronized boolean hasField(int field) {
+      return spans[field * 2] != -1;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getContent() {
+      if (!isDecoded(CONTENT)) {
+         content = decode(CONTENT);
+      }
+      return content;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getSource() {
+      if (!isDecoded(SOURCE)) {
+         source = decode(SOURCE);
+      }
+      return source;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getLang() {
+      if (!isDecoded(LANG)) {
+         lang = decode(LANG);
+      }
+      return lang;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getAuthor() {
+      if (!isDecoded(AUTHOR)) {
+         author = decode(AUTHOR);
+      }
+      return author;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getPlace() {
+      if (!isDecoded(PLACE)) {
+         place = decode(PLACE);
+      }
+      return place;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getGeo() {
+      if (!isDecoded(GEO)) {
+         geo = decode(GEO);
+      }
+      return geo;
+   }
+
+   /**
+    * Stop pointing into the shared buffer.
+    * The bytes for the fields that have not been decoded yet are packed into
+    *  a single array of their own.
+    */
+   synchronized void detach() {
+      int size = 0;
+
+      for (int i = 0; i < NUM_FIELDS; i++) {
+         if (!isDecoded(i) && spans[i * 2] != -1) {
+            size += spans[i * 2 + 1] - spans[i * 2];
+         }
+      }
+
+      byte[] packed = new byte[size];
+      int offset = 0;
+
+      for (int i = 0; i < NUM_FIELDS; i++) {
+         if (!isDecoded(i) && spans[i * 2] != -1) {
+            int fieldLength = spans[i * 2 + 1] - spans[i * 2];
+
+            System.arraycopy(bytes, spans[i * 2], packed, offset, fieldLength);
+            spans[i * 2] = offset;
+            spans[i * 2 + 1] = offset + fieldLength;
+            offset += fieldLength;
+         }
+      }
+
+      bytes = packed;
+   }
+
+   private boolean isDecoded(int field) {
+      return (decoded & (1 << field)) != 0;
+   }
+
+   private String decode(int field) {
+      decoded |= (1 << field);
+
+      int start = spans[field * 2];
+      int end = spans[field * 2 + 1];
+
+      if (start == -1) {
+         return DEFAULTS[field];
+      }
+
+      if ((raw & (1 << field)) != 0) {
+         return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+      }
+
+      return decodeString(bytes, start, end);
+   }
+
+   /**
+    * Decode the inside of a JSON string (no quotes).
+    */
+   public static String decodeString(byte[] bytes, int start, int end) {
+      int escape = indexOf(bytes, start, end, (byte)'\\');
+
+      // Most strings don't have any escapes.
+      if (escape == -1) {
+         return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+      }
+
+      StringBuilder rtn = new StringBuilder(end - start);
+      int runStart = start;
+
+      while (escape != -1) {
+         rtn.append(new String(bytes, runStart, escape - runStart, StandardCharsets.UTF_8));
+
+         char escaped = (char)bytes[escape + 1];
+         runStart = escape + 2;
+
+         switch (escaped) {
+            case 'b':
+               rtn.append('\b');
+               break;
+            case 'f':
+               rtn.append('\f');
+               break;
+            case 'n':
+               rtn.append('\n');
+               break;
+            case 'r':
+               rtn.append('\r');
+               break;
+            case 't':
+               rtn.append('\t');
+               break;
+            case 'u':
+               rtn.append((char)Integer.parseInt(
+                     new String(bytes, escape + 2, 4, StandardCharsets.US_ASCII), 16));
+               runStart = escape + 6;
+               break;
+            default:
+               // '"', '\\', and '/' are just themselves.
+               rtn.append(escaped);
+               break;
+         }
+
+         escape = indexOf(bytes, runStart, end, (byte)'\\');
+      }
+
+      rtn.append(new String(bytes, runStart, end - runStart, StandardCharsets.UTF_8));
+      return rtn.toString();
+   }
+
+   private static int indexOf(byte[] bytes, int start, int end, byte target) {
+      for (int i = start; i < end; i++) {
+         if (bytes[i] == target) {
+            return i;
+         }
+      }
+
+      return -1;
+   }
+}
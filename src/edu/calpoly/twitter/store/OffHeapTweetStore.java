@@ -0,0 +1,646 @@
+package edu.calpoly.twitter.store;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.OffHeapLongMap;
+import edu.calpoly.twitter.util.Props;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A TweetStore that keeps its tweets outside of the heap, so that it can hold tens of
+ *  millions of them without making the garbage collector work any harder.
+ *
+ * Tweets are serialized into slabs (direct ByteBuffers of |slabBytes| each), one after another.
+ * The id of each tweet maps to where it is with an OffHeapLongMap, which is also off-heap.
+ * So, the heap only holds a handful of objects per slab, however many tweets there are.
+ *
+ * Tweets are read back with a Cursor, which is a flyweight: it reads fields straight out of
+ *  the slabs and one cursor can be moved over any number of tweets.
+ *
+ * Memory is given back a slab at a time, oldest first (see freeOldestSlab()).
+ * The native memory behind a slab is released when the garbage collector collects its buffer
+ *  (Java has no way to free a direct buffer right away).
+ *
+ * Record format: record length (int), id (long), then the tweet as TweetCodec writes it.
+ * So every field of the tweet makes it through the store, not just the ones from Twitter.
+ *
+ * Queries that are tagged onto a tweet after it is stored (see QueryTagStore) are kept in
+ *  a second OffHeapLongMap, as a word of bits for queries 0 to 63.
+ * Tags for later queries can not be added (they are counted in store.queryTagsDropped).
+ *
+ * It is safe to use from multiple threads.
+ * A record never changes once it is written, so a cursor can read while other threads insert.
+ */
+public class OffHeapTweetStore implements QueryTagStore {
+   private static final int HEADER_BYTES = 4 + 8;
+
+   /**
+    * Where the first string is in a record (after the header, published, and duplicates).
+    */
+   private static final int STRINGS_OFFSET = HEADER_BYTES + 4 + 4;
+
+   /**
+    * The number of strings in a record (the queries come after them).
+    */
+   private static final int STRING_COUNT = 10;
+
+   private final int slabBytes;
+
+   /**
+    * The slabs in the order they were made.
+    * Freed slabs are left as null so that the slab numbers in the index stay valid.
+    */
+   private final List<ByteBuffer> slabs;
+
+   /**
+    * The first slab that has not been freed.
+    */
+   private int firstSlab;
+
+   /**
+    * Twitter id to location (slab number << 32 | offset in the slab).
+    */
+   private final OffHeapLongMap index;
+
+   /**
+    * Twitter id to the queries added by addQueryTag() (bit i is query i).
+    */
+   private final OffHeapLongMap addedQueries;
+
+   private final Metrics.Counter queryTagsDropped;
+
+   /**
+    * Writes into whichever slab |slabOutput| is pointed at.
+    */
+   private final SlabOutputStream slabOutput;
+   private final DataOutputStream out;
+
+   private int size;
+   private long maxId;
+
+   /**
+    * Use slabs of OFFHEAP_SLAB_MB (default 64) MB.
+    */
+   public OffHeapTweetStore() {
+      this(Props.getInt("OFFHEAP_SLAB_MB", 64) * 1024 * 1024);
+   }
+
+   /**
+    * @param slabBytes The size of each slab.
+    *  A single tweet must fit in a slab, so this should be at least a few KB.
+    */
+   public OffHeapTweetStore(int slabBytes) {
+      this.slabBytes = slabBytes;
+
+      slabs = new ArrayList<ByteBuffer>();
+      firstSlab = 0;
+      index = new OffHeapLongMap(1 << 16);
+      addedQueries = new OffHeapLongMap(1 << 10);
+      queryTagsDropped = Metrics.counter("store.queryTagsDropped");
+
+      slabOutput = new SlabOutputStream();
+      out = new DataOutputStream(slabOutput);
+
+      size = 0;
+      maxId = 0;
+
+      Metrics.gauge("store.offHeapBytes", new StoreGauge(this, true));
+      Metrics.gauge("store.size", new StoreGauge(this, false));
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getLastTweetId(QueryTargetInfo info) {
+      return "" + maxId;
+   }
+
+   /**
+    * @inheritDoc
+    * The tweets are copied out, so |data| can be dropped right away.
+    */
+   public synchronized int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+      int count = 0;
+
+      for (TweetData tweet : data) {
+         long id = Long.parseLong(tweet.twitterId);
+
+         if (index.containsKey(id)) {
+            // Another query may have found it again (after SharedTweetCache forgot it).
+            BitSet queries = tweet.queries;
+            if (queries != null && !queries.isEmpty()) {
+               addQueries(id, queries.toLongArray()[0]);
+               if (queries.length() > 64) {
+                  queryTagsDropped.add(queries.get(64, queries.length()).cardinality());
+               }
+            }
+            continue;
+         }
+
+         long location = append(id, tweet);
+         if (location == -1) {
+            continue;
+         }
+
+         index.put(id, location);
+         maxId = Math.max(maxId, id);
+         size++;
+         count++;
+      }
+
+      return count;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized void addQueryTag(QueryTargetInfo info, int index,
+                                        List<String> twitterIds) {
+      if (index >= 64) {
+         queryTagsDropped.add(twitterIds.size());
+         return;
+      }
+
+      for (String twitterId : twitterIds) {
+         long id = Long.parseLong(twitterId);
+
+         if (this.index.containsKey(id)) {
+            addQueries(id, 1L << index);
+         }
+      }
+   }
+
+   public synchronized int size() {
+      return size;
+   }
+
+   /**
+    * Get the number of bytes held outside of the heap (slabs and indexes).
+    */
+   public synchronized long getOffHeapBytes() {
+      long bytes = index.getBytes() + addedQueries.getBytes();
+
+      for (int i = firstSlab; i < slabs.size(); i++) {
+         bytes += slabs.get(i).capacity();
+      }
+
+      return bytes;
+   }
+
+   /**
+    * Get the number of slabs that are holding tweets.
+    */
+   public synchronized int getSlabCount() {
+      return slabs.size() - firstSlab;
+   }
+
+   /**
+    * Drop the oldest slab and every tweet in it.
+    * The slab that is being written to is never freed.
+    *
+    * @return The number of tweets that were dropped.
+    */
+   public synchronized int freeOldestSlab() {
+      if (slabs.size() - firstSlab <= 1) {
+         return 0;
+      }
+
+      ByteBuffer slab = slabs.get(firstSlab);
+      int dropped = 0;
+
+      for (int offset = 0; offset < slab.position(); offset += slab.getInt(offset)) {
+         index.remove(slab.getLong(offset + 4));
+         addedQueries.remove(slab.getLong(offset + 4));
+         dropped++;
+      }
+
+      slabs.set(firstSlab, null);
+      firstSlab++;
+      size -= dropped;
+
+      return dropped;
+   }
+
+   /**
+    * Get a new cursor.
+    * It starts out before the oldest tweet.
+    */
+   public Cursor cursor() {
+      return new Cursor();
+   }
+
+   /**
+    * Go over every tweet (in the order they were inserted) as TweetData.
+    * To keep the heap quiet, the same TweetData is filled in and returned every time,
+    *  so each tweet is only good until the next call to next().
+    */
+   public Iterator<TweetData> iterator() {
+      final Cursor cursor = cursor();
+
+      return new Iterator<TweetData>() {
+         private final TweetData tweet = new TweetData();
+         private boolean moved = false;
+         private boolean more = true;
+
+         public boolean hasNext() {
+            if (!moved && more) {
+               more = cursor.next();
+               moved = true;
+            }
+
+            return more;
+         }
+
+         public TweetData next() {
+            if (!hasNext()) {
+               throw new NoSuchElementException();
+            }
+
+            moved = false;
+            cursor.fill(tweet);
+            return tweet;
+         }
+
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+
+   /**
+    * Write a tweet at the end of the newest slab, starting a new slab if it does not fit.
+    *
+    * @return Where it was written, or -1 if it is too big for a slab.
+    */
+   private long append(long id, TweetData tweet) {
+      if (slabs.isEmpty() && !newSlab()) {
+         return -1;
+      }
+
+      ByteBuffer slab = slabs.get(slabs.size() - 1);
+      int start = slab.position();
+
+      if (!write(slab, id, tweet)) {
+         slab.position(start);
+
+         if (!newSlab()) {
+            return -1;
+         }
+         slab = slabs.get(slabs.size() - 1);
+         start = 0;
+
+         if (!write(slab, id, tweet)) {
+            slab.position(0);
+            Logger.logWarn("Tweet " + id + " is too big for an off-heap slab, dropping it.");
+            return -1;
+         }
+      }
+
+      return ((long)(slabs.size() - 1) << 32) | start;
+   }
+
+   /**
+    * Add to the queries of a tweet that is already stored.
+    *
+    * @param queries Bits for queries 0 to 63.
+    */
+   private void addQueries(long id, long queries) {
+      long added = addedQueries.containsKey(id) ? addedQueries.get(id) : 0;
+
+      if ((added | queries) != added) {
+         addedQueries.put(id, added | queries);
+      }
+   }
+
+   private boolean newSlab() {
+      try {
+         slabs.add(ByteBuffer.allocateDirect(slabBytes));
+         return true;
+      } catch (OutOfMemoryError ex) {
+         Logger.logError("Unable to allocate an off-heap slab.", ex);
+         return false;
+      }
+   }
+
+   /**
+    * Write a record at the slab's position.
+    *
+    * @return False if it did not fit (the slab's position is left wherever it got to).
+    */
+   private boolean write(ByteBuffer slab, long id, TweetData tweet) {
+      int start = slab.position();
+
+      if (slab.remaining() < HEADER_BYTES) {
+         return false;
+      }
+
+      slab.position(start + 4);
+      slab.putLong(id);
+
+      slabOutput.slab = slab;
+      try {
+         TweetCodec.write(out, tweet);
+         out.flush();
+      } catch (BufferOverflowException ex) {
+         return false;
+      } catch (IOException ex) {
+         // The slab never throws one.
+         throw new IllegalStateException(ex);
+      } finally {
+         slabOutput.slab = null;
+      }
+
+      slab.putInt(start, slab.position() - start);
+      return true;
+   }
+
+   /**
+    * Writes straight into a slab, so there is no intermediate copy of the record.
+    * Throws a BufferOverflowException once the slab is full.
+    */
+   private static class SlabOutputStream extends OutputStream {
+      private ByteBuffer slab;
+
+      public void write(int b) {
+         slab.put((byte)b);
+      }
+
+      public void write(byte[] bytes, int offset, int length) {
+         slab.put(bytes, offset, length);
+      }
+   }
+
+   /**
+    * Only holds a weak reference to the store, so that the metrics registry does not keep
+    *  a store (and all of its off-heap memory) alive after it is dropped.
+    */
+   private static class StoreGauge implements Metrics.Gauge {
+      private final WeakReference<OffHeapTweetStore> store;
+      private final boolean bytes;
+
+      /**
+       * @param bytes True to report getOffHeapBytes(), false to report size().
+       */
+      public StoreGauge(OffHeapTweetStore store, boolean bytes) {
+         this.store = new WeakReference<OffHeapTweetStore>(store);
+         this.bytes = bytes;
+      }
+
+      public long get() {
+         OffHeapTweetStore current = store.get();
+
+         if (current == null) {
+            return 0;
+         }
+
+         return bytes ? current.getOffHeapBytes() : current.size();
+      }
+   }
+
+   /**
+    * A movable view of a single tweet in the store.
+    * Fields are read from the slab when they are asked for.
+    *
+    * A cursor is not safe to use from multiple threads, but each thread can have its own.
+    * If the slab under a cursor is freed, the cursor can still read its current tweet,
+    *  but next() moves on to the oldest slab that is left.
+    */
+   public class Cursor {
+      /**
+       * The slab the current tweet is in (-1 before the first call to next()).
+       */
+      private int slabNumber;
+      private int offset;
+
+      /**
+       * The current slab, read with absolute gets only.
+       */
+      private ByteBuffer slab;
+
+      /**
+       * Reused for decoding strings.
+       */
+      private byte[] scratch;
+
+      private Cursor() {
+         slabNumber = -1;
+         offset = 0;
+         slab = null;
+         scratch = new byte[1024];
+      }
+
+      /**
+       * Move to the next tweet (in the order they were inserted).
+       *
+       * @return False if there are no more tweets.
+       */
+      public boolean next() {
+         synchronized (OffHeapTweetStore.this) {
+            int nextSlab = slabNumber;
+            int nextOffset = offset;
+
+            if (nextSlab < firstSlab) {
+               nextSlab = firstSlab;
+               nextOffset = 0;
+            } else {
+               nextOffset += slab.getInt(offset);
+            }
+
+            while (nextSlab < slabs.size()) {
+               ByteBuffer candidate = slabs.get(nextSlab);
+
+               if (nextOffset < candidate.position()) {
+                  slabNumber = nextSlab;
+                  offset = nextOffset;
+                  slab = candidate;
+                  return true;
+               }
+
+               nextSlab++;
+               nextOffset = 0;
+            }
+
+            return false;
+         }
+      }
+
+      /**
+       * Move to a specific tweet.
+       *
+       * @return False if the tweet is not in the store (the cursor does not move).
+       */
+      public boolean seek(long twitterId) {
+         synchronized (OffHeapTweetStore.this) {
+            long location = index.get(twitterId);
+            if (location == OffHeapLongMap.NO_VALUE) {
+               return false;
+            }
+
+            slabNumber = (int)(location >>> 32);
+            offset = (int)location;
+            slab = slabs.get(slabNumber);
+            return true;
+         }
+      }
+
+      public long getTwitterId() {
+         return slab.getLong(offset + 4);
+      }
+
+      public int getPublished() {
+         return slab.getInt(offset + HEADER_BYTES);
+      }
+
+      public int getDuplicates() {
+         return slab.getInt(offset + HEADER_BYTES + 4);
+      }
+
+      public String getContent() {
+         return getString(1);
+      }
+
+      public String getSource() {
+         return getString(2);
+      }
+
+      public String getLang() {
+         return getString(3);
+      }
+
+      public String getAuthor() {
+         return getString(4);
+      }
+
+      public String getPlace() {
+         return getString(5);
+      }
+
+      public String getGeo() {
+         return getString(6);
+      }
+
+      public String getFullPlace() {
+         return getString(7);
+      }
+
+      public String getFullGeo() {
+         return getString(8);
+      }
+
+      public String getDuplicateOf() {
+         return getString(9);
+      }
+
+      /**
+       * Copy the current tweet onto the heap.
+       */
+      public TweetData toTweetData() {
+         TweetData tweet = new TweetData();
+         fill(tweet);
+         return tweet;
+      }
+
+      /**
+       * Copy the current tweet into |tweet|.
+       */
+      public void fill(TweetData tweet) {
+         tweet.twitterId = "" + getTwitterId();
+         tweet.published = getPublished();
+         tweet.content = getContent();
+         tweet.source = getSource();
+         tweet.lang = getLang();
+         tweet.author = getAuthor();
+         tweet.place = getPlace();
+         tweet.geo = getGeo();
+         tweet.fullPlace = getFullPlace();
+         tweet.fullGeo = getFullGeo();
+         tweet.duplicates = getDuplicates();
+         tweet.duplicateOf = getDuplicateOf();
+         tweet.queries = getQueries();
+      }
+
+      /**
+       * Get the queries the tweet matched, including any that were added after it was stored.
+       *
+       * @return The queries, or null if they are not being tracked.
+       */
+      public BitSet getQueries() {
+         int position = skipStrings(STRING_COUNT);
+         int length = slab.getInt(position);
+         BitSet rtn = null;
+
+         if (length != -1) {
+            long[] words = new long[length];
+            for (int i = 0; i < length; i++) {
+               words[i] = slab.getLong(position + 4 + i * 8);
+            }
+            rtn = BitSet.valueOf(words);
+         }
+
+         long added;
+         synchronized (OffHeapTweetStore.this) {
+            long id = getTwitterId();
+            added = addedQueries.containsKey(id) ? addedQueries.get(id) : 0;
+         }
+
+         if (added != 0) {
+            if (rtn == null) {
+               rtn = new BitSet();
+            }
+            rtn.or(BitSet.valueOf(new long[] {added}));
+         }
+
+         return rtn;
+      }
+
+      /**
+       * @param field The index of the string in the record (the twitter id is 0).
+       */
+      private String getString(int field) {
+         int position = skipStrings(field);
+         int length = slab.getInt(position);
+         if (length == -1) {
+            return null;
+         }
+
+         if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+         }
+
+         ByteBuffer view = slab.duplicate();
+         view.position(position + 4);
+         view.get(scratch, 0, length);
+
+         return new String(scratch, 0, length, StandardCharsets.UTF_8);
+      }
+
+      /**
+       * @return Where the |field|th string (or whatever follows the strings) starts.
+       */
+      private int skipStrings(int field) {
+         if (slab == null) {
+            throw new IllegalStateException("The cursor is not on a tweet.");
+         }
+
+         int position = offset + STRINGS_OFFSET;
+         for (int i = 0; i < field; i++) {
+            position += 4 + Math.max(0, slab.getInt(position));
+         }
+
+         return position;
+      }
+   }
+}
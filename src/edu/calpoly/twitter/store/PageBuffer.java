@@ -0,0 +1,105 @@
+package edu.calpoly.twitter.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reusable buffer that holds the raw (UTF-8) bytes of a single response.
+ * LazyTweetData point into it instead of holding their own Strings.
+ *
+ * Buffers come from a small shared pool (see acquire()), and go back to it with recycle().
+ * Before the bytes can be reused, every tweet that still points into the buffer copies out
+ *  just the part of the buffer it needs (see LazyTweetData.detach()).
+ * Buffers that are never recycled are just garbage collected.
+ */
+public class PageBuffer {
+   private static final int INITIAL_SIZE = 256 * 1024;
+   private static final int MAX_POOLED = 16;
+
+   private static final ConcurrentLinkedQueue<PageBuffer> pool =
+         new ConcurrentLinkedQueue<PageBuffer>();
+   private static final AtomicInteger pooled = new AtomicInteger(0);
+
+   private byte[] bytes;
+   private int length;
+   private final List<LazyTweetData> tweets;
+
+   private PageBuffer() {
+      bytes = new byte[INITIAL_SIZE];
+      length = 0;
+      tweets = new ArrayList<LazyTweetData>();
+   }
+
+   /**
+    * Get an empty buffer.
+    */
+   public static PageBuffer acquire() {
+      PageBuffer buffer = pool.poll();
+
+      if (buffer == null) {
+         return new PageBuffer();
+      }
+
+      pooled.decrementAndGet();
+      return buffer;
+   }
+
+   /**
+    * Read all of |in| into the buffer.
+    * The buffer grows if it needs to.
+    */
+   public void readFrom(InputStream in) throws IOException {
+      length = 0;
+
+      int read;
+      while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+         length += read;
+
+         if (length == bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+         }
+      }
+   }
+
+   public byte[] getBytes() {
+      return bytes;
+   }
+
+   public int getLength() {
+      return length;
+   }
+
+   /**
+    * Make a tweet that points into this buffer.
+    * It will be detached when the buffer is recycled.
+    */
+   public LazyTweetData newTweet() {
+      LazyTweetData tweet = new LazyTweetData(bytes);
+      tweets.add(tweet);
+      return tweet;
+   }
+
+   /**
+    * Done with the buffer.
+    * Tweets that were made from it are still safe to use.
+    * The buffer must not be used after this.
+    */
+   public void recycle() {
+      for (LazyTweetData tweet : tweets) {
+         tweet.detach();
+      }
+      tweets.clear();
+      length = 0;
+
+      if (pooled.incrementAndGet() <= MAX_POOLED) {
+         pool.add(this);
+      } else {
+         pooled.decrementAndGet();
+      }
+   }
+}
@@ -0,0 +1,306 @@
+package edu.calpoly.twitter.store;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An in-memory store that keeps tweets in partitions by when they were published
+ *  (eg. a partition per day or per hour).
+ *
+ * Retention is done a whole partition at a time: once the newest tweet a partition could
+ *  hold is older than the retention, the partition is dropped, without looking at a single
+ *  tweet in it.
+ * Tweets that are already too old when they are inserted are never stored.
+ * Time range reads (see getRange()) only look at the partitions that overlap the range,
+ *  and only filter the tweets in the partitions at its ends.
+ *
+ * Each partition keeps the smallest and largest id in it, so reads by id (see getNewerThan())
+ *  can skip whole partitions without looking at tweets either.
+ * getLastTweetId() is the largest id ever stored, which does not go back when partitions are
+ *  dropped, so queries never fetch the dropped tweets again.
+ * A tweet's partition only depends on the tweet, so dedup only has to check one partition.
+ *
+ * Usage is reported through JMX: store.partitions, store.partitionsDropped, and
+ *  store.tweetsExpired.
+ * It is safe to use from multiple threads.
+ */
+public class PartitionedTweetStore implements TweetStore {
+   private final int partitionSec;
+   private final long retentionSec;
+
+   /**
+    * By start time.
+    */
+   private final TreeMap<Integer, Partition> partitions;
+
+   /**
+    * The largest id ever stored (including in partitions that have been dropped).
+    */
+   private long maxId;
+
+   private final Metrics.Counter partitionsDropped;
+   private final Metrics.Counter tweetsExpired;
+
+   /**
+    * Use partitions of PARTITION_SEC (default 86400, a day) seconds,
+    *  and keep them for PARTITION_RETENTION_SEC seconds (default 0, which is forever).
+    */
+   public PartitionedTweetStore() {
+      this(Props.getInt("PARTITION_SEC", 86400), Props.getInt("PARTITION_RETENTION_SEC", 0));
+   }
+
+   /**
+    * @param partitionSec How much time each partition covers.
+    * @param retentionSec How long to keep tweets (by when they were published),
+    *  0 or less to keep them forever.
+    */
+   public PartitionedTweetStore(int partitionSec, long retentionSec) {
+      if (partitionSec <= 0) {
+         throw new IllegalArgumentException("Partitions must cover some time.");
+      }
+
+      this.partitionSec = partitionSec;
+      this.retentionSec = retentionSec;
+
+      partitions = new TreeMap<Integer, Partition>();
+      maxId = 0;
+
+      partitionsDropped = Metrics.counter("store.partitionsDropped");
+      tweetsExpired = Metrics.counter("store.tweetsExpired");
+
+      Metrics.gauge("store.partitions", new Metrics.Gauge() {
+         public long get() {
+            return getPartitions().size();
+         }
+      });
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getLastTweetId(QueryTargetInfo info) {
+      return "" + maxId;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+      long cutoff = getCutoff(System.currentTimeMillis() / 1000);
+      dropBefore(cutoff);
+
+      int count = 0;
+      for (TweetData tweet : data) {
+         int start = getStart(tweet.published);
+         if (start + (long)partitionSec <= cutoff) {
+            tweetsExpired.inc();
+            continue;
+         }
+
+         Partition partition = partitions.get(start);
+         if (partition == null) {
+            partition = new Partition(start, start + partitionSec);
+            partitions.put(start, partition);
+         }
+
+         if (partition.add(tweet)) {
+            maxId = Math.max(maxId, partition.getMaxId());
+            count++;
+         }
+      }
+
+      return count;
+   }
+
+   /**
+    * Get the tweets published in [startSec, endSec), oldest partition first.
+    * Within a partition, tweets are in the order they were inserted.
+    */
+   public synchronized List<TweetData> getRange(long startSec, long endSec) {
+      List<TweetData> rtn = new ArrayList<TweetData>();
+      if (startSec >= endSec) {
+         return rtn;
+      }
+
+      Integer from = partitions.floorKey((int)Math.min(Integer.MAX_VALUE, startSec));
+      NavigableMap<Integer, Partition> overlapping = (from == null) ?
+            partitions.headMap((int)Math.min(Integer.MAX_VALUE, endSec), false) :
+            partitions.subMap(from, true, (int)Math.min(Integer.MAX_VALUE, endSec), false);
+
+      for (Partition partition : overlapping.values()) {
+         if (partition.getStart() >= startSec && partition.getEnd() <= endSec) {
+            rtn.addAll(partition.tweets);
+            continue;
+         }
+
+         for (TweetData tweet : partition.tweets) {
+            if (tweet.published >= startSec && tweet.published < endSec) {
+               rtn.add(tweet);
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Get the tweets with an id greater than |sinceId|, oldest partition first.
+    * Partitions are skipped or taken whole by their smallest and largest ids,
+    *  only the ones that straddle |sinceId| are filtered.
+    */
+   public synchronized List<TweetData> getNewerThan(long sinceId) {
+      List<TweetData> rtn = new ArrayList<TweetData>();
+
+      for (Partition partition : partitions.values()) {
+         if (partition.getMaxId() <= sinceId) {
+            continue;
+         } else if (partition.getMinId() > sinceId) {
+            rtn.addAll(partition.tweets);
+            continue;
+         }
+
+         for (TweetData tweet : partition.tweets) {
+            if (Long.parseLong(tweet.twitterId) > sinceId) {
+               rtn.add(tweet);
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Drop every partition that only holds tweets published before |cutoffSec|.
+    * getLastTweetId() is not changed.
+    *
+    * @return The number of partitions that were dropped.
+    */
+   public synchronized int dropBefore(long cutoffSec) {
+      int dropped = 0;
+
+      while (!partitions.isEmpty() && partitions.firstEntry().getValue().getEnd() <= cutoffSec) {
+         Partition partition = partitions.pollFirstEntry().getValue();
+
+         Logger.logDebug(String.format("Dropped the partition starting at %d (%d tweets).",
+                                       partition.getStart(), partition.getCount()));
+         dropped++;
+      }
+
+      if (dropped > 0) {
+         partitionsDropped.add(dropped);
+      }
+
+      return dropped;
+   }
+
+   /**
+    * Drop every partition that is past the retention.
+    *
+    * @return The number of partitions that were dropped.
+    */
+   public synchronized int dropExpired() {
+      return dropBefore(getCutoff(System.currentTimeMillis() / 1000));
+   }
+
+   public synchronized long size() {
+      long size = 0;
+      for (Partition partition : partitions.values()) {
+         size += partition.getCount();
+      }
+
+      return size;
+   }
+
+   /**
+    * Oldest first.
+    */
+   public synchronized List<Partition> getPartitions() {
+      return new ArrayList<Partition>(partitions.values());
+   }
+
+   /**
+    * @return The oldest time that is kept, or Long.MIN_VALUE if everything is kept.
+    */
+   private long getCutoff(long nowSec) {
+      return retentionSec > 0 ? nowSec - retentionSec : Long.MIN_VALUE;
+   }
+
+   private int getStart(int published) {
+      return (int)(Math.floor((double)published / partitionSec) * partitionSec);
+   }
+
+   /**
+    * The tweets published in [start, end).
+    */
+   public static class Partition {
+      private final int start;
+      private final int end;
+
+      private final List<TweetData> tweets;
+      private final Set<String> ids;
+
+      private long minId;
+      private long maxId;
+
+      public Partition(int start, int end) {
+         this.start = start;
+         this.end = end;
+
+         tweets = new ArrayList<TweetData>();
+         ids = new HashSet<String>();
+         minId = Long.MAX_VALUE;
+         maxId = 0;
+      }
+
+      /**
+       * @return False if the tweet was already here.
+       */
+      synchronized boolean add(TweetData tweet) {
+         if (!ids.add(tweet.twitterId)) {
+            return false;
+         }
+
+         long id = Long.parseLong(tweet.twitterId);
+         minId = Math.min(minId, id);
+         maxId = Math.max(maxId, id);
+         tweets.add(tweet);
+
+         return true;
+      }
+
+      public int getStart() {
+         return start;
+      }
+
+      public int getEnd() {
+         return end;
+      }
+
+      public synchronized int getCount() {
+         return tweets.size();
+      }
+
+      /**
+       * @return The smallest id, or Long.MAX_VALUE if the partition is empty.
+       */
+      public synchronized long getMinId() {
+         return minId;
+      }
+
+      /**
+       * @return The largest id, or 0 if the partition is empty.
+       */
+      public synchronized long getMaxId() {
+         return maxId;
+      }
+   }
+}
@@ -0,0 +1,30 @@
+package edu.calpoly.twitter.store;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+
+import java.util.List;
+
+/**
+ * A TweetStore that can tag tweets it already has with more queries.
+ *
+ * When queries overlap, only the first query to see a tweet stores it (see SharedTweetCache).
+ * The queries that see it after that are added to TweetData.queries by replacing the BitSet,
+ *  so stores that hold on to the TweetData see them without doing anything.
+ * Stores that copy tweets out (to disk or off the heap) implement this to hear about them,
+ *  and stores that wrap another store pass it along.
+ *
+ * It is called by the gathering threads, so it must be safe to call alongside insertTweets().
+ */
+public interface QueryTagStore extends TweetStore {
+   /**
+    * Tag tweets that are already in the store with |info|.
+    * Tweets that are not in the store are skipped.
+    * A tweet that has not made it into the store yet already has the tag in TweetData.queries,
+    *  since the tweet is tagged before this is called.
+    * So, a store must read TweetData.queries and make the tweet findable here
+    *  without letting addQueryTag() in between (eg. under the same lock).
+    *
+    * @param index The index of |info| in TweetData.queries.
+    */
+   public void addQueryTag(QueryTargetInfo info, int index, List<String> twitterIds);
+}
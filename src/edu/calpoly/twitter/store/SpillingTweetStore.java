@@ -0,0 +1,690 @@
+package edu.calpoly.twitter.store;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.OffHeapLongMap;
+import edu.calpoly.twitter.util.Props;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-memory store with a cap on how much heap it uses.
+ * The size of each tweet is estimated (see estimateBytes()), and when the estimate for all the
+ *  tweets in memory goes over the budget, tweets are spilled to segment files on disk
+ *  (oldest published first, by default) until it is back under LOW_WATER of the budget.
+ * iterator() goes over the segments and then memory, so callers never see the difference.
+ *
+ * Which tweets are spilled first is set by an eviction order (a Comparator, the smallest are
+ *  spilled first), and how long segments are kept is set by a RetentionPolicy.
+ * Ids (for dedup) are kept off the heap (see OffHeapLongMap).
+ * Queries that are tagged onto a tweet after it is stored (see QueryTagStore) are kept with
+ *  its id, as a word of bits for queries 0 to 63, and added back as the tweet is read.
+ * Tags for later queries can not be added (they are counted in store.queryTagsDropped).
+ *
+ * Usage is reported through JMX:
+ *  store.memory.bytes, store.memory.tweets, store.disk.bytes, store.disk.tweets,
+ *  and store.disk.segments.
+ *
+ * This is a staging store: segments are written into their own directory and are deleted
+ *  by close().
+ * It is safe to use from multiple threads.
+ * Segments are written and deleted outside of the store's monitor, so other threads can insert
+ *  and read while a spill is on disk.
+ */
+public class SpillingTweetStore implements QueryTagStore {
+   /**
+    * Spilling stops once memory is down to this fraction of the budget,
+    *  so that every spill writes a decent sized segment.
+    */
+   private static final double LOW_WATER = 0.75;
+
+   /**
+    * The estimated size of a TweetData (and its place in the store) without its Strings.
+    */
+   private static final int TWEET_OVERHEAD = 112;
+
+   /**
+    * The estimated size of a String without its chars.
+    */
+   private static final int STRING_OVERHEAD = 40;
+
+   /**
+    * Spill the tweet that was published first (ties go to the smaller id).
+    */
+   public static final Comparator<TweetData> OLDEST_FIRST = new Comparator<TweetData>() {
+      public int compare(TweetData a, TweetData b) {
+         if (a.published != b.published) {
+            return Integer.compare(a.published, b.published);
+         }
+
+         return Long.compare(Long.parseLong(a.twitterId), Long.parseLong(b.twitterId));
+      }
+   };
+
+   /**
+    * Decides when a segment should be deleted.
+    */
+   public interface RetentionPolicy {
+      /**
+       * Segments are checked oldest first, and checking stops at the first one that is kept.
+       *
+       * @param segment The segment to check.
+       * @param diskBytes The size of all the segments (including this one).
+       * @param nowSec The current time in seconds.
+       *
+       * @return True if the segment should be deleted.
+       */
+      public boolean isExpired(Segment segment, long diskBytes, long nowSec);
+   }
+
+   /**
+    * Keep segments until they only hold tweets older than |maxAgeSec| (if positive)
+    *  or until all the segments take more than |maxDiskBytes| (if positive).
+    */
+   public static RetentionPolicy retainFor(final long maxAgeSec, final long maxDiskBytes) {
+      return new RetentionPolicy() {
+         public boolean isExpired(Segment segment, long diskBytes, long nowSec) {
+            return (maxAgeSec > 0 && segment.getMaxPublished() < nowSec - maxAgeSec) ||
+                   (maxDiskBytes > 0 && diskBytes > maxDiskBytes);
+         }
+      };
+   }
+
+   private final long budgetBytes;
+   private final File dir;
+   private final RetentionPolicy retention;
+
+   private final PriorityQueue<TweetData> memory;
+   private long memoryBytes;
+
+   /**
+    * Batches that have been taken out of memory and are waiting to be written, oldest first.
+    * iterator() still sees them until their segment is in |segments|.
+    */
+   private final ArrayDeque<List<TweetData>> spilling;
+   private int spillingTweets;
+
+   /**
+    * Only one thread writes or deletes segments at a time
+    *  (a lock rather than the monitor, since it is held for file I/O).
+    */
+   private final ReentrantLock writeLock;
+
+   /**
+    * Oldest first.
+    */
+   private final List<Segment> segments;
+   private int nextSegment;
+   private long diskBytes;
+   private long diskTweets;
+
+   /**
+    * Every id in the store (in memory or on disk), to the queries added by addQueryTag()
+    *  (bit i is query i).
+    */
+   private final OffHeapLongMap ids;
+   private long maxId;
+
+   private final Metrics.Counter queryTagsDropped;
+
+   /**
+    * Use a budget of MEMORY_STORE_MB (default 256) MB, spill into a new directory
+    *  in SEGMENT_DIR (default segments), and keep segments for SEGMENT_MAX_AGE_SEC seconds
+    *  and up to SEGMENT_MAX_DISK_MB MB (default 0 for both, which is no limit).
+    */
+   public SpillingTweetStore() {
+      this(Props.getInt("MEMORY_STORE_MB", 256) * 1024L * 1024L,
+           new File(Props.getString("SEGMENT_DIR", "segments"),
+                    "store-" + System.currentTimeMillis()),
+           OLDEST_FIRST,
+           retainFor(Props.getInt("SEGMENT_MAX_AGE_SEC", 0),
+                     Props.getInt("SEGMENT_MAX_DISK_MB", 0) * 1024L * 1024L));
+   }
+
+   /**
+    * @param budgetBytes How much heap (by estimate) tweets can use.
+    * @param dir Where to put segments.
+    * @param evictionOrder The order that tweets are spilled in.
+    * @param retention When to delete segments.
+    */
+   public SpillingTweetStore(long budgetBytes, File dir, Comparator<TweetData> evictionOrder,
+                             RetentionPolicy retention) {
+      this.budgetBytes = budgetBytes;
+      this.dir = dir;
+      this.retention = retention;
+
+      memory = new PriorityQueue<TweetData>(1024, evictionOrder);
+      memoryBytes = 0;
+
+      spilling = new ArrayDeque<List<TweetData>>();
+      spillingTweets = 0;
+      writeLock = new ReentrantLock();
+
+      segments = new ArrayList<Segment>();
+      nextSegment = 0;
+      diskBytes = 0;
+      diskTweets = 0;
+
+      ids = new OffHeapLongMap(1 << 16);
+      queryTagsDropped = Metrics.counter("store.queryTagsDropped");
+      maxId = 0;
+
+      Metrics.gauge("store.memory.bytes", new Metrics.Gauge() {
+         public long get() {
+            return getMemoryBytes();
+         }
+      });
+      Metrics.gauge("store.memory.tweets", new Metrics.Gauge() {
+         public long get() {
+            return getMemoryTweets();
+         }
+      });
+      Metrics.gauge("store.disk.bytes", new Metrics.Gauge() {
+         public long get() {
+            return getDiskBytes();
+         }
+      });
+      Metrics.gauge("store.disk.tweets", new Metrics.Gauge() {
+         public long get() {
+            return getDiskTweets();
+         }
+      });
+      Metrics.gauge("store.disk.segments", new Metrics.Gauge() {
+         public long get() {
+            return getSegments().size();
+         }
+      });
+   }
+
+   /**
+    * Estimate how much heap a tweet takes up.
+    */
+   public static long estimateBytes(TweetData tweet) {
+      return TWEET_OVERHEAD +
+             estimateBytes(tweet.twitterId) + estimateBytes(tweet.getContent()) +
+             estimateBytes(tweet.getSource()) + estimateBytes(tweet.getLang()) +
+             estimateBytes(tweet.getAuthor()) + estimateBytes(tweet.getPlace()) +
+             estimateBytes(tweet.getGeo()) + estimateBytes(tweet.fullPlace) +
+             estimateBytes(tweet.fullGeo) + estimateBytes(tweet.duplicateOf);
+   }
+
+   private static long estimateBytes(String value) {
+      return value == null ? 0 : STRING_OVERHEAD + 2L * value.length();
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized String getLastTweetId(QueryTargetInfo info) {
+      return "" + maxId;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+      int count = 0;
+      boolean spill = false;
+
+      synchronized (this) {
+         for (TweetData tweet : data) {
+            long id = Long.parseLong(tweet.twitterId);
+            if (ids.containsKey(id)) {
+               // Another query may have found it again (after SharedTweetCache forgot it).
+               BitSet queries = tweet.queries;
+               if (queries != null && !queries.isEmpty()) {
+                  addQueries(id, queries.toLongArray()[0]);
+                  if (queries.length() > 64) {
+                     queryTagsDropped.add(queries.get(64, queries.length()).cardinality());
+                  }
+               }
+               continue;
+            }
+
+            ids.put(id, 0);
+            maxId = Math.max(maxId, id);
+
+            memory.add(tweet);
+            memoryBytes += estimateBytes(tweet);
+            count++;
+         }
+
+         if (memoryBytes > budgetBytes) {
+            takeSpillBatch();
+            spill = true;
+         }
+      }
+
+      if (spill) {
+         spill();
+      }
+
+      return count;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public synchronized void addQueryTag(QueryTargetInfo info, int index,
+                                        List<String> twitterIds) {
+      if (index >= 64) {
+         queryTagsDropped.add(twitterIds.size());
+         return;
+      }
+
+      for (String twitterId : twitterIds) {
+         long id = Long.parseLong(twitterId);
+
+         if (ids.containsKey(id)) {
+            addQueries(id, 1L << index);
+         }
+      }
+   }
+
+   public synchronized long size() {
+      return memory.size() + spillingTweets + diskTweets;
+   }
+
+   public synchronized long getMemoryBytes() {
+      return memoryBytes;
+   }
+
+   public synchronized int getMemoryTweets() {
+      return memory.size();
+   }
+
+   public synchronized long getDiskBytes() {
+      return diskBytes;
+   }
+
+   public synchronized long getDiskTweets() {
+      return diskTweets;
+   }
+
+   public synchronized List<Segment> getSegments() {
+      return new ArrayList<Segment>(segments);
+   }
+
+   /**
+    * Go over every tweet: the ones on disk (oldest segment first), then the ones waiting to be
+    *  spilled, and then the ones in memory (in eviction order).
+    * Tweets that are inserted, spilled, or deleted while iterating may or may not be seen.
+    * Segments are read a tweet at a time, so this does not bring them back into memory.
+    */
+   public Iterator<TweetData> iterator() {
+      List<Segment> onDisk;
+      List<TweetData> toSpill = new ArrayList<TweetData>();
+      List<TweetData> inMemory;
+
+      synchronized (this) {
+         onDisk = new ArrayList<Segment>(segments);
+         for (List<TweetData> batch : spilling) {
+            toSpill.addAll(batch);
+         }
+         inMemory = new ArrayList<TweetData>(memory);
+      }
+
+      Collections.sort(inMemory, memory.comparator());
+      toSpill.addAll(inMemory);
+      return new StoreIterator(onDisk, toSpill);
+   }
+
+   /**
+    * Add to the queries of a tweet that is already stored.
+    *
+    * @param queries Bits for queries 0 to 63.
+    */
+   private void addQueries(long id, long queries) {
+      long added = ids.get(id);
+
+      if ((added | queries) != added) {
+         ids.put(id, added | queries);
+      }
+   }
+
+   /**
+    * Add the queries from addQueryTag() to a tweet that is being read out of the store.
+    */
+   private synchronized TweetData withAddedQueries(TweetData tweet) {
+      long id = Long.parseLong(tweet.twitterId);
+      long added = ids.containsKey(id) ? ids.get(id) : 0;
+
+      if (added != 0) {
+         tweet.addQueries(BitSet.valueOf(new long[] {added}));
+      }
+
+      return tweet;
+   }
+
+   /**
+    * Delete all the segments (and drop any tweets that are waiting to be spilled).
+    */
+   public void close() {
+      List<Segment> deleted;
+
+      writeLock.lock();
+      try {
+         synchronized (this) {
+            deleted = new ArrayList<Segment>(segments);
+            segments.clear();
+            diskBytes = 0;
+            diskTweets = 0;
+            spilling.clear();
+            spillingTweets = 0;
+         }
+
+         for (Segment segment : deleted) {
+            if (!segment.getFile().delete()) {
+               Logger.logWarn("Unable to delete the segment " + segment.getFile() + ".");
+            }
+         }
+
+         if (!dir.delete()) {
+            Logger.logWarn("Unable to delete the segment directory " + dir + ".");
+         }
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   /**
+    * Take the first tweets (in eviction order) out of memory, to be written by spill().
+    * Must hold the monitor.
+    */
+   private void takeSpillBatch() {
+      List<TweetData> batch = new ArrayList<TweetData>();
+      long target = (long)(budgetBytes * LOW_WATER);
+
+      while (memoryBytes > target && !memory.isEmpty()) {
+         TweetData tweet = memory.poll();
+         memoryBytes -= estimateBytes(tweet);
+         batch.add(tweet);
+      }
+
+      spilling.add(batch);
+      spillingTweets += batch.size();
+   }
+
+   /**
+    * Write the batches from takeSpillBatch() out to new segments (oldest first), and then
+    *  apply the retention policy.
+    * Must not hold the monitor: it is only taken to move batches, segments, and ids around.
+    */
+   private void spill() {
+      writeLock.lock();
+      try {
+         while (true) {
+            List<TweetData> batch;
+            synchronized (this) {
+               batch = spilling.peek();
+            }
+
+            if (batch == null) {
+               break;
+            }
+
+            File file = new File(dir, String.format("segment-%08d.seg", nextSegment++));
+            Segment segment = null;
+
+            try {
+               segment = writeSegment(file, batch);
+               Logger.logDebug(String.format("Spilled %d tweets (%d bytes) to %s.",
+                                             segment.getCount(), segment.getBytes(), file));
+            } catch (IOException ex) {
+               // Better to lose the oldest tweets than the whole JVM.
+               Logger.logError("Unable to spill " + batch.size() + " tweets to " + file +
+                               ", they have been dropped.", ex);
+            }
+
+            synchronized (this) {
+               spilling.poll();
+               spillingTweets -= batch.size();
+
+               if (segment != null) {
+                  segments.add(segment);
+                  diskBytes += segment.getBytes();
+                  diskTweets += segment.getCount();
+               } else {
+                  for (TweetData tweet : batch) {
+                     ids.remove(Long.parseLong(tweet.twitterId));
+                  }
+               }
+            }
+         }
+
+         applyRetention();
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   private Segment writeSegment(File file, List<TweetData> tweets) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Unable to make the segment directory " + dir + ".");
+      }
+
+      int minPublished = Integer.MAX_VALUE;
+      int maxPublished = Integer.MIN_VALUE;
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), 64 * 1024));
+
+      try {
+         out.writeInt(tweets.size());
+         for (TweetData tweet : tweets) {
+            TweetCodec.write(out, tweet);
+            minPublished = Math.min(minPublished, tweet.published);
+            maxPublished = Math.max(maxPublished, tweet.published);
+         }
+      } finally {
+         out.close();
+      }
+
+      return new Segment(file, tweets.size(), file.length(), minPublished, maxPublished);
+   }
+
+   /**
+    * Delete the oldest segments that the retention policy is done with.
+    * The ids of their tweets are forgotten too, so they can be inserted again.
+    * Must hold |writeLock| (and not the monitor).
+    */
+   private void applyRetention() {
+      long now = System.currentTimeMillis() / 1000;
+      List<Segment> expired = new ArrayList<Segment>();
+
+      synchronized (this) {
+         while (!segments.isEmpty() && retention.isExpired(segments.get(0), diskBytes, now)) {
+            Segment segment = segments.remove(0);
+            diskBytes -= segment.getBytes();
+            diskTweets -= segment.getCount();
+            expired.add(segment);
+         }
+      }
+
+      for (Segment segment : expired) {
+         long[] segmentIds = readIds(segment);
+
+         synchronized (this) {
+            for (long id : segmentIds) {
+               ids.remove(id);
+            }
+         }
+
+         if (!segment.getFile().delete()) {
+            Logger.logWarn("Unable to delete the segment " + segment.getFile() + ".");
+         }
+      }
+   }
+
+   /**
+    * Read the ids of the tweets in a segment (as many as can be read, if it is damaged).
+    */
+   private static long[] readIds(Segment segment) {
+      long[] segmentIds = new long[segment.getCount()];
+      int count = 0;
+      SegmentReader reader = null;
+
+      try {
+         reader = new SegmentReader(segment);
+         while (reader.hasNext() && count < segmentIds.length) {
+            segmentIds[count++] = Long.parseLong(reader.next().twitterId);
+         }
+      } catch (IOException ex) {
+         Logger.logError("Unable to read the ids of " + segment.getFile() + ".", ex);
+      } finally {
+         if (reader != null) {
+            reader.close();
+         }
+      }
+
+      return Arrays.copyOf(segmentIds, count);
+   }
+
+   /**
+    * A file of spilled tweets.
+    */
+   public static class Segment {
+      private final File file;
+      private final int count;
+      private final long bytes;
+      private final int minPublished;
+      private final int maxPublished;
+
+      public Segment(File file, int count, long bytes, int minPublished, int maxPublished) {
+         this.file = file;
+         this.count = count;
+         this.bytes = bytes;
+         this.minPublished = minPublished;
+         this.maxPublished = maxPublished;
+      }
+
+      public File getFile() {
+         return file;
+      }
+
+      public int getCount() {
+         return count;
+      }
+
+      public long getBytes() {
+         return bytes;
+      }
+
+      public int getMinPublished() {
+         return minPublished;
+      }
+
+      public int getMaxPublished() {
+         return maxPublished;
+      }
+   }
+
+   /**
+    * Reads the tweets out of a segment, one at a time.
+    */
+   private static class SegmentReader {
+      private final DataInputStream in;
+      private int left;
+
+      public SegmentReader(Segment segment) throws IOException {
+         in = new DataInputStream(new BufferedInputStream(
+               new FileInputStream(segment.getFile()), 64 * 1024));
+         left = in.readInt();
+      }
+
+      public boolean hasNext() {
+         return left > 0;
+      }
+
+      public TweetData next() throws IOException {
+         left--;
+         return TweetCodec.read(in);
+      }
+
+      public void close() {
+         try {
+            in.close();
+         } catch (IOException ex) {
+            Logger.logWarn("Unable to close a segment.");
+         }
+      }
+   }
+
+   /**
+    * Segments, and then memory.
+    * A segment that has been deleted (or can not be read) is skipped.
+    */
+   private class StoreIterator implements Iterator<TweetData> {
+      private final Iterator<Segment> segments;
+      private final Iterator<TweetData> memory;
+      private SegmentReader reader;
+
+      public StoreIterator(List<Segment> segments, List<TweetData> memory) {
+         this.segments = segments.iterator();
+         this.memory = memory.iterator();
+         reader = null;
+      }
+
+      public boolean hasNext() {
+         while (reader == null || !reader.hasNext()) {
+            if (reader != null) {
+               reader.close();
+               reader = null;
+            }
+
+            if (!segments.hasNext()) {
+               return memory.hasNext();
+            }
+
+            Segment segment = segments.next();
+            try {
+               reader = new SegmentReader(segment);
+            } catch (IOException ex) {
+               Logger.logWarn("Unable to read the segment " + segment.getFile() + ", skipping it.");
+            }
+         }
+
+         return true;
+      }
+
+      public TweetData next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+
+         if (reader == null) {
+            return withAddedQueries(memory.next());
+         }
+
+         try {
+            return withAddedQueries(reader.next());
+         } catch (IOException ex) {
+            reader.close();
+            reader = null;
+            throw new IllegalStateException("Unable to read a segment.", ex);
+         }
+      }
+
+      public void remove() {
+         throw new UnsupportedOperationException();
+      }
+   }
+}
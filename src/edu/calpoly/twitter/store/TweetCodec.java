@@ -0,0 +1,114 @@
+package edu.calpoly.twitter.store;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * Reads and writes tweets in a compact binary form, for stores that put tweets on disk
+ *  (spill files, segments, ...).
+ *
+ * A tweet is its published time, how many duplicates were collapsed into it,
+ *  every String field as an int length (-1 for null) and its UTF-8 bytes,
+ *  and then the queries it matched as an int count (-1 for null) and that many longs
+ *  (see BitSet.toLongArray()).
+ * Unlike writeUTF(), there is no 64K limit on a field.
+ */
+public final class TweetCodec {
+   /**
+    * Static only.
+    */
+   private TweetCodec() {
+      throw new UnsupportedOperationException();
+   }
+
+   public static void write(DataOutput out, TweetData tweet) throws IOException {
+      out.writeInt(tweet.published);
+      out.writeInt(tweet.duplicates);
+
+      writeString(out, tweet.twitterId);
+      writeString(out, tweet.getContent());
+      writeString(out, tweet.getSource());
+      writeString(out, tweet.getLang());
+      writeString(out, tweet.getAuthor());
+      writeString(out, tweet.getPlace());
+      writeString(out, tweet.getGeo());
+      writeString(out, tweet.fullPlace);
+      writeString(out, tweet.fullGeo);
+      writeString(out, tweet.duplicateOf);
+      writeQueries(out, tweet.queries);
+   }
+
+   public static TweetData read(DataInput in) throws IOException {
+      TweetData tweet = new TweetData();
+
+      tweet.published = in.readInt();
+      tweet.duplicates = in.readInt();
+
+      tweet.twitterId = readString(in);
+      tweet.content = readString(in);
+      tweet.source = readString(in);
+      tweet.lang = readString(in);
+      tweet.author = readString(in);
+      tweet.place = readString(in);
+      tweet.geo = readString(in);
+      tweet.fullPlace = readString(in);
+      tweet.fullGeo = readString(in);
+      tweet.duplicateOf = readString(in);
+      tweet.queries = readQueries(in);
+
+      return tweet;
+   }
+
+   private static void writeString(DataOutput out, String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return;
+      }
+
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static void writeQueries(DataOutput out, BitSet queries) throws IOException {
+      if (queries == null) {
+         out.writeInt(-1);
+         return;
+      }
+
+      long[] words = queries.toLongArray();
+      out.writeInt(words.length);
+      for (long word : words) {
+         out.writeLong(word);
+      }
+   }
+
+   private static BitSet readQueries(DataInput in) throws IOException {
+      int length = in.readInt();
+
+      if (length == -1) {
+         return null;
+      }
+
+      long[] words = new long[length];
+      for (int i = 0; i < length; i++) {
+         words[i] = in.readLong();
+      }
+      return BitSet.valueOf(words);
+   }
+
+   private static String readString(DataInput in) throws IOException {
+      int length = in.readInt();
+
+      if (length == -1) {
+         return null;
+      }
+
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
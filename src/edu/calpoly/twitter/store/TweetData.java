@@ -1,5 +1,7 @@
 package edu.calpoly.twitter.store;
 
+import java.util.BitSet;
+
 /**
   * A helper class to encapsulate all the data for a tweet returned from Twitter.
   */
@@ -16,6 +18,25 @@ public class TweetData {
    public String fullPlace;
    public String fullGeo;
 
+   /**
+     * If this tweet is a near copy of another tweet, the other tweet's twitter_id
+     *  (see NearDuplicateFilter).
+     */
+   public String duplicateOf;
+
+   /**
+     * The number of near copies of this tweet that were collapsed into it.
+     */
+   public int duplicates;
+
+   /**
+     * The queries that this tweet matched, by index (see SharedTweetCache).
+     * Null if queries are not being tracked.
+     * Once a tweet is shared, tags are only added with addQueries(), which replaces the BitSet
+     *  instead of changing it, so a BitSet read from here never changes under the reader.
+     */
+   public volatile BitSet queries;
+
    /**
      * All the attributes returned by toString().
      */
@@ -28,14 +49,96 @@ public class TweetData {
      */
    public final static String preparedStatement = "(NULL, ?, ?, ?, ?, ?, ?, ?, ?)";
 
+   /**
+     * The getters should be preferred over the fields, since some tweets only fill in
+     *  their fields when they are asked for (see LazyTweetData).
+     */
+   public String getContent() {
+      return content;
+   }
+
+   public String getSource() {
+      return source;
+   }
+
+   public String getLang() {
+      return lang;
+   }
+
+   public String getAuthor() {
+      return author;
+   }
+
+   public String getPlace() {
+      return place;
+   }
+
+   public String getGeo() {
+      return geo;
+   }
+
+   /**
+     * Tag this tweet with more queries.
+     *
+     * @return True if any of |tags| are new to the tweet.
+     */
+   public synchronized boolean addQueries(BitSet tags) {
+      BitSet old = queries;
+      BitSet added = (BitSet)tags.clone();
+
+      if (old != null) {
+         added.andNot(old);
+      }
+
+      if (added.isEmpty()) {
+         return false;
+      }
+
+      if (old != null) {
+         added.or(old);
+      }
+      queries = added;
+      return true;
+   }
+
    /**
      * Get all the data encapsulated by this class, SQL style.
-     * String values are quoted.
+     * String values are quoted (and quotes in them are doubled), nulls are NULL.
+     * For writing lots of tweets, see edu.calpoly.twitter.export.
      *
      * @return The data for this Tweet in a nice string.
      */
    public String toString() {
-      return String.format("(NULL, '%s', %d, '%s', '%s', '%s', '%s', '%s', '%s')",
-      twitterId, published, content, source, lang, author, place, geo);
+      StringBuilder rtn = new StringBuilder(256);
+
+      rtn.append("(NULL, ");
+      appendQuoted(rtn, twitterId);
+      rtn.append(", ").append(published);
+
+      for (String value : new String[]{getContent(), getSource(), getLang(), getAuthor(),
+                                       getPlace(), getGeo()}) {
+         rtn.append(", ");
+         appendQuoted(rtn, value);
+      }
+
+      return rtn.append(')').toString();
+   }
+
+   private static void appendQuoted(StringBuilder out, String value) {
+      if (value == null) {
+         out.append("NULL");
+         return;
+      }
+
+      out.append('\'');
+      for (int i = 0; i < value.length(); i++) {
+         char next = value.charAt(i);
+
+         if (next == '\'') {
+            out.append('\'');
+         }
+         out.append(next);
+      }
+      out.append('\'');
    }
 }
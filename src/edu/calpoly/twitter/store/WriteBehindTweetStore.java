@@ -0,0 +1,462 @@
+package edu.calpoly.twitter.store;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Backoff;
+import edu.calpoly.twitter.util.Logger;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Puts tweets into a buffer right away and writes them to another store in big batches.
+ * Stores like databases spend most of a small insert on per-call overhead (transactions,
+ *  round trips), so a few big inserts are much faster than many page-sized ones.
+ *
+ * Tweets are buffered by query, and the buffer is written out (by a background thread)
+ *  once it holds |batchSize| tweets or its oldest tweet has waited |maxDelayMs|.
+ * If the store falls behind and |maxBuffered| tweets are waiting, inserters wait for room.
+ *
+ * Since tweets are stored later, insertTweets() gives back the number of tweets accepted,
+ *  and getLastTweetId() counts accepted tweets.
+ * While the store is open, accepted tweets are not dropped: a write that still fails after its
+ *  retries is put back at the front of the buffer and tried again with the next write.
+ * Call flush() to write everything out now, and close() when done.
+ * close() makes one last write, and any tweets that still can not be written are lost
+ *  (and logged).
+ */
+public class WriteBehindTweetStore implements QueryTagStore {
+   private final TweetStore store;
+   private final int batchSize;
+   private final long maxDelayMs;
+   private final int maxBuffered;
+   private final Backoff backoff;
+
+   /**
+    * Guards the buffer, the counts, |acceptedIds|, and |running|.
+    * A lock rather than the monitor, so that inserters waiting for room and the flusher waiting
+    *  for work each wait on their own Condition.
+    */
+   private final ReentrantLock lock;
+
+   /**
+    * Signalled when tweets are written or given back (there may be room in the buffer),
+    *  and when the store is closed.
+    */
+   private final Condition room;
+
+   /**
+    * Signalled when the flusher may have work to do, and when the store is closed.
+    */
+   private final Condition work;
+
+   /**
+    * Tweets waiting to be written, by query.
+    */
+   private Map<String, Batch> buffer;
+   private int buffered;
+
+   /**
+    * When the oldest tweet in the buffer was accepted (0 if it is empty).
+    */
+   private long oldestMillis;
+
+   /**
+    * Tweets that have been taken out of the buffer and are being written.
+    */
+   private int writing;
+
+   /**
+    * The largest id accepted for each query.
+    */
+   private final Map<String, Long> acceptedIds;
+
+   /**
+    * Only one thread writes at a time (a lock rather than a monitor, since writes block).
+    */
+   private final ReentrantLock writeLock;
+
+   private boolean running;
+   private final Thread flusher;
+
+   private final Metrics.Counter flushes;
+   private final Metrics.Counter failures;
+   private final Metrics.Histogram flushSizes;
+
+   /**
+    * Use WRITE_BEHIND_BATCH (default 5000) tweets, WRITE_BEHIND_MAX_DELAY_MS (default 1000),
+    *  and WRITE_BEHIND_MAX_BUFFER (default 50000) tweets.
+    */
+   public WriteBehindTweetStore(TweetStore store) {
+      this(store, Props.getInt("WRITE_BEHIND_BATCH", 5000),
+           Props.getInt("WRITE_BEHIND_MAX_DELAY_MS", 1000),
+           Props.getInt("WRITE_BEHIND_MAX_BUFFER", 50000));
+   }
+
+   public WriteBehindTweetStore(TweetStore store, int batchSize, long maxDelayMs,
+                                int maxBuffered) {
+      this.store = store;
+      this.batchSize = batchSize;
+      this.maxDelayMs = maxDelayMs;
+      this.maxBuffered = Math.max(batchSize, maxBuffered);
+      backoff = new Backoff(Props.getInt("RETRY_BASE_MS", 1000),
+                            Props.getInt("RETRY_MAX_MS", 60000),
+                            Props.getInt("RETRY_MAX_ATTEMPTS", 5));
+
+      lock = new ReentrantLock();
+      room = lock.newCondition();
+      work = lock.newCondition();
+
+      buffer = new HashMap<String, Batch>();
+      buffered = 0;
+      oldestMillis = 0;
+      writing = 0;
+      acceptedIds = new HashMap<String, Long>();
+      writeLock = new ReentrantLock();
+
+      flushes = Metrics.counter("store.writeBehind.flushes");
+      failures = Metrics.counter("store.writeBehind.failures");
+      flushSizes = Metrics.histogram("store.writeBehind.flushSize");
+      Metrics.gauge("store.writeBehind.buffered", new Metrics.Gauge() {
+         public long get() {
+            lock.lock();
+            try {
+               return buffered + writing;
+            } finally {
+               lock.unlock();
+            }
+         }
+      });
+
+      running = true;
+      flusher = new Thread(new Runnable() {
+         public void run() {
+            flushLoop();
+         }
+      }, "write-behind");
+      flusher.setDaemon(true);
+      flusher.start();
+   }
+
+   /**
+    * @inheritDoc
+    * This includes tweets that were accepted but not written yet.
+    */
+   public String getLastTweetId(QueryTargetInfo info) {
+      long last = Long.parseLong(store.getLastTweetId(info));
+
+      lock.lock();
+      try {
+         Long accepted = acceptedIds.get(info.query);
+         if (accepted != null && accepted > last) {
+            last = accepted;
+         }
+      } finally {
+         lock.unlock();
+      }
+
+      return "" + last;
+   }
+
+   /**
+    * @inheritDoc
+    * The tweets are written later, so this is the number of tweets accepted.
+    */
+   public int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+      if (data.isEmpty()) {
+         return 0;
+      }
+
+      long maxId = 0;
+      for (TweetData tweet : data) {
+         maxId = Math.max(maxId, Long.parseLong(tweet.twitterId));
+      }
+
+      lock.lock();
+      try {
+         while (running && buffered + writing >= maxBuffered) {
+            try {
+               room.await();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               break;
+            }
+         }
+
+         accept(info, data, maxId);
+      } finally {
+         lock.unlock();
+      }
+
+      return data.size();
+   }
+
+   /**
+    * Add tweets to the buffer.
+    * Must hold |lock|.
+    */
+   private void accept(QueryTargetInfo info, List<TweetData> data, long maxId) {
+      Batch batch = buffer.get(info.query);
+      if (batch == null) {
+         batch = new Batch(info);
+         buffer.put(info.query, batch);
+      }
+
+      batch.tweets.addAll(data);
+
+      Long accepted = acceptedIds.get(info.query);
+      if (accepted == null || maxId > accepted) {
+         acceptedIds.put(info.query, maxId);
+      }
+
+      if (buffered == 0) {
+         oldestMillis = System.currentTimeMillis();
+      }
+      buffered += data.size();
+
+      if (buffered >= batchSize) {
+         work.signal();
+      }
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void addQueryTag(QueryTargetInfo info, int index, List<String> twitterIds) {
+      if (store instanceof QueryTagStore) {
+         ((QueryTagStore)store).addQueryTag(info, index, twitterIds);
+      }
+   }
+
+   /**
+    * Write out everything that has been accepted, and wait for it to be written.
+    * Tweets that still could not be written are left in the buffer.
+    */
+   public void flush() {
+      writeOut();
+
+      lock.lock();
+      try {
+         while (writing > 0) {
+            try {
+               room.await();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Flush and stop the background writer.
+    * Anything that still can not be written is lost (and logged).
+    */
+   public void close() {
+      lock.lock();
+      try {
+         running = false;
+         room.signalAll();
+         work.signalAll();
+      } finally {
+         lock.unlock();
+      }
+
+      try {
+         flusher.join();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+
+      flush();
+
+      lock.lock();
+      try {
+         if (buffered > 0) {
+            Logger.logError("Closed with " + buffered + " tweets that could not be written.");
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private void flushLoop() {
+      while (true) {
+         lock.lock();
+         try {
+            while (running && !isDue()) {
+               try {
+                  if (buffered == 0) {
+                     work.await();
+                  } else {
+                     work.await(Math.max(1, oldestMillis + maxDelayMs - System.currentTimeMillis()),
+                                TimeUnit.MILLISECONDS);
+                  }
+               } catch (InterruptedException ex) {
+                  return;
+               }
+            }
+
+            if (!running) {
+               return;
+            }
+         } finally {
+            lock.unlock();
+         }
+
+         writeOut();
+      }
+   }
+
+   /**
+    * Must hold |lock|.
+    */
+   private boolean isDue() {
+      return buffered >= batchSize ||
+             (buffered > 0 && System.currentTimeMillis() - oldestMillis >= maxDelayMs);
+   }
+
+   /**
+    * Take everything out of the buffer and write it to the store.
+    * Only one thread writes at a time, so batches for a query stay in order.
+    */
+   private void writeOut() {
+      writeLock.lock();
+
+      try {
+         Map<String, Batch> batches;
+
+         lock.lock();
+         try {
+            if (buffered == 0) {
+               return;
+            }
+
+            batches = buffer;
+            buffer = new HashMap<String, Batch>();
+            writing += buffered;
+            buffered = 0;
+            oldestMillis = 0;
+         } finally {
+            lock.unlock();
+         }
+
+         for (Batch batch : batches.values()) {
+            // The buffer can get ahead of the writer, so it is written batchSize at a time.
+            for (int start = 0; start < batch.tweets.size(); start += batchSize) {
+               int end = Math.min(batch.tweets.size(), start + batchSize);
+
+               if (!write(batch.info, new ArrayList<TweetData>(batch.tweets.subList(start, end)))) {
+                  // The rest of the query's tweets go back too, so they stay in order.
+                  requeue(batch.info, batch.tweets.subList(start, batch.tweets.size()));
+                  break;
+               }
+
+               lock.lock();
+               try {
+                  writing -= end - start;
+                  room.signalAll();
+               } finally {
+                  lock.unlock();
+               }
+            }
+         }
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   /**
+    * Put tweets that could not be written back at the front of the buffer.
+    * They are tried again once they are due (|maxDelayMs| from now, at the latest).
+    */
+   private void requeue(QueryTargetInfo info, List<TweetData> tweets) {
+      Batch requeued = new Batch(info);
+      requeued.tweets.addAll(tweets);
+
+      lock.lock();
+      try {
+         Batch batch = buffer.get(info.query);
+         if (batch != null) {
+            requeued.tweets.addAll(batch.tweets);
+         }
+         buffer.put(info.query, requeued);
+
+         if (buffered == 0) {
+            oldestMillis = System.currentTimeMillis();
+         }
+         buffered += tweets.size();
+         writing -= tweets.size();
+         room.signalAll();
+         work.signal();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return False if the tweets could not be written (after retrying).
+    */
+   private boolean write(QueryTargetInfo info, List<TweetData> tweets) {
+      int attempt = 0;
+
+      while (true) {
+         attempt++;
+
+         try {
+            long start = System.nanoTime();
+            store.insertTweets(info, tweets);
+            flushSizes.record(tweets.size());
+            flushes.inc();
+
+            Logger.logDebug(String.format("Wrote %d tweets for \"%s\" in %d ms.",
+                                          tweets.size(), info.query,
+                                          (System.nanoTime() - start) / 1000000));
+            return true;
+         } catch (Exception ex) {
+            failures.inc();
+
+            if (!backoff.canRetry(attempt)) {
+               Logger.logError(String.format("Unable to write %d tweets for \"%s\", " +
+                                             "keeping them for the next write.",
+                                             tweets.size(), info.query), ex);
+               return false;
+            }
+
+            long delay = backoff.getDelay(attempt);
+            Logger.logWarn(String.format("Write for \"%s\" failed (attempt %d), retrying in %d ms.",
+                                         info.query, attempt, delay));
+
+            try {
+               Thread.sleep(delay);
+            } catch (InterruptedException interrupt) {
+               Thread.currentThread().interrupt();
+               Logger.logError("Interrupted while retrying a write of " + tweets.size() +
+                               " tweets, keeping them for the next write.");
+               return false;
+            }
+         }
+      }
+   }
+
+   /**
+    * The tweets waiting for a single query.
+    */
+   private static class Batch {
+      public final QueryTargetInfo info;
+      public final List<TweetData> tweets;
+
+      public Batch(QueryTargetInfo info) {
+         this.info = info;
+         tweets = new ArrayList<TweetData>();
+      }
+   }
+}
@@ -0,0 +1,56 @@
+package edu.calpoly.twitter.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Jittered exponential backoff.
+ * The cap for attempt n is min(|maxMillis|, |baseMillis| * 2^n), and the actual delay is
+ *  picked uniformly from the upper half of that cap.
+ * The jitter keeps everyone that failed at the same time from retrying at the same time,
+ *  and the floor keeps retries from coming back right away.
+ *
+ * Instances hold no state, so they can be shared between threads.
+ */
+public class Backoff {
+   private final long baseMillis;
+   private final long maxMillis;
+   private final int maxAttempts;
+
+   /**
+    * @param baseMillis The cap on the first delay.
+    * @param maxMillis The cap on any delay.
+    * @param maxAttempts The number of attempts (including the first) before giving up.
+    */
+   public Backoff(long baseMillis, long maxMillis, int maxAttempts) {
+      if (baseMillis < 0 || maxMillis < baseMillis || maxAttempts < 1) {
+         throw new IllegalArgumentException("Bad backoff parameters.");
+      }
+
+      this.baseMillis = baseMillis;
+      this.maxMillis = maxMillis;
+      this.maxAttempts = maxAttempts;
+   }
+
+   /**
+    * Check if there is another attempt left after |attempt| attempts have failed.
+    */
+   public boolean canRetry(int attempt) {
+      return attempt < maxAttempts;
+   }
+
+   /**
+    * Get how long to wait after the |attempt|th failed attempt (starting at 1).
+    */
+   public long getDelay(int attempt) {
+      // Keep the shift from overflowing.
+      int shift = Math.min(Math.max(attempt - 1, 0), 30);
+      long cap = Math.min(maxMillis, baseMillis << shift);
+      long half = cap / 2;
+
+      return half + (half == 0 ? 0 : ThreadLocalRandom.current().nextLong(cap - half + 1));
+   }
+
+   public int getMaxAttempts() {
+      return maxAttempts;
+   }
+}
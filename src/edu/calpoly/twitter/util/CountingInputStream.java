@@ -0,0 +1,66 @@
+package edu.calpoly.twitter.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that keeps track of how many bytes have been read through it.
+ */
+public class CountingInputStream extends FilterInputStream {
+   private long count;
+
+   public CountingInputStream(InputStream in) {
+      super(in);
+      count = 0;
+   }
+
+   /**
+    * Get the number of bytes read (or skipped) so far.
+    */
+   public long getCount() {
+      return count;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public int read() throws IOException {
+      int rtn = super.read();
+
+      if (rtn != -1) {
+         count++;
+      }
+
+      return rtn;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public int read(byte[] buffer, int offset, int length) throws IOException {
+      int rtn = super.read(buffer, offset, length);
+
+      if (rtn > 0) {
+         count += rtn;
+      }
+
+      return rtn;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public long skip(long length) throws IOException {
+      long rtn = super.skip(length);
+      count += rtn;
+      return rtn;
+   }
+
+   /**
+    * Marking is not supported since it would make the count lie.
+    */
+   public boolean markSupported() {
+      return false;
+   }
+}
@@ -2,8 +2,8 @@ package edu.calpoly.twitter.util;
 
 import java.io.FileWriter;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -60,10 +60,17 @@ public class Logger {
 
    /**
     * The name of the current host.
+    * Looking it up can block for a long time when DNS is broken, so it is only done
+    *  in the background (see init()) or when it is first needed (see getHost()).
     */
-   private static String hostname = null;
+   private static volatile String hostname = null;
 
-   private static boolean inited = false;
+   /**
+    * Guards the hostname lookup, so it does not hold up logging (which locks the class).
+    */
+   private static final Object hostLock = new Object();
+
+   private static volatile boolean inited = false;
 
    /**
     * This thread is responsible for taking queued up logging tasks
@@ -93,20 +100,46 @@ public class Logger {
     * Init the Logger.
     * This will read file paths from Props.
     * If it can't get the files, it will just print and die.
+    * It is synchronized so that threads that log before (or while) the driver calls it
+    *  do not each start a logging thread.
     */
-   public static void init() {
+   public static synchronized void init() {
       infoLog = Props.getString("INFO_LOG", "log/info.log");
       warnLog = Props.getString("WARN_LOG", "log/warn.log");
       debugLog = Props.getString("DEBUG_LOG", "log/debug.log");
       errorLog = Props.getString("ERROR_LOG", "log/error.log");
       fatalLog = Props.getString("FATAL_LOG", "log/fatal.log");
-      hostname = Props.getString("HOST_NAME", getHostname());
-      inited = true;
+      hostname = Props.getString("HOST_NAME");
+
+      if (hostname == null) {
+         Thread lookup = new Thread(new Runnable() {
+            public void run() {
+               getHost();
+            }
+         }, "hostname-lookup");
+         lookup.setDaemon(true);
+         lookup.start();
+      }
 
       if (loggingThread == null) {
          loggingThread = new LoggingThread();
          loggingThread.start();
+
+         Metrics.gauge("logger.queueDepth", new Metrics.Gauge() {
+            public long get() {
+               return getQueueDepth();
+            }
+         });
       }
+
+      inited = true;
+   }
+
+   /**
+    * Get the number of logging tasks that are waiting to be written.
+    */
+   public static int getQueueDepth() {
+      return LoggingThread.queue.size();
    }
 
    /**
@@ -273,10 +306,10 @@ public class Logger {
     */
    public static void logFatal(String message) {
       // Log to the console first
-      System.err.println(hostname + "\n" + message);
+      System.err.println(getHost() + "\n" + message);
 
       try {
-         log(hostname + "\n" + message, null, LogLevel.FATAL);
+         log(getHost() + "\n" + message, null, LogLevel.FATAL);
       } catch (Exception e) {
          System.err.println(message);
          System.exit(1);
@@ -307,8 +340,8 @@ public class Logger {
             message += (frame.toString() + "\n");
          }
 
-         System.err.println(hostname + "\n" + message);
-         log(hostname + "\n" + message, null, LogLevel.FATAL);
+         System.err.println(getHost() + "\n" + message);
+         log(getHost() + "\n" + message, null, LogLevel.FATAL);
       } catch (Exception e) {
          System.err.println(message);
          System.exit(1);
@@ -343,6 +376,19 @@ public class Logger {
       queueTask(level, (new Date()).getTime(), fullMessage);
    }
 
+   /**
+    * Get the hostname, looking it up if that has not been done yet.
+    */
+   private static String getHost() {
+      synchronized (hostLock) {
+         if (hostname == null) {
+            hostname = getHostname();
+         }
+
+         return hostname;
+      }
+   }
+
    /**
     * Get the hostname for this machine.
     * If there is an error, 'UNKNOWN' will be returned.
@@ -387,8 +433,9 @@ public class Logger {
    private static class LoggingThread extends Thread {
       /**
        * The queue of logging tasks.
+       * Tasks are queued from any thread, but only taken off by the logging thread.
        */
-      public static Queue<LoggingTask> queue = new LinkedList<LoggingTask>();
+      public static Queue<LoggingTask> queue = new ConcurrentLinkedQueue<LoggingTask>();
 
       private boolean die;
 
@@ -0,0 +1,60 @@
+package edu.calpoly.twitter.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map that holds at most |capacity| entries and drops the least recently used one
+ *  when it gets too big.
+ * Hits and misses are counted so that the capacity can be tuned.
+ * It is safe to use from multiple threads (every call takes the cache's lock,
+ *  which is fine as long as nothing slow is done while holding it).
+ */
+public class LruCache<K, V> {
+   private final LinkedHashMap<K, V> entries;
+
+   private long hits;
+   private long misses;
+
+   public LruCache(final int capacity) {
+      entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+         }
+      };
+
+      hits = 0;
+      misses = 0;
+   }
+
+   /**
+    * @return The value for |key|, or null if it is not cached.
+    */
+   public synchronized V get(K key) {
+      V value = entries.get(key);
+
+      if (value == null) {
+         misses++;
+      } else {
+         hits++;
+      }
+
+      return value;
+   }
+
+   public synchronized void put(K key, V value) {
+      entries.put(key, value);
+   }
+
+   public synchronized int size() {
+      return entries.size();
+   }
+
+   public synchronized long getHits() {
+      return hits;
+   }
+
+   public synchronized long getMisses() {
+      return misses;
+   }
+}
@@ -0,0 +1,432 @@
+package edu.calpoly.twitter.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Metrics is a static registry of low-overhead counters, gauges, and histograms.
+ * Like the Logger, no references to the registry itself are handed out.
+ * Just ask for a metric by name and hold onto it; asking again for the same name gives
+ *  back the same metric.
+ *
+ * All the metrics are exposed through a single JMX bean (see OBJECT_NAME).
+ * Every counter and gauge is one attribute.
+ * Every histogram is expanded into several attributes:
+ *  NAME.count, NAME.mean, NAME.p50, NAME.p90, NAME.p99, and NAME.max.
+ *
+ * The bean is registered the first time init() is called (or the first time that
+ *  a metric is created if init() was never called).
+ * Set METRICS_JMX to false to keep the bean out of the platform MBean server.
+ */
+public final class Metrics {
+   /**
+    * The name that the metrics bean is registered under.
+    */
+   public static final String OBJECT_NAME = "edu.calpoly.twitter:type=Metrics";
+
+   /**
+    * The number of buckets in each histogram.
+    * Bucket i holds values in [2^(i - 1), 2^i), bucket 0 only holds zero.
+    */
+   private static final int NUM_BUCKETS = 64;
+
+   private static final ConcurrentMap<String, Counter> counters =
+         new ConcurrentHashMap<String, Counter>();
+
+   private static final ConcurrentMap<String, Gauge> gauges =
+         new ConcurrentHashMap<String, Gauge>();
+
+   private static final ConcurrentMap<String, Histogram> histograms =
+         new ConcurrentHashMap<String, Histogram>();
+
+   private static boolean inited = false;
+
+   /**
+    * Static only.
+    */
+   private Metrics() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Register the metrics bean with the platform MBean server.
+    * Calling this more than once is harmless.
+    */
+   public static synchronized void init() {
+      if (inited) {
+         return;
+      }
+      inited = true;
+
+      if (!Props.getBoolean("METRICS_JMX", true)) {
+         return;
+      }
+
+      try {
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), name);
+         }
+      } catch (Exception ex) {
+         Logger.logError("Unable to register the metrics bean.", ex);
+      }
+   }
+
+   /**
+    * Get (or create) the counter with the given name.
+    */
+   public static Counter counter(String name) {
+      Counter counter = counters.get(name);
+
+      if (counter == null) {
+         ensureInited();
+
+         counter = new Counter();
+         Counter existing = counters.putIfAbsent(name, counter);
+         if (existing != null) {
+            counter = existing;
+         }
+      }
+
+      return counter;
+   }
+
+   /**
+    * Get (or create) the histogram with the given name.
+    */
+   public static Histogram histogram(String name) {
+      Histogram histogram = histograms.get(name);
+
+      if (histogram == null) {
+         ensureInited();
+
+         histogram = new Histogram();
+         Histogram existing = histograms.putIfAbsent(name, histogram);
+         if (existing != null) {
+            histogram = existing;
+         }
+      }
+
+      return histogram;
+   }
+
+   /**
+    * Register a gauge.
+    * Any gauge previously registered under the same name is replaced.
+    */
+   public static void gauge(String name, Gauge gauge) {
+      ensureInited();
+      gauges.put(name, gauge);
+   }
+
+   /**
+    * Get the current value of any counter or gauge, or any expanded histogram attribute.
+    *
+    * @return The value, or null if there is no such metric.
+    */
+   public static Number get(String name) {
+      Counter counter = counters.get(name);
+      if (counter != null) {
+         return counter.get();
+      }
+
+      Gauge gauge = gauges.get(name);
+      if (gauge != null) {
+         return gauge.get();
+      }
+
+      int split = name.lastIndexOf('.');
+      if (split == -1) {
+         return null;
+      }
+
+      Histogram histogram = histograms.get(name.substring(0, split));
+      if (histogram == null) {
+         return null;
+      }
+
+      return histogram.getStat(name.substring(split + 1));
+   }
+
+   /**
+    * Get the names of all the attributes currently exposed.
+    */
+   public static List<String> getNames() {
+      List<String> names = new ArrayList<String>();
+
+      names.addAll(counters.keySet());
+      names.addAll(gauges.keySet());
+      for (String name : histograms.keySet()) {
+         for (String stat : Histogram.STATS) {
+            names.add(name + "." + stat);
+         }
+      }
+
+      return names;
+   }
+
+   /**
+    * Zero out all the counters and histograms.
+    * Gauges are left alone since they are not owned by the registry.
+    */
+   public static void reset() {
+      for (Counter counter : counters.values()) {
+         counter.reset();
+      }
+
+      for (Histogram histogram : histograms.values()) {
+         histogram.reset();
+      }
+   }
+
+   private static void ensureInited() {
+      if (!inited) {
+         init();
+      }
+   }
+
+   /**
+    * A monotonic count.
+    */
+   public static final class Counter {
+      private final AtomicLong count = new AtomicLong();
+
+      private Counter() {
+      }
+
+      public void inc() {
+         count.incrementAndGet();
+      }
+
+      public void add(long delta) {
+         count.addAndGet(delta);
+      }
+
+      public long get() {
+         return count.get();
+      }
+
+      private void reset() {
+         count.set(0);
+      }
+   }
+
+   /**
+    * A value that is owned by someone else and only read when asked for.
+    */
+   public interface Gauge {
+      public long get();
+   }
+
+   /**
+    * A histogram with power of two buckets.
+    * Recording is a couple of atomic adds, so it is cheap enough for the hot path.
+    * The percentiles that come out are the upper bound of the bucket the percentile falls in,
+    *  so they are accurate to within a factor of two.
+    * Negative values are recorded as zero.
+    */
+   public static final class Histogram {
+      private static final String[] STATS = {"count", "mean", "p50", "p90", "p99", "max"};
+
+      private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+      private final AtomicLong count = new AtomicLong();
+      private final AtomicLong sum = new AtomicLong();
+      private final AtomicLong max = new AtomicLong();
+
+      private Histogram() {
+      }
+
+      public void record(long value) {
+         if (value < 0) {
+            value = 0;
+         }
+
+         buckets.incrementAndGet(Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+         count.incrementAndGet();
+         sum.addAndGet(value);
+
+         long oldMax = max.get();
+         while (value > oldMax && !max.compareAndSet(oldMax, value)) {
+            oldMax = max.get();
+         }
+      }
+
+      /**
+       * Record the time since |startNanos| (as given by System.nanoTime()) in microseconds.
+       */
+      public void recordSince(long startNanos) {
+         record((System.nanoTime() - startNanos) / 1000);
+      }
+
+      public long getCount() {
+         return count.get();
+      }
+
+      public double getMean() {
+         long currentCount = count.get();
+
+         if (currentCount == 0) {
+            return 0;
+         }
+
+         return (double)sum.get() / currentCount;
+      }
+
+      public long getMax() {
+         return max.get();
+      }
+
+      /**
+       * Get an estimate of the given percentile.
+       *
+       * @param percentile The percentile in (0, 100].
+       */
+      public long getPercentile(double percentile) {
+         long total = count.get();
+
+         if (total == 0) {
+            return 0;
+         }
+
+         long target = (long)Math.ceil(total * (percentile / 100.0));
+         long seen = 0;
+
+         for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+               return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+            }
+         }
+
+         return max.get();
+      }
+
+      private Number getStat(String stat) {
+         switch (stat) {
+            case "count":
+               return getCount();
+            case "mean":
+               return getMean();
+            case "p50":
+               return getPercentile(50);
+            case "p90":
+               return getPercentile(90);
+            case "p99":
+               return getPercentile(99);
+            case "max":
+               return getMax();
+            default:
+               return null;
+         }
+      }
+
+      private void reset() {
+         for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+         }
+         count.set(0);
+         sum.set(0);
+         max.set(0);
+      }
+   }
+
+   /**
+    * The bean that exposes all the metrics.
+    * The set of attributes grows as metrics are created, so this has to be dynamic.
+    */
+   private static class MetricsBean implements DynamicMBean {
+      /**
+       * @inheritDoc
+       */
+      public Object getAttribute(String attribute) throws AttributeNotFoundException {
+         Number value = Metrics.get(attribute);
+
+         if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+         }
+
+         return value;
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public AttributeList getAttributes(String[] attributes) {
+         AttributeList rtn = new AttributeList();
+
+         for (String attribute : attributes) {
+            Number value = Metrics.get(attribute);
+            if (value != null) {
+               rtn.add(new Attribute(attribute, value));
+            }
+         }
+
+         return rtn;
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+         throw new AttributeNotFoundException("All metrics are read only.");
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public AttributeList setAttributes(AttributeList attributes) {
+         return new AttributeList();
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+         if ("reset".equals(actionName)) {
+            Metrics.reset();
+            return null;
+         }
+
+         throw new ReflectionException(new NoSuchMethodException(actionName));
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public MBeanInfo getMBeanInfo() {
+         List<String> names = Metrics.getNames();
+         MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.size()];
+
+         for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            String type = name.endsWith(".mean") ? "double" : "long";
+            attributes[i] = new MBeanAttributeInfo(name, type, name, true, false, false);
+         }
+
+         MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("reset", "Zero all counters and histograms.",
+                                   new MBeanParameterInfo[0], "void",
+                                   MBeanOperationInfo.ACTION)
+         };
+
+         return new MBeanInfo(MetricsBean.class.getName(), "Bird Catcher metrics.",
+                              attributes, null, operations, null);
+      }
+   }
+}
@@ -0,0 +1,202 @@
+package edu.calpoly.twitter.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds which of a fixed set of keywords occur in a piece of text, in one pass over the text
+ *  no matter how many keywords there are (Aho-Corasick).
+ *
+ * Keywords are matched case insensitively and only as whole words, which is roughly what
+ *  Twitter search does for plain keywords.
+ * A word is a run of letters, digits, and underscores.
+ * So "poly" will not match "calpoly", but "calpoly" will match "#calpoly" and "@calpoly".
+ *
+ * Keywords may only contain ASCII letters, digits, '_', '#', and '@' (see isMatchable()).
+ * This keeps the automaton a small dense table.
+ */
+public class MultiPatternMatcher {
+   private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789_#@";
+
+   /**
+    * Maps an ASCII char to its index in ALPHABET, or -1.
+    */
+   private static final int[] CHAR_INDEX = new int[128];
+
+   static {
+      for (int i = 0; i < CHAR_INDEX.length; i++) {
+         CHAR_INDEX[i] = ALPHABET.indexOf(Character.toLowerCase((char)i));
+      }
+   }
+
+   private final int numPatterns;
+   private final int[] patternLengths;
+
+   /**
+    * The full transition table: transitions[state][charIndex].
+    * Failure transitions are already folded in, so matching never backtracks.
+    */
+   private final int[][] transitions;
+
+   /**
+    * The patterns that end at each state (including ones reached through failure links).
+    */
+   private final int[][] outputs;
+
+   /**
+    * @param patterns The keywords to look for.
+    *  Pattern i is reported as bit i in match().
+    *
+    * @throws IllegalArgumentException If any of the patterns are not matchable.
+    */
+   public MultiPatternMatcher(List<String> patterns) {
+      numPatterns = patterns.size();
+      patternLengths = new int[numPatterns];
+
+      List<int[]> trie = new ArrayList<int[]>();
+      List<List<Integer>> trieOutputs = new ArrayList<List<Integer>>();
+      trie.add(newState());
+      trieOutputs.add(new ArrayList<Integer>());
+
+      for (int i = 0; i < numPatterns; i++) {
+         String pattern = patterns.get(i);
+
+         if (!isMatchable(pattern)) {
+            throw new IllegalArgumentException("Pattern cannot be matched: " + pattern);
+         }
+
+         patternLengths[i] = pattern.length();
+
+         int state = 0;
+         for (int j = 0; j < pattern.length(); j++) {
+            int index = CHAR_INDEX[pattern.charAt(j)];
+
+            if (trie.get(state)[index] == -1) {
+               trie.get(state)[index] = trie.size();
+               trie.add(newState());
+               trieOutputs.add(new ArrayList<Integer>());
+            }
+
+            state = trie.get(state)[index];
+         }
+
+         trieOutputs.get(state).add(i);
+      }
+
+      // Breadth first to fill in the failure transitions.
+      int[] fail = new int[trie.size()];
+      Queue<Integer> queue = new LinkedList<Integer>();
+
+      for (int index = 0; index < ALPHABET.length(); index++) {
+         int next = trie.get(0)[index];
+
+         if (next == -1) {
+            trie.get(0)[index] = 0;
+         } else {
+            fail[next] = 0;
+            queue.add(next);
+         }
+      }
+
+      while (!queue.isEmpty()) {
+         int state = queue.remove();
+         trieOutputs.get(state).addAll(trieOutputs.get(fail[state]));
+
+         for (int index = 0; index < ALPHABET.length(); index++) {
+            int next = trie.get(state)[index];
+
+            if (next == -1) {
+               trie.get(state)[index] = trie.get(fail[state])[index];
+            } else {
+               fail[next] = trie.get(fail[state])[index];
+               queue.add(next);
+            }
+         }
+      }
+
+      transitions = trie.toArray(new int[trie.size()][]);
+      outputs = new int[trie.size()][];
+      for (int i = 0; i < outputs.length; i++) {
+         List<Integer> stateOutputs = trieOutputs.get(i);
+         outputs[i] = new int[stateOutputs.size()];
+         for (int j = 0; j < outputs[i].length; j++) {
+            outputs[i][j] = stateOutputs.get(j);
+         }
+      }
+   }
+
+   /**
+    * Check if a keyword can be used with this matcher.
+    */
+   public static boolean isMatchable(String pattern) {
+      if (pattern == null || pattern.isEmpty()) {
+         return false;
+      }
+
+      for (int i = 0; i < pattern.length(); i++) {
+         char c = pattern.charAt(i);
+         if (c >= CHAR_INDEX.length || CHAR_INDEX[c] == -1) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Get the number of patterns.
+    */
+   public int size() {
+      return numPatterns;
+   }
+
+   /**
+    * Find all the patterns that occur in |text|.
+    *
+    * @return The patterns that matched, bit i is set if pattern i matched.
+    */
+   public BitSet match(CharSequence text) {
+      BitSet rtn = new BitSet(numPatterns);
+      int state = 0;
+
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         int index = c < CHAR_INDEX.length ? CHAR_INDEX[c] : -1;
+
+         if (index == -1) {
+            state = 0;
+            continue;
+         }
+
+         state = transitions[state][index];
+
+         for (int pattern : outputs[state]) {
+            int start = i - patternLengths[pattern] + 1;
+
+            if ((start == 0 || !isWordChar(text.charAt(start - 1))) &&
+                (i + 1 == text.length() || !isWordChar(text.charAt(i + 1)))) {
+               rtn.set(pattern);
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   private static boolean isWordChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_';
+   }
+
+   private static int[] newState() {
+      int[] state = new int[ALPHABET.length()];
+
+      for (int i = 0; i < state.length; i++) {
+         state[i] = -1;
+      }
+
+      return state;
+   }
+}
@@ -0,0 +1,186 @@
+package edu.calpoly.twitter.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A map from long to long that lives in a direct ByteBuffer, so it does not add anything
+ *  to the heap no matter how big it gets.
+ *
+ * It is an open addressing hash table with linear probing.
+ * Each slot is a key and a value (16 bytes).
+ * Removes shift the following entries back instead of leaving tombstones,
+ *  so the table does not slow down as entries come and go.
+ * The table doubles when it is more than LOAD_FACTOR full.
+ *
+ * Keys must not be 0 (0 marks an empty slot).
+ * Not safe for use from multiple threads.
+ */
+public class OffHeapLongMap {
+   public static final long NO_VALUE = -1;
+
+   private static final int SLOT_BYTES = 16;
+   private static final double LOAD_FACTOR = 0.6;
+
+   private ByteBuffer table;
+   private int capacity;
+   private int mask;
+   private int size;
+
+   /**
+    * @param expected About how many entries the map will hold.
+    */
+   public OffHeapLongMap(int expected) {
+      allocate(Math.max(16, Integer.highestOneBit((int)(expected / LOAD_FACTOR)) << 1));
+   }
+
+   /**
+    * @return The value for |key|, or NO_VALUE if there is none.
+    */
+   public long get(long key) {
+      int slot = find(key);
+      return slot == -1 ? NO_VALUE : table.getLong(slot * SLOT_BYTES + 8);
+   }
+
+   public boolean containsKey(long key) {
+      return find(key) != -1;
+   }
+
+   /**
+    * Set the value for |key|.
+    */
+   public void put(long key, long value) {
+      if (key == 0) {
+         throw new IllegalArgumentException("0 can not be used as a key.");
+      }
+
+      if (size + 1 > capacity * LOAD_FACTOR) {
+         grow();
+      }
+
+      int slot = hash(key) & mask;
+      while (true) {
+         long existing = table.getLong(slot * SLOT_BYTES);
+
+         if (existing == 0) {
+            table.putLong(slot * SLOT_BYTES, key);
+            table.putLong(slot * SLOT_BYTES + 8, value);
+            size++;
+            return;
+         } else if (existing == key) {
+            table.putLong(slot * SLOT_BYTES + 8, value);
+            return;
+         }
+
+         slot = (slot + 1) & mask;
+      }
+   }
+
+   /**
+    * Remove |key|.
+    *
+    * @return True if it was there.
+    */
+   public boolean remove(long key) {
+      int hole = find(key);
+      if (hole == -1) {
+         return false;
+      }
+
+      // Pull back anything after the hole that would not be found past it.
+      int slot = hole;
+      while (true) {
+         slot = (slot + 1) & mask;
+
+         long moving = table.getLong(slot * SLOT_BYTES);
+         if (moving == 0) {
+            break;
+         }
+
+         int home = hash(moving) & mask;
+         boolean canMove = (slot > hole) ? (home <= hole || home > slot) :
+                                           (home <= hole && home > slot);
+         if (canMove) {
+            table.putLong(hole * SLOT_BYTES, moving);
+            table.putLong(hole * SLOT_BYTES + 8, table.getLong(slot * SLOT_BYTES + 8));
+            hole = slot;
+         }
+      }
+
+      table.putLong(hole * SLOT_BYTES, 0);
+      table.putLong(hole * SLOT_BYTES + 8, 0);
+      size--;
+
+      return true;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Get the number of off-heap bytes used by the table.
+    */
+   public long getBytes() {
+      return (long)capacity * SLOT_BYTES;
+   }
+
+   private int find(long key) {
+      if (key == 0) {
+         return -1;
+      }
+
+      int slot = hash(key) & mask;
+      while (true) {
+         long existing = table.getLong(slot * SLOT_BYTES);
+
+         if (existing == key) {
+            return slot;
+         } else if (existing == 0) {
+            return -1;
+         }
+
+         slot = (slot + 1) & mask;
+      }
+   }
+
+   private void grow() {
+      ByteBuffer old = table;
+      int oldCapacity = capacity;
+
+      allocate(capacity * 2);
+
+      for (int i = 0; i < oldCapacity; i++) {
+         long key = old.getLong(i * SLOT_BYTES);
+         if (key != 0) {
+            put(key, old.getLong(i * SLOT_BYTES + 8));
+         }
+      }
+   }
+
+   /**
+    * New tables are zeroed, which is what empty slots are.
+    */
+   private void allocate(int newCapacity) {
+      if (newCapacity <= 0 || (long)newCapacity * SLOT_BYTES > Integer.MAX_VALUE) {
+         throw new IllegalStateException("OffHeapLongMap is too big.");
+      }
+
+      table = ByteBuffer.allocateDirect(newCapacity * SLOT_BYTES);
+      capacity = newCapacity;
+      mask = newCapacity - 1;
+      size = 0;
+   }
+
+   /**
+    * Tweet ids are sequential in their low bits, so they need to be mixed up.
+    */
+   private static int hash(long key) {
+      key ^= key >>> 33;
+      key *= 0xff51afd7ed558ccdL;
+      key ^= key >>> 33;
+      key *= 0xc4ceb9fe1a85ec53L;
+      key ^= key >>> 33;
+
+      return (int)key;
+   }
+}
@@ -8,6 +8,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * The Props is the place to go for properties and configurations.
@@ -169,11 +172,74 @@ public final class Props {
       return rtn;
    }
 
+   /**
+    * Set a String value.
+    * Any existing value for |key| will be overwritten.
+    * This is mainly for drivers and benchmarks that need to configure things without a file.
+    */
+   public static void setString(String key, String value) {
+      props.put(key, new StringProp(value));
+   }
+
    /**
     * Read a properties file and load all of the properties into Props.
     * Any properties conflicting with previous files will be overwritten.
     */
    public static boolean readFile(String fileName) {
+      Map<String, PropType> read = new HashMap<String, PropType>();
+      boolean rtn = parse(fileName, read);
+
+      props.putAll(read);
+      return rtn;
+   }
+
+   /**
+    * Read several properties files at the same time (each on its own thread), and then
+    *  load them in order, just like calling readFile() on each of them.
+    * Parsing through commons-configuration is most of the cost of reading a file,
+    *  so this is mainly for startup.
+    *
+    * @return True if every file was read without a problem.
+    */
+   public static boolean readFiles(String... fileNames) {
+      List<Map<String, PropType>> reads = new ArrayList<Map<String, PropType>>();
+      List<FutureTask<Boolean>> tasks = new ArrayList<FutureTask<Boolean>>();
+
+      for (final String fileName : fileNames) {
+         final Map<String, PropType> read = new HashMap<String, PropType>();
+         FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() {
+               return parse(fileName, read);
+            }
+         });
+
+         reads.add(read);
+         tasks.add(task);
+         new Thread(task, "props-" + fileName).start();
+      }
+
+      boolean rtn = true;
+      for (int i = 0; i < fileNames.length; i++) {
+         try {
+            rtn &= tasks.get(i).get();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+         } catch (ExecutionException ex) {
+            Logger.logError("Error getting properties from: " + fileNames[i] + ".", ex);
+            rtn = false;
+         }
+
+         props.putAll(reads.get(i));
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Parse a properties file into |read|.
+    */
+   private static boolean parse(String fileName, Map<String, PropType> read) {
       //Note: getKeys() returns the SET of all keys.
       // Therefore, lists will only be listed once.
 
@@ -204,7 +270,7 @@ public final class Props {
                   }
                   prop = new ListProp(propList);
                }
-               props.put(key, prop);
+               read.put(key, prop);
             } catch (Exception ex) {
                Logger.logError("Error lifting property, [" + key +
                 "] from file: " + fileName + ".", ex);
@@ -0,0 +1,115 @@
+package edu.calpoly.twitter.util;
+
+/**
+ * A sliding window rate limiter.
+ * No more than |requests| permits will be handed out in any |windowMillis| window.
+ *
+ * Callers reserve a slot while holding the lock, but do all their waiting outside of it.
+ * So, waiters are served in the order they asked and don't block each other's bookkeeping.
+ *
+ * There is one shared limiter (see getShared()) that is configured from Props:
+ *  RATE_LIMIT_REQUESTS (default 450) and RATE_LIMIT_WINDOW_SEC (default 900).
+ * These defaults are Twitter's limits for application-auth search.
+ */
+public class RateLimiter {
+   private static RateLimiter shared = null;
+
+   private final long windowMillis;
+
+   /**
+    * The times (in ms) that the last |requests| permits were (or will be) used.
+    * This is a ring, |next| is the oldest.
+    */
+   private final long[] slots;
+
+   private int next;
+
+   public RateLimiter(int requests, long windowMillis) {
+      if (requests <= 0 || windowMillis <= 0) {
+         throw new IllegalArgumentException("Rate limits must be positive.");
+      }
+
+      this.windowMillis = windowMillis;
+      slots = new long[requests];
+      next = 0;
+
+      for (int i = 0; i < requests; i++) {
+         slots[i] = Long.MIN_VALUE / 2;
+      }
+   }
+
+   /**
+    * Get the limiter that is shared by everyone that talks to Twitter with the same credentials.
+    */
+   public static synchronized RateLimiter getShared() {
+      if (shared == null) {
+         shared = new RateLimiter(Props.getInt("RATE_LIMIT_REQUESTS", 450),
+                                  Props.getInt("RATE_LIMIT_WINDOW_SEC", 900) * 1000L);
+      }
+
+      return shared;
+   }
+
+   /**
+    * Block until a permit is available and take it.
+    *
+    * @throws InterruptedException If interrupted while waiting.
+    *  The permit is still considered used.
+    */
+   public void acquire() throws InterruptedException {
+      long wait = reserve() - System.currentTimeMillis();
+
+      if (wait > 0) {
+         Thread.sleep(wait);
+      }
+   }
+
+   /**
+    * Take a permit if one is available right now.
+    *
+    * @return True if a permit was taken.
+    */
+   public synchronized boolean tryAcquire() {
+      long now = System.currentTimeMillis();
+
+      if (slots[next] + windowMillis > now) {
+         return false;
+      }
+
+      slots[next] = now;
+      next = (next + 1) % slots.length;
+      return true;
+   }
+
+   /**
+    * Get the number of permits per window.
+    */
+   public int getRequests() {
+      return slots.length;
+   }
+
+   public long getWindowMillis() {
+      return windowMillis;
+   }
+
+   /**
+    * Get the sustained rate that this limiter allows, in permits per second.
+    */
+   public double getRate() {
+      return slots.length / (windowMillis / 1000.0);
+   }
+
+   /**
+    * Reserve the next slot.
+    *
+    * @return The time (in ms) at which the reserved permit may be used.
+    */
+   private synchronized long reserve() {
+      long time = Math.max(System.currentTimeMillis(), slots[next] + windowMillis);
+
+      slots[next] = time;
+      next = (next + 1) % slots.length;
+
+      return time;
+   }
+}
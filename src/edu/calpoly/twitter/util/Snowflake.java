@@ -0,0 +1,42 @@
+package edu.calpoly.twitter.util;
+
+/**
+ * Twitter's ids (snowflakes) have the time they were made built into them.
+ * The top bits are the number of ms since Twitter's epoch, the low 22 bits are
+ *  a worker id and a sequence number.
+ * So, ids can be used as (very close) stand-ins for time and vice versa.
+ *
+ * See: https://github.com/twitter/snowflake
+ */
+public final class Snowflake {
+   /**
+    * Twitter's epoch (in ms since the Unix epoch).
+    */
+   public static final long TWEPOCH = 1288834974657L;
+
+   /**
+    * The number of bits below the timestamp.
+    */
+   public static final int TIME_SHIFT = 22;
+
+   /**
+    * Static only.
+    */
+   private Snowflake() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Get the smallest id that could have been made at |millis|.
+    */
+   public static long idForTime(long millis) {
+      return Math.max(0, millis - TWEPOCH) << TIME_SHIFT;
+   }
+
+   /**
+    * Get the time (in ms since the Unix epoch) that |id| was made.
+    */
+   public static long timeForId(long id) {
+      return (id >> TIME_SHIFT) + TWEPOCH;
+   }
+}
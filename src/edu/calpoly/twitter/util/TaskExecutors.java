@@ -0,0 +1,157 @@
+package edu.calpoly.twitter.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The place to get executors for blocking gather work (fetching, parsing, and storing).
+ *
+ * There are two execution modes, picked with the EXECUTION_MODE property:
+ *  threads - (default) Every task runs on a platform thread.
+ *  virtual - Every task runs on its own virtual thread.
+ *            The blocking code doesn't change at all, but a blocked task no longer holds
+ *             an OS thread and its stack.
+ *            This needs a JDK with virtual threads (21+).
+ *            If they are not available, a warning is logged and platform threads are used.
+ *
+ * Virtual threads are looked up reflectively so that this still builds for older targets.
+ * Note that a virtual thread that blocks inside a synchronized block pins its carrier thread,
+ *  so none of the gather code does I/O (or sleeps) while holding a monitor.
+ */
+public final class TaskExecutors {
+   private static final String VIRTUAL_MODE = "virtual";
+
+   private static boolean warned = false;
+
+   /**
+    * Static only.
+    */
+   private TaskExecutors() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Check if EXECUTION_MODE asks for virtual threads.
+    */
+   public static boolean isVirtualRequested() {
+      return VIRTUAL_MODE.equalsIgnoreCase(Props.getString("EXECUTION_MODE", "threads"));
+   }
+
+   /**
+    * Check if this JVM can run virtual threads.
+    */
+   public static boolean isVirtualAvailable() {
+      try {
+         Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+         Thread.class.getMethod("ofVirtual");
+         return true;
+      } catch (NoSuchMethodException ex) {
+         return false;
+      }
+   }
+
+   /**
+    * Get an executor for the configured execution mode.
+    *
+    * @param name The prefix for the names of the threads.
+    * @param threads The number of platform threads to use.
+    *  If this is not positive, every task will get its own platform thread.
+    *  This is ignored in virtual mode.
+    */
+   public static ExecutorService newExecutor(String name, int threads) {
+      if (isVirtualRequested()) {
+         ExecutorService executor = newVirtualExecutor(name);
+         if (executor != null) {
+            return executor;
+         }
+      }
+
+      return newPlatformExecutor(name, threads);
+   }
+
+   /**
+    * Get an executor that runs tasks on platform threads.
+    *
+    * @param threads The number of threads to use.
+    *  If this is not positive, every task will get its own thread
+    *  (idle threads are reused for a short time).
+    */
+   public static ExecutorService newPlatformExecutor(String name, int threads) {
+      if (threads > 0) {
+         return Executors.newFixedThreadPool(threads, new NamedThreadFactory(name));
+      }
+
+      return Executors.newCachedThreadPool(new NamedThreadFactory(name));
+   }
+
+   /**
+    * Get an executor with a fixed number of platform threads and a bounded queue.
+    * When the queue is full, the task is run by the thread that submitted it,
+    *  which slows the submitter down to what the workers can keep up with.
+    */
+   public static ExecutorService newBoundedExecutor(String name, int threads, int queueSize) {
+      return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                    new ArrayBlockingQueue<Runnable>(queueSize),
+                                    new NamedThreadFactory(name),
+                                    new ThreadPoolExecutor.CallerRunsPolicy());
+   }
+
+   /**
+    * Get an executor that runs every task on a new virtual thread.
+    *
+    * @return The executor, or null if virtual threads are not available.
+    */
+   public static ExecutorService newVirtualExecutor(String name) {
+      try {
+         Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+         Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+         builder = builderClass.getMethod("name", String.class, long.class)
+               .invoke(builder, name + "-", 0L);
+         ThreadFactory factory =
+               (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+         Method newExecutor =
+               Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+         return (ExecutorService)newExecutor.invoke(null, factory);
+      } catch (Exception ex) {
+         synchronized (TaskExecutors.class) {
+            if (!warned) {
+               warned = true;
+               Logger.logWarn("Virtual threads were asked for, but are not available in " +
+                              "this JVM (" + System.getProperty("java.version") + "). " +
+                              "Falling back to platform threads.");
+            }
+         }
+
+         return null;
+      }
+   }
+
+   /**
+    * Gives threads names so that they are easy to pick out of a thread dump.
+    */
+   private static class NamedThreadFactory implements ThreadFactory {
+      private final String name;
+      private final AtomicInteger count;
+
+      public NamedThreadFactory(String name) {
+         this.name = name;
+         count = new AtomicInteger();
+      }
+
+      /**
+       * @inheritDoc
+       */
+      public Thread newThread(Runnable task) {
+         return new Thread(task, name + "-" + count.getAndIncrement());
+      }
+   }
+}
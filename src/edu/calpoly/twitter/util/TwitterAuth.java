@@ -9,8 +9,13 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * This class is a utility class for the Twitter API v1.1 application based authentication.
@@ -18,10 +23,24 @@ import javax.net.ssl.HttpsURLConnection;
  * See: https://dev.twitter.com/docs/auth/application-only-auth for details.
  *
  * This class provides a utility main to get a bearer token from a key and secret.
+ *
+ * Tokens can also be fetched in the background (see getBearerTokenAsync()), so that a driver
+ *  can get on with starting up while the token request is in flight.
  */
 public final class TwitterAuth {
+   /**
+    * The default token endpoint.
+    * This can be overridden with the TWITTER_TOKEN_URL property.
+    */
    private static final String REQUEST_TOKEN_URL = "https://api.twitter.com/oauth2/token";
 
+   /**
+    * Token requests that have been started (or finished), by key and secret.
+    * Failed requests are dropped so the next ask tries again.
+    */
+   private static final ConcurrentMap<String, Future<String>> tokens =
+         new ConcurrentHashMap<String, Future<String>>();
+
    // Static only.
    private TwitterAuth () {
       throw new UnsupportedOperationException();
@@ -63,16 +82,59 @@ public final class TwitterAuth {
       }
    }
 
+   /**
+    * Start getting the bearer token on a background thread, or give back the request that is
+    *  already going (or done) for this key and secret.
+    * Every gatherer that uses the same credentials shares a single round trip.
+    *
+    * @return The token, which is null if it could not be gotten (see getBearerToken()).
+    */
+   public static Future<String> getBearerTokenAsync(final String apiKey, final String apiSecret) {
+      final String cacheKey = apiKey + ":" + apiSecret;
+      Future<String> token = tokens.get(cacheKey);
+      if (token != null) {
+         return token;
+      }
+
+      FutureTask<String> request = new FutureTask<String>(new Callable<String>() {
+         public String call() {
+            long start = System.nanoTime();
+            String rtn = getBearerToken(apiKey, apiSecret);
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+            Metrics.histogram("auth.tokenMs").record(elapsedMs);
+            if (rtn == null) {
+               tokens.remove(cacheKey);
+            } else {
+               Logger.logDebug("Got a bearer token in " + elapsedMs + " ms.");
+            }
+
+            return rtn;
+         }
+      });
+
+      token = tokens.putIfAbsent(cacheKey, request);
+      if (token != null) {
+         return token;
+      }
+
+      Thread thread = new Thread(request, "bearer-token");
+      thread.setDaemon(true);
+      thread.start();
+
+      return request;
+   }
+
    /**
     * Get the bearer token from Twitter.
     */
    public static String getBearerToken(String apiKey, String apiSecret) {
-      HttpsURLConnection conn = null;
+      HttpURLConnection conn = null;
       String tokenCredentials = generateTokenCredentials(apiKey, apiSecret);
 
       try {
-         URL url = new URL(REQUEST_TOKEN_URL);
-         conn = (HttpsURLConnection)url.openConnection();
+         URL url = new URL(Props.getString("TWITTER_TOKEN_URL", REQUEST_TOKEN_URL));
+         conn = (HttpURLConnection)url.openConnection();
          conn.setDoOutput(true);
          conn.setDoInput(true);
          conn.setRequestMethod("POST");
@@ -104,7 +166,7 @@ public final class TwitterAuth {
       }
    }
 
-   private static boolean writeRequest(HttpsURLConnection connection, String textBody) {
+   private static boolean writeRequest(HttpURLConnection connection, String textBody) {
       try {
          BufferedWriter wr =
                new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
@@ -120,7 +182,7 @@ public final class TwitterAuth {
       }
    }
 
-   private static String readResponse(HttpsURLConnection connection) {
+   private static String readResponse(HttpURLConnection connection) {
       try {
          StringBuilder str = new StringBuilder();
 
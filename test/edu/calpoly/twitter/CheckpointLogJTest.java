@@ -0,0 +1,145 @@
+package edu.calpoly.twitter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that CheckpointLog keeps what was put in it across reopening, including
+ *  when many threads write at once.
+ */
+public class CheckpointLogJTest {
+   private File dir;
+   private String path;
+
+   @Before
+   public void setUp() throws IOException {
+      dir = Files.createTempDirectory("checkpoints").toFile();
+      path = new File(dir, "checkpoints.tsv").getPath();
+   }
+
+   @After
+   public void tearDown() {
+      File[] files = dir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            file.delete();
+         }
+      }
+      dir.delete();
+   }
+
+   @Test
+   public void testRandomPutsAndRemoves() {
+      Random random = new Random(0);
+      Map<String, String[]> expected = new HashMap<String, String[]>();
+      CheckpointLog log = new CheckpointLog(path);
+
+      for (int op = 0; op < 500; op++) {
+         String key = "key" + random.nextInt(20);
+
+         if (random.nextInt(4) == 0) {
+            log.remove(key);
+            expected.remove(key);
+         } else {
+            String[] values = new String[random.nextInt(4)];
+            for (int i = 0; i < values.length; i++) {
+               values[i] = random.nextInt(5) == 0 ? null : "" + random.nextLong();
+            }
+
+            log.put(key, values);
+            expected.put(key, values);
+         }
+
+         if (random.nextInt(25) == 0) {
+            log = new CheckpointLog(path);
+         }
+
+         assertEntries(expected, log);
+      }
+
+      assertEntries(expected, new CheckpointLog(path));
+   }
+
+   @Test
+   public void testQueryPosition() {
+      CheckpointLog log = new CheckpointLog(path);
+      QueryTargetInfo info = new QueryTargetInfo("cal%20poly");
+      info.lastSeenId = "300";
+      info.floorId = "100";
+      info.smallestId = null;
+      log.save(info);
+
+      QueryTargetInfo restored = new QueryTargetInfo("cal%20poly");
+      assertTrue(new CheckpointLog(path).restore(restored));
+      assertEquals("300", restored.lastSeenId);
+      assertEquals("100", restored.floorId);
+      assertNull(restored.smallestId);
+
+      assertFalse(new CheckpointLog(path).restore(new QueryTargetInfo("other")));
+   }
+
+   @Test
+   public void testLineBreaks() {
+      new CheckpointLog(path).put("a\nb", "c\td", "e\rf");
+
+      CheckpointLog log = new CheckpointLog(path);
+      assertArrayEquals(new String[] {"c%09d", "e%0Df"}, log.get("a%0Ab"));
+   }
+
+   @Test
+   public void testConcurrentPuts() throws InterruptedException {
+      final CheckpointLog log = new CheckpointLog(path);
+      Thread[] threads = new Thread[8];
+
+      for (int t = 0; t < threads.length; t++) {
+         final int thread = t;
+         threads[t] = new Thread() {
+            public void run() {
+               for (int i = 0; i < 100; i++) {
+                  log.put("t" + thread + "-" + i, "" + i);
+               }
+            }
+         };
+         threads[t].start();
+      }
+
+      for (Thread thread : threads) {
+         thread.join();
+      }
+
+      // Whichever put wrote last must have written everything.
+      CheckpointLog reopened = new CheckpointLog(path);
+      for (int t = 0; t < threads.length; t++) {
+         for (int i = 0; i < 100; i++) {
+            assertArrayEquals(new String[] {"" + i}, reopened.get("t" + t + "-" + i));
+         }
+      }
+   }
+
+   private static void assertEntries(Map<String, String[]> expected, CheckpointLog log) {
+      for (int i = 0; i < 20; i++) {
+         String key = "key" + i;
+         String[] values = expected.get(key);
+
+         if (values == null) {
+            assertNull(log.get(key));
+         } else {
+            assertArrayEquals(values, log.get(key));
+         }
+      }
+   }
+}
@@ -0,0 +1,406 @@
+package edu.calpoly.twitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import edu.calpoly.twitter.store.PageBuffer;
+import edu.calpoly.twitter.store.TweetData;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Checks LazyTweetDecoder against decoding the same responses with org.json
+ *  (JSONTwitterGatherer.getTweets()), and that tweets outlive the PageBuffer they came from.
+ *
+ * Responses are random: keys in any order, whitespace anywhere, every kind of string escape,
+ *  nested tweets and junk that has to be skipped, and tweets that are missing fields.
+ */
+public class LazyTweetDecoderJTest {
+   private static final String[] STRING_PIECES = {
+      "a", "Z", "9", " ", "\"", "\\", "/", "\n", "\t", "\u0001", "\u00e9", "\u4e2d",
+      "\ud83d\ude00", "{", "}", "[", "]", ",", ":", "next_results", "text", "null"
+   };
+
+   private static final String[] WHITESPACE = {"", "", "", " ", "\n", "\t", "\r\n  "};
+
+   private final SimpleDateFormat dateFormat;
+
+   public LazyTweetDecoderJTest() {
+      dateFormat = new SimpleDateFormat(JSONTwitterGatherer.TIME_FORMAT, Locale.US);
+      dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+   }
+
+   @Test
+   public void testRandomResponses() throws IOException {
+      for (long seed = 0; seed < 300; seed++) {
+         Random random = new Random(seed);
+         String response = write(random, randomResponse(random, seed % 50 == 0 ? 2000 : 20));
+
+         QueryTargetInfo eagerInfo = new QueryTargetInfo("q");
+         JSONObject json = new JSONObject(response);
+         List<TweetData> expected = JSONTwitterGatherer.getTweets(json, eagerInfo);
+
+         PageBuffer buffer = read(response);
+         QueryTargetInfo lazyInfo = new QueryTargetInfo("q");
+         LazyTweetDecoder decoder = new LazyTweetDecoder(buffer);
+         List<TweetData> actual = decoder.decode(lazyInfo);
+
+         String message = "seed " + seed;
+         assertTweets(message, expected, actual);
+         assertEquals(message, eagerInfo.smallestId, lazyInfo.smallestId);
+         assertEquals(message, eagerInfo.lastSeenId, lazyInfo.lastSeenId);
+
+         String nextResults = getNextResults(json);
+         assertEquals(message, nextResults, decoder.getNextResults());
+         assertEquals(message, nextResults, LazyTweetDecoder.findNextResults(buffer));
+
+         // The tweets copy out what they need, so reusing the buffer doesn't change them.
+         buffer.recycle();
+         for (int i = 0; i < 4; i++) {
+            byte[] garbage = new byte[response.length() + random.nextInt(1000)];
+            random.nextBytes(garbage);
+            PageBuffer.acquire().readFrom(new ByteArrayInputStream(garbage));
+         }
+         assertTweets(message + " after recycling", expected, actual);
+      }
+   }
+
+   @Test
+   public void testCutOff() throws IOException {
+      Random random = new Random(0);
+      String response = write(random, randomResponse(random, 10));
+      byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+      int end = bytes.length;
+      while (bytes[end - 1] != '}') {
+         end--;
+      }
+
+      for (int length = 0; length < end; length++) {
+         PageBuffer buffer = PageBuffer.acquire();
+         buffer.readFrom(new ByteArrayInputStream(bytes, 0, length));
+
+         try {
+            new LazyTweetDecoder(buffer).decode(new QueryTargetInfo("q"));
+            fail("A response cut off at " + length + " of " + end + " bytes was decoded.");
+         } catch (JSONException ex) {
+            // Expected.
+         }
+
+         buffer.recycle();
+      }
+   }
+
+   @Test
+   public void testNoNextResults() throws IOException {
+      PageBuffer buffer = read("{\"statuses\":[],\"search_metadata\":{\"next_results\":null}}");
+      LazyTweetDecoder decoder = new LazyTweetDecoder(buffer);
+
+      assertEquals(0, decoder.decode(new QueryTargetInfo("q")).size());
+      assertNull(decoder.getNextResults());
+      assertNull(LazyTweetDecoder.findNextResults(buffer));
+   }
+
+   private void assertTweets(String message, List<TweetData> expected, List<TweetData> actual) {
+      assertEquals(message, expected.size(), actual.size());
+
+      for (int i = 0; i < expected.size(); i++) {
+         TweetData want = expected.get(i);
+         TweetData got = actual.get(i);
+         String tweetMessage = message + " tweet " + want.twitterId;
+
+         assertEquals(tweetMessage, want.twitterId, got.twitterId);
+         assertEquals(tweetMessage, want.published, got.published);
+         assertEquals(tweetMessage, want.getContent(), got.getContent());
+         assertEquals(tweetMessage, want.getSource(), got.getSource());
+         assertEquals(tweetMessage, want.getLang(), got.getLang());
+         assertEquals(tweetMessage, want.getAuthor(), got.getAuthor());
+         assertEquals(tweetMessage, normalize(want.getPlace()), normalize(got.getPlace()));
+         assertEquals(tweetMessage, normalize(want.getGeo()), normalize(got.getGeo()));
+      }
+   }
+
+   /**
+    * Place and geo are the JSON text from the response when they are objects,
+    *  so only compare what they mean.
+    */
+   private static String normalize(String value) {
+      try {
+         if (value.startsWith("{")) {
+            return new JSONObject(value).toString();
+         } else if (value.startsWith("[")) {
+            return new JSONArray(value).toString();
+         }
+      } catch (JSONException ex) {
+         // Just a string that looks like JSON.
+      }
+
+      return value;
+   }
+
+   private static String getNextResults(JSONObject json) throws JSONException {
+      JSONObject metadata = json.optJSONObject("search_metadata");
+      if (metadata == null || !(metadata.opt("next_results") instanceof String)) {
+         return null;
+      }
+
+      return metadata.getString("next_results");
+   }
+
+   private static PageBuffer read(String response) throws IOException {
+      PageBuffer buffer = PageBuffer.acquire();
+      buffer.readFrom(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+      return buffer;
+   }
+
+   private Map<String, Object> randomResponse(Random random, int maxTweets) {
+      Map<String, Object> response = new LinkedHashMap<String, Object>();
+      List<Object> statuses = new ArrayList<Object>();
+
+      int count = random.nextInt(maxTweets + 1);
+      for (int i = 0; i < count; i++) {
+         statuses.add(random.nextInt(30) == 0 ? (Object)random.nextInt() : randomTweet(random));
+      }
+
+      Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+      metadata.put("count", count);
+      if (random.nextInt(4) != 0) {
+         metadata.put("next_results", random.nextInt(5) == 0 ? null :
+                      "?max_id=" + random.nextLong() + "&q=" + randomString(random));
+      }
+      metadata.put("query", randomString(random));
+
+      // Twitter puts the metadata after the statuses.
+      response.put("statuses", statuses);
+      if (random.nextBoolean()) {
+         response.put("junk", randomValue(random, 3));
+      }
+      response.put("search_metadata", metadata);
+
+      return response;
+   }
+
+   private Map<String, Object> randomTweet(Random random) {
+      List<String> keys = new ArrayList<String>();
+      Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+      long id = 1 + (random.nextLong() >>> 2);
+      values.put("id_str", "" + id);
+      values.put("id", id);
+      // Mostly the same second, like a real page.
+      values.put("created_at",
+                 dateFormat.format(new Date(1400000000000L + 1000L * random.nextInt(3))));
+      values.put("text", randomString(random));
+      values.put("source", random.nextInt(10) == 0 ? null : randomString(random));
+      values.put("lang", random.nextInt(10) == 0 ? null : "en");
+
+      Map<String, Object> user = new LinkedHashMap<String, Object>();
+      user.put("id", random.nextInt());
+      if (random.nextInt(10) != 0) {
+         user.put("screen_name", randomString(random));
+      }
+      user.put("entities", randomValue(random, 2));
+      values.put("user", random.nextInt(20) == 0 ? null : user);
+
+      values.put("place", randomPlace(random));
+      values.put("geo", randomPlace(random));
+      values.put("entities", randomValue(random, 3));
+
+      if (random.nextInt(4) == 0) {
+         // Nested tweets have to be skipped, not decoded.
+         Map<String, Object> retweeted = new LinkedHashMap<String, Object>();
+         retweeted.put("id_str", "" + random.nextInt(1000));
+         retweeted.put("text", randomString(random));
+         retweeted.put("user", user);
+         values.put("retweeted_status", retweeted);
+      }
+
+      keys.addAll(values.keySet());
+      Collections.shuffle(keys, random);
+
+      // Sometimes a required field is missing.
+      if (random.nextInt(15) == 0) {
+         keys.remove(random.nextInt(3) == 0 ? "id_str" :
+                     random.nextBoolean() ? "created_at" : "text");
+      }
+
+      Map<String, Object> tweet = new LinkedHashMap<String, Object>();
+      for (String key : keys) {
+         tweet.put(key, values.get(key));
+      }
+
+      return tweet;
+   }
+
+   private static Object randomPlace(Random random) {
+      switch (random.nextInt(4)) {
+         case 0:
+            return null;
+         case 1:
+            return randomString(random);
+         default:
+            Map<String, Object> place = new LinkedHashMap<String, Object>();
+            place.put("full_name", randomString(random));
+            place.put("bounding_box", randomValue(random, 2));
+            return place;
+      }
+   }
+
+   private static Object randomValue(Random random, int depth) {
+      int pick = random.nextInt(depth > 0 ? 8 : 6);
+
+      switch (pick) {
+         case 0:
+            return null;
+         case 1:
+            return random.nextBoolean();
+         case 2:
+            return random.nextInt();
+         case 3:
+            return random.nextDouble() * 1000;
+         case 4:
+         case 5:
+            return randomString(random);
+         case 6:
+            List<Object> list = new ArrayList<Object>();
+            for (int i = random.nextInt(4); i > 0; i--) {
+               list.add(randomValue(random, depth - 1));
+            }
+            return list;
+         default:
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (int i = random.nextInt(4); i > 0; i--) {
+               map.put(randomString(random) + i, randomValue(random, depth - 1));
+            }
+            return map;
+      }
+   }
+
+   private static String randomString(Random random) {
+      StringBuilder rtn = new StringBuilder();
+
+      for (int i = random.nextInt(12); i > 0; i--) {
+         rtn.append(STRING_PIECES[random.nextInt(STRING_PIECES.length)]);
+      }
+
+      return rtn.toString();
+   }
+
+   /**
+    * Write a value as JSON, with random whitespace and escapes.
+    */
+   private static String write(Random random, Object value) {
+      StringBuilder out = new StringBuilder();
+      write(random, value, out);
+      return out.toString();
+   }
+
+   @SuppressWarnings("unchecked")
+   private static void write(Random random, Object value, StringBuilder out) {
+      if (value == null) {
+         out.append("null");
+      } else if (value instanceof String) {
+         writeString(random, (String)value, true, out);
+      } else if (value instanceof Map) {
+         out.append('{');
+         boolean first = true;
+
+         for (Map.Entry<String, Object> entry : ((Map<String, Object>)value).entrySet()) {
+            if (!first) {
+               out.append(',');
+            }
+            first = false;
+
+            space(random, out);
+            writeString(random, entry.getKey(), false, out);
+            space(random, out);
+            out.append(':');
+            space(random, out);
+            write(random, entry.getValue(), out);
+            space(random, out);
+         }
+
+         out.append('}');
+      } else if (value instanceof List) {
+         out.append('[');
+         boolean first = true;
+
+         for (Object item : (List<Object>)value) {
+            if (!first) {
+               out.append(',');
+            }
+            first = false;
+
+            space(random, out);
+            write(random, item, out);
+            space(random, out);
+         }
+
+         out.append(']');
+      } else {
+         out.append(value);
+      }
+   }
+
+   /**
+    * Keys are matched byte for byte (Twitter never escapes them), so only values get
+    *  escapes that are not needed.
+    */
+   private static void writeString(Random random, String value, boolean escape,
+                                   StringBuilder out) {
+      out.append('"');
+
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+
+         if (c == '"' || c == '\\') {
+            out.append('\\').append(c);
+         } else if (c < 0x20 && !escape) {
+            out.append(String.format("\\u%04x", (int)c));
+         } else if (!escape) {
+            out.append(c);
+         } else if (c == '\n' && random.nextBoolean()) {
+            out.append("\\n");
+         } else if (c == '\t' && random.nextBoolean()) {
+            out.append("\\t");
+         } else if (c == '/' && random.nextBoolean()) {
+            out.append("\\/");
+         } else if (Character.isHighSurrogate(c)) {
+            // Both halves of a pair are escaped or neither, a lone half isn't valid UTF-8.
+            char low = value.charAt(++i);
+            if (random.nextInt(4) == 0) {
+               out.append(String.format("\\u%04x\\u%04x", (int)c, (int)low));
+            } else {
+               out.append(c).append(low);
+            }
+         } else if (c < 0x20 || random.nextInt(4) == 0) {
+            out.append(String.format("\\u%04x", (int)c));
+         } else {
+            out.append(c);
+         }
+      }
+
+      out.append('"');
+   }
+
+   private static void space(Random random, StringBuilder out) {
+      out.append(WHITESPACE[random.nextInt(WHITESPACE.length)]);
+   }
+}
@@ -0,0 +1,227 @@
+package edu.calpoly.twitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that two LeaseCoordinators on one directory split the queries between them, hand
+ *  positions over with the leases, and never hand off a query in the middle of a poll.
+ *
+ * Heartbeats are driven by the test (the timer's heartbeat is far off), so every step
+ *  is deterministic.
+ */
+public class LeaseCoordinatorJTest {
+   private static final long TTL_MS = 600000;
+   private static final long HEARTBEAT_MS = 300000;
+   private static final int QUERIES = 20;
+
+   private File dir;
+   private List<LeaseCoordinator> coordinators;
+
+   @Before
+   public void setUp() throws IOException {
+      dir = Files.createTempDirectory("coordination").toFile();
+      coordinators = new ArrayList<LeaseCoordinator>();
+   }
+
+   @After
+   public void tearDown() {
+      for (LeaseCoordinator coordinator : coordinators) {
+         coordinator.stop();
+      }
+
+      delete(dir);
+   }
+
+   @Test
+   public void testSplitAndHandOff() {
+      List<QueryTargetInfo> aQueries = queries();
+      List<QueryTargetInfo> bQueries = queries();
+      LeaseCoordinator a = coordinator("a", aQueries);
+      LeaseCoordinator b = coordinator("b", bQueries);
+
+      // Alone, a takes everything.
+      a.start();
+      assertEquals(names(aQueries), new HashSet<String>(a.getOwned()));
+      for (QueryTargetInfo info : aQueries) {
+         assertTrue(a.beginPoll(info));
+         info.lastSeenId = "" + (100 + info.query.length());
+         a.endPoll(info);
+      }
+
+      // b joins, but waits for a to let go of what moves to it.
+      b.start();
+      assertTrue(b.getOwned().isEmpty());
+      assertEquals(2, b.getMembers().size());
+
+      a.heartbeat();
+      b.heartbeat();
+      assertSplit(a, b);
+      assertFalse(b.getOwned().isEmpty());
+
+      // b starts where a left off.
+      for (String query : b.getOwned()) {
+         QueryTargetInfo info = find(bQueries, query);
+         assertEquals("" + (100 + query.length()), info.lastSeenId);
+         assertTrue(b.beginPoll(info));
+         b.endPoll(info);
+         assertFalse(a.beginPoll(find(aQueries, query)));
+      }
+
+      // Once a leaves, b takes everything back, again from where a left off.
+      List<String> aOwned = a.getOwned();
+      for (String query : aOwned) {
+         QueryTargetInfo info = find(aQueries, query);
+         assertTrue(a.beginPoll(info));
+         info.lastSeenId = "900";
+         a.endPoll(info);
+      }
+
+      a.stop();
+      b.heartbeat();
+      assertEquals(names(bQueries), new HashSet<String>(b.getOwned()));
+      assertEquals(1, b.getMembers().size());
+      for (String query : aOwned) {
+         assertEquals("900", find(bQueries, query).lastSeenId);
+      }
+   }
+
+   @Test
+   public void testNoHandOffDuringPoll() {
+      List<QueryTargetInfo> aQueries = queries();
+      List<QueryTargetInfo> bQueries = queries();
+      LeaseCoordinator a = coordinator("a", aQueries);
+      LeaseCoordinator b = coordinator("b", bQueries);
+
+      a.start();
+      b.start();
+
+      // Poll everything on a while b joins.
+      for (QueryTargetInfo info : aQueries) {
+         assertTrue(a.beginPoll(info));
+      }
+
+      a.heartbeat();
+      b.heartbeat();
+      assertTrue(b.getOwned().isEmpty());
+      assertEquals(QUERIES, a.getOwned().size());
+
+      // a still holds what moved to b, but does not start new polls of it.
+      Set<String> moving = new HashSet<String>();
+      for (QueryTargetInfo info : aQueries) {
+         if (!a.owns(info)) {
+            moving.add(info.query);
+         }
+      }
+
+      // Done polling: what moved to b is released then, and b takes it with the new position.
+      for (QueryTargetInfo info : aQueries) {
+         info.lastSeenId = "700";
+         a.endPoll(info);
+      }
+
+      b.heartbeat();
+      a.heartbeat();
+      assertSplit(a, b);
+      assertEquals(moving, new HashSet<String>(b.getOwned()));
+      for (String query : b.getOwned()) {
+         assertEquals("700", find(bQueries, query).lastSeenId);
+      }
+   }
+
+   @Test
+   public void testPosition() {
+      QueryTargetInfo info = new QueryTargetInfo("q");
+      assertNull(LeaseCoordinator.getPosition(info));
+
+      info.lastSeenId = "90";
+      assertEquals("90", LeaseCoordinator.getPosition(info));
+
+      // While a chain is open, only the floor has been fetched up to.
+      info.smallestId = "50";
+      info.floorId = "40";
+      assertEquals("40", LeaseCoordinator.getPosition(info));
+
+      info.floorId = null;
+      assertEquals("0", LeaseCoordinator.getPosition(info));
+   }
+
+   /**
+    * Every query is owned by exactly one of |a| and |b|.
+    */
+   private static void assertSplit(LeaseCoordinator a, LeaseCoordinator b) {
+      Set<String> owned = new HashSet<String>(a.getOwned());
+
+      for (String query : b.getOwned()) {
+         assertTrue(query, owned.add(query));
+      }
+
+      assertEquals(QUERIES, owned.size());
+      assertFalse(a.getOwned().isEmpty());
+   }
+
+   private LeaseCoordinator coordinator(String workerId, List<QueryTargetInfo> queries) {
+      LeaseCoordinator coordinator =
+            new LeaseCoordinator(dir, workerId, queries, TTL_MS, HEARTBEAT_MS, 64);
+      coordinators.add(coordinator);
+      return coordinator;
+   }
+
+   /**
+    * Each worker has its own QueryTargetInfos, like separate processes.
+    */
+   private static List<QueryTargetInfo> queries() {
+      List<QueryTargetInfo> rtn = new ArrayList<QueryTargetInfo>();
+
+      for (int i = 0; i < QUERIES; i++) {
+         rtn.add(new QueryTargetInfo("query" + i));
+      }
+
+      return rtn;
+   }
+
+   private static Set<String> names(List<QueryTargetInfo> queries) {
+      Set<String> rtn = new HashSet<String>();
+
+      for (QueryTargetInfo info : queries) {
+         rtn.add(info.query);
+      }
+
+      return rtn;
+   }
+
+   private static QueryTargetInfo find(List<QueryTargetInfo> queries, String query) {
+      for (QueryTargetInfo info : queries) {
+         if (info.query.equals(query)) {
+            return info;
+         }
+      }
+
+      throw new IllegalArgumentException(query);
+   }
+
+   private static void delete(File file) {
+      File[] files = file.listFiles();
+      if (files != null) {
+         for (File child : files) {
+            delete(child);
+         }
+      }
+
+      file.delete();
+   }
+}
@@ -0,0 +1,160 @@
+package edu.calpoly.twitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.calpoly.twitter.store.TweetData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks how QueryPlanner packs queries and how a QueryPack routes tweets back to its members.
+ */
+public class QueryPackJTest {
+   private static final String[] WORDS = {"alpha", "bravo", "charlie", "delta", "echo"};
+
+   @Test
+   public void testRandomRouting() {
+      for (long seed = 0; seed < 100; seed++) {
+         Random random = new Random(seed);
+         List<QueryTargetInfo> members = new ArrayList<QueryTargetInfo>();
+
+         for (int i = 0; i < WORDS.length; i++) {
+            QueryTargetInfo member = new QueryTargetInfo(WORDS[i]);
+            member.lastSeenId = "" + random.nextInt(50);
+            members.add(member);
+         }
+
+         QueryPack pack = new QueryPack(members);
+         List<TweetData> tweets = new ArrayList<TweetData>();
+
+         for (int id = 1; id <= 100; id++) {
+            StringBuilder content = new StringBuilder("tweet");
+            for (String word : WORDS) {
+               if (random.nextInt(3) == 0) {
+                  content.append(random.nextBoolean() ? " " : " #").append(word);
+               }
+            }
+
+            tweets.add(tweet(id, content.toString()));
+         }
+
+         Map<QueryTargetInfo, List<TweetData>> routed = pack.route(tweets);
+
+         for (int i = 0; i < WORDS.length; i++) {
+            QueryTargetInfo member = members.get(i);
+            List<TweetData> expected = new ArrayList<TweetData>();
+
+            for (TweetData tweet : tweets) {
+               if (Arrays.asList(tweet.content.replace("#", "").split(" ")).contains(WORDS[i]) &&
+                   Long.parseLong(tweet.twitterId) > Long.parseLong(member.lastSeenId)) {
+                  expected.add(tweet);
+               }
+            }
+
+            if (expected.isEmpty()) {
+               assertFalse(routed.containsKey(member));
+            } else {
+               assertEquals(expected, routed.get(member));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testPosition() {
+      QueryTargetInfo a = new QueryTargetInfo("alpha");
+      QueryTargetInfo b = new QueryTargetInfo("bravo");
+      a.lastSeenId = "30";
+      b.lastSeenId = "10";
+
+      QueryPack pack = new QueryPack(Arrays.asList(a, b));
+      assertEquals("alpha" + QueryPack.OR + "bravo", pack.query);
+
+      // The pack starts from the oldest member.
+      pack.prepare();
+      assertEquals("10", pack.lastSeenId);
+
+      // A cut off chain leaves every member with an open chain of its own.
+      pack.lastSeenId = "90";
+      pack.smallestId = "50";
+      pack.leaveOpen();
+      assertEquals("30", a.floorId);
+      assertEquals("10", b.floorId);
+      assertEquals("50", a.smallestId);
+      assertEquals("50", b.smallestId);
+      assertEquals("90", a.lastSeenId);
+      assertEquals("90", b.lastSeenId);
+
+      // A finished chain moves every member up to the pack.
+      a.lastSeenId = "95";
+      pack.prepare();
+      pack.lastSeenId = "120";
+      pack.finish();
+      assertEquals("120", a.lastSeenId);
+      assertEquals("120", b.lastSeenId);
+      assertNull(pack.smallestId);
+   }
+
+   @Test
+   public void testRandomPlans() {
+      for (long seed = 0; seed < 100; seed++) {
+         Random random = new Random(seed);
+         int maxLength = 10 + random.nextInt(40);
+         int maxTweets = 1 + random.nextInt(100);
+         List<QueryTargetInfo> queries = new ArrayList<QueryTargetInfo>();
+
+         for (int i = 0; i < 20; i++) {
+            int pick = random.nextInt(10);
+            String query = pick == 0 ? "%22two%20words%22" : WORDS[i % WORDS.length] + i;
+
+            QueryTargetInfo info = new QueryTargetInfo(query);
+            info.lastCount = random.nextInt(2 * maxTweets) - 1;
+            if (pick == 1) {
+               info.smallestId = "5";
+            }
+            queries.add(info);
+         }
+
+         List<QueryTargetInfo> plan = new QueryPlanner(maxLength, maxTweets).plan(queries);
+         Set<QueryTargetInfo> seen = new HashSet<QueryTargetInfo>();
+
+         for (QueryTargetInfo unit : plan) {
+            if (!(unit instanceof QueryPack)) {
+               assertTrue(seen.add(unit));
+               continue;
+            }
+
+            List<QueryTargetInfo> members = ((QueryPack)unit).getMembers();
+            assertTrue(members.size() > 1);
+            assertTrue(unit.query.length() <= maxLength);
+
+            for (QueryTargetInfo member : members) {
+               assertTrue(seen.add(member));
+               assertNull(member.smallestId);
+               assertTrue(member.lastCount < maxTweets);
+               assertTrue(QueryPack.getKeyword(member) != null);
+            }
+         }
+
+         assertEquals(new HashSet<QueryTargetInfo>(queries), seen);
+      }
+   }
+
+   private static TweetData tweet(long id, String content) {
+      TweetData tweet = new TweetData();
+      tweet.twitterId = "" + id;
+      tweet.content = content;
+      return tweet;
+   }
+}
@@ -0,0 +1,183 @@
+package edu.calpoly.twitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import edu.calpoly.twitter.bench.StubSearchServer;
+import edu.calpoly.twitter.store.FakeTweetStore;
+import edu.calpoly.twitter.util.Props;
+import edu.calpoly.twitter.util.RateLimiter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Checks QueryStream against a StubSearchServer: pages are only fetched as they are needed,
+ *  and the query's position only moves past the tweets that were taken.
+ */
+public class QueryStreamJTest {
+   private static final int TWEETS_PER_PAGE = 5;
+   private static final int PAGES_PER_CHAIN = 3;
+
+   private File dir;
+   private String path;
+   private StubSearchServer server;
+   private JSONTwitterGatherer gatherer;
+
+   @Before
+   public void setUp() throws IOException {
+      dir = Files.createTempDirectory("stream").toFile();
+      path = new File(dir, "checkpoints.tsv").getPath();
+
+      server = new StubSearchServer(TWEETS_PER_PAGE, PAGES_PER_CHAIN, 0);
+      server.start();
+
+      Props.setString("TWITTER_SEARCH_URL", server.getSearchUrl());
+      Props.setString("PAGE_DELAY_MS", "0");
+      Props.setString("RETRY_BASE_MS", "1");
+      Props.setString("RETRY_MAX_MS", "2");
+      Props.setString("RETRY_MAX_ATTEMPTS", "1");
+
+      gatherer = new JSONTwitterGatherer(new FakeTweetStore(), Arrays.asList("q"),
+                                         "stub-token");
+      gatherer.setRateLimiter(new RateLimiter(1000, 1000));
+      gatherer.setCheckpointLog(new CheckpointLog(path));
+   }
+
+   @After
+   public void tearDown() {
+      gatherer.close();
+      server.stop();
+
+      File[] files = dir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            file.delete();
+         }
+      }
+      dir.delete();
+   }
+
+   @Test(timeout = 60000)
+   public void testWholeChain() {
+      QueryStream stream = gatherer.stream("q");
+      List<Long> ids = take(stream, Integer.MAX_VALUE);
+
+      assertEquals(TWEETS_PER_PAGE * PAGES_PER_CHAIN, ids.size());
+      assertEquals(ids.size(), new HashSet<Long>(ids).size());
+      assertEquals(PAGES_PER_CHAIN, server.getRequestCount());
+      assertFalse(stream.isFailed());
+      assertFalse(stream.hasNext());
+
+      try {
+         stream.next();
+         fail();
+      } catch (NoSuchElementException ex) {
+         // Expected.
+      }
+
+      // The chain is finished, so the next one starts from the newest tweet.
+      QueryTargetInfo info = stream.getInfo();
+      assertEquals("" + Collections.max(ids), info.lastSeenId);
+      assertEquals(info.lastSeenId, info.floorId);
+      assertNull(info.smallestId);
+      assertTrue(gatherer.getChainUrl(info).contains("since_id=" + info.lastSeenId));
+
+      stream.close();
+      assertEquals(PAGES_PER_CHAIN, server.getRequestCount());
+   }
+
+   @Test(timeout = 60000)
+   public void testEarlyClose() {
+      QueryStream stream = gatherer.stream("q");
+      List<Long> ids = take(stream, 2);
+
+      // Part way through a page, only what was taken counts.
+      assertEquals(1, server.getRequestCount());
+      assertEquals("" + Collections.min(ids), stream.getInfo().smallestId);
+
+      ids.addAll(take(stream, TWEETS_PER_PAGE));
+      stream.close();
+
+      // Only the pages that were needed were fetched, and nothing is fetched after close().
+      assertEquals(2, server.getRequestCount());
+      assertFalse(stream.hasNext());
+      assertFalse(stream.isFailed());
+
+      // The chain is left open just below the last tweet taken.
+      QueryTargetInfo info = stream.getInfo();
+      assertEquals("" + Collections.max(ids), info.lastSeenId);
+      assertEquals("" + Collections.min(ids), info.smallestId);
+      assertTrue(gatherer.getChainUrl(info).contains("max_id=" + (Collections.min(ids) - 1)));
+
+      // The position was checkpointed, so another process resumes from the same place.
+      QueryTargetInfo restored = new QueryTargetInfo("q");
+      assertTrue(new CheckpointLog(path).restore(restored));
+      assertEquals(info.lastSeenId, restored.lastSeenId);
+      assertEquals(info.smallestId, restored.smallestId);
+      assertEquals(info.floorId, restored.floorId);
+
+      // Streaming again carries on with the same chain.
+      QueryStream again = gatherer.stream("q");
+      assertTrue(again.hasNext());
+      again.next();
+      again.close();
+      assertEquals(3, server.getRequestCount());
+      assertEquals(info.smallestId, again.getInfo().smallestId);
+   }
+
+   @Test(timeout = 60000)
+   public void testNewChain() {
+      QueryTargetInfo info = new QueryTargetInfo("other");
+      info.lastSeenId = "123";
+
+      // A new chain only goes back as far as the newest tweet already seen.
+      QueryStream stream = gatherer.stream(info);
+      take(stream, 1);
+      stream.close();
+
+      assertEquals("123", info.floorId);
+      assertNotNull(info.smallestId);
+      assertTrue(gatherer.getChainUrl(info).contains("since_id=123"));
+   }
+
+   @Test(timeout = 60000)
+   public void testFailure() {
+      server.setFaultRate(1.0);
+
+      QueryStream stream = gatherer.stream("q");
+      assertFalse(stream.hasNext());
+      assertTrue(stream.isFailed());
+      assertTrue(server.getFaultCount() > 0);
+
+      // Nothing was taken, so the position did not move.
+      QueryTargetInfo info = stream.getInfo();
+      assertEquals("0", info.lastSeenId);
+      assertNull(info.smallestId);
+   }
+
+   private static List<Long> take(QueryStream stream, int count) {
+      List<Long> rtn = new ArrayList<Long>();
+
+      while (rtn.size() < count && stream.hasNext()) {
+         rtn.add(Long.parseLong(stream.next().twitterId));
+      }
+
+      return rtn;
+   }
+}
@@ -0,0 +1,98 @@
+package edu.calpoly.twitter.stats;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks FrameRing's running totals against plain per-frame counts.
+ */
+public class FrameRingJTest {
+   @Test
+   public void testRandomAdds() {
+      for (long seed = 0; seed < 20; seed++) {
+         Random random = new Random(seed);
+         int frameSec = 1 + random.nextInt(60);
+         int capacity = 1 + random.nextInt(12);
+
+         FrameRing ring = new FrameRing(frameSec, capacity);
+         Map<Long, Long> counts = new HashMap<Long, Long>();
+         long head = -1;
+         long now = random.nextInt(100000);
+
+         for (int op = 0; op < 2000; op++) {
+            // Mostly the newest frame, sometimes an older one, sometimes a big jump.
+            int pick = random.nextInt(20);
+            if (pick == 0) {
+               now += (long)frameSec * capacity * (1 + random.nextInt(3));
+            } else if (pick < 8) {
+               now += random.nextInt(frameSec * 2);
+            }
+
+            long seconds = now - (pick == 1 ? random.nextInt(frameSec * (capacity + 2)) : 0);
+            seconds = Math.max(0, seconds);
+            long frame = seconds / frameSec;
+            long count = 1 + random.nextInt(5);
+
+            boolean held = head == -1 || frame > head - capacity;
+            assertEquals(held, ring.add(seconds, count));
+            if (held) {
+               head = Math.max(head, frame);
+               Long old = counts.get(frame);
+               counts.put(frame, (old == null ? 0 : old) + count);
+            }
+
+            long fromSec = Math.max(0, now - random.nextInt(frameSec * (capacity + 3)));
+            long toSec = fromSec + random.nextInt(frameSec * (capacity + 3));
+            assertEquals(expected(counts, head, capacity, fromSec / frameSec, toSec / frameSec),
+                         ring.count(fromSec, toSec));
+         }
+      }
+   }
+
+   @Test
+   public void testCounts() {
+      FrameRing ring = new FrameRing(10, 3);
+
+      ring.add(5, 1);
+      ring.add(15, 2);
+      ring.add(25, 3);
+      assertArrayEquals(new long[] {1, 2, 3, 0}, ring.counts(0, 39));
+
+      // Frame 0 rolls out of the ring.
+      ring.add(35, 4);
+      assertArrayEquals(new long[] {0, 2, 3, 4}, ring.counts(0, 39));
+      assertEquals(9, ring.count(0, 39));
+      assertFalse(ring.covers(9));
+      assertTrue(ring.covers(10));
+      assertFalse(ring.add(9, 1));
+   }
+
+   @Test
+   public void testEmpty() {
+      FrameRing ring = new FrameRing(10, 3);
+
+      assertEquals(0, ring.count(0, 1000));
+      assertTrue(ring.covers(0));
+   }
+
+   private static long expected(Map<Long, Long> counts, long head, int capacity,
+                                long from, long to) {
+      long rtn = 0;
+
+      for (long frame = Math.max(from, head - capacity + 1); frame <= Math.min(to, head);
+           frame++) {
+         Long count = counts.get(frame);
+         rtn += count == null ? 0 : count;
+      }
+
+      return rtn;
+   }
+}
@@ -0,0 +1,99 @@
+package edu.calpoly.twitter.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks CountMinSketch and TrendingWindow.
+ */
+public class TrendingWindowJTest {
+   @Test
+   public void testSketchNeverLow() {
+      Random random = new Random(1);
+      CountMinSketch sketch = new CountMinSketch(64, 4);
+      Map<Long, Integer> counts = new HashMap<Long, Integer>();
+
+      for (int i = 0; i < 20000; i++) {
+         long key = random.nextInt(500) * 0x9E3779B97F4A7C15L;
+         Integer old = counts.get(key);
+
+         sketch.add(key, 1);
+         counts.put(key, (old == null ? 0 : old) + 1);
+      }
+
+      for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+         assertTrue(sketch.estimate(entry.getKey()) >= entry.getValue());
+      }
+   }
+
+   @Test
+   public void testSketchMerge() {
+      CountMinSketch total = new CountMinSketch(16, 3);
+      CountMinSketch part = new CountMinSketch(16, 3);
+
+      part.add(42, 5);
+      total.add(7, 2);
+      total.merge(part, 1);
+      assertTrue(total.estimate(42) >= 5);
+
+      total.merge(part, -1);
+      assertEquals(2, total.estimate(7));
+      assertEquals(0, part.estimate(7));
+
+      part.clear();
+      assertEquals(0, part.estimate(42));
+   }
+
+   @Test
+   public void testTop() {
+      Tokenizer tokenizer = new Tokenizer();
+      TrendingWindow window = new TrendingWindow(600, 6, 1024, 4, 5);
+
+      for (int i = 0; i < 30; i++) {
+         window.add(tokenizer, "#calpoly rocks", 1000);
+      }
+      for (int i = 0; i < 10; i++) {
+         window.add(tokenizer, "mustang " + i, 1000);
+      }
+      for (int i = 0; i < 20; i++) {
+         window.add(tokenizer, "the rocks", 1000);
+      }
+
+      List<TrendingWindow.Trend> top = window.getTop(2);
+      assertEquals(2, top.size());
+      assertEquals("rocks", top.get(0).getTerm());
+      assertEquals(50, top.get(0).getCount());
+      assertEquals("#calpoly", top.get(1).getTerm());
+      assertEquals(30, top.get(1).getCount());
+      assertEquals(10, window.estimate("mustang"));
+   }
+
+   @Test
+   public void testSlide() {
+      Tokenizer tokenizer = new Tokenizer();
+      TrendingWindow window = new TrendingWindow(600, 6, 1024, 4, 5);
+
+      window.add(tokenizer, "early early", 1000);
+      window.add(tokenizer, "later", 1300);
+      assertEquals(2, window.estimate("early"));
+
+      // The window is [1100, 1700), so "early" is gone.
+      window.add(tokenizer, "latest", 1650);
+      assertEquals(0, window.estimate("early"));
+      assertEquals(1, window.estimate("later"));
+      for (TrendingWindow.Trend trend : window.getTop(5)) {
+         assertTrue(!trend.getTerm().equals("early"));
+      }
+
+      // Too old to be counted.
+      window.add(tokenizer, "stale", 900);
+      assertEquals(0, window.estimate("stale"));
+   }
+}
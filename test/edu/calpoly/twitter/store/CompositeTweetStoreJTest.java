@@ -0,0 +1,360 @@
+package edu.calpoly.twitter.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Metrics;
+import edu.calpoly.twitter.util.Props;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks what each CompositeTweetStore policy does with a sink that is slow or failing,
+ *  and that TweetCodec (which spilled batches go through) keeps every field.
+ */
+public class CompositeTweetStoreJTest {
+   private static final String[] STRING_PIECES = {"a", " ", "\u00e9", "\ud83d\ude00", "\u0000"};
+
+   /**
+    * Every test gets its own sink names, since metrics are global.
+    */
+   private static int sinkNumber = 0;
+
+   private File dir;
+   private QueryTargetInfo info;
+   private FakeTweetStore authoritative;
+   private CompositeTweetStore store;
+
+   @Before
+   public void setUp() throws IOException {
+      Props.setString("RETRY_BASE_MS", "5");
+      Props.setString("RETRY_MAX_MS", "20");
+
+      dir = Files.createTempDirectory("spill").toFile();
+      info = new QueryTargetInfo("q");
+      authoritative = new FakeTweetStore();
+      store = new CompositeTweetStore(authoritative, dir);
+   }
+
+   @After
+   public void tearDown() {
+      store.close();
+
+      File[] files = dir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            file.delete();
+         }
+      }
+      dir.delete();
+   }
+
+   @Test
+   public void testTweetCodec() throws IOException {
+      Random random = new Random(0);
+      List<TweetData> tweets = new ArrayList<TweetData>();
+
+      for (int i = 0; i < 200; i++) {
+         tweets.add(randomTweet(random));
+      }
+
+      // Longer than writeUTF() could take.
+      tweets.get(0).content = new String(new char[70000]).replace('\0', '\u4e2d');
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      for (TweetData tweet : tweets) {
+         TweetCodec.write(out, tweet);
+      }
+      out.close();
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      for (TweetData tweet : tweets) {
+         assertTweet(tweet, TweetCodec.read(in));
+      }
+      assertEquals(-1, in.read());
+   }
+
+   @Test
+   public void testBlock() throws InterruptedException {
+      RecordingStore slow = new RecordingStore();
+      RecordingStore flaky = new RecordingStore();
+      slow.delayMs = 2;
+      flaky.failures = 3;
+
+      store.addSink(nextName(), slow, CompositeTweetStore.Policy.BLOCK, 1);
+      store.addSink(nextName(), flaky, CompositeTweetStore.Policy.BLOCK, 1);
+      List<List<String>> batches = insertBatches(20);
+      store.flush();
+
+      // Everything gets through, in order, however slow or flaky the sink.
+      assertEquals(batches, slow.getBatches());
+      assertEquals(batches, flaky.getBatches());
+      assertEquals(0, flaky.failures);
+      assertEquals(ids(authoritative.getTweets()), flatten(batches));
+   }
+
+   @Test
+   public void testDrop() throws InterruptedException {
+      RecordingStore gated = new RecordingStore();
+      String name = nextName();
+      store.addSink(name, gated, CompositeTweetStore.Policy.DROP, 2);
+
+      // One batch is being delivered and two wait, so the rest are dropped.
+      List<List<String>> batches = insertGated(gated, 10);
+      store.flush();
+
+      assertEquals(batches.subList(0, 3), gated.getBatches());
+      assertEquals(7 * 3, Metrics.counter("store.sink." + name + ".dropped").get());
+      assertEquals(30, authoritative.size());
+
+      // A failed batch is dropped too.
+      gated.failures = 1;
+      List<List<String>> more = insertBatches(2);
+      store.flush();
+      assertEquals(more.get(1), gated.getBatches().get(3));
+      assertEquals(8 * 3, Metrics.counter("store.sink." + name + ".dropped").get());
+   }
+
+   @Test
+   public void testSpill() throws InterruptedException {
+      RecordingStore gated = new RecordingStore();
+      String name = nextName();
+      store.addSink(name, gated, CompositeTweetStore.Policy.SPILL, 2);
+
+      List<List<String>> batches = insertGated(gated, 10);
+      store.flush();
+
+      assertEquals(7 * 3, Metrics.counter("store.sink." + name + ".spilled").get());
+      assertEquals(sorted(flatten(batches)), sorted(flatten(gated.getBatches())));
+      assertEquals(0, dir.list().length);
+
+      // Failed batches are spilled and tried again until they go through.
+      gated.failures = 4;
+      List<List<String>> more = insertBatches(3);
+      while (gated.getBatches().size() < batches.size() + more.size()) {
+         store.flush();
+      }
+      store.flush();
+
+      List<String> expected = flatten(batches);
+      expected.addAll(flatten(more));
+      assertEquals(sorted(expected), sorted(flatten(gated.getBatches())));
+      assertEquals(0, dir.list().length);
+   }
+
+   @Test
+   public void testQueryTags() throws InterruptedException {
+      OffHeapTweetStore offHeap = new OffHeapTweetStore(4096);
+      store.addSink(nextName(), offHeap, CompositeTweetStore.Policy.BLOCK, 4);
+
+      insertBatches(1);
+      store.flush();
+      store.addQueryTag(info, 2, Arrays.asList("1"));
+
+      OffHeapTweetStore.Cursor cursor = offHeap.cursor();
+      assertTrue(cursor.seek(1));
+      BitSet expected = new BitSet();
+      expected.set(2);
+      assertEquals(expected, cursor.getQueries());
+   }
+
+   /**
+    * Insert batches while the first one is held up in |gated|, then let it go.
+    */
+   private List<List<String>> insertGated(RecordingStore gated, int count)
+         throws InterruptedException {
+      CountDownLatch entered = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      gated.entered = entered;
+      gated.release = release;
+
+      try {
+         List<List<String>> batches = insertBatches(1);
+         entered.await();
+         batches.addAll(insertBatches(count - 1));
+         return batches;
+      } finally {
+         release.countDown();
+      }
+   }
+
+   /**
+    * Insert batches of 3 new tweets each.
+    */
+   private List<List<String>> insertBatches(int count) {
+      List<List<String>> batches = new ArrayList<List<String>>();
+
+      for (int i = 0; i < count; i++) {
+         List<TweetData> tweets = new ArrayList<TweetData>();
+
+         for (int j = 0; j < 3; j++) {
+            TweetData tweet = new TweetData();
+            tweet.twitterId = "" + (authoritative.size() + tweets.size() + 1);
+            tweet.published = 1;
+            tweet.content = "tweet " + tweet.twitterId;
+            tweets.add(tweet);
+         }
+
+         assertEquals(3, store.insertTweets(info, tweets));
+         batches.add(ids(tweets));
+      }
+
+      return batches;
+   }
+
+   private static String nextName() {
+      synchronized (CompositeTweetStoreJTest.class) {
+         return "test" + sinkNumber++;
+      }
+   }
+
+   private static List<String> ids(List<TweetData> tweets) {
+      List<String> rtn = new ArrayList<String>();
+
+      for (TweetData tweet : tweets) {
+         rtn.add(tweet.twitterId);
+      }
+
+      return rtn;
+   }
+
+   private static List<String> flatten(List<List<String>> batches) {
+      List<String> rtn = new ArrayList<String>();
+
+      for (List<String> batch : batches) {
+         rtn.addAll(batch);
+      }
+
+      return rtn;
+   }
+
+   private static List<String> sorted(List<String> ids) {
+      List<String> rtn = new ArrayList<String>(ids);
+      Collections.sort(rtn);
+      return rtn;
+   }
+
+   private static void assertTweet(TweetData expected, TweetData actual) {
+      assertEquals(expected.twitterId, actual.twitterId);
+      assertEquals(expected.published, actual.published);
+      assertEquals(expected.content, actual.content);
+      assertEquals(expected.source, actual.source);
+      assertEquals(expected.lang, actual.lang);
+      assertEquals(expected.author, actual.author);
+      assertEquals(expected.place, actual.place);
+      assertEquals(expected.geo, actual.geo);
+      assertEquals(expected.fullPlace, actual.fullPlace);
+      assertEquals(expected.fullGeo, actual.fullGeo);
+      assertEquals(expected.duplicateOf, actual.duplicateOf);
+      assertEquals(expected.duplicates, actual.duplicates);
+      assertEquals(expected.queries, actual.queries);
+   }
+
+   private static TweetData randomTweet(Random random) {
+      TweetData tweet = new TweetData();
+
+      tweet.twitterId = randomString(random);
+      tweet.published = random.nextInt();
+      tweet.content = randomString(random);
+      tweet.source = randomString(random);
+      tweet.lang = randomString(random);
+      tweet.author = randomString(random);
+      tweet.place = randomString(random);
+      tweet.geo = randomString(random);
+      tweet.fullPlace = randomString(random);
+      tweet.fullGeo = randomString(random);
+      tweet.duplicateOf = randomString(random);
+      tweet.duplicates = random.nextInt();
+
+      if (random.nextBoolean()) {
+         tweet.queries = new BitSet();
+         for (int i = random.nextInt(4); i > 0; i--) {
+            tweet.queries.set(random.nextInt(200));
+         }
+      }
+
+      return tweet;
+   }
+
+   private static String randomString(Random random) {
+      if (random.nextInt(5) == 0) {
+         return null;
+      }
+
+      StringBuilder rtn = new StringBuilder();
+      for (int i = random.nextInt(10); i > 0; i--) {
+         rtn.append(STRING_PIECES[random.nextInt(STRING_PIECES.length)]);
+      }
+
+      return rtn.toString();
+   }
+
+   /**
+    * Remembers the ids of every batch it takes.
+    * It can be made slow, made to fail, or held up on its next batch.
+    */
+   private static class RecordingStore implements TweetStore {
+      private final List<List<String>> batches = new ArrayList<List<String>>();
+
+      public volatile int delayMs = 0;
+      public volatile int failures = 0;
+      public volatile CountDownLatch entered = null;
+      public volatile CountDownLatch release = null;
+
+      public String getLastTweetId(QueryTargetInfo info) {
+         return "0";
+      }
+
+      public int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+         CountDownLatch gate = release;
+         if (gate != null) {
+            release = null;
+            entered.countDown();
+            try {
+               gate.await();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+            }
+         }
+
+         if (failures > 0) {
+            failures--;
+            throw new IllegalStateException("Failing on purpose.");
+         }
+
+         try {
+            Thread.sleep(delayMs);
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
+
+         synchronized (this) {
+            batches.add(ids(data));
+         }
+         return data.size();
+      }
+
+      public synchronized List<List<String>> getBatches() {
+         return new ArrayList<List<String>>(batches);
+      }
+   }
+}
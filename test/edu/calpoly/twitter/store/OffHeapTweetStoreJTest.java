@@ -0,0 +1,275 @@
+package edu.calpoly.twitter.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that every field of a tweet makes it through an OffHeapTweetStore, along with
+ *  query tags added later, and that freeing slabs forgets exactly the tweets in them.
+ */
+public class OffHeapTweetStoreJTest {
+   private static final String[] STRING_PIECES = {
+      "a", "Z", " ", "'", "\u00e9", "\u4e2d", "\ud83d\ude00", "\u0000"
+   };
+
+   private final QueryTargetInfo info = new QueryTargetInfo("q");
+
+   @Test
+   public void testRandomTweets() {
+      Random random = new Random(0);
+      OffHeapTweetStore store = new OffHeapTweetStore(4096);
+      Map<String, TweetData> expected = new LinkedHashMap<String, TweetData>();
+
+      for (int batch = 0; batch < 50; batch++) {
+         List<TweetData> tweets = new ArrayList<TweetData>();
+         int inserted = 0;
+
+         for (int i = random.nextInt(20); i > 0; i--) {
+            TweetData tweet = randomTweet(random);
+            tweets.add(tweet);
+
+            TweetData old = expected.get(tweet.twitterId);
+            if (old == null) {
+               expected.put(tweet.twitterId, copy(tweet));
+               inserted++;
+            } else if (tweet.queries != null && !tweet.queries.get(0, 64).isEmpty()) {
+               // A tweet that is found again picks up the new queries (up to 64).
+               old.addQueries(tweet.queries.get(0, 64));
+            }
+         }
+
+         assertEquals(inserted, store.insertTweets(info, tweets));
+      }
+
+      assertTrue(store.getSlabCount() > 1);
+      assertEquals(expected.size(), store.size());
+
+      long maxId = 0;
+      Iterator<TweetData> iterator = store.iterator();
+      for (TweetData tweet : expected.values()) {
+         assertTrue(iterator.hasNext());
+         assertTweet(tweet, iterator.next());
+         maxId = Math.max(maxId, Long.parseLong(tweet.twitterId));
+      }
+      assertFalse(iterator.hasNext());
+      assertEquals("" + maxId, store.getLastTweetId(info));
+
+      OffHeapTweetStore.Cursor cursor = store.cursor();
+      for (TweetData tweet : expected.values()) {
+         assertTrue(cursor.seek(Long.parseLong(tweet.twitterId)));
+         assertTweet(tweet, cursor.toTweetData());
+      }
+      assertFalse(cursor.seek(-5));
+   }
+
+   @Test
+   public void testQueryTags() {
+      OffHeapTweetStore store = new OffHeapTweetStore(4096);
+      Metrics.Counter dropped = Metrics.counter("store.queryTagsDropped");
+
+      TweetData untagged = tweet(1);
+      TweetData tagged = tweet(2);
+      tagged.queries = bits(3);
+      store.insertTweets(info, Arrays.asList(untagged, tagged));
+
+      store.addQueryTag(info, 5, Arrays.asList("1", "2", "3"));
+      assertEquals(bits(5), queries(store, 1));
+      assertEquals(bits(3, 5), queries(store, 2));
+
+      // Found again by more queries, some of them past the 64 that can be added.
+      long before = dropped.get();
+      TweetData again = tweet(2);
+      again.queries = bits(7, 64, 100);
+      assertEquals(0, store.insertTweets(info, Arrays.asList(again)));
+      assertEquals(bits(3, 5, 7), queries(store, 2));
+      assertEquals(before + 2, dropped.get());
+
+      store.addQueryTag(info, 64, Arrays.asList("1", "2"));
+      assertEquals(before + 4, dropped.get());
+      assertEquals(bits(5), queries(store, 1));
+
+      // Queries that went in with the tweet are kept whatever their index.
+      TweetData wide = tweet(3);
+      wide.queries = bits(0, 200);
+      store.insertTweets(info, Arrays.asList(wide));
+      assertEquals(bits(0, 200), queries(store, 3));
+   }
+
+   @Test
+   public void testFreeOldestSlab() {
+      OffHeapTweetStore store = new OffHeapTweetStore(2048);
+      List<TweetData> tweets = new ArrayList<TweetData>();
+
+      for (int id = 1; id <= 200; id++) {
+         TweetData tweet = tweet(id);
+         tweet.content = "tweet number " + id + " with some padding to fill the slabs up";
+         tweets.add(tweet);
+      }
+      store.insertTweets(info, tweets);
+      store.addQueryTag(info, 1, Arrays.asList("1"));
+
+      int slabs = store.getSlabCount();
+      assertTrue(slabs > 2);
+
+      OffHeapTweetStore.Cursor cursor = store.cursor();
+      assertTrue(cursor.next());
+      assertEquals(1, cursor.getTwitterId());
+
+      int size = store.size();
+      int dropped = store.freeOldestSlab();
+      assertTrue(dropped > 0);
+      assertEquals(size - dropped, store.size());
+      assertEquals(slabs - 1, store.getSlabCount());
+
+      // The cursor can still read where it is, then moves on to what is left.
+      assertEquals(1, cursor.getTwitterId());
+      assertTrue(cursor.next());
+      assertEquals(dropped + 1, cursor.getTwitterId());
+
+      for (int id = 1; id <= 200; id++) {
+         assertEquals(id > dropped, store.cursor().seek(id));
+      }
+
+      // Dropped tweets can go back in, without their old tags.
+      assertEquals(1, store.insertTweets(info, Arrays.asList(tweet(1))));
+      assertNull(queries(store, 1));
+
+      while (store.freeOldestSlab() > 0) {
+         // Free all but the slab being written to.
+      }
+      assertEquals(1, store.getSlabCount());
+      assertEquals(0, store.freeOldestSlab());
+      assertTrue(store.cursor().seek(1));
+   }
+
+   @Test
+   public void testTooBig() {
+      OffHeapTweetStore store = new OffHeapTweetStore(1024);
+      TweetData big = tweet(1);
+      big.content = new String(new char[2000]).replace('\0', 'x');
+
+      assertEquals(2, store.insertTweets(info, Arrays.asList(tweet(2), big, tweet(3))));
+      assertFalse(store.cursor().seek(1));
+      assertTrue(store.cursor().seek(3));
+   }
+
+   private static BitSet queries(OffHeapTweetStore store, long id) {
+      OffHeapTweetStore.Cursor cursor = store.cursor();
+      assertTrue(cursor.seek(id));
+      return cursor.getQueries();
+   }
+
+   private static void assertTweet(TweetData expected, TweetData actual) {
+      assertEquals(expected.twitterId, actual.twitterId);
+      assertEquals(expected.published, actual.published);
+      assertEquals(expected.content, actual.content);
+      assertEquals(expected.source, actual.source);
+      assertEquals(expected.lang, actual.lang);
+      assertEquals(expected.author, actual.author);
+      assertEquals(expected.place, actual.place);
+      assertEquals(expected.geo, actual.geo);
+      assertEquals(expected.fullPlace, actual.fullPlace);
+      assertEquals(expected.fullGeo, actual.fullGeo);
+      assertEquals(expected.duplicateOf, actual.duplicateOf);
+      assertEquals(expected.duplicates, actual.duplicates);
+      assertEquals(expected.queries, actual.queries);
+   }
+
+   private static TweetData randomTweet(Random random) {
+      TweetData tweet = new TweetData();
+
+      tweet.twitterId = "" + (1 + random.nextInt(500));
+      tweet.published = random.nextInt();
+      tweet.content = randomString(random);
+      tweet.source = randomString(random);
+      tweet.lang = randomString(random);
+      tweet.author = randomString(random);
+      tweet.place = randomString(random);
+      tweet.geo = randomString(random);
+      tweet.fullPlace = randomString(random);
+      tweet.fullGeo = randomString(random);
+      tweet.duplicateOf = randomString(random);
+      tweet.duplicates = random.nextInt(3);
+
+      if (random.nextBoolean()) {
+         tweet.queries = new BitSet();
+         for (int i = random.nextInt(4); i > 0; i--) {
+            tweet.queries.set(random.nextInt(130));
+         }
+      }
+
+      return tweet;
+   }
+
+   /**
+    * Null a fifth of the time, and sometimes long enough to fill a good part of a slab.
+    */
+   private static String randomString(Random random) {
+      if (random.nextInt(5) == 0) {
+         return null;
+      }
+
+      StringBuilder rtn = new StringBuilder();
+      int length = random.nextInt(50) == 0 ? 100 : random.nextInt(10);
+
+      for (int i = 0; i < length; i++) {
+         rtn.append(STRING_PIECES[random.nextInt(STRING_PIECES.length)]);
+      }
+
+      return rtn.toString();
+   }
+
+   private static TweetData copy(TweetData tweet) {
+      TweetData rtn = new TweetData();
+
+      rtn.twitterId = tweet.twitterId;
+      rtn.published = tweet.published;
+      rtn.content = tweet.content;
+      rtn.source = tweet.source;
+      rtn.lang = tweet.lang;
+      rtn.author = tweet.author;
+      rtn.place = tweet.place;
+      rtn.geo = tweet.geo;
+      rtn.fullPlace = tweet.fullPlace;
+      rtn.fullGeo = tweet.fullGeo;
+      rtn.duplicateOf = tweet.duplicateOf;
+      rtn.duplicates = tweet.duplicates;
+      rtn.queries = tweet.queries == null ? null : (BitSet)tweet.queries.clone();
+
+      return rtn;
+   }
+
+   private static TweetData tweet(long id) {
+      TweetData tweet = new TweetData();
+      tweet.twitterId = "" + id;
+      tweet.published = (int)id;
+      tweet.content = "tweet " + id;
+      return tweet;
+   }
+
+   private static BitSet bits(int... set) {
+      BitSet rtn = new BitSet();
+
+      for (int bit : set) {
+         rtn.set(bit);
+      }
+
+      return rtn;
+   }
+}
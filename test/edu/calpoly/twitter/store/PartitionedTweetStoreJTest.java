@@ -0,0 +1,162 @@
+package edu.calpoly.twitter.store;
+
+import static org.junit.Assert.assertEquals;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks PartitionedTweetStore's reads against filtering every tweet it was given,
+ *  and that dropping partitions never moves getLastTweetId() back.
+ */
+public class PartitionedTweetStoreJTest {
+   private final QueryTargetInfo info = new QueryTargetInfo("q");
+
+   @Test
+   public void testRandomReads() {
+      for (long seed = 0; seed < 100; seed++) {
+         Random random = new Random(seed);
+         final int partitionSec = new int[] {1, 7, 100, 3600}[random.nextInt(4)];
+         PartitionedTweetStore store = new PartitionedTweetStore(partitionSec, 0);
+
+         // Each id is always published at the same time, like a real tweet.
+         Map<Long, Integer> published = new HashMap<Long, Integer>();
+         List<TweetData> expected = new ArrayList<TweetData>();
+         long maxId = 0;
+
+         for (int batch = 0; batch < 20; batch++) {
+            List<TweetData> tweets = new ArrayList<TweetData>();
+            int inserted = 0;
+
+            for (int i = random.nextInt(20); i > 0; i--) {
+               long id = 1 + random.nextInt(300);
+               if (!published.containsKey(id)) {
+                  published.put(id, random.nextInt(10000) - 5000);
+                  expected.add(tweet(id, published.get(id)));
+                  maxId = Math.max(maxId, id);
+                  inserted++;
+               }
+
+               tweets.add(tweet(id, published.get(id)));
+            }
+
+            assertEquals(inserted, store.insertTweets(info, tweets));
+         }
+
+         // Reads go oldest partition first, and in insertion order within a partition.
+         Collections.sort(expected, new Comparator<TweetData>() {
+            public int compare(TweetData a, TweetData b) {
+               return Long.compare(getStart(a, partitionSec), getStart(b, partitionSec));
+            }
+         });
+
+         assertEquals(expected.size(), store.size());
+         assertEquals("" + maxId, store.getLastTweetId(info));
+
+         for (int i = 0; i < 50; i++) {
+            long start = random.nextInt(12000) - 6000;
+            long end = start + random.nextInt(3000);
+            List<TweetData> inRange = new ArrayList<TweetData>();
+
+            for (TweetData tweet : expected) {
+               if (tweet.published >= start && tweet.published < end) {
+                  inRange.add(tweet);
+               }
+            }
+
+            assertEquals(ids(inRange), ids(store.getRange(start, end)));
+         }
+
+         for (int i = 0; i < 50; i++) {
+            long sinceId = random.nextInt(320) - 10;
+            List<TweetData> newer = new ArrayList<TweetData>();
+
+            for (TweetData tweet : expected) {
+               if (Long.parseLong(tweet.twitterId) > sinceId) {
+                  newer.add(tweet);
+               }
+            }
+
+            assertEquals(ids(newer), ids(store.getNewerThan(sinceId)));
+         }
+
+         // Only whole partitions are dropped, and the largest id stays.
+         long cutoff = random.nextInt(12000) - 6000;
+         List<TweetData> kept = new ArrayList<TweetData>();
+         int droppedPartitions = 0;
+         long lastStart = Long.MIN_VALUE;
+
+         for (TweetData tweet : expected) {
+            long partitionStart = getStart(tweet, partitionSec);
+
+            if (partitionStart + partitionSec > cutoff) {
+               kept.add(tweet);
+            } else if (partitionStart != lastStart) {
+               droppedPartitions++;
+            }
+            lastStart = partitionStart;
+         }
+
+         assertEquals(droppedPartitions, store.dropBefore(cutoff));
+         assertEquals(ids(kept), ids(store.getNewerThan(0)));
+         assertEquals("" + maxId, store.getLastTweetId(info));
+
+         // Dropped tweets are gone, so they can be inserted again.
+         assertEquals(expected.size() - kept.size(), store.insertTweets(info, expected));
+      }
+   }
+
+   @Test
+   public void testRetention() {
+      int now = (int)(System.currentTimeMillis() / 1000);
+      PartitionedTweetStore store = new PartitionedTweetStore(60, 3600);
+
+      List<TweetData> tweets = Arrays.asList(tweet(1, now - 7200), tweet(2, now - 60),
+                                             tweet(3, now), tweet(4, now - 3700));
+      assertEquals(2, store.insertTweets(info, tweets));
+      assertEquals(ids(Arrays.asList(tweets.get(1), tweets.get(2))),
+                   ids(store.getRange(now - 100000, now + 100000)));
+
+      // Nothing is old enough to drop yet.
+      assertEquals(0, store.dropExpired());
+      assertEquals(2, store.size());
+      assertEquals("3", store.getLastTweetId(info));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testNoTime() {
+      new PartitionedTweetStore(0, 0);
+   }
+
+   private static long getStart(TweetData tweet, int partitionSec) {
+      return (long)Math.floor((double)tweet.published / partitionSec) * partitionSec;
+   }
+
+   private static List<String> ids(List<TweetData> tweets) {
+      List<String> rtn = new ArrayList<String>();
+
+      for (TweetData tweet : tweets) {
+         rtn.add(tweet.twitterId);
+      }
+
+      return rtn;
+   }
+
+   private static TweetData tweet(long id, int published) {
+      TweetData tweet = new TweetData();
+      tweet.twitterId = "" + id;
+      tweet.published = published;
+      tweet.content = "tweet " + id;
+      return tweet;
+   }
+}
@@ -0,0 +1,297 @@
+package edu.calpoly.twitter.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that SpillingTweetStore stays under its budget without losing or repeating tweets,
+ *  and that segments the retention policy deletes take their ids with them.
+ */
+public class SpillingTweetStoreJTest {
+   private static final long BUDGET = 20000;
+
+   private File tempDir;
+   private File dir;
+   private final QueryTargetInfo info = new QueryTargetInfo("q");
+
+   @Before
+   public void setUp() throws IOException {
+      tempDir = Files.createTempDirectory("segments").toFile();
+      dir = new File(tempDir, "store");
+   }
+
+   @After
+   public void tearDown() {
+      File[] files = dir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            file.delete();
+         }
+      }
+      dir.delete();
+      tempDir.delete();
+   }
+
+   @Test
+   public void testRandomInserts() {
+      Random random = new Random(0);
+      SpillingTweetStore store = newStore(SpillingTweetStore.retainFor(0, 0));
+      Map<String, TweetData> expected = new HashMap<String, TweetData>();
+      long maxId = 0;
+
+      for (int batch = 0; batch < 200; batch++) {
+         List<TweetData> tweets = new ArrayList<TweetData>();
+         int inserted = 0;
+
+         for (int i = random.nextInt(20); i > 0; i--) {
+            TweetData tweet = tweet(1 + random.nextInt(3000), random.nextInt(1000));
+            tweet.content = random.nextInt(10) == 0 ? null : "tweet " + random.nextInt();
+            tweet.source = random.nextBoolean() ? null : "web";
+            tweets.add(tweet);
+
+            if (!expected.containsKey(tweet.twitterId)) {
+               expected.put(tweet.twitterId, tweet);
+               maxId = Math.max(maxId, Long.parseLong(tweet.twitterId));
+               inserted++;
+            }
+         }
+
+         assertEquals(inserted, store.insertTweets(info, tweets));
+         assertTrue(store.getMemoryBytes() <= BUDGET);
+         assertEquals(expected.size(), store.size());
+         assertEquals(store.size(), store.getMemoryTweets() + store.getDiskTweets());
+      }
+
+      assertTrue(store.getSegments().size() > 1);
+      assertEquals("" + maxId, store.getLastTweetId(info));
+
+      Set<String> seen = new HashSet<String>();
+      TweetData last = null;
+      for (Iterator<TweetData> iterator = store.iterator(); iterator.hasNext(); ) {
+         TweetData tweet = iterator.next();
+         TweetData want = expected.get(tweet.twitterId);
+
+         assertTrue(seen.add(tweet.twitterId));
+         assertEquals(want.published, tweet.published);
+         assertEquals(want.content, tweet.content);
+         assertEquals(want.source, tweet.source);
+
+         // Tweets in memory come last, in eviction order.
+         if (seen.size() > store.getDiskTweets() + 1) {
+            assertTrue(SpillingTweetStore.OLDEST_FIRST.compare(last, tweet) < 0);
+         }
+         last = tweet;
+      }
+      assertEquals(expected.keySet(), seen);
+
+      for (SpillingTweetStore.Segment segment : store.getSegments()) {
+         assertTrue(segment.getFile().isFile());
+         assertTrue(segment.getMinPublished() <= segment.getMaxPublished());
+      }
+
+      store.close();
+      assertFalse(dir.exists());
+      assertEquals(0, store.getDiskTweets());
+   }
+
+   @Test
+   public void testDiskRetention() {
+      long maxDisk = 30000;
+      SpillingTweetStore store = newStore(SpillingTweetStore.retainFor(0, maxDisk));
+
+      for (int id = 1; id <= 2000; id++) {
+         store.insertTweets(info, Arrays.asList(tweet(id, id)));
+         assertTrue(store.getDiskBytes() <= maxDisk);
+      }
+
+      List<SpillingTweetStore.Segment> segments = store.getSegments();
+      assertTrue(segments.size() > 1);
+      assertTrue(store.size() < 2000);
+      assertEquals(store.size(), count(store));
+
+      // The oldest tweets were deleted with their segments, so they are new again.
+      int oldest = segments.get(0).getMinPublished();
+      assertEquals(1, store.insertTweets(info, Arrays.asList(tweet(1, 1))));
+      assertEquals(0, store.insertTweets(info, Arrays.asList(tweet(oldest, oldest))));
+
+      store.close();
+   }
+
+   @Test
+   public void testAgeRetention() {
+      SpillingTweetStore store = newStore(SpillingTweetStore.retainFor(3600, 0));
+      int now = (int)(System.currentTimeMillis() / 1000);
+
+      // Old tweets are spilled first and deleted right away, new ones are kept.
+      for (int id = 1; id <= 1000; id++) {
+         int published = id % 2 == 0 ? now : now - 7200;
+         store.insertTweets(info, Arrays.asList(tweet(id, published)));
+      }
+
+      for (SpillingTweetStore.Segment segment : store.getSegments()) {
+         assertTrue(segment.getMaxPublished() >= now - 3600);
+      }
+
+      // Every tweet is either still there or can be inserted again.
+      long size = store.size();
+      int forgotten = 0;
+      for (int id = 1; id <= 1000; id++) {
+         forgotten += store.insertTweets(info, Arrays.asList(tweet(id, now)));
+      }
+      assertEquals(1000, size + forgotten);
+      assertTrue(forgotten > 0);
+
+      store.close();
+   }
+
+   @Test
+   public void testQueryTags() {
+      SpillingTweetStore store = newStore(SpillingTweetStore.retainFor(0, 0));
+      Metrics.Counter dropped = Metrics.counter("store.queryTagsDropped");
+
+      for (int id = 1; id <= 500; id++) {
+         store.insertTweets(info, Arrays.asList(tweet(id, id)));
+      }
+      assertTrue(store.getDiskTweets() > 0);
+
+      // Tweet 1 is on disk and tweet 500 is in memory.
+      store.addQueryTag(info, 4, Arrays.asList("1", "500", "9999"));
+
+      long before = dropped.get();
+      TweetData again = tweet(1, 1);
+      again.queries = bits(6, 64, 65);
+      assertEquals(0, store.insertTweets(info, Arrays.asList(again)));
+      assertEquals(before + 2, dropped.get());
+
+      store.addQueryTag(info, 70, Arrays.asList("1"));
+      assertEquals(before + 3, dropped.get());
+
+      for (Iterator<TweetData> iterator = store.iterator(); iterator.hasNext(); ) {
+         TweetData tweet = iterator.next();
+
+         if (tweet.twitterId.equals("1")) {
+            assertEquals(bits(4, 6), tweet.queries);
+         } else if (tweet.twitterId.equals("500")) {
+            assertEquals(bits(4), tweet.queries);
+         } else {
+            assertNull(tweet.queries);
+         }
+      }
+
+      store.close();
+   }
+
+   @Test(timeout = 60000)
+   public void testConcurrentInserts() throws InterruptedException {
+      final SpillingTweetStore store = newStore(SpillingTweetStore.retainFor(0, 0));
+      final int threadCount = 4;
+      final AtomicBoolean done = new AtomicBoolean(false);
+      final AtomicReference<String> error = new AtomicReference<String>();
+      Thread[] threads = new Thread[threadCount];
+
+      for (int t = 0; t < threadCount; t++) {
+         final int thread = t;
+
+         threads[t] = new Thread() {
+            public void run() {
+               for (int i = 0; i < 2000; i++) {
+                  long id = i * threadCount + thread + 1;
+                  store.insertTweets(info, Arrays.asList(tweet(id, (int)id)));
+               }
+            }
+         };
+         threads[t].start();
+      }
+
+      // Reading while tweets are being spilled sees every tweet once.
+      Thread reader = new Thread() {
+         public void run() {
+            while (!done.get()) {
+               Set<String> seen = new HashSet<String>();
+               long size = store.size();
+
+               for (Iterator<TweetData> iterator = store.iterator(); iterator.hasNext(); ) {
+                  String id = iterator.next().twitterId;
+                  if (!seen.add(id)) {
+                     error.set("Tweet " + id + " was seen twice.");
+                  }
+               }
+
+               if (seen.size() < size) {
+                  error.set("Only " + seen.size() + " of " + size + " tweets were seen.");
+               }
+            }
+         }
+      };
+      reader.start();
+
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      done.set(true);
+      reader.join();
+
+      assertNull(error.get());
+      assertEquals(8000, store.size());
+      assertEquals(8000, count(store));
+      store.close();
+   }
+
+   private SpillingTweetStore newStore(SpillingTweetStore.RetentionPolicy retention) {
+      return new SpillingTweetStore(BUDGET, dir, SpillingTweetStore.OLDEST_FIRST, retention);
+   }
+
+   private static long count(SpillingTweetStore store) {
+      long count = 0;
+
+      for (Iterator<TweetData> iterator = store.iterator(); iterator.hasNext(); ) {
+         iterator.next();
+         count++;
+      }
+
+      return count;
+   }
+
+   private static TweetData tweet(long id, int published) {
+      TweetData tweet = new TweetData();
+      tweet.twitterId = "" + id;
+      tweet.published = published;
+      tweet.content = "tweet " + id;
+      return tweet;
+   }
+
+   private static BitSet bits(int... set) {
+      BitSet rtn = new BitSet();
+
+      for (int bit : set) {
+         rtn.set(bit);
+      }
+
+      return rtn;
+   }
+}
@@ -0,0 +1,249 @@
+package edu.calpoly.twitter.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.calpoly.twitter.QueryTargetInfo;
+import edu.calpoly.twitter.util.Props;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks that WriteBehindTweetStore writes everything it accepts, in order for each query,
+ *  even when the store under it keeps failing, and that inserters wait once it is full.
+ */
+public class WriteBehindTweetStoreJTest {
+   private static final String[] QUERIES = {"a", "b", "c"};
+
+   @Before
+   public void setUp() {
+      Props.setString("RETRY_BASE_MS", "1");
+      Props.setString("RETRY_MAX_MS", "2");
+      Props.setString("RETRY_MAX_ATTEMPTS", "2");
+   }
+
+   @Test
+   public void testBatches() {
+      RecordingStore recording = new RecordingStore();
+      WriteBehindTweetStore store = new WriteBehindTweetStore(recording, 10, 60000, 100);
+      QueryTargetInfo info = new QueryTargetInfo("a");
+
+      for (int page = 0; page < 9; page++) {
+         assertEquals(5, store.insertTweets(info, tweets(page * 5 + 1, 5)));
+      }
+      assertEquals(0, store.insertTweets(info, new ArrayList<TweetData>()));
+
+      // Accepted tweets count, whether they have been written or not.
+      assertEquals("45", store.getLastTweetId(info));
+
+      store.flush();
+      assertEquals(ids(1, 45), recording.getIds("a"));
+      for (int size : recording.getSizes()) {
+         assertTrue(size <= 10);
+      }
+      assertEquals("45", store.getLastTweetId(info));
+
+      store.close();
+   }
+
+   @Test
+   public void testMaxDelay() throws InterruptedException {
+      RecordingStore recording = new RecordingStore();
+      WriteBehindTweetStore store = new WriteBehindTweetStore(recording, 1000, 20, 1000);
+
+      store.insertTweets(new QueryTargetInfo("a"), tweets(1, 3));
+
+      // Written without a flush, once the tweets have waited long enough.
+      long deadline = System.currentTimeMillis() + 10000;
+      while (recording.getIds("a").isEmpty() && System.currentTimeMillis() < deadline) {
+         Thread.sleep(5);
+      }
+      assertEquals(ids(1, 3), recording.getIds("a"));
+
+      store.close();
+   }
+
+   @Test(timeout = 60000)
+   public void testFailures() throws InterruptedException {
+      final RecordingStore recording = new RecordingStore();
+      recording.failRate = 0.5;
+      final WriteBehindTweetStore store = new WriteBehindTweetStore(recording, 7, 5, 30);
+      final int[] inserted = new int[QUERIES.length];
+      Thread[] threads = new Thread[QUERIES.length];
+
+      for (int t = 0; t < threads.length; t++) {
+         final int thread = t;
+
+         threads[t] = new Thread() {
+            public void run() {
+               QueryTargetInfo info = new QueryTargetInfo(QUERIES[thread]);
+               Random random = new Random(thread);
+
+               while (inserted[thread] < 300) {
+                  int count = 1 + random.nextInt(10);
+                  store.insertTweets(info, tweets(inserted[thread] + 1, count));
+                  inserted[thread] += count;
+               }
+            }
+         };
+         threads[t].start();
+      }
+
+      for (Thread thread : threads) {
+         thread.join();
+      }
+
+      // Failed writes were put back, so once the store works again everything gets there.
+      store.flush();
+      recording.failRate = 0;
+      store.close();
+
+      assertTrue(recording.failures > 0);
+      for (int t = 0; t < QUERIES.length; t++) {
+         assertEquals(QUERIES[t], ids(1, inserted[t]), recording.getIds(QUERIES[t]));
+      }
+   }
+
+   @Test(timeout = 60000)
+   public void testFull() throws InterruptedException {
+      RecordingStore recording = new RecordingStore();
+      final WriteBehindTweetStore store = new WriteBehindTweetStore(recording, 10, 60000, 20);
+      final QueryTargetInfo info = new QueryTargetInfo("a");
+
+      CountDownLatch entered = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      recording.entered = entered;
+      recording.release = release;
+
+      // 10 tweets are being written and 10 more are waiting, so it is full.
+      store.insertTweets(info, tweets(1, 10));
+      entered.await();
+      store.insertTweets(info, tweets(11, 10));
+
+      Thread inserter = new Thread() {
+         public void run() {
+            store.insertTweets(info, tweets(21, 5));
+         }
+      };
+      inserter.start();
+      inserter.join(200);
+      boolean waited = inserter.isAlive();
+
+      release.countDown();
+      inserter.join();
+      store.close();
+
+      assertTrue(waited);
+      assertEquals(ids(1, 25), recording.getIds("a"));
+   }
+
+   @Test
+   public void testCloseWrites() {
+      RecordingStore recording = new RecordingStore();
+      WriteBehindTweetStore store = new WriteBehindTweetStore(recording, 1000, 60000, 1000);
+
+      store.insertTweets(new QueryTargetInfo("a"), tweets(1, 4));
+      store.insertTweets(new QueryTargetInfo("b"), tweets(1, 2));
+      assertTrue(recording.getSizes().isEmpty());
+
+      store.close();
+      assertEquals(ids(1, 4), recording.getIds("a"));
+      assertEquals(ids(1, 2), recording.getIds("b"));
+   }
+
+   /**
+    * Tweets with ids from |first| up.
+    */
+   private static List<TweetData> tweets(long first, int count) {
+      List<TweetData> rtn = new ArrayList<TweetData>();
+
+      for (long id = first; id < first + count; id++) {
+         TweetData tweet = new TweetData();
+         tweet.twitterId = "" + id;
+         tweet.content = "tweet " + id;
+         rtn.add(tweet);
+      }
+
+      return rtn;
+   }
+
+   private static List<Long> ids(long first, int count) {
+      List<Long> rtn = new ArrayList<Long>();
+
+      for (long id = first; id < first + count; id++) {
+         rtn.add(id);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Remembers the ids written for each query, in the order they were written.
+    * It can be made to fail some of its writes, or held up on its next write.
+    */
+   private static class RecordingStore implements TweetStore {
+      private final Map<String, List<Long>> ids = new HashMap<String, List<Long>>();
+      private final List<Integer> sizes = new ArrayList<Integer>();
+      private final Random random = new Random(0);
+
+      public volatile double failRate = 0;
+      public volatile int failures = 0;
+      public volatile CountDownLatch entered = null;
+      public volatile CountDownLatch release = null;
+
+      public synchronized String getLastTweetId(QueryTargetInfo info) {
+         List<Long> written = ids.get(info.query);
+         return written == null ? "0" : "" + written.get(written.size() - 1);
+      }
+
+      public int insertTweets(QueryTargetInfo info, List<TweetData> data) {
+         CountDownLatch gate = release;
+         if (gate != null) {
+            release = null;
+            entered.countDown();
+            try {
+               gate.await();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+            }
+         }
+
+         synchronized (this) {
+            if (random.nextDouble() < failRate) {
+               failures++;
+               throw new IllegalStateException("Failing on purpose.");
+            }
+
+            List<Long> written = ids.get(info.query);
+            if (written == null) {
+               written = new ArrayList<Long>();
+               ids.put(info.query, written);
+            }
+
+            for (TweetData tweet : data) {
+               written.add(Long.parseLong(tweet.twitterId));
+            }
+            sizes.add(data.size());
+         }
+
+         return data.size();
+      }
+
+      public synchronized List<Long> getIds(String query) {
+         List<Long> written = ids.get(query);
+         return written == null ? new ArrayList<Long>() : new ArrayList<Long>(written);
+      }
+
+      public synchronized List<Integer> getSizes() {
+         return new ArrayList<Integer>(sizes);
+      }
+   }
+}
@@ -0,0 +1,81 @@
+package edu.calpoly.twitter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Checks that Backoff delays stay in the upper half of their cap, and that the cap doubles
+ *  up to the maximum without overflowing.
+ */
+public class BackoffJTest {
+   private static final int SAMPLES = 2000;
+
+   @Test
+   public void testDelays() {
+      long[][] params = {{1000, 60000}, {1, 1}, {7, 1000}, {100, Long.MAX_VALUE / 2}};
+
+      for (long[] param : params) {
+         Backoff backoff = new Backoff(param[0], param[1], 5);
+
+         for (int attempt = 1; attempt <= 70; attempt++) {
+            long cap = Math.min(param[1], param[0] << Math.min(attempt - 1, 30));
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+
+            for (int i = 0; i < SAMPLES; i++) {
+               long delay = backoff.getDelay(attempt);
+               min = Math.min(min, delay);
+               max = Math.max(max, delay);
+            }
+
+            assertTrue("attempt " + attempt + " cap " + cap + " min " + min, min >= cap / 2);
+            assertTrue("attempt " + attempt + " cap " + cap + " max " + max, max <= cap);
+
+            // The whole upper half gets used, not just one end of it.
+            if (cap >= 100) {
+               assertTrue(min < cap / 2 + cap / 10);
+               assertTrue(max > cap - cap / 10);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testZeroBase() {
+      Backoff backoff = new Backoff(0, 0, 3);
+
+      for (int attempt = 0; attempt < 10; attempt++) {
+         assertEquals(0, backoff.getDelay(attempt));
+      }
+   }
+
+   @Test
+   public void testAttempts() {
+      Backoff backoff = new Backoff(10, 100, 3);
+
+      assertEquals(3, backoff.getMaxAttempts());
+      assertTrue(backoff.canRetry(1));
+      assertTrue(backoff.canRetry(2));
+      assertFalse(backoff.canRetry(3));
+      assertFalse(backoff.canRetry(4));
+   }
+
+   @Test
+   public void testBadParameters() {
+      long[][] params = {{-1, 10, 1}, {10, 5, 1}, {10, 10, 0}};
+
+      for (long[] param : params) {
+         try {
+            new Backoff(param[0], param[1], (int)param[2]);
+            fail("Backoff(" + param[0] + ", " + param[1] + ", " + param[2] +
+                 ") should have been rejected.");
+         } catch (IllegalArgumentException ex) {
+            // Expected.
+         }
+      }
+   }
+}
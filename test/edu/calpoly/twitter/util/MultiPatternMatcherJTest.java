@@ -0,0 +1,131 @@
+package edu.calpoly.twitter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks MultiPatternMatcher against matching every keyword on its own with indexOf().
+ */
+public class MultiPatternMatcherJTest {
+   /**
+    * Few enough chars that keywords overlap and share prefixes and suffixes a lot.
+    */
+   private static final String PATTERN_CHARS = "abAB#@_1";
+   private static final String TEXT_CHARS = "abAB#@_1 .-\u00e9";
+
+   @Test
+   public void testRandomText() {
+      for (long seed = 0; seed < 200; seed++) {
+         Random random = new Random(seed);
+         List<String> patterns = new ArrayList<String>();
+
+         int numPatterns = 1 + random.nextInt(8);
+         for (int i = 0; i < numPatterns; i++) {
+            patterns.add(randomString(random, PATTERN_CHARS, 1 + random.nextInt(4)));
+         }
+
+         MultiPatternMatcher matcher = new MultiPatternMatcher(patterns);
+         assertEquals(numPatterns, matcher.size());
+
+         for (int i = 0; i < 50; i++) {
+            String text = randomString(random, TEXT_CHARS, random.nextInt(30));
+            assertEquals("seed " + seed + " text \"" + text + "\" patterns " + patterns,
+                         expected(patterns, text), matcher.match(text));
+         }
+      }
+   }
+
+   @Test
+   public void testWholeWords() {
+      MultiPatternMatcher matcher =
+            new MultiPatternMatcher(Arrays.asList("poly", "calpoly", "#go", "CAL"));
+
+      assertEquals(bits(1), matcher.match("calpoly rocks"));
+      assertEquals(bits(1), matcher.match("Go #CalPoly!"));
+      assertEquals(bits(0, 2), matcher.match("#go poly"));
+      assertEquals(bits(3), matcher.match("cal, poly_x"));
+      assertEquals(bits(), matcher.match("polytechnic calpolys"));
+   }
+
+   @Test
+   public void testMatchable() {
+      assertTrue(MultiPatternMatcher.isMatchable("Cal_Poly#1@"));
+      assertFalse(MultiPatternMatcher.isMatchable(""));
+      assertFalse(MultiPatternMatcher.isMatchable(null));
+      assertFalse(MultiPatternMatcher.isMatchable("cal poly"));
+      assertFalse(MultiPatternMatcher.isMatchable("caf\u00e9"));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testUnmatchable() {
+      new MultiPatternMatcher(Arrays.asList("ok", "not ok"));
+   }
+
+   /**
+    * Look for each keyword on its own (ASCII case insensitive, as a whole word).
+    */
+   private static BitSet expected(List<String> patterns, String text) {
+      BitSet rtn = new BitSet();
+      String lower = asciiLower(text);
+
+      for (int i = 0; i < patterns.size(); i++) {
+         String pattern = asciiLower(patterns.get(i));
+
+         for (int start = lower.indexOf(pattern); start != -1;
+              start = lower.indexOf(pattern, start + 1)) {
+            int end = start + pattern.length();
+
+            if ((start == 0 || !isWordChar(text.charAt(start - 1))) &&
+                (end == text.length() || !isWordChar(text.charAt(end)))) {
+               rtn.set(i);
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   private static boolean isWordChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_';
+   }
+
+   private static String asciiLower(String text) {
+      StringBuilder rtn = new StringBuilder(text.length());
+
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         rtn.append(c >= 'A' && c <= 'Z' ? (char)(c - 'A' + 'a') : c);
+      }
+
+      return rtn.toString();
+   }
+
+   private static String randomString(Random random, String chars, int length) {
+      StringBuilder rtn = new StringBuilder(length);
+
+      for (int i = 0; i < length; i++) {
+         rtn.append(chars.charAt(random.nextInt(chars.length())));
+      }
+
+      return rtn.toString();
+   }
+
+   private static BitSet bits(int... set) {
+      BitSet rtn = new BitSet();
+
+      for (int bit : set) {
+         rtn.set(bit);
+      }
+
+      return rtn;
+   }
+}
@@ -0,0 +1,99 @@
+package edu.calpoly.twitter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks OffHeapLongMap against a HashMap.
+ * The maps are kept small and the keys few, so probe runs are long and wrap around the end
+ *  of the table, which is where backward-shift removes can go wrong.
+ */
+public class OffHeapLongMapJTest {
+   @Test
+   public void testRandomOps() {
+      for (long seed = 0; seed < 200; seed++) {
+         Random random = new Random(seed);
+         // At most 9 keys fit in the first table (16 slots), more make it grow.
+         long[] keys = new long[4 + random.nextInt(seed % 2 == 0 ? 6 : 40)];
+         for (int i = 0; i < keys.length; i++) {
+            keys[i] = 1 + random.nextInt(Integer.MAX_VALUE);
+         }
+
+         OffHeapLongMap map = new OffHeapLongMap(1);
+         Map<Long, Long> expected = new HashMap<Long, Long>();
+
+         for (int op = 0; op < 5000; op++) {
+            long key = keys[random.nextInt(keys.length)];
+
+            if (random.nextInt(3) == 0) {
+               assertEquals(expected.remove(key) != null, map.remove(key));
+            } else {
+               long value = random.nextInt(1000);
+               map.put(key, value);
+               expected.put(key, value);
+            }
+
+            check(expected, map, keys);
+         }
+      }
+   }
+
+   @Test
+   public void testRemoveEverything() {
+      OffHeapLongMap map = new OffHeapLongMap(1);
+
+      for (long key = 1; key <= 9; key++) {
+         map.put(key, key * 10);
+      }
+
+      for (long key = 9; key >= 1; key--) {
+         assertTrue(map.remove(key));
+         assertFalse(map.remove(key));
+
+         for (long other = 1; other < key; other++) {
+            assertEquals(other * 10, map.get(other));
+         }
+      }
+
+      assertEquals(0, map.size());
+   }
+
+   @Test
+   public void testGrow() {
+      OffHeapLongMap map = new OffHeapLongMap(1);
+      long bytes = map.getBytes();
+
+      for (long key = 1; key <= 10000; key++) {
+         map.put(key, -key);
+      }
+
+      assertTrue(map.getBytes() > bytes);
+      assertEquals(10000, map.size());
+      for (long key = 1; key <= 10000; key++) {
+         assertEquals(-key, map.get(key));
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testZeroKey() {
+      new OffHeapLongMap(1).put(0, 1);
+   }
+
+   private static void check(Map<Long, Long> expected, OffHeapLongMap map, long[] keys) {
+      assertEquals(expected.size(), map.size());
+
+      for (long key : keys) {
+         Long value = expected.get(key);
+
+         assertEquals(value != null, map.containsKey(key));
+         assertEquals(value == null ? OffHeapLongMap.NO_VALUE : value, map.get(key));
+      }
+   }
+}